@@ -69,6 +69,18 @@ public class ExpressCollection extends ExpressType
     this.itemType = itemType;
   }
 
+  /**
+   * Returns the item type with the defined types resolved to their root
+   * type.
+   *
+   * @return the root type of the items
+   */
+  public ExpressType getItemRootType()
+  {
+    return itemType instanceof ExpressDefinedType definedType ?
+      definedType.getRootType() : itemType;
+  }
+
   public int getMinOccurrences()
   {
     return minOccurrences;
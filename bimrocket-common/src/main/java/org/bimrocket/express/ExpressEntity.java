@@ -32,8 +32,8 @@
 package org.bimrocket.express;
 
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import org.bimrocket.util.ObjectIntHashMap;
 
 /**
  *
@@ -47,6 +47,10 @@ public class ExpressEntity extends ExpressNamedType
   private final List<ExpressInverseAttribute> inverseAttributes = new ArrayList<>();
   private List<ExpressAttribute> allAttributes;
   private List<ExpressInverseAttribute> allInverseAttributes;
+  private AttributeTable attributeTable;
+  private final List<ExpressEntity> subtypes = new ArrayList<>();
+  private int hierarchyIndex = -1;
+  private int hierarchyEnd = -1;
 
   public ExpressEntity(String typeName)
   {
@@ -73,6 +77,45 @@ public class ExpressEntity extends ExpressNamedType
     this.superEntity = superEntity;
   }
 
+  /**
+   * Returns the direct subtypes of this entity, as computed by
+   * {@code ExpressSchema.getEntities()}.
+   *
+   * @return the direct subtypes of this entity
+   */
+  public List<ExpressEntity> getSubtypes()
+  {
+    return subtypes;
+  }
+
+  /**
+   * Returns the position of this entity in {@code ExpressSchema.getEntities()}.
+   *
+   * @return the position of this entity in the hierarchy or -1 if it was
+   * not computed yet.
+   */
+  public int getHierarchyIndex()
+  {
+    return hierarchyIndex;
+  }
+
+  /**
+   * Returns the position that follows the last subtype of this entity in
+   * {@code ExpressSchema.getEntities()}.
+   *
+   * @return the end of the subtypes of this entity (exclusive)
+   */
+  public int getHierarchyEnd()
+  {
+    return hierarchyEnd;
+  }
+
+  void setHierarchyRange(int hierarchyIndex, int hierarchyEnd)
+  {
+    this.hierarchyIndex = hierarchyIndex;
+    this.hierarchyEnd = hierarchyEnd;
+  }
+
   public ExpressEntity getRootEntity()
   {
     return superEntity == null ? this : superEntity.getRootEntity();
@@ -94,6 +137,7 @@ public class ExpressEntity extends ExpressNamedType
     {
       ArrayList<ExpressAttribute> list = new ArrayList<>();
       collectAttributes(list);
+      attributeTable = new AttributeTable(list);
       allAttributes = list;
     }
     return allAttributes;
@@ -101,26 +145,44 @@ public class ExpressEntity extends ExpressNamedType
 
   public ExpressAttribute getAttribute(String name)
   {
-    Iterator<ExpressAttribute> iter = getAllAttributes().iterator();
-    while (iter.hasNext())
-    {
-      ExpressAttribute attribute = iter.next();
-      if (attribute.getName().equals(name)) return attribute;
-    }
-    return null;
+    int index = getAttributeIndex(name);
+    return index == -1 ? null : allAttributes.get(index);
   }
 
   public int getAttributeIndex(String name)
   {
-    Iterator<ExpressAttribute> iter = getAllAttributes().iterator();
-    int index = 0;
-    while (iter.hasNext())
+    getAllAttributes();
+    return attributeTable.indices.get(name, -1);
+  }
+
+  /**
+   * Returns the type of an attribute with the defined types resolved to
+   * their root type.
+   *
+   * @param index the index of the attribute in getAllAttributes()
+   * @return the root type of the attribute
+   */
+  public ExpressType getAttributeRootType(int index)
+  {
+    getAllAttributes();
+    return attributeTable.rootTypes[index];
+  }
+
+  /**
+   * Tells whether this entity is the given entity or one of its subtypes.
+   *
+   * @param entity the entity to check
+   * @return true if this entity is entity or a subtype of it
+   */
+  public boolean isSubtypeOf(ExpressEntity entity)
+  {
+    ExpressEntity current = this;
+    while (current != null)
     {
-      ExpressAttribute attribute = iter.next();
-      if (attribute.getName().equals(name)) return index;
-      index++;
+      if (current == entity) return true;
+      current = current.superEntity;
     }
-    return -1;
+    return false;
   }
 
   private void collectAttributes(List<ExpressAttribute> list)
@@ -153,6 +215,15 @@ public class ExpressEntity extends ExpressNamedType
     return allInverseAttributes;
   }
 
+  public ExpressInverseAttribute getInverseAttribute(String name)
+  {
+    for (ExpressInverseAttribute attribute : getAllInverseAttributes())
+    {
+      if (attribute.getName().equals(name)) return attribute;
+    }
+    return null;
+  }
+
   private void collectInverseAttributes(List<ExpressInverseAttribute> list)
   {
     if (superEntity != null)
@@ -162,6 +233,32 @@ public class ExpressEntity extends ExpressNamedType
     list.addAll(inverseAttributes);
   }
 
+  /**
+   * The positions and the root types of all the attributes of the entity,
+   * computed together with the attribute list.
+   */
+  static class AttributeTable
+  {
+    final ObjectIntHashMap<String> indices = new ObjectIntHashMap<>();
+    final ExpressType[] rootTypes;
+
+    AttributeTable(List<ExpressAttribute> attributes)
+    {
+      rootTypes = new ExpressType[attributes.size()];
+      for (int i = 0; i < rootTypes.length; i++)
+      {
+        ExpressAttribute attribute = attributes.get(i);
+        if (!indices.containsKey(attribute.getName()))
+        {
+          indices.put(attribute.getName(), i);
+        }
+        ExpressType type = attribute.getType();
+        rootTypes[i] = type instanceof ExpressDefinedType definedType ?
+          definedType.getRootType() : type;
+      }
+    }
+  }
+
   @Override
   public String toString()
   {
@@ -33,6 +33,7 @@ package org.bimrocket.express;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -45,6 +46,8 @@ public class ExpressSchema
 {
   private String name;
   private final Map<String, ExpressNamedType> namedTypes = new HashMap<>();
+  private boolean frozen;
+  private List<ExpressEntity> entities;
 
   public String getName()
   {
@@ -53,22 +56,95 @@ public class ExpressSchema
 
   public void setName(String name)
   {
+    checkNotFrozen();
     this.name = name;
   }
 
+  public boolean isFrozen()
+  {
+    return frozen;
+  }
+
+  /**
+   * Makes this schema read only so it can be shared by several threads.
+   * The attribute lists of the entities and the entity hierarchy are
+   * computed in advance, since they are otherwise built lazily.
+   */
+  public void freeze()
+  {
+    if (frozen) return;
+
+    for (ExpressNamedType namedType : namedTypes.values())
+    {
+      if (namedType instanceof ExpressEntity entity)
+      {
+        entity.getAllAttributes(true);
+        entity.getAllInverseAttributes(true);
+      }
+    }
+    getEntities();
+    frozen = true;
+  }
+
+  /**
+   * Returns the entities of this schema in depth first order of the
+   * supertype hierarchy: the subtypes of an entity come right after it,
+   * so all of them are in the range from {@code getHierarchyIndex()}
+   * (inclusive) to {@code getHierarchyEnd()} (exclusive) of that entity.
+   *
+   * @return the ordered entities of this schema
+   */
+  public List<ExpressEntity> getEntities()
+  {
+    if (entities == null)
+    {
+      List<ExpressEntity> rootEntities = new ArrayList<>();
+      List<ExpressEntity> allEntities = getNamedTypes(ExpressEntity.class);
+      for (ExpressEntity entity : allEntities)
+      {
+        entity.getSubtypes().clear();
+      }
+      for (ExpressEntity entity : allEntities)
+      {
+        ExpressEntity superEntity = entity.getSuperEntity();
+        if (superEntity == null)
+        {
+          rootEntities.add(entity);
+        }
+        else
+        {
+          superEntity.getSubtypes().add(entity);
+        }
+      }
+      List<ExpressEntity> list = new ArrayList<>(allEntities.size());
+      sortByName(rootEntities);
+      for (ExpressEntity entity : rootEntities)
+      {
+        addHierarchy(entity, list);
+      }
+      entities = Collections.unmodifiableList(list);
+    }
+    return entities;
+  }
+
   public ExpressNamedType getNamedType(String typeName)
   {
-    return namedTypes.get(typeName.toUpperCase());
+    // type names usually come in uppercase from STEP files
+    ExpressNamedType namedType = namedTypes.get(typeName);
+    return namedType == null ?
+      namedTypes.get(typeName.toUpperCase()) : namedType;
   }
 
   public void addNamedType(ExpressNamedType namedType)
   {
+    checkNotFrozen();
     namedTypes.put(namedType.getTypeName().toUpperCase(), namedType);
+    entities = null;
   }
 
   public Collection<ExpressNamedType> getNamedTypes()
   {
-    return namedTypes.values();
+    return Collections.unmodifiableCollection(namedTypes.values());
   }
 
   @SuppressWarnings({"unchecked"})
@@ -87,31 +163,27 @@ public class ExpressSchema
 
   public boolean isNamedType(String typeName)
   {
-    return namedTypes.containsKey(typeName.toUpperCase());
+    return getNamedType(typeName) != null;
   }
 
   public boolean isEntity(String typeName)
   {
-    ExpressNamedType namedType = namedTypes.get(typeName.toUpperCase());
-    return namedType instanceof ExpressEntity;
+    return getNamedType(typeName) instanceof ExpressEntity;
   }
 
   public boolean isDefinedType(String typeName)
   {
-    ExpressNamedType namedType = namedTypes.get(typeName.toUpperCase());
-    return namedType instanceof ExpressDefinedType;
+    return getNamedType(typeName) instanceof ExpressDefinedType;
   }
 
   public boolean isSelect(String typeName)
   {
-    ExpressNamedType namedType = namedTypes.get(typeName.toUpperCase());
-    return namedType instanceof ExpressSelect;
+    return getNamedType(typeName) instanceof ExpressSelect;
   }
 
   public boolean isEnumeration(String typeName)
   {
-    ExpressNamedType namedType = namedTypes.get(typeName.toUpperCase());
-    return namedType instanceof ExpressEnumeration;
+    return getNamedType(typeName) instanceof ExpressEnumeration;
   }
 
   public boolean isCollection(String typeName)
@@ -123,4 +195,28 @@ public class ExpressSchema
   {
     return ExpressPrimitive.isPrimitive(typeName);
   }
+
+  private void addHierarchy(ExpressEntity entity, List<ExpressEntity> list)
+  {
+    int index = list.size();
+    list.add(entity);
+    List<ExpressEntity> subtypes = entity.getSubtypes();
+    sortByName(subtypes);
+    for (ExpressEntity subtype : subtypes)
+    {
+      addHierarchy(subtype, list);
+    }
+    entity.setHierarchyRange(index, list.size());
+  }
+
+  private void sortByName(List<ExpressEntity> list)
+  {
+    list.sort((a, b) -> a.getTypeName().compareTo(b.getTypeName()));
+  }
+
+  private void checkNotFrozen()
+  {
+    if (frozen)
+      throw new IllegalStateException("Schema " + name + " is read only");
+  }
 }
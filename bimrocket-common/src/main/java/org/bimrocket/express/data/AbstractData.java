@@ -31,8 +31,8 @@
 package org.bimrocket.express.data;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Stack;
 import org.bimrocket.express.ExpressAttribute;
 import org.bimrocket.express.ExpressCollection;
 import org.bimrocket.express.ExpressEntity;
@@ -40,8 +40,10 @@ import org.bimrocket.express.ExpressSchema;
 import static org.bimrocket.express.ExpressCollection.*;
 import org.bimrocket.express.ExpressConstant;
 import org.bimrocket.express.ExpressDefinedType;
+import org.bimrocket.express.ExpressInverseAttribute;
 import org.bimrocket.express.ExpressPrimitive;
 import org.bimrocket.express.ExpressType;
+import org.bimrocket.util.ObjectIntHashMap;
 
 /**
  *
@@ -54,6 +56,9 @@ public abstract class AbstractData<E, C> implements ExpressData
   final ExpressSchema schema;
   protected List<E> elements = new ArrayList<>();
   protected String definedTypeValueName = "value";
+  protected InverseIndex inverseIndex;
+  protected ObjectIntHashMap<String> elementPositions;
+  protected TypeIndex typeIndex;
 
   public AbstractData(ExpressSchema schema)
   {
@@ -77,6 +82,184 @@ public abstract class AbstractData<E, C> implements ExpressData
     return elements;
   }
 
+  /**
+   * Returns the index of the references between the root elements. When
+   * the index was not provided by the builder of this data, or the data
+   * was modified after that, it is built scanning all the elements.
+   *
+   * @return the inverse index
+   */
+  public InverseIndex getInverseIndex()
+  {
+    if (inverseIndex == null)
+    {
+      inverseIndex = buildInverseIndex();
+    }
+    return inverseIndex;
+  }
+
+  /**
+   * Sets the index of the references between the root elements. Loaders
+   * call this method to provide the index built while loading the data.
+   *
+   * @param inverseIndex the index that matches the current root elements
+   */
+  public void setInverseIndex(InverseIndex inverseIndex)
+  {
+    this.inverseIndex = inverseIndex;
+  }
+
+  /**
+   * Returns a cursor positioned on a list of the root entities of the
+   * given type, in root list order. The entities are found through the
+   * type index, that is updated with the elements added to the root list
+   * since the last call.
+   *
+   * @param typeName the name of the entity type
+   * @param includeSubtypes true to include the entities of the subtypes
+   * @return the cursor on the list of entities
+   */
+  @Override
+  public ExpressCursor entitiesOf(String typeName, boolean includeSubtypes)
+  {
+    if (!(schema.getNamedType(typeName) instanceof ExpressEntity entity))
+      throw new RuntimeException("Not an entity type: " + typeName);
+
+    TypeIndex index = getTypeIndex();
+    int fromType = entity.getHierarchyIndex();
+    int toType = includeSubtypes ? entity.getHierarchyEnd() : fromType + 1;
+
+    ExpressCollection colType = new ExpressCollection(LIST);
+    colType.setItemType(entity);
+    C collection = createCollection(LIST);
+    for (int position : index.getPositions(fromType, toType))
+    {
+      addCollectionValue(collection, elements.get(position), entity);
+    }
+    return new Cursor(collection, colType);
+  }
+
+  /**
+   * Returns the type index of the root elements, adding to it the
+   * elements appended to the root list since the last call.
+   *
+   * @return the type index
+   */
+  public TypeIndex getTypeIndex()
+  {
+    List<ExpressEntity> entities = schema.getEntities();
+    if (typeIndex == null || typeIndex.getTypeCount() != entities.size() ||
+        typeIndex.getElementCount() > elements.size())
+    {
+      typeIndex = new TypeIndex(entities.size());
+    }
+    int size = elements.size();
+    for (int position = typeIndex.getElementCount(); position < size;
+         position++)
+    {
+      if (getElementType(elements.get(position)) instanceof ExpressEntity
+          entity)
+      {
+        typeIndex.add(entity.getHierarchyIndex(), position);
+      }
+    }
+    typeIndex.setElementCount(size);
+    return typeIndex;
+  }
+
+  /**
+   * Calls the visitor for each entity element. A single cursor is reset on
+   * each element, so no cursor state is saved nor copied per entity.
+   *
+   * @param visitor the visitor to call
+   * @return the number of entities visited
+   */
+  @Override
+  public int visitEntities(ExpressVisitor visitor)
+  {
+    Cursor cursor = new Cursor(elements, null);
+    int count = 0;
+    for (E element : elements)
+    {
+      if (getElementType(element) instanceof ExpressEntity entity)
+      {
+        cursor.reset(element, entity);
+        count++;
+        if (!visitor.visitEntity(cursor)) break;
+      }
+    }
+    return count;
+  }
+
+  protected InverseIndex buildInverseIndex()
+  {
+    InverseIndex.Builder builder = new InverseIndex.Builder();
+    for (int source = 0; source < elements.size(); source++)
+    {
+      E element = elements.get(source);
+      if (getElementType(element) instanceof ExpressEntity entity)
+      {
+        List<ExpressAttribute> attributes = entity.getAllAttributes();
+        for (int index = 0; index < attributes.size(); index++)
+        {
+          Object value = getElementValue(element, index, attributes.get(index),
+            entity.getAttributeRootType(index));
+          addReferences(builder, source, index, value);
+        }
+      }
+    }
+    return builder.build(elements.size());
+  }
+
+  private void addReferences(InverseIndex.Builder builder, int source,
+    int attribute, Object value)
+  {
+    E element = getElement(value);
+    if (element != null)
+    {
+      if (getElementType(element) instanceof ExpressEntity)
+      {
+        int target = getElementPosition(element);
+        if (target != -1) builder.add(target, source, attribute);
+      }
+      return;
+    }
+
+    C collection = getCollection(value);
+    if (collection != null)
+    {
+      int size = getCollectionSize(collection);
+      for (int i = 0; i < size; i++)
+      {
+        addReferences(builder, source, attribute,
+          getCollectionValue(collection, i, null));
+      }
+    }
+  }
+
+  /**
+   * Returns the position of an element in the root list.
+   *
+   * @param element the element
+   * @return the position of the element or -1 if it is not a root element
+   */
+  protected int getElementPosition(E element)
+  {
+    if (elementPositions == null)
+    {
+      ObjectIntHashMap<String> positions =
+        new ObjectIntHashMap<>(elements.size());
+      for (int i = 0; i < elements.size(); i++)
+      {
+        String id = getElementId(elements.get(i));
+        if (id != null) positions.put(id, i);
+      }
+      elementPositions = positions;
+    }
+    String id = getElementId(element);
+    return id == null ? -1 : elementPositions.get(id, -1);
+  }
+
   // element methods
 
   protected abstract E getElement(Object value);
@@ -87,18 +270,76 @@ public abstract class AbstractData<E, C> implements ExpressData
 
   protected abstract String getElementTypeName(E element);
 
+  /**
+   * Returns the type of an element. Implementations that keep the type of
+   * their elements can override this method to avoid the lookup by name.
+   *
+   * @param element the element
+   * @return the entity or defined type of the element
+   */
+  protected ExpressType getElementType(E element)
+  {
+    return schema.getNamedType(getElementTypeName(element));
+  }
+
   protected abstract String getElementId(E element);
 
   protected abstract Object getElementValue(E element, String name, ExpressType type);
 
   protected abstract void setElementValue(E element, String name, Object value, ExpressType type);
 
+  /**
+   * Gets the value of an entity attribute. By default the value is read
+   * by the attribute name, but implementations that store the values by
+   * position can use the attribute index instead.
+   *
+   * @param element the entity element
+   * @param index the index of the attribute in the entity
+   * @param attribute the attribute
+   * @param type the expected type of the value
+   * @return the attribute value
+   */
+  protected Object getElementValue(E element, int index,
+    ExpressAttribute attribute, ExpressType type)
+  {
+    return getElementValue(element, attribute.getName(), type);
+  }
+
+  /**
+   * Sets the value of an entity attribute.
+   *
+   * @param element the entity element
+   * @param index the index of the attribute in the entity
+   * @param attribute the attribute
+   * @param value the value to set
+   * @param type the expected type of the value
+   * @see #getElementValue(Object, int, ExpressAttribute, ExpressType)
+   */
+  protected void setElementValue(E element, int index,
+    ExpressAttribute attribute, Object value, ExpressType type)
+  {
+    setElementValue(element, attribute.getName(), value, type);
+  }
+
   // collection methods
 
   protected abstract C getCollection(Object value);
 
   protected abstract C createCollection(String colTypeName);
 
+  /**
+   * Creates a collection for items of the given type. Implementations may
+   * choose a specialized representation for the item type.
+   *
+   * @param colTypeName the collection type (LIST, SET, BAG or ARRAY)
+   * @param itemType the root type of the items
+   * @return the new collection
+   */
+  protected C createCollection(String colTypeName, ExpressType itemType)
+  {
+    return createCollection(colTypeName);
+  }
+
   protected abstract void setCollectionValue(C collection, int index, Object value, ExpressType type);
 
   protected abstract Object getCollectionValue(C collection, int index, ExpressType type);
@@ -107,11 +348,27 @@ public abstract class AbstractData<E, C> implements ExpressData
 
   protected abstract int getCollectionSize(C collection);
 
+  /**
+   * Grows a collection to the given size adding null values.
+   *
+   * @param collection the collection
+   * @param size the new size, greater than the current size
+   * @param type the expected type of the items
+   */
+  protected void resizeCollection(C collection, int size, ExpressType type)
+  {
+    while (getCollectionSize(collection) < size)
+    {
+      addCollectionValue(collection, null, type);
+    }
+  }
+
   public class Cursor implements ExpressCursor
   {
     protected Object container;
     protected ExpressType type;
-    protected Stack<Object> stack;
+    protected Object[] stack; // (container, type) pairs
+    protected int stackSize;
 
     protected Cursor(Object container)
     {
@@ -119,7 +376,7 @@ public abstract class AbstractData<E, C> implements ExpressData
       E element = getElement(container);
       if (element != null)
       {
-        type = schema.getNamedType(getElementTypeName(element));
+        type = getElementType(element);
       }
       else // collection
       {
@@ -258,6 +515,46 @@ public abstract class AbstractData<E, C> implements ExpressData
       return this;
     }
 
+    @Override
+    public double getDouble(String name)
+    {
+      Object value = getPrimitiveValue(internalGet(name));
+      return value instanceof Number number ? number.doubleValue() : 0.0;
+    }
+
+    @Override
+    public double getDouble(int index)
+    {
+      Object value = getPrimitiveValue(internalGet(index));
+      return value instanceof Number number ? number.doubleValue() : 0.0;
+    }
+
+    @Override
+    public long getLong(String name)
+    {
+      Object value = getPrimitiveValue(internalGet(name));
+      return value instanceof Number number ? number.longValue() : 0L;
+    }
+
+    @Override
+    public long getLong(int index)
+    {
+      Object value = getPrimitiveValue(internalGet(index));
+      return value instanceof Number number ? number.longValue() : 0L;
+    }
+
+    @Override
+    public String getReference(String name)
+    {
+      return getReferenceId(internalGet(name));
+    }
+
+    @Override
+    public String getReference(int index)
+    {
+      return getReferenceId(internalGet(index));
+    }
+
     @Override
     public ExpressCursor enter(String name)
     {
@@ -276,16 +573,69 @@ public abstract class AbstractData<E, C> implements ExpressData
       return this;
     }
 
+    @Override
+    public ExpressCursor enterInverse(String name)
+    {
+      E element = getElement(container);
+      if (element == null || !(type instanceof ExpressEntity entity))
+        throw new RuntimeException("Not an entity cursor");
+
+      ExpressInverseAttribute inverse = entity.getInverseAttribute(name);
+      if (inverse == null)
+        throw new RuntimeException("Invalid inverse attribute: " + name);
+
+      ExpressCollection colType;
+      if (inverse.getType() instanceof ExpressCollection inverseColType)
+      {
+        colType = inverseColType;
+      }
+      else
+      {
+        colType = new ExpressCollection(SET);
+        colType.setItemType(inverse.getType());
+      }
+      if (!(colType.getItemType() instanceof ExpressEntity sourceEntity))
+        throw new RuntimeException("Invalid inverse attribute: " + name);
+
+      int forIndex = sourceEntity.getAttributeIndex(inverse.getForAttribute());
+      C collection = createCollection(colType.getTypeName());
+      int target = getElementPosition(element);
+      if (target != -1)
+      {
+        InverseIndex index = getInverseIndex();
+        int lastSource = -1;
+        for (int entry = index.getStart(target); entry < index.getEnd(target);
+             entry++)
+        {
+          int source = index.getSource(entry);
+          if (source != lastSource && index.getAttribute(entry) == forIndex)
+          {
+            E sourceElement = elements.get(source);
+            if (getElementType(sourceElement) instanceof ExpressEntity
+                sourceType && sourceType.isSubtypeOf(sourceEntity))
+            {
+              addCollectionValue(collection, sourceElement, sourceEntity);
+              lastSource = source;
+            }
+          }
+        }
+      }
+      internalEnter(collection, colType);
+      return this;
+    }
+
     @Override
     public ExpressCursor exit()
     {
-      if (stack == null || stack.isEmpty())
+      if (stackSize == 0)
         throw new RuntimeException("Empty cursor stack");
 
       Object oldContainer = container;
 
-      type = (ExpressType)stack.pop();
-      container = stack.pop();
+      type = (ExpressType)stack[--stackSize];
+      container = stack[--stackSize];
+      stack[stackSize] = null;
+      stack[stackSize + 1] = null;
 
       if (oldContainer instanceof DefinedTypeValue definedTypeValue)
       {
@@ -349,25 +699,12 @@ public abstract class AbstractData<E, C> implements ExpressData
       E element = getElement(container);
       if (element != null)
       {
-        ExpressAttribute attribute;
         if (type instanceof ExpressEntity entity)
         {
-          if (selector instanceof Integer index)
-          {
-            attribute = entity.getAllAttributes().get(index);
-          }
-          else if (selector instanceof String name)
-          {
-            attribute = entity.getAttribute(name);
-          }
-          else throw new RuntimeException("Invalid selector: " + selector);
-
-          ExpressType expectedType = attribute.getType();
-          if (expectedType instanceof ExpressDefinedType definedType)
-          {
-            expectedType = definedType.getRootType();
-          }
-          return getElementValue(element, attribute.getName(), expectedType);
+          int index = getAttributeIndex(entity, selector);
+          ExpressAttribute attribute = entity.getAllAttributes().get(index);
+          ExpressType expectedType = entity.getAttributeRootType(index);
+          return getElementValue(element, index, attribute, expectedType);
         }
         else if (type instanceof ExpressDefinedType definedType)
         {
@@ -382,11 +719,7 @@ public abstract class AbstractData<E, C> implements ExpressData
       {
         if (type instanceof ExpressCollection colType)
         {
-          ExpressType expectedType = colType.getItemType();
-          if (expectedType instanceof ExpressDefinedType definedType)
-          {
-            expectedType = definedType.getRootType();
-          }
+          ExpressType expectedType = colType.getItemRootType();
           int index = (Integer)selector;
 
           return getCollectionValue(collection, index, expectedType);
@@ -403,28 +736,28 @@ public abstract class AbstractData<E, C> implements ExpressData
 
     protected void internalSet(Object selector, Object value)
     {
+      if (inverseIndex != null || elementPositions != null)
+      {
+        inverseIndex = null; // the references may change
+        elementPositions = null;
+      }
+
+      if (typeIndex != null && container == elements &&
+          selector instanceof Integer index &&
+          index < typeIndex.getElementCount())
+      {
+        typeIndex = null; // a root element is replaced
+      }
+
       E element = getElement(container);
       if (element != null)
       {
-        ExpressAttribute attribute;
         if (type instanceof ExpressEntity entity)
         {
-          if (selector instanceof Integer index)
-          {
-            attribute = entity.getAllAttributes().get(index);
-          }
-          else if (selector instanceof String name)
-          {
-            attribute = entity.getAttribute(name);
-          }
-          else throw new RuntimeException("Invalid selector: " + selector);
-
-          ExpressType expectedType = attribute.getType();
-          if (expectedType instanceof ExpressDefinedType definedType)
-          {
-            expectedType = definedType.getRootType();
-          }
-          setElementValue(element, attribute.getName(), value, expectedType);
+          int index = getAttributeIndex(entity, selector);
+          ExpressAttribute attribute = entity.getAllAttributes().get(index);
+          ExpressType expectedType = entity.getAttributeRootType(index);
+          setElementValue(element, index, attribute, value, expectedType);
         }
         else if (type instanceof ExpressDefinedType definedType)
         {
@@ -439,11 +772,7 @@ public abstract class AbstractData<E, C> implements ExpressData
       {
         if (type instanceof ExpressCollection colType)
         {
-          ExpressType expectedType = colType.getItemType();
-          if (expectedType instanceof ExpressDefinedType definedType)
-          {
-            expectedType = definedType.getRootType();
-          }
+          ExpressType expectedType = colType.getItemRootType();
 
           if (selector == null)
           {
@@ -452,9 +781,9 @@ public abstract class AbstractData<E, C> implements ExpressData
           else
           {
             int index = (Integer)selector;
-            while (getCollectionSize(collection) <= index)
+            if (getCollectionSize(collection) <= index)
             {
-              addCollectionValue(collection, null, expectedType);
+              resizeCollection(collection, index + 1, expectedType);
             }
             setCollectionValue(collection, index, value, expectedType);
           }
@@ -489,25 +818,99 @@ public abstract class AbstractData<E, C> implements ExpressData
       }
       else if (isCollection(typeName))
       {
-        newContainer = createCollection(typeName);
         newType = getExpectedType(selector);
+        newContainer = newType instanceof ExpressCollection colType ?
+          createCollection(typeName, colType.getItemRootType()) :
+          createCollection(typeName);
       }
       else throw new RuntimeException("Not a container type: " + typeName);
 
-      internalSet(selector, newContainer);
+      if (newContainer instanceof DefinedTypeValue definedTypeValue)
+      {
+        // the value is set when the cursor exits the container
+        if (selector == null) definedTypeValue.selector = size();
+      }
+      else
+      {
+        internalSet(selector, newContainer);
+      }
 
       internalEnter(newContainer, newType);
     }
 
     protected void internalEnter(Object newContainer, ExpressType newType)
     {
-      if (stack == null) stack = new Stack<>();
-      stack.push(container);
-      stack.push(type);
+      if (stack == null)
+      {
+        stack = new Object[16];
+      }
+      else if (stackSize == stack.length)
+      {
+        stack = Arrays.copyOf(stack, 2 * stackSize);
+      }
+      stack[stackSize++] = container;
+      stack[stackSize++] = type;
+      container = newContainer;
+      type = newType;
+    }
+
+    /**
+     * Moves this cursor to the given container discarding the saved
+     * cursor states.
+     *
+     * @param newContainer the container
+     * @param newType the type of the container
+     */
+    protected void reset(Object newContainer, ExpressType newType)
+    {
+      if (stackSize > 0)
+      {
+        Arrays.fill(stack, 0, stackSize, null);
+        stackSize = 0;
+      }
       container = newContainer;
       type = newType;
     }
 
+    /**
+     * Returns the value wrapped by a defined type element or the given
+     * value if it is not a defined type element.
+     *
+     * @param value a raw value of this cursor
+     * @return the primitive value
+     */
+    protected Object getPrimitiveValue(Object value)
+    {
+      if (value == null || value instanceof Number) return value;
+
+      E element = getElement(value);
+      if (element != null &&
+          getElementType(element) instanceof ExpressDefinedType definedType)
+      {
+        return getElementValue(element, definedTypeValueName,
+          definedType.getRootType());
+      }
+      return value;
+    }
+
+    /**
+     * Returns the identifier of the entity element given as a raw value.
+     *
+     * @param value a raw value of this cursor
+     * @return the identifier of the entity or null if value is not an entity
+     */
+    protected String getReferenceId(Object value)
+    {
+      if (value == null) return null;
+
+      E element = getElement(value);
+      if (element != null && getElementType(element) instanceof ExpressEntity)
+      {
+        return getElementId(element);
+      }
+      return null;
+    }
+
     protected Object wrap(Object value, Object selector)
     {
       E element = getElement(value);
@@ -553,7 +956,7 @@ public abstract class AbstractData<E, C> implements ExpressData
       E element = getElement(aContainer);
       if (element != null)
       {
-        return schema.getNamedType(getElementTypeName(element));
+        return getElementType(element);
       }
 
       C collection = getCollection(aContainer);
@@ -564,20 +967,29 @@ public abstract class AbstractData<E, C> implements ExpressData
       throw new RuntimeException("Not a container");
     }
 
+    protected int getAttributeIndex(ExpressEntity entity, Object selector)
+    {
+      if (selector instanceof Integer index)
+      {
+        return index;
+      }
+      else if (selector instanceof String name)
+      {
+        int index = entity.getAttributeIndex(name);
+        if (index == -1)
+          throw new RuntimeException("Invalid attribute: " + name);
+        return index;
+      }
+      throw new RuntimeException("Invalid selector: " + selector);
+    }
+
     protected ExpressType getExpectedType(Object selector)
     {
       ExpressType expectedType;
       if (type instanceof ExpressEntity entity)
       {
-        if (selector instanceof Integer index)
-        {
-          expectedType = entity.getAllAttributes().get(index).getType();
-        }
-        else if (selector instanceof String name)
-        {
-          expectedType = entity.getAttribute(name).getType();
-        }
-        else throw new RuntimeException("Invalid selector: " + selector);
+        int index = getAttributeIndex(entity, selector);
+        expectedType = entity.getAllAttributes().get(index).getType();
       }
       else if (type instanceof ExpressDefinedType definedType)
       {
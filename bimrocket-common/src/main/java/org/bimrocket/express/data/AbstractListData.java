@@ -31,17 +31,27 @@
 package org.bimrocket.express.data;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import org.bimrocket.express.ExpressPrimitive;
 import org.bimrocket.express.ExpressSchema;
 import org.bimrocket.express.ExpressType;
+import static org.bimrocket.express.ExpressPrimitive.*;
 
 /**
+ * An AbstractData whose collections are Lists.
+ * <p>
+ * Collections of REAL, NUMBER and INTEGER items (like LIST OF
+ * IfcLengthMeasure) are stored in a DoubleList or a LongList, that keep
+ * the numbers in primitive arrays instead of boxing them.
  *
  * @author realor
  * @param <E>
  */
 public abstract class AbstractListData<E> extends AbstractData<E, List<Object>>
 {
+  protected boolean packedCollections = true;
+
   public AbstractListData(ExpressSchema schema)
   {
     super(schema);
@@ -64,6 +74,24 @@ public abstract class AbstractListData<E> extends AbstractData<E, List<Object>>
     return new ArrayList<>();
   }
 
+  @Override
+  protected List<Object> createCollection(String colTypeName,
+    ExpressType itemType)
+  {
+    if (packedCollections && itemType instanceof ExpressPrimitive primitive)
+    {
+      switch (primitive.getTypeName())
+      {
+        case REAL:
+        case NUMBER:
+          return new DoubleList();
+        case INTEGER:
+          return new LongList();
+      }
+    }
+    return createCollection(colTypeName);
+  }
+
   @Override
   protected void setCollectionValue(List<Object> collection, int index,
     Object value, ExpressType type)
@@ -85,6 +113,25 @@ public abstract class AbstractListData<E> extends AbstractData<E, List<Object>>
     collection.add(value);
   }
 
+  @Override
+  protected void resizeCollection(List<Object> collection, int size,
+    ExpressType type)
+  {
+    if (collection instanceof PackedList packedList)
+    {
+      packedList.setSize(size);
+    }
+    else if (collection instanceof ArrayList<Object> list)
+    {
+      list.ensureCapacity(size);
+      list.addAll(Collections.nCopies(size - list.size(), null));
+    }
+    else
+    {
+      super.resizeCollection(collection, size, type);
+    }
+  }
+
   @Override
   protected int getCollectionSize(List<Object> collection)
   {
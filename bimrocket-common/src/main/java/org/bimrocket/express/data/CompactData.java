@@ -0,0 +1,173 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.express.data;
+
+import java.util.Arrays;
+import org.bimrocket.express.ExpressAttribute;
+import org.bimrocket.express.ExpressDefinedType;
+import org.bimrocket.express.ExpressEntity;
+import org.bimrocket.express.ExpressNamedType;
+import org.bimrocket.express.ExpressSchema;
+import org.bimrocket.express.ExpressType;
+import org.bimrocket.express.data.CompactData.Element;
+
+/**
+ * A memory efficient ExpressData.
+ * <p>
+ * Each element keeps its type, a numeric id and its values in an array
+ * indexed by attribute position, instead of a map of attribute names like
+ * GenericData. Element ids are sequence numbers, so no random identifiers
+ * are generated.
+ *
+ * @author realor
+ */
+public class CompactData extends AbstractListData<Element>
+{
+  private int lastId;
+
+  public CompactData(ExpressSchema schema)
+  {
+    super(schema);
+  }
+
+  public static final class Element
+  {
+    static final Object[] EMPTY = new Object[0];
+
+    final ExpressNamedType type;
+    final int id;
+    final Object[] values;
+
+    Element(ExpressNamedType type, int id, int size)
+    {
+      this.type = type;
+      this.id = id;
+      this.values = size == 0 ? EMPTY : new Object[size];
+    }
+
+    public ExpressNamedType getType()
+    {
+      return type;
+    }
+
+    public int getId()
+    {
+      return id;
+    }
+
+    @Override
+    public String toString()
+    {
+      return type.getTypeName() + "#" + id + Arrays.toString(values);
+    }
+  }
+
+  @Override
+  protected Element getElement(Object value)
+  {
+    if (value instanceof Element element)
+    {
+      return element;
+    }
+    return null;
+  }
+
+  @Override
+  protected Element createEntity(ExpressEntity entity)
+  {
+    return new Element(entity, ++lastId, entity.getAllAttributes().size());
+  }
+
+  @Override
+  protected Element createDefinedType(ExpressDefinedType definedType)
+  {
+    return new Element(definedType, ++lastId, 1);
+  }
+
+  @Override
+  protected String getElementTypeName(Element element)
+  {
+    return element.type.getTypeName();
+  }
+
+  @Override
+  protected ExpressType getElementType(Element element)
+  {
+    return element.type;
+  }
+
+  @Override
+  protected String getElementId(Element element)
+  {
+    return String.valueOf(element.id);
+  }
+
+  @Override
+  protected Object getElementValue(Element element, String name,
+    ExpressType type)
+  {
+    int index = getValueIndex(element, name);
+    return index == -1 ? null : element.values[index];
+  }
+
+  @Override
+  protected void setElementValue(Element element, String name, Object value,
+    ExpressType type)
+  {
+    int index = getValueIndex(element, name);
+    if (index == -1)
+      throw new RuntimeException("Invalid attribute: " + name);
+    element.values[index] = value;
+  }
+
+  @Override
+  protected Object getElementValue(Element element, int index,
+    ExpressAttribute attribute, ExpressType type)
+  {
+    return element.values[index];
+  }
+
+  @Override
+  protected void setElementValue(Element element, int index,
+    ExpressAttribute attribute, Object value, ExpressType type)
+  {
+    element.values[index] = value;
+  }
+
+  private int getValueIndex(Element element, String name)
+  {
+    if (element.type instanceof ExpressEntity entity)
+    {
+      return entity.getAttributeIndex(name);
+    }
+    return 0; // defined type value
+  }
+}
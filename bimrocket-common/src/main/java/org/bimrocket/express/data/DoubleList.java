@@ -0,0 +1,117 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.express.data;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * A PackedList of double values. Unset values are stored as Double.NaN.
+ *
+ * @author realor
+ */
+public class DoubleList extends PackedList
+{
+  static final double[] EMPTY = new double[0];
+
+  private double[] values = EMPTY;
+
+  public DoubleList()
+  {
+  }
+
+  public DoubleList(int capacity)
+  {
+    ensureCapacity(capacity);
+  }
+
+  /**
+   * Returns the value at the given position without boxing it.
+   *
+   * @param index the position of the value
+   * @return the value or Double.NaN if the value is not a number
+   */
+  public double getDouble(int index)
+  {
+    Objects.checkIndex(index, size);
+    if (objects == null) return values[index];
+
+    return objects[index] instanceof Number number ?
+      number.doubleValue() : Double.NaN;
+  }
+
+  @Override
+  protected Object getPacked(int index)
+  {
+    double value = values[index];
+    return Double.isNaN(value) ? null : value;
+  }
+
+  @Override
+  protected boolean setPacked(int index, Object value)
+  {
+    if (value == null)
+    {
+      values[index] = Double.NaN;
+      return true;
+    }
+    if (value instanceof Double number && !(number.isNaN()))
+    {
+      values[index] = number;
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  protected int getPackedCapacity()
+  {
+    return values.length;
+  }
+
+  @Override
+  protected void setPackedCapacity(int capacity)
+  {
+    values = Arrays.copyOf(values, capacity);
+  }
+
+  @Override
+  protected void movePacked(int from, int to, int length)
+  {
+    System.arraycopy(values, from, values, to, length);
+  }
+
+  @Override
+  protected void releasePacked()
+  {
+    values = EMPTY;
+  }
+}
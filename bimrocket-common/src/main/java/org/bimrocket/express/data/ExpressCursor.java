@@ -207,6 +207,62 @@ public interface ExpressCursor
    */
   ExpressCursor add(ExpressCursor value);
 
+  /**
+   * Gets the numeric value of the specified attribute of the container
+   * wrapped by this cursor. Values of defined types are unwrapped.
+   *
+   * @param name the name of the attribute.
+   * @return the attribute value as a double or 0.0 if it is not a number.
+   */
+  double getDouble(String name);
+
+  /**
+   * Gets the numeric value at the specified index of the container wrapped
+   * by this cursor. Values of defined types are unwrapped.
+   *
+   * @param index the index of the item to get.
+   * @return the item value as a double or 0.0 if it is not a number.
+   */
+  double getDouble(int index);
+
+  /**
+   * Gets the numeric value of the specified attribute of the container
+   * wrapped by this cursor. Values of defined types are unwrapped.
+   *
+   * @param name the name of the attribute.
+   * @return the attribute value as a long or 0 if it is not a number.
+   */
+  long getLong(String name);
+
+  /**
+   * Gets the numeric value at the specified index of the container wrapped
+   * by this cursor. Values of defined types are unwrapped.
+   *
+   * @param index the index of the item to get.
+   * @return the item value as a long or 0 if it is not a number.
+   */
+  long getLong(int index);
+
+  /**
+   * Gets the identifier of the entity referenced by the specified attribute
+   * of the container wrapped by this cursor, without entering it.
+   *
+   * @param name the name of the attribute.
+   * @return the identifier of the referenced entity or {@code null} if the
+   * attribute value is not an entity.
+   */
+  String getReference(String name);
+
+  /**
+   * Gets the identifier of the entity referenced at the specified index of
+   * the container wrapped by this cursor, without entering it.
+   *
+   * @param index the index of the item to get.
+   * @return the identifier of the referenced entity or {@code null} if the
+   * item value is not an entity.
+   */
+  String getReference(int index);
+
   /**
    * Move this cursor to the container referenced by the specified attribute.
    * This method saves the current cursor state in a stack so that it can be
@@ -227,6 +283,19 @@ public interface ExpressCursor
    */
   ExpressCursor enter(int index);
 
+  /**
+   * Move this cursor to a collection of the entities that reference the
+   * entity wrapped by this cursor through the specified inverse attribute.
+   * The collection is always entered, even if the inverse attribute is not
+   * a collection or there are no such entities.
+   * This method saves the current cursor state in a stack so that it can be
+   * restored by calling the exit() method.
+   *
+   * @param name the name of an inverse attribute of the entity.
+   * @return this cursor.
+   */
+  ExpressCursor enterInverse(String name);
+
   /**
    * Restores the previous cursor state.
    *
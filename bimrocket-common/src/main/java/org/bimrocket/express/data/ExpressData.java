@@ -30,6 +30,7 @@
  */
 package org.bimrocket.express.data;
 
+import org.bimrocket.express.ExpressEntity;
 import org.bimrocket.express.ExpressSchema;
 
 /**
@@ -45,4 +46,47 @@ public interface ExpressData
   public abstract ExpressSchema getSchema();
 
   public ExpressCursor getRoot();
+
+  /**
+   * Returns a cursor positioned on a list of the root entities of the
+   * given type.
+   *
+   * @param typeName the name of the entity type
+   * @param includeSubtypes true to include the entities of all the
+   * subtypes of the given type
+   * @return the cursor on the list of entities
+   */
+  public ExpressCursor entitiesOf(String typeName, boolean includeSubtypes);
+
+  /**
+   * Calls the visitor for each entity of this model. The same cursor is
+   * positioned on every entity, so the visitor must not keep a reference
+   * to it (use {@code ExpressCursor.copy()} instead).
+   *
+   * @param visitor the visitor to call
+   * @return the number of entities visited
+   */
+  public default int visitEntities(ExpressVisitor visitor)
+  {
+    ExpressCursor cursor = getRoot();
+    int size = cursor.size();
+    int count = 0;
+    for (int i = 0; i < size; i++)
+    {
+      cursor.enter(i);
+      try
+      {
+        if (cursor.getType() instanceof ExpressEntity)
+        {
+          count++;
+          if (!visitor.visitEntity(cursor)) break;
+        }
+      }
+      finally
+      {
+        cursor.exit();
+      }
+    }
+    return count;
+  }
 }
\ No newline at end of file
@@ -0,0 +1,203 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.express.data;
+
+import java.util.Arrays;
+
+/**
+ * The references between the root elements of an ExpressData, indexed by
+ * the referenced element.
+ * <p>
+ * The references are stored in compressed sparse row (CSR) form: the
+ * references to the element at position {@code i} of the root list are
+ * the entries from {@code getStart(i)} (inclusive) to {@code getEnd(i)}
+ * (exclusive). Each entry keeps the position of the referencing element
+ * and the index of the attribute that holds the reference.
+ *
+ * @author realor
+ */
+public class InverseIndex
+{
+  private final int[] offsets;
+  private final int[] sources;
+  private final short[] attributes;
+
+  InverseIndex(int[] offsets, int[] sources, short[] attributes)
+  {
+    this.offsets = offsets;
+    this.sources = sources;
+    this.attributes = attributes;
+  }
+
+  /**
+   * Returns the number of elements indexed.
+   *
+   * @return the size of the root list when the index was built
+   */
+  public int getElementCount()
+  {
+    return offsets.length - 1;
+  }
+
+  /**
+   * Returns the number of references stored in this index.
+   *
+   * @return the number of references
+   */
+  public int getReferenceCount()
+  {
+    return offsets[offsets.length - 1];
+  }
+
+  /**
+   * Returns the first reference entry of an element.
+   *
+   * @param target the position of the referenced element
+   * @return the first entry
+   */
+  public int getStart(int target)
+  {
+    return target < offsets.length - 1 ? offsets[target] : 0;
+  }
+
+  /**
+   * Returns the entry that follows the last reference entry of an element.
+   *
+   * @param target the position of the referenced element
+   * @return the end entry (exclusive)
+   */
+  public int getEnd(int target)
+  {
+    return target < offsets.length - 1 ? offsets[target + 1] : 0;
+  }
+
+  /**
+   * Returns the position of the element that holds a reference.
+   *
+   * @param entry the reference entry
+   * @return the position of the referencing element in the root list
+   */
+  public int getSource(int entry)
+  {
+    return sources[entry];
+  }
+
+  /**
+   * Returns the index of the attribute that holds a reference.
+   *
+   * @param entry the reference entry
+   * @return the attribute index in the referencing entity
+   */
+  public int getAttribute(int entry)
+  {
+    return attributes[entry];
+  }
+
+  /**
+   * Collects the references of a model in load order and builds the index.
+   * References to elements that are not known yet can be added with a
+   * negative target and resolved later with {@code setTarget}.
+   */
+  public static class Builder
+  {
+    private int[] targets = new int[1024];
+    private int[] sources = new int[1024];
+    private short[] attributes = new short[1024];
+    private int size;
+
+    public void add(int target, int source, int attribute)
+    {
+      if (size == targets.length)
+      {
+        int newLength = 2 * size;
+        targets = Arrays.copyOf(targets, newLength);
+        sources = Arrays.copyOf(sources, newLength);
+        attributes = Arrays.copyOf(attributes, newLength);
+      }
+      targets[size] = target;
+      sources[size] = source;
+      attributes[size] = (short)attribute;
+      size++;
+    }
+
+    public int size()
+    {
+      return size;
+    }
+
+    public int getTarget(int entry)
+    {
+      return targets[entry];
+    }
+
+    public void setTarget(int entry, int target)
+    {
+      targets[entry] = target;
+    }
+
+    /**
+     * Builds the index. The references with a negative target are
+     * discarded.
+     *
+     * @param elementCount the number of elements of the root list
+     * @return the inverse index
+     */
+    public InverseIndex build(int elementCount)
+    {
+      int[] offsets = new int[elementCount + 1];
+      for (int i = 0; i < size; i++)
+      {
+        int target = targets[i];
+        if (target >= 0 && target < elementCount) offsets[target + 1]++;
+      }
+      for (int i = 0; i < elementCount; i++)
+      {
+        offsets[i + 1] += offsets[i];
+      }
+
+      int count = offsets[elementCount];
+      int[] indexSources = new int[count];
+      short[] indexAttributes = new short[count];
+      int[] next = Arrays.copyOf(offsets, elementCount);
+      for (int i = 0; i < size; i++) // stable, keeps the load order
+      {
+        int target = targets[i];
+        if (target >= 0 && target < elementCount)
+        {
+          int entry = next[target]++;
+          indexSources[entry] = sources[i];
+          indexAttributes[entry] = attributes[i];
+        }
+      }
+      return new InverseIndex(offsets, indexSources, indexAttributes);
+    }
+  }
+}
@@ -0,0 +1,601 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.express.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.RandomAccess;
+import org.bimrocket.express.ExpressAttribute;
+import org.bimrocket.express.ExpressConstant;
+import org.bimrocket.express.ExpressDefinedType;
+import org.bimrocket.express.ExpressEntity;
+import org.bimrocket.express.ExpressNamedType;
+import org.bimrocket.express.ExpressSchema;
+import org.bimrocket.express.ExpressType;
+
+/**
+ * An ExpressData whose elements, collections and strings are stored off
+ * heap, in a memory mapped temporary file, so it can hold models larger
+ * than the heap.
+ * <p>
+ * The heap only keeps the types and constants of the schema used by the
+ * data, and the handles (Element and Collection) created when the data is
+ * accessed, that just wrap the address of the records in the file:
+ * <ul>
+ * <li>element: type, id, root position and value count (4 ints),
+ * followed by the values.</li>
+ * <li>collection: size, capacity (2 ints) and the address of the values.
+ * Collections grow by allocating a new block of values.</li>
+ * <li>string: length (int) and UTF-8 bytes.</li>
+ * </ul>
+ * Values are stored as an array of 8 byte payloads followed by an array of
+ * 1 byte tags (NULL, LONG, DOUBLE, STRING, CONSTANT, ELEMENT or
+ * COLLECTION). Integer numbers are read back as Long and the other
+ * numbers as Double.
+ * <p>
+ * The file is append only: replaced strings and the old values of grown
+ * collections are not reclaimed until the data is closed.
+ *
+ * @author realor
+ */
+public class MappedData
+  extends AbstractData<MappedData.Element, MappedData.Collection>
+  implements Closeable
+{
+  static final byte NULL = 0;
+  static final byte LONG = 1;
+  static final byte DOUBLE = 2;
+  static final byte STRING = 3;
+  static final byte CONSTANT = 4;
+  static final byte ELEMENT = 5;
+  static final byte COLLECTION = 6;
+
+  static final int ELEMENT_HEADER_SIZE = 16;
+  static final int COLLECTION_HEADER_SIZE = 16;
+  static final int MIN_CAPACITY = 4;
+  static final int STRING_CACHE_SIZE = 4096;
+
+  private final MappedStore store;
+  private final List<ExpressNamedType> types = new ArrayList<>();
+  private final Map<ExpressNamedType, Integer> typeCodes = new HashMap<>();
+  private final List<ExpressConstant> constants = new ArrayList<>();
+  private final Map<ExpressConstant, Integer> constantCodes = new HashMap<>();
+  private final String[] cachedStrings = new String[STRING_CACHE_SIZE];
+  private final long[] cachedStringAddresses = new long[STRING_CACHE_SIZE];
+  private final Collection root;
+  private int lastId;
+
+  public MappedData(ExpressSchema schema) throws IOException
+  {
+    this(schema, null, MappedStore.DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * Creates a MappedData.
+   *
+   * @param schema the schema of the data
+   * @param directory the directory of the temporary file, or null to use
+   * the default temporary directory
+   * @param segmentSize the size of the mapped segments of the file, a
+   * power of 2
+   * @throws IOException if the temporary file can not be created
+   */
+  public MappedData(ExpressSchema schema, File directory, int segmentSize)
+    throws IOException
+  {
+    super(schema);
+    store = new MappedStore(directory, segmentSize);
+    root = new Collection(store.allocate(COLLECTION_HEADER_SIZE));
+    elements = new RootList();
+  }
+
+  /**
+   * Returns the number of bytes used in the mapped file.
+   *
+   * @return the size of the stored data
+   */
+  public long getStoreSize()
+  {
+    return store.size();
+  }
+
+  /**
+   * Closes the data deleting its temporary file. The data can not be used
+   * after that.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  public void close() throws IOException
+  {
+    store.close();
+  }
+
+  /**
+   * The handle of an element record.
+   */
+  public static final class Element
+  {
+    final long address;
+
+    Element(long address)
+    {
+      this.address = address;
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+      return other instanceof Element element && element.address == address;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Long.hashCode(address);
+    }
+
+    @Override
+    public String toString()
+    {
+      return "Element@" + address;
+    }
+  }
+
+  /**
+   * The handle of a collection record.
+   */
+  public static final class Collection
+  {
+    final long address;
+
+    Collection(long address)
+    {
+      this.address = address;
+    }
+
+    @Override
+    public boolean equals(Object other)
+    {
+      return other instanceof Collection collection &&
+        collection.address == address;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Long.hashCode(address);
+    }
+
+    @Override
+    public String toString()
+    {
+      return "Collection@" + address;
+    }
+  }
+
+  /**
+   * The root list, a view of the root collection record.
+   */
+  class RootList extends AbstractList<Element> implements RandomAccess
+  {
+    @Override
+    public Element get(int index)
+    {
+      return (Element)getCollectionValue(root, index, null);
+    }
+
+    @Override
+    public int size()
+    {
+      return getCollectionSize(root);
+    }
+  }
+
+  // element methods
+
+  @Override
+  protected Element getElement(Object value)
+  {
+    if (value instanceof Element element)
+    {
+      return element;
+    }
+    return null;
+  }
+
+  @Override
+  protected Element createEntity(ExpressEntity entity)
+  {
+    return createElement(entity, entity.getAllAttributes().size());
+  }
+
+  @Override
+  protected Element createDefinedType(ExpressDefinedType definedType)
+  {
+    return createElement(definedType, 1);
+  }
+
+  @Override
+  protected String getElementTypeName(Element element)
+  {
+    return getElementType(element).getTypeName();
+  }
+
+  @Override
+  protected ExpressType getElementType(Element element)
+  {
+    return types.get(store.getInt(element.address));
+  }
+
+  @Override
+  protected String getElementId(Element element)
+  {
+    return String.valueOf(store.getInt(element.address + 4));
+  }
+
+  /**
+   * Returns the position of an element in the root list, that is kept in
+   * its record.
+   *
+   * @param element the element
+   * @return the position of the element or -1 if it is not a root element
+   */
+  @Override
+  protected int getElementPosition(Element element)
+  {
+    return store.getInt(element.address + 8);
+  }
+
+  @Override
+  protected Object getElementValue(Element element, String name,
+    ExpressType type)
+  {
+    int index = getValueIndex(element, name);
+    return index == -1 ? null : getElementValue(element, index);
+  }
+
+  @Override
+  protected void setElementValue(Element element, String name, Object value,
+    ExpressType type)
+  {
+    int index = getValueIndex(element, name);
+    if (index == -1)
+      throw new RuntimeException("Invalid attribute: " + name);
+    setElementValue(element, index, value);
+  }
+
+  @Override
+  protected Object getElementValue(Element element, int index,
+    ExpressAttribute attribute, ExpressType type)
+  {
+    return getElementValue(element, index);
+  }
+
+  @Override
+  protected void setElementValue(Element element, int index,
+    ExpressAttribute attribute, Object value, ExpressType type)
+  {
+    setElementValue(element, index, value);
+  }
+
+  // collection methods
+
+  @Override
+  protected Collection getCollection(Object value)
+  {
+    if (value instanceof Collection collection)
+    {
+      return collection;
+    }
+    else if (value == elements)
+    {
+      return root;
+    }
+    return null;
+  }
+
+  @Override
+  protected Collection createCollection(String colTypeName)
+  {
+    return new Collection(store.allocate(COLLECTION_HEADER_SIZE));
+  }
+
+  @Override
+  protected void setCollectionValue(Collection collection, int index,
+    Object value, ExpressType type)
+  {
+    long address = collection.address;
+    Objects.checkIndex(index, store.getInt(address));
+    if (address == root.address)
+    {
+      Object oldValue = getCollectionValue(collection, index, type);
+      if (oldValue instanceof Element element)
+      {
+        store.putInt(element.address + 8, -1);
+      }
+      setRootPosition(value, index);
+    }
+    writeValue(store.getLong(address + 8), store.getInt(address + 4), index,
+      value);
+  }
+
+  @Override
+  protected Object getCollectionValue(Collection collection, int index,
+    ExpressType type)
+  {
+    long address = collection.address;
+    Objects.checkIndex(index, store.getInt(address));
+    return readValue(store.getLong(address + 8), store.getInt(address + 4),
+      index);
+  }
+
+  @Override
+  protected void addCollectionValue(Collection collection, Object value,
+    ExpressType type)
+  {
+    long address = collection.address;
+    int size = store.getInt(address);
+    ensureCapacity(collection, size + 1);
+    if (address == root.address)
+    {
+      setRootPosition(value, size);
+    }
+    writeValue(store.getLong(address + 8), store.getInt(address + 4), size,
+      value);
+    store.putInt(address, size + 1);
+  }
+
+  @Override
+  protected void resizeCollection(Collection collection, int size,
+    ExpressType type)
+  {
+    ensureCapacity(collection, size);
+    store.putInt(collection.address, size); // new values are NULL
+  }
+
+  @Override
+  protected int getCollectionSize(Collection collection)
+  {
+    return store.getInt(collection.address);
+  }
+
+  // private methods
+
+  private Element createElement(ExpressNamedType type, int valueCount)
+  {
+    long address =
+      store.allocate(ELEMENT_HEADER_SIZE + 9L * valueCount);
+    store.putInt(address, getTypeCode(type));
+    store.putInt(address + 4, ++lastId);
+    store.putInt(address + 8, -1);
+    store.putInt(address + 12, valueCount);
+    return new Element(address);
+  }
+
+  private int getValueIndex(Element element, String name)
+  {
+    if (getElementType(element) instanceof ExpressEntity entity)
+    {
+      return entity.getAttributeIndex(name);
+    }
+    return 0; // defined type value
+  }
+
+  private Object getElementValue(Element element, int index)
+  {
+    long address = element.address;
+    int count = store.getInt(address + 12);
+    Objects.checkIndex(index, count);
+    return readValue(address + ELEMENT_HEADER_SIZE, count, index);
+  }
+
+  private void setElementValue(Element element, int index, Object value)
+  {
+    long address = element.address;
+    int count = store.getInt(address + 12);
+    Objects.checkIndex(index, count);
+    writeValue(address + ELEMENT_HEADER_SIZE, count, index, value);
+  }
+
+  private void setRootPosition(Object value, int position)
+  {
+    if (value instanceof Element element)
+    {
+      store.putInt(element.address + 8, position);
+    }
+  }
+
+  private void ensureCapacity(Collection collection, int minCapacity)
+  {
+    long address = collection.address;
+    int capacity = store.getInt(address + 4);
+    if (capacity >= minCapacity) return;
+
+    int size = store.getInt(address);
+    int newCapacity = capacity < MIN_CAPACITY ?
+      MIN_CAPACITY : capacity + (capacity >> 1);
+    newCapacity = Math.max(newCapacity, minCapacity);
+
+    long values = store.getLong(address + 8);
+    long newValues = store.allocate(9L * newCapacity);
+    if (size > 0)
+    {
+      store.copy(values, newValues, 8L * size);
+      store.copy(values + 8L * capacity, newValues + 8L * newCapacity, size);
+    }
+    store.putInt(address + 4, newCapacity);
+    store.putLong(address + 8, newValues);
+  }
+
+  /**
+   * Reads a value of an array of values.
+   *
+   * @param values the address of the array of values
+   * @param count the number of values of the array
+   * @param index the index of the value to read
+   * @return the value read
+   */
+  private Object readValue(long values, int count, int index)
+  {
+    byte tag = store.getByte(values + 8L * count + index);
+    if (tag == NULL) return null;
+
+    long payload = store.getLong(values + 8L * index);
+    switch (tag)
+    {
+      case LONG:
+        return payload;
+      case DOUBLE:
+        return Double.longBitsToDouble(payload);
+      case STRING:
+        return readString(payload);
+      case CONSTANT:
+        return constants.get((int)payload);
+      case ELEMENT:
+        return new Element(payload);
+      case COLLECTION:
+        return payload == root.address ? elements : new Collection(payload);
+      default:
+        throw new RuntimeException("Invalid value tag: " + tag);
+    }
+  }
+
+  private void writeValue(long values, int count, int index, Object value)
+  {
+    byte tag;
+    long payload;
+    if (value == null)
+    {
+      tag = NULL;
+      payload = 0;
+    }
+    else if (value instanceof Long || value instanceof Integer ||
+             value instanceof Short || value instanceof Byte)
+    {
+      tag = LONG;
+      payload = ((Number)value).longValue();
+    }
+    else if (value instanceof Number number)
+    {
+      tag = DOUBLE;
+      payload = Double.doubleToRawLongBits(number.doubleValue());
+    }
+    else if (value instanceof String text)
+    {
+      tag = STRING;
+      payload = writeString(text);
+    }
+    else if (value instanceof ExpressConstant constant)
+    {
+      tag = CONSTANT;
+      payload = getConstantCode(constant);
+    }
+    else if (value instanceof Element element)
+    {
+      tag = ELEMENT;
+      payload = element.address;
+    }
+    else
+    {
+      Collection collection = getCollection(value);
+      if (collection == null)
+        throw new RuntimeException("Unsupported value: " + value);
+      tag = COLLECTION;
+      payload = collection.address;
+    }
+
+    store.putLong(values + 8L * index, payload);
+    store.putByte(values + 8L * count + index, tag);
+  }
+
+  private String readString(long address)
+  {
+    byte[] bytes = new byte[store.getInt(address)];
+    store.getBytes(address + 4, bytes, 0, bytes.length);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes a string. The last strings written are cached by hash, so
+   * repeated strings are only stored once.
+   *
+   * @param text the string to write
+   * @return the address of the string record
+   */
+  private long writeString(String text)
+  {
+    int slot = text.hashCode() & (STRING_CACHE_SIZE - 1);
+    if (text.equals(cachedStrings[slot]))
+    {
+      return cachedStringAddresses[slot];
+    }
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    long address = store.allocate(4 + bytes.length);
+    store.putInt(address, bytes.length);
+    store.putBytes(address + 4, bytes, 0, bytes.length);
+    cachedStrings[slot] = text;
+    cachedStringAddresses[slot] = address;
+    return address;
+  }
+
+  private int getTypeCode(ExpressNamedType type)
+  {
+    Integer code = typeCodes.get(type);
+    if (code == null)
+    {
+      code = types.size();
+      types.add(type);
+      typeCodes.put(type, code);
+    }
+    return code;
+  }
+
+  private int getConstantCode(ExpressConstant constant)
+  {
+    Integer code = constantCodes.get(constant);
+    if (code == null)
+    {
+      code = constants.size();
+      constants.add(constant);
+      constantCodes.put(constant, code);
+    }
+    return code;
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.express.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import static java.nio.file.StandardOpenOption.DELETE_ON_CLOSE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * An append only memory area stored in a memory mapped temporary file.
+ * <p>
+ * The file is mapped in segments of a fixed size, that are added as the
+ * area grows. Addresses are long offsets in the file. Blocks are aligned
+ * to 8 bytes and the values are read and written at addresses aligned to
+ * their size, so a value never spans two segments, but a block can.
+ * Address 0 is never allocated, so it is used as null.
+ * <p>
+ * The file is opened with DELETE_ON_CLOSE, so it is removed when the store
+ * is closed (on Unix systems it is unlinked as soon as it is opened).
+ *
+ * @author realor
+ */
+class MappedStore implements Closeable
+{
+  static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final int segmentSize;
+  private final int segmentShift;
+  private final int segmentMask;
+  private MappedByteBuffer[] segments = new MappedByteBuffer[16];
+  private int segmentCount;
+  private long top = 8;
+
+  MappedStore(File directory, int segmentSize) throws IOException
+  {
+    if (Integer.bitCount(segmentSize) != 1 || segmentSize < 4096)
+      throw new IllegalArgumentException("Invalid segment size: " +
+        segmentSize);
+
+    Path path = Files.createTempFile(
+      directory == null ? null : directory.toPath(), "express", ".data");
+    this.channel = FileChannel.open(path, READ, WRITE, DELETE_ON_CLOSE);
+    this.segmentSize = segmentSize;
+    this.segmentShift = Integer.numberOfTrailingZeros(segmentSize);
+    this.segmentMask = segmentSize - 1;
+  }
+
+  /**
+   * Allocates a zero filled block.
+   *
+   * @param size the size of the block in bytes
+   * @return the address of the block
+   * @throws RuntimeException if the file can not be extended
+   */
+  long allocate(long size)
+  {
+    long address = top;
+    top += (size + 7) & ~7L;
+    while ((long)segmentCount << segmentShift < top)
+    {
+      mapSegment();
+    }
+    return address;
+  }
+
+  /**
+   * Returns the number of bytes allocated.
+   *
+   * @return the size of the allocated area
+   */
+  long size()
+  {
+    return top;
+  }
+
+  int getInt(long address)
+  {
+    return segment(address).getInt(offset(address));
+  }
+
+  void putInt(long address, int value)
+  {
+    segment(address).putInt(offset(address), value);
+  }
+
+  long getLong(long address)
+  {
+    return segment(address).getLong(offset(address));
+  }
+
+  void putLong(long address, long value)
+  {
+    segment(address).putLong(offset(address), value);
+  }
+
+  byte getByte(long address)
+  {
+    return segment(address).get(offset(address));
+  }
+
+  void putByte(long address, byte value)
+  {
+    segment(address).put(offset(address), value);
+  }
+
+  void getBytes(long address, byte[] bytes, int start, int length)
+  {
+    while (length > 0)
+    {
+      int offset = offset(address);
+      int count = Math.min(length, segmentSize - offset);
+      segment(address).get(offset, bytes, start, count);
+      address += count;
+      start += count;
+      length -= count;
+    }
+  }
+
+  void putBytes(long address, byte[] bytes, int start, int length)
+  {
+    while (length > 0)
+    {
+      int offset = offset(address);
+      int count = Math.min(length, segmentSize - offset);
+      segment(address).put(offset, bytes, start, count);
+      address += count;
+      start += count;
+      length -= count;
+    }
+  }
+
+  /**
+   * Copies a range of bytes to another address. The ranges can not
+   * overlap.
+   *
+   * @param from the source address
+   * @param to the destination address
+   * @param length the number of bytes to copy
+   */
+  void copy(long from, long to, long length)
+  {
+    byte[] buffer = new byte[(int)Math.min(length, 8192)];
+    while (length > 0)
+    {
+      int count = (int)Math.min(length, buffer.length);
+      getBytes(from, buffer, 0, count);
+      putBytes(to, buffer, 0, count);
+      from += count;
+      to += count;
+      length -= count;
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    segments = null;
+    segmentCount = 0;
+    channel.close();
+  }
+
+  private MappedByteBuffer segment(long address)
+  {
+    return segments[(int)(address >>> segmentShift)];
+  }
+
+  private int offset(long address)
+  {
+    return (int)address & segmentMask;
+  }
+
+  private void mapSegment()
+  {
+    if (segmentCount == segments.length)
+    {
+      segments = Arrays.copyOf(segments, 2 * segmentCount);
+    }
+    try
+    {
+      long position = (long)segmentCount << segmentShift;
+      segments[segmentCount] =
+        channel.map(FileChannel.MapMode.READ_WRITE, position, segmentSize);
+      segmentCount++;
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException("Can not extend the mapped file", ex);
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.express.data;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * A list of numbers stored in a primitive array.
+ * <p>
+ * Unset values (null) are stored as a sentinel value of the primitive
+ * type. If a value that can not be packed is stored (a number of other
+ * class or a non numeric value), the list switches to an Object array, so
+ * it always behaves like an ArrayList.
+ *
+ * @author realor
+ */
+public abstract class PackedList extends AbstractList<Object>
+  implements RandomAccess
+{
+  static final int MIN_CAPACITY = 3; // the size of 3D coordinates
+
+  protected Object[] objects; // boxed values when they can not be packed
+  protected int size;
+
+  @Override
+  public int size()
+  {
+    return size;
+  }
+
+  @Override
+  public Object get(int index)
+  {
+    Objects.checkIndex(index, size);
+    return objects == null ? getPacked(index) : objects[index];
+  }
+
+  @Override
+  public Object set(int index, Object value)
+  {
+    Objects.checkIndex(index, size);
+    Object oldValue = get(index);
+    store(index, value);
+    return oldValue;
+  }
+
+  @Override
+  public void add(int index, Object value)
+  {
+    Objects.checkIndex(index, size + 1);
+    ensureCapacity(size + 1);
+    if (index < size) move(index, index + 1, size - index);
+    size++;
+    store(index, value);
+    modCount++;
+  }
+
+  @Override
+  public Object remove(int index)
+  {
+    Objects.checkIndex(index, size);
+    Object oldValue = get(index);
+    move(index + 1, index, size - index - 1);
+    size--;
+    if (objects != null) objects[size] = null;
+    modCount++;
+    return oldValue;
+  }
+
+  @Override
+  public void clear()
+  {
+    setSize(0);
+  }
+
+  /**
+   * Changes the size of this list. New positions are null.
+   *
+   * @param newSize the new size of the list
+   */
+  public void setSize(int newSize)
+  {
+    if (newSize < 0)
+      throw new IllegalArgumentException("Invalid size: " + newSize);
+
+    if (newSize > size)
+    {
+      ensureCapacity(newSize);
+      if (objects == null)
+      {
+        for (int i = size; i < newSize; i++)
+        {
+          setPacked(i, null);
+        }
+      }
+    }
+    else if (objects != null)
+    {
+      Arrays.fill(objects, newSize, size, null);
+    }
+    size = newSize;
+    modCount++;
+  }
+
+  /**
+   * Tells whether the values of this list are stored in a primitive array.
+   *
+   * @return true if the values are packed, false if they are boxed
+   */
+  public boolean isPacked()
+  {
+    return objects == null;
+  }
+
+  public void ensureCapacity(int minCapacity)
+  {
+    int capacity = objects == null ? getPackedCapacity() : objects.length;
+    if (capacity < minCapacity)
+    {
+      int newCapacity = capacity < MIN_CAPACITY ?
+        MIN_CAPACITY : capacity + (capacity >> 1);
+      newCapacity = Math.max(newCapacity, minCapacity);
+      if (objects == null)
+      {
+        setPackedCapacity(newCapacity);
+      }
+      else
+      {
+        objects = Arrays.copyOf(objects, newCapacity);
+      }
+    }
+  }
+
+  protected abstract Object getPacked(int index);
+
+  /**
+   * Stores a value in the primitive array.
+   *
+   * @param index the position of the value
+   * @param value the value to store
+   * @return false if the value can not be packed
+   */
+  protected abstract boolean setPacked(int index, Object value);
+
+  protected abstract int getPackedCapacity();
+
+  protected abstract void setPackedCapacity(int capacity);
+
+  protected abstract void movePacked(int from, int to, int length);
+
+  protected abstract void releasePacked();
+
+  private void store(int index, Object value)
+  {
+    if (objects == null && setPacked(index, value)) return;
+
+    if (objects == null) unpack();
+    objects[index] = value;
+  }
+
+  private void move(int from, int to, int length)
+  {
+    if (objects == null)
+    {
+      movePacked(from, to, length);
+    }
+    else
+    {
+      System.arraycopy(objects, from, objects, to, length);
+    }
+  }
+
+  private void unpack()
+  {
+    Object[] boxed = new Object[getPackedCapacity()];
+    for (int i = 0; i < size; i++)
+    {
+      boxed[i] = getPacked(i);
+    }
+    releasePacked();
+    objects = boxed;
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.express.data;
+
+import java.util.Arrays;
+
+/**
+ * The positions of the root elements of an ExpressData grouped by entity
+ * type.
+ * <p>
+ * Types are identified by their position in the entity hierarchy of the
+ * schema ({@code ExpressEntity.getHierarchyIndex()}), so the elements of
+ * an entity and all its subtypes are found in a contiguous range of types.
+ * The positions of each type are kept in ascending order.
+ *
+ * @author realor
+ */
+public class TypeIndex
+{
+  private static final int[] EMPTY = new int[0];
+
+  private final int[][] positions;
+  private final int[] sizes;
+  private int elementCount;
+
+  public TypeIndex(int typeCount)
+  {
+    positions = new int[typeCount][];
+    sizes = new int[typeCount];
+  }
+
+  public int getTypeCount()
+  {
+    return positions.length;
+  }
+
+  /**
+   * Returns the number of root elements processed by this index, which
+   * includes the elements that are not entities.
+   *
+   * @return the number of elements processed
+   */
+  public int getElementCount()
+  {
+    return elementCount;
+  }
+
+  public void setElementCount(int elementCount)
+  {
+    this.elementCount = elementCount;
+  }
+
+  /**
+   * Adds an element to this index. Positions must be added in ascending
+   * order.
+   *
+   * @param type the hierarchy index of the element type
+   * @param position the position of the element in the root list
+   */
+  public void add(int type, int position)
+  {
+    int[] list = positions[type];
+    int size = sizes[type];
+    if (list == null)
+    {
+      list = new int[8];
+      positions[type] = list;
+    }
+    else if (size == list.length)
+    {
+      list = Arrays.copyOf(list, 2 * size);
+      positions[type] = list;
+    }
+    list[size] = position;
+    sizes[type] = size + 1;
+  }
+
+  /**
+   * Returns the number of elements of a range of types.
+   *
+   * @param fromType the first type (inclusive)
+   * @param toType the last type (exclusive)
+   * @return the number of elements
+   */
+  public int getCount(int fromType, int toType)
+  {
+    int count = 0;
+    for (int type = fromType; type < toType; type++)
+    {
+      count += sizes[type];
+    }
+    return count;
+  }
+
+  /**
+   * Returns the positions of the elements of a range of types in
+   * ascending order.
+   *
+   * @param fromType the first type (inclusive)
+   * @param toType the last type (exclusive)
+   * @return the positions of the elements
+   */
+  public int[] getPositions(int fromType, int toType)
+  {
+    int count = getCount(fromType, toType);
+    if (count == 0) return EMPTY;
+
+    int[] result = new int[count];
+    int offset = 0;
+    int types = 0;
+    for (int type = fromType; type < toType; type++)
+    {
+      int size = sizes[type];
+      if (size > 0)
+      {
+        System.arraycopy(positions[type], 0, result, offset, size);
+        offset += size;
+        types++;
+      }
+    }
+    if (types > 1) Arrays.sort(result);
+    return result;
+  }
+}
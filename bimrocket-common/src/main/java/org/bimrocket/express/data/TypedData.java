@@ -0,0 +1,221 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.express.data;
+
+import java.util.Arrays;
+import java.util.List;
+import org.bimrocket.express.ExpressAttribute;
+import org.bimrocket.express.ExpressDefinedType;
+import org.bimrocket.express.ExpressEntity;
+import org.bimrocket.express.ExpressSchema;
+import org.bimrocket.express.ExpressType;
+
+/**
+ * An ExpressData whose entities are instances of the classes generated
+ * from the schema by {@code TypedJavaClassesGenerator}.
+ * <p>
+ * Attribute values are kept in typed fields and accessed by index through
+ * the switch methods of the generated classes, so no maps nor value
+ * arrays are needed. Java code can also use the typed getters and setters
+ * of the entities of {@code getElements()} directly.
+ *
+ * @author realor
+ */
+public class TypedData extends AbstractListData<TypedElement>
+{
+  private final TypedEntityFactory factory;
+  private final ExpressEntity[] entityTypes; // by type ordinal
+  private final int[] typeOrdinals; // by entity hierarchy index
+  private int lastId;
+
+  public TypedData(ExpressSchema schema, TypedEntityFactory factory)
+  {
+    super(schema);
+    this.factory = factory;
+
+    List<ExpressEntity> entities = schema.getEntities();
+    typeOrdinals = new int[entities.size()];
+    Arrays.fill(typeOrdinals, -1);
+
+    String[] typeNames = factory.getTypeNames();
+    entityTypes = new ExpressEntity[typeNames.length];
+    for (int ordinal = 0; ordinal < typeNames.length; ordinal++)
+    {
+      if (!(schema.getNamedType(typeNames[ordinal]) instanceof
+          ExpressEntity entity))
+        throw new RuntimeException("Entity " + typeNames[ordinal] +
+          " not found in schema " + schema.getName());
+
+      entityTypes[ordinal] = entity;
+      typeOrdinals[entity.getHierarchyIndex()] = ordinal;
+    }
+  }
+
+  public TypedEntityFactory getFactory()
+  {
+    return factory;
+  }
+
+  /**
+   * The element of a non primitive defined type value.
+   */
+  public static final class Value extends TypedElement
+  {
+    final ExpressDefinedType type;
+    Object value;
+
+    Value(ExpressDefinedType type, int instanceId)
+    {
+      this.type = type;
+      this.instanceId = instanceId;
+    }
+
+    public ExpressDefinedType getType()
+    {
+      return type;
+    }
+
+    public Object getValue()
+    {
+      return value;
+    }
+
+    @Override
+    public String toString()
+    {
+      return type.getTypeName() + "(" + value + ")";
+    }
+  }
+
+  @Override
+  protected TypedElement getElement(Object value)
+  {
+    if (value instanceof TypedElement element)
+    {
+      return element;
+    }
+    return null;
+  }
+
+  @Override
+  protected TypedElement createEntity(ExpressEntity entity)
+  {
+    int ordinal = typeOrdinals[entity.getHierarchyIndex()];
+    if (ordinal == -1)
+      throw new RuntimeException("No class for entity " +
+        entity.getTypeName());
+
+    TypedEntity element = factory.createEntity(ordinal);
+    element.instanceId = ++lastId;
+    return element;
+  }
+
+  @Override
+  protected TypedElement createDefinedType(ExpressDefinedType definedType)
+  {
+    return new Value(definedType, ++lastId);
+  }
+
+  @Override
+  protected String getElementTypeName(TypedElement element)
+  {
+    return getElementType(element).getTypeName();
+  }
+
+  @Override
+  protected ExpressType getElementType(TypedElement element)
+  {
+    if (element instanceof TypedEntity entity)
+    {
+      return entityTypes[entity.getTypeOrdinal()];
+    }
+    return ((Value)element).type;
+  }
+
+  @Override
+  protected String getElementId(TypedElement element)
+  {
+    return String.valueOf(element.instanceId);
+  }
+
+  @Override
+  protected Object getElementValue(TypedElement element, String name,
+    ExpressType type)
+  {
+    if (element instanceof TypedEntity entity)
+    {
+      int index = entityTypes[entity.getTypeOrdinal()].getAttributeIndex(name);
+      return index == -1 ? null : entity.getAttributeValue(index);
+    }
+    return ((Value)element).value;
+  }
+
+  @Override
+  protected void setElementValue(TypedElement element, String name,
+    Object value, ExpressType type)
+  {
+    if (element instanceof TypedEntity entity)
+    {
+      ExpressEntity entityType = entityTypes[entity.getTypeOrdinal()];
+      int index = entityType.getAttributeIndex(name);
+      if (index == -1)
+        throw new RuntimeException("Invalid attribute: " + name);
+      setElementValue(element, index, entityType.getAllAttributes().get(index),
+        value, type);
+    }
+    else
+    {
+      ((Value)element).value = value;
+    }
+  }
+
+  @Override
+  protected Object getElementValue(TypedElement element, int index,
+    ExpressAttribute attribute, ExpressType type)
+  {
+    return ((TypedEntity)element).getAttributeValue(index);
+  }
+
+  @Override
+  protected void setElementValue(TypedElement element, int index,
+    ExpressAttribute attribute, Object value, ExpressType type)
+  {
+    try
+    {
+      ((TypedEntity)element).setAttributeValue(index, value);
+    }
+    catch (ClassCastException ex)
+    {
+      throw new RuntimeException("Invalid value for " + element + "." +
+        attribute.getName() + ": " + value, ex);
+    }
+  }
+}
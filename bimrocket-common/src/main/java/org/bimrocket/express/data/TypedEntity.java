@@ -0,0 +1,103 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.express.data;
+
+/**
+ * The base class of the entity classes generated from an Express schema
+ * by {@code TypedJavaClassesGenerator}.
+ * <p>
+ * Generated classes keep each attribute in a typed field and override
+ * the attribute accessors by index with a switch over their own
+ * attributes, delegating the inherited ones to their superclass. The
+ * index of an attribute is its position in
+ * {@code ExpressEntity.getAllAttributes()}.
+ * <p>
+ * REAL attributes are stored in double fields, where NaN means that the
+ * attribute has no value.
+ *
+ * @author realor
+ */
+public abstract class TypedEntity extends TypedElement
+{
+  /**
+   * Returns the ordinal of the class of this entity in the
+   * TypedEntityFactory that creates it.
+   *
+   * @return the type ordinal
+   */
+  public abstract int getTypeOrdinal();
+
+  /**
+   * Returns the value of an attribute in the representation used by the
+   * cursors: String, Number, ExpressConstant, List or TypedElement.
+   *
+   * @param index the attribute index
+   * @return the attribute value
+   */
+  public Object getAttributeValue(int index)
+  {
+    throw new IndexOutOfBoundsException("Invalid attribute index: " + index);
+  }
+
+  /**
+   * Sets the value of an attribute.
+   *
+   * @param index the attribute index
+   * @param value the attribute value
+   * @throws ClassCastException if the value is not valid for the attribute
+   */
+  public void setAttributeValue(int index, Object value)
+  {
+    throw new IndexOutOfBoundsException("Invalid attribute index: " + index);
+  }
+
+  @Override
+  public String toString()
+  {
+    return getClass().getSimpleName() + "#" + instanceId;
+  }
+
+  protected static double toDouble(Object value)
+  {
+    return value == null ? Double.NaN : ((Number)value).doubleValue();
+  }
+
+  protected static Object fromDouble(double value)
+  {
+    return Double.isNaN(value) ? null : Double.valueOf(value);
+  }
+
+  protected static Long toLong(Object value)
+  {
+    if (value == null || value instanceof Long) return (Long)value;
+    return ((Number)value).longValue();
+  }
+}
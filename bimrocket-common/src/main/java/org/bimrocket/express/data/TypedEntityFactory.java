@@ -0,0 +1,85 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.express.data;
+
+import java.util.ServiceLoader;
+
+/**
+ * Creates the generated entity classes of a schema.
+ * <p>
+ * The factories generated by {@code TypedJavaClassesGenerator} are
+ * registered as services (META-INF/services), so they can be found by
+ * schema name.
+ *
+ * @author realor
+ */
+public interface TypedEntityFactory
+{
+  /**
+   * Returns the name of the schema of the entity classes.
+   *
+   * @return the schema name
+   */
+  String getSchemaName();
+
+  /**
+   * Returns the names of the entities that this factory can create. The
+   * position of each name is the ordinal of its class.
+   *
+   * @return the entity names
+   */
+  String[] getTypeNames();
+
+  /**
+   * Creates an entity.
+   *
+   * @param ordinal the ordinal of the entity class
+   * @return the new entity
+   */
+  TypedEntity createEntity(int ordinal);
+
+  /**
+   * Finds the registered factory for the given schema.
+   *
+   * @param schemaName the name of the schema
+   * @return the factory or null if there is no factory for that schema
+   */
+  static TypedEntityFactory getFactory(String schemaName)
+  {
+    for (TypedEntityFactory factory :
+         ServiceLoader.load(TypedEntityFactory.class))
+    {
+      if (factory.getSchemaName().equalsIgnoreCase(schemaName))
+        return factory;
+    }
+    return null;
+  }
+}
@@ -35,6 +35,7 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.util.List;
@@ -63,9 +64,10 @@ public class ExpressLoader
     {
       schemaFileName = schemaFileName.substring(SCHEMA_PREFIX.length());
       String resource = "/org/bimrocket/ifc/schema/" + schemaFileName + ".exp";
-      InputStreamReader reader = new InputStreamReader(
-        ExpressLexer.class.getResourceAsStream(resource));
-      return load(reader);
+      InputStream input = ExpressLexer.class.getResourceAsStream(resource);
+      if (input == null)
+        throw new IOException("Schema not found: " + schemaFileName);
+      return load(new InputStreamReader(input));
     }
     else
     {
@@ -0,0 +1,102 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.express.io;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.bimrocket.express.ExpressSchema;
+
+/**
+ * A process wide registry of EXPRESS schemas.
+ * <p>
+ * Each schema is parsed only once, the first time it is requested, and the
+ * same frozen (read only) instance is returned afterwards, so it can be
+ * shared by all the loaders, exporters and services of the process.
+ * Code that needs to modify a schema must load its own copy with an
+ * ExpressLoader.
+ *
+ * @author realor
+ */
+public final class ExpressSchemaRegistry
+{
+  private static final Map<String, ExpressSchema> schemas =
+    new ConcurrentHashMap<>();
+
+  private ExpressSchemaRegistry()
+  {
+  }
+
+  /**
+   * Returns the schema with the given name, loading it from the schema
+   * resources of bimrocket (like IFC4) the first time.
+   *
+   * @param schemaName the name of the schema
+   * @return the shared schema
+   * @throws IOException if the schema is not found or it can not be parsed
+   */
+  public static ExpressSchema getSchema(String schemaName) throws IOException
+  {
+    String key = schemaName.toUpperCase();
+    ExpressSchema schema = schemas.get(key);
+    if (schema == null)
+    {
+      synchronized (schemas)
+      {
+        schema = schemas.get(key);
+        if (schema == null)
+        {
+          ExpressLoader loader = new ExpressLoader();
+          schema = loader.load(ExpressLoader.SCHEMA_PREFIX + schemaName);
+          schema.freeze();
+          schemas.put(key, schema);
+        }
+      }
+    }
+    return schema;
+  }
+
+  /**
+   * Registers a schema loaded by other means. The schema is frozen.
+   *
+   * @param schema the schema to register
+   */
+  public static void register(ExpressSchema schema)
+  {
+    schema.freeze();
+    schemas.put(schema.getName().toUpperCase(), schema);
+  }
+
+  public static boolean isRegistered(String schemaName)
+  {
+    return schemas.containsKey(schemaName.toUpperCase());
+  }
+}
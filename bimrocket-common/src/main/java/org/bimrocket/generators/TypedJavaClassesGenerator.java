@@ -0,0 +1,492 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.generators;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Set;
+import org.bimrocket.express.ExpressAttribute;
+import org.bimrocket.express.ExpressCollection;
+import org.bimrocket.express.ExpressDefinedType;
+import org.bimrocket.express.ExpressEntity;
+import org.bimrocket.express.ExpressEnumeration;
+import org.bimrocket.express.ExpressPrimitive;
+import org.bimrocket.express.ExpressSchema;
+import org.bimrocket.express.ExpressType;
+import org.bimrocket.express.data.TypedEntityFactory;
+import org.bimrocket.express.io.ExpressLoader;
+import static org.bimrocket.express.ExpressPrimitive.*;
+
+/**
+ * Generates the Java classes of the entities of an Express schema to be
+ * used with {@code TypedData}, instead of the plain classes generated by
+ * IfcJavaClassesGenerator.
+ * <p>
+ * Each entity class keeps its attributes in typed fields, has getters and
+ * setters for them and implements the attribute accessors by index of
+ * {@code TypedEntity}. A factory class that creates the entities by type
+ * ordinal is also generated and registered as a TypedEntityFactory
+ * service.
+ * <p>
+ * Attribute values use the same representation as the cursors: STRING
+ * as String, INTEGER as Long, REAL and NUMBER as double (NaN when unset),
+ * BOOLEAN, LOGICAL and enumerations as ExpressConstant, collections as
+ * List and selects as Object.
+ *
+ * @author realor
+ */
+public class TypedJavaClassesGenerator extends IfcJavaClassesGenerator
+{
+  static final Set<String> RESERVED_GETTERS =
+    Set.of("getClass", "getInstanceId", "getTypeOrdinal");
+
+  private String factoryClassName = "IfcEntityFactory";
+
+  public String getFactoryClassName()
+  {
+    return factoryClassName;
+  }
+
+  public void setFactoryClassName(String factoryClassName)
+  {
+    this.factoryClassName = factoryClassName;
+  }
+
+  @Override
+  public void generateClasses(String schemaFileName, File outputDir)
+    throws IOException
+  {
+    ExpressLoader loader = new ExpressLoader();
+    ExpressSchema schema = loader.load(schemaFileName);
+
+    generateClasses(schema, outputDir, outputDir);
+  }
+
+  /**
+   * Generates the entity classes of a schema.
+   *
+   * @param schema the schema
+   * @param outputDir the directory of the Java sources
+   * @param resourceDir the directory where the service file of the factory
+   * (META-INF/services) is written
+   * @throws IOException if an I/O error occurs
+   */
+  public void generateClasses(ExpressSchema schema, File outputDir,
+    File resourceDir) throws IOException
+  {
+    String classPath = getPackageName().replaceAll("\\.", "/");
+    File classDir = new File(outputDir, classPath);
+    classDir.mkdirs();
+
+    List<ExpressEntity> entities = schema.getNamedTypes(ExpressEntity.class);
+    entities.sort((a, b) -> a.getTypeName().compareTo(b.getTypeName()));
+
+    generateBaseClass(getBaseEntityClassName(), classDir);
+
+    for (ExpressEntity entity : entities)
+    {
+      generateEntityClass(entity, classDir);
+    }
+
+    generateFactoryClass(schema, entities, classDir);
+
+    File servicesDir = new File(resourceDir, "META-INF/services");
+    servicesDir.mkdirs();
+    File servicesFile =
+      new File(servicesDir, TypedEntityFactory.class.getName());
+    try (PrintWriter writer = new PrintWriter(servicesFile))
+    {
+      writer.println(getPackageName() + "." + factoryClassName);
+    }
+  }
+
+  @Override
+  protected void generateBaseClass(String className, File classDir)
+    throws IOException
+  {
+    File file = new File(classDir, className + ".java");
+    PrintWriter writer = new PrintWriter(file);
+    try
+    {
+      writer.println("package " + getPackageName() + ";");
+      writer.println();
+      writer.println("import org.bimrocket.express.data.TypedEntity;");
+      writer.println();
+      writer.println("public abstract class " + className +
+        " extends TypedEntity");
+      writer.println("{");
+      writer.println("}");
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+
+  @Override
+  protected void generateEntityClass(ExpressEntity entity, File classDir)
+    throws IOException
+  {
+    File file = new File(classDir, entity.getTypeName() + ".java");
+    PrintWriter writer = new PrintWriter(file);
+    try
+    {
+      ExpressEntity superEntity = entity.getSuperEntity();
+
+      // write this entity
+      writer.println("package " + getPackageName() + ";");
+      writer.println();
+      writer.println("import java.util.List;");
+      writer.println("import org.bimrocket.express.ExpressConstant;");
+      writer.println();
+
+      writer.print("public class " + entity.getTypeName());
+      String superClassName =
+        superEntity == null ?
+        getBaseEntityClassName() : superEntity.getTypeName();
+      writer.print(" extends " + superClassName);
+
+      writer.println();
+      writer.println("{");
+
+      List<ExpressAttribute> attributes = entity.getAttributes();
+      int firstIndex = superEntity == null ?
+        0 : superEntity.getAllAttributes().size();
+
+      for (ExpressAttribute attribute : attributes)
+      {
+        ExpressType type = attribute.getType();
+        String className = getJavaClassName(type);
+        writer.print("  private ");
+        writer.print(className);
+        writer.print(" " + attribute.getName());
+        if (className.equals("double")) writer.print(" = Double.NaN");
+        writer.println("; // " + type);
+      }
+
+      for (ExpressAttribute attribute : attributes)
+      {
+        String name = attribute.getName();
+        if (RESERVED_GETTERS.contains("get" + name)) continue;
+
+        String className = getJavaClassName(attribute.getType());
+        writer.println();
+        writer.print("  public ");
+        writer.print(className);
+        writer.println(" get" + name + "()");
+        writer.println("  {");
+        writer.println("    return " + name + ";");
+        writer.println("  }");
+
+        writer.println();
+        writer.print("  public ");
+        writer.print(entity.getTypeName());
+        writer.print(" set" + name + "(");
+        writer.print(className);
+        writer.println(" value)");
+        writer.println("  {");
+        writer.println("    this." + name + " = value;");
+        writer.println("    return this;");
+        writer.println("  }");
+      }
+
+      writer.println();
+      writer.println("  @Override");
+      writer.println("  public int getTypeOrdinal()");
+      writer.println("  {");
+      writer.println("    return " + factoryClassName + "." +
+        getOrdinalName(entity) + ";");
+      writer.println("  }");
+
+      if (!attributes.isEmpty())
+      {
+        writer.println();
+        writer.println("  @Override");
+        writer.println("  public Object getAttributeValue(int index)");
+        writer.println("  {");
+        writer.println("    switch (index)");
+        writer.println("    {");
+        for (int i = 0; i < attributes.size(); i++)
+        {
+          ExpressAttribute attribute = attributes.get(i);
+          String name = attribute.getName();
+          String className = getJavaClassName(attribute.getType());
+          String value = className.equals("double") ?
+            "fromDouble(" + name + ")" : name;
+          writer.println("      case " + (firstIndex + i) + ": return " +
+            value + ";");
+        }
+        writer.println("      default: return super.getAttributeValue(index);");
+        writer.println("    }");
+        writer.println("  }");
+
+        boolean unchecked = false;
+        for (ExpressAttribute attribute : attributes)
+        {
+          if (getJavaClassName(attribute.getType()).startsWith("List<"))
+          {
+            unchecked = true;
+          }
+        }
+
+        writer.println();
+        writer.println("  @Override");
+        if (unchecked) writer.println("  @SuppressWarnings(\"unchecked\")");
+        writer.println("  public void setAttributeValue(int index, " +
+          "Object value)");
+        writer.println("  {");
+        writer.println("    switch (index)");
+        writer.println("    {");
+        for (int i = 0; i < attributes.size(); i++)
+        {
+          ExpressAttribute attribute = attributes.get(i);
+          String name = attribute.getName();
+          String className = getJavaClassName(attribute.getType());
+          String value;
+          switch (className)
+          {
+            case "double": value = "toDouble(value)"; break;
+            case "Long": value = "toLong(value)"; break;
+            case "Object": value = "value"; break;
+            default: value = "(" + className + ")value";
+          }
+          writer.println("      case " + (firstIndex + i) + ": " + name +
+            " = " + value + "; break;");
+        }
+        writer.println("      default: super.setAttributeValue(index, value);");
+        writer.println("    }");
+        writer.println("  }");
+      }
+      writer.println("}");
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+
+  protected void generateFactoryClass(ExpressSchema schema,
+    List<ExpressEntity> entities, File classDir) throws IOException
+  {
+    File file = new File(classDir, factoryClassName + ".java");
+    PrintWriter writer = new PrintWriter(file);
+    try
+    {
+      writer.println("package " + getPackageName() + ";");
+      writer.println();
+      writer.println("import org.bimrocket.express.data.TypedEntity;");
+      writer.println("import org.bimrocket.express.data.TypedEntityFactory;");
+      writer.println();
+      writer.println("public class " + factoryClassName +
+        " implements TypedEntityFactory");
+      writer.println("{");
+      writer.println("  public static final String SCHEMA_NAME = \"" +
+        schema.getName() + "\";");
+      writer.println();
+      for (int i = 0; i < entities.size(); i++)
+      {
+        writer.println("  public static final int " +
+          getOrdinalName(entities.get(i)) + " = " + i + ";");
+      }
+      writer.println();
+      writer.println("  private static final String[] TYPE_NAMES =");
+      writer.println("  {");
+      for (ExpressEntity entity : entities)
+      {
+        writer.println("    \"" + entity.getTypeName() + "\",");
+      }
+      writer.println("  };");
+
+      writer.println();
+      writer.println("  @Override");
+      writer.println("  public String getSchemaName()");
+      writer.println("  {");
+      writer.println("    return SCHEMA_NAME;");
+      writer.println("  }");
+
+      writer.println();
+      writer.println("  @Override");
+      writer.println("  public String[] getTypeNames()");
+      writer.println("  {");
+      writer.println("    return TYPE_NAMES.clone();");
+      writer.println("  }");
+
+      writer.println();
+      writer.println("  @Override");
+      writer.println("  public TypedEntity createEntity(int ordinal)");
+      writer.println("  {");
+      writer.println("    switch (ordinal)");
+      writer.println("    {");
+      for (ExpressEntity entity : entities)
+      {
+        writer.println("      case " + getOrdinalName(entity) +
+          ": return new " + entity.getTypeName() + "();");
+      }
+      writer.println("      default: throw new IllegalArgumentException(" +
+        "\"Invalid type ordinal: \" + ordinal);");
+      writer.println("    }");
+      writer.println("  }");
+      writer.println("}");
+    }
+    finally
+    {
+      writer.close();
+    }
+  }
+
+  protected String getOrdinalName(ExpressEntity entity)
+  {
+    return entity.getTypeName().toUpperCase();
+  }
+
+  @Override
+  protected String getJavaClassName(ExpressType type)
+  {
+    String className;
+    if (type instanceof ExpressPrimitive)
+    {
+      className = getJavaPrimitiveClassName(((ExpressPrimitive)type));
+    }
+    else if (type instanceof ExpressDefinedType)
+    {
+      // primitive defined types are stored unwrapped
+      ExpressPrimitive primitive = ((ExpressDefinedType)type).getPrimitive();
+      className = primitive == null ?
+        "Object" : getJavaPrimitiveClassName(primitive);
+    }
+    else if (type instanceof ExpressCollection)
+    {
+      ExpressCollection collectionType = (ExpressCollection)type;
+      String elementClassName =
+        getJavaItemClassName(collectionType.getItemType());
+      className = "List<" + elementClassName + ">";
+    }
+    else if (type instanceof ExpressEntity)
+    {
+      className = ((ExpressEntity)type).getTypeName();
+    }
+    else if (type instanceof ExpressEnumeration)
+    {
+      className = "ExpressConstant";
+    }
+    else // ExpressSelect
+    {
+      className = "Object";
+    }
+    return className;
+  }
+
+  /**
+   * Returns the class of the items of a collection. Numbers are not
+   * converted when added to collections, so numeric items are Numbers.
+   *
+   * @param type the item type
+   * @return the class name of the items
+   */
+  protected String getJavaItemClassName(ExpressType type)
+  {
+    String className = getJavaClassName(type);
+    switch (className)
+    {
+      case "double":
+      case "Long":
+        return "Number";
+      default:
+        return className;
+    }
+  }
+
+  @Override
+  protected String getJavaPrimitiveClassName(ExpressPrimitive primitiveType)
+  {
+    switch (primitiveType.getTypeName())
+    {
+      case STRING:
+        return "String";
+      case INTEGER:
+        return "Long";
+      case BOOLEAN:
+      case LOGICAL:
+        return "ExpressConstant";
+      case NUMBER:
+      case REAL:
+        return "double";
+      default:
+        return "Object";
+    }
+  }
+
+  public static void main(String[] args) throws IOException
+  {
+    if (args.length < 2)
+    {
+      System.out.println("Arguments: schemaFile outputDir " +
+        "[-p:packageName] [-r:resourceDir]");
+    }
+    else
+    {
+      TypedJavaClassesGenerator generator =
+        new TypedJavaClassesGenerator();
+
+      String schemaFileName = null;
+      File outputDir = null;
+      File resourceDir = null;
+
+      for (String arg : args)
+      {
+        if (arg.startsWith("-p:"))
+        {
+          generator.setPackageName(arg.substring(3));
+        }
+        else if (arg.startsWith("-r:"))
+        {
+          resourceDir = new File(arg.substring(3));
+        }
+        else if (schemaFileName == null)
+        {
+          schemaFileName = arg;
+        }
+        else if (outputDir == null)
+        {
+          outputDir = new File(arg);
+        }
+      }
+      if (schemaFileName != null && outputDir != null)
+      {
+        ExpressSchema schema = new ExpressLoader().load(schemaFileName);
+        generator.generateClasses(schema, outputDir,
+          resourceDir == null ? outputDir : resourceDir);
+      }
+    }
+  }
+}
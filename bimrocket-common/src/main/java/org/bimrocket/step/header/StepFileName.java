@@ -74,6 +74,7 @@ public class StepFileName extends StepFileHeader
 
   public String setTimestamp(String timestamp)
   {
+    this.timestamp = timestamp;
     return timestamp;
   }
 
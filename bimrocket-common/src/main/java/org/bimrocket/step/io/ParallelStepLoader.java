@@ -0,0 +1,306 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.step.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import org.bimrocket.express.data.ExpressData;
+
+/**
+ * A StepLoader that parses the DATA section of a file using multiple threads.
+ * <p>
+ * The DATA section is split in chunks of about {@code chunkSize} bytes at
+ * record boundaries (top level semicolons outside strings and comments).
+ * The chunks are parsed in parallel and their records are loaded into the
+ * ExpressData in file order, so references are resolved exactly as the
+ * sequential loader does.
+ *
+ * @author realor
+ */
+public class ParallelStepLoader extends StepLoader
+{
+  public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+  static final int SCAN_WINDOW_SIZE = 64 * 1024 * 1024;
+  static final byte[] ENDSEC = {'E', 'N', 'D', 'S', 'E', 'C'};
+
+  private int threads = Runtime.getRuntime().availableProcessors();
+  private int chunkSize = DEFAULT_CHUNK_SIZE;
+  private FileChannel channel;
+  private StepByteLexer lexer;
+
+  public ParallelStepLoader()
+  {
+  }
+
+  public ParallelStepLoader(ExpressData data)
+  {
+    super(data);
+  }
+
+  public int getThreads()
+  {
+    return threads;
+  }
+
+  public void setThreads(int threads)
+  {
+    this.threads = Math.max(1, threads);
+  }
+
+  public int getChunkSize()
+  {
+    return chunkSize;
+  }
+
+  public void setChunkSize(int chunkSize)
+  {
+    this.chunkSize = Math.max(1, chunkSize);
+  }
+
+  @Override
+  public void load(File file) throws IOException
+  {
+    if (StepCompression.detect(file) != StepCompression.NONE)
+    {
+      super.load(file); // compressed data can only be read sequentially
+      return;
+    }
+
+    try (FileChannel fileChannel =
+          FileChannel.open(file.toPath(), StandardOpenOption.READ))
+    {
+      channel = fileChannel;
+      lexer = new StepByteLexer(fileChannel);
+      load(lexer);
+    }
+    finally
+    {
+      channel = null;
+      lexer = null;
+    }
+  }
+
+  @Override
+  protected void loadData(StepParser parser) throws IOException
+  {
+    if (channel == null || threads == 1)
+    {
+      super.loadData(parser);
+      return;
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try
+    {
+      Deque<Future<List<StepRecord>>> pending = new ArrayDeque<>();
+      ChunkSplitter splitter = new ChunkSplitter(lexer.getPosition());
+      long[] chunk = splitter.nextChunk();
+      while (chunk != null)
+      {
+        final long start = chunk[0];
+        final long end = chunk[1];
+        pending.add(pool.submit(() -> parseChunk(start, end)));
+        if (pending.size() >= 2 * threads)
+        {
+          loadRecords(pending.poll());
+        }
+        chunk = splitter.nextChunk();
+      }
+      while (!pending.isEmpty())
+      {
+        loadRecords(pending.poll());
+      }
+      // continue at ENDSEC
+      lexer.setPosition(splitter.getPosition());
+      parser.readRecord();
+    }
+    finally
+    {
+      pool.shutdownNow();
+    }
+  }
+
+  protected List<StepRecord> parseChunk(long start, long end)
+    throws IOException
+  {
+    ByteBuffer buffer =
+      channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    StepParser chunkParser =
+      new StepParser(new StepByteLexer(buffer), internPool);
+    List<StepRecord> records = new ArrayList<>();
+    StepRecord record = chunkParser.readRecord();
+    while (record != null)
+    {
+      records.add(record);
+      record = chunkParser.readRecord();
+    }
+    return records;
+  }
+
+  protected void loadRecords(Future<List<StepRecord>> future)
+    throws IOException
+  {
+    try
+    {
+      for (StepRecord record : future.get())
+      {
+        loadRecord(record);
+      }
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException(ex);
+    }
+    catch (ExecutionException ex)
+    {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException ioException) throw ioException;
+      if (cause instanceof RuntimeException runtimeException)
+        throw runtimeException;
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Finds the chunk boundaries of the DATA section scanning the file bytes.
+   */
+  class ChunkSplitter
+  {
+    private final long size;
+    private ByteBuffer window = ByteBuffer.allocate(0);
+    private long windowOffset;
+    private long position;
+    private boolean endOfSection;
+
+    ChunkSplitter(long position) throws IOException
+    {
+      this.size = channel.size();
+      this.position = position;
+      this.windowOffset = position;
+    }
+
+    /**
+     * Returns the position of the ENDSEC keyword or the file size if not
+     * found, once all the chunks were read.
+     *
+     * @return the position where the DATA section ends
+     */
+    long getPosition()
+    {
+      return position;
+    }
+
+    long[] nextChunk() throws IOException
+    {
+      if (endOfSection || position >= size) return null;
+
+      final long start = position;
+      boolean recordStart = true;
+      int ch = get(position);
+      while (ch != -1)
+      {
+        if (ch == '\'') // skip string
+        {
+          do
+          {
+            ch = get(++position);
+          } while (ch != '\'' && ch != -1);
+        }
+        else if (ch == '/' && get(position + 1) == '*') // skip comment
+        {
+          position += 2;
+          ch = get(position);
+          while (ch != -1 && !(ch == '*' && get(position + 1) == '/'))
+          {
+            ch = get(++position);
+          }
+          position++;
+        }
+        else if (ch == ';')
+        {
+          if (position + 1 - start >= chunkSize)
+          {
+            position++;
+            return new long[]{ start, position };
+          }
+          recordStart = true;
+        }
+        else if (recordStart && ch > ' ')
+        {
+          if (ch == 'E' && isEndOfSection())
+          {
+            endOfSection = true;
+            return position > start ? new long[]{ start, position } : null;
+          }
+          recordStart = false;
+        }
+        ch = get(++position);
+      }
+      position = size;
+      return new long[]{ start, size };
+    }
+
+    private boolean isEndOfSection() throws IOException
+    {
+      for (int i = 1; i < ENDSEC.length; i++)
+      {
+        if (get(position + i) != ENDSEC[i]) return false;
+      }
+      int ch = get(position + ENDSEC.length);
+      return ch == ';' || ch <= ' ' || ch == '/';
+    }
+
+    private int get(long offset) throws IOException
+    {
+      long index = offset - windowOffset;
+      if (index < 0 || index >= window.limit())
+      {
+        if (offset >= size) return -1;
+        long length = Math.min(SCAN_WINDOW_SIZE, size - offset);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        windowOffset = offset;
+        index = 0;
+      }
+      return window.get((int)index) & 0xff;
+    }
+  }
+}
@@ -0,0 +1,431 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.step.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import static org.bimrocket.step.io.StepToken.*;
+
+/**
+ * A StepLexer that reads bytes directly from a ByteBuffer.
+ * <p>
+ * ISO-10303-21 files are 7-bit ASCII outside of strings, so the bytes are
+ * converted to characters without any charset decoding. Only the contents
+ * of strings are decoded as UTF-8.
+ * <p>
+ * Files are read through memory mapped windows of {@code windowSize} bytes.
+ * Other channels are read into a heap buffer of the same size.
+ *
+ * @author realor
+ */
+public class StepByteLexer extends StepLexer
+{
+  public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+  public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  private final FileChannel fileChannel;
+  private final ReadableByteChannel channel;
+  private final int windowSize;
+  private ByteBuffer window;
+  private long windowOffset;
+
+  public StepByteLexer(byte[] data)
+  {
+    this(ByteBuffer.wrap(data));
+  }
+
+  public StepByteLexer(ByteBuffer buffer)
+  {
+    this.fileChannel = null;
+    this.channel = null;
+    this.windowSize = 0;
+    this.window = buffer;
+  }
+
+  public StepByteLexer(FileChannel fileChannel)
+  {
+    this(fileChannel, DEFAULT_WINDOW_SIZE);
+  }
+
+  public StepByteLexer(FileChannel fileChannel, int windowSize)
+  {
+    this.fileChannel = fileChannel;
+    this.channel = null;
+    this.windowSize = windowSize;
+    this.window = ByteBuffer.allocate(0);
+  }
+
+  public StepByteLexer(ReadableByteChannel channel)
+  {
+    this(channel, DEFAULT_BUFFER_SIZE);
+  }
+
+  public StepByteLexer(ReadableByteChannel channel, int bufferSize)
+  {
+    this.fileChannel = null;
+    this.channel = channel;
+    this.windowSize = bufferSize;
+    this.window = ByteBuffer.allocate(bufferSize).limit(0);
+  }
+
+  /**
+   * Returns the absolute position of the next byte to read.
+   *
+   * @return the position of the next byte to read.
+   */
+  public long getPosition()
+  {
+    return windowOffset + window.position();
+  }
+
+  /**
+   * Moves the lexer to the given absolute position. Only supported when
+   * reading from a FileChannel or a ByteBuffer.
+   *
+   * @param position the position of the next byte to read
+   */
+  public void setPosition(long position)
+  {
+    if (fileChannel != null)
+    {
+      window = ByteBuffer.allocate(0);
+      windowOffset = position;
+    }
+    else if (channel == null)
+    {
+      window.position((int)position);
+    }
+    else throw new UnsupportedOperationException(
+      "Can not change the position of a sequential channel");
+  }
+
+  @Override
+  protected void readText() throws IOException
+  {
+    StringBuilder text = token.text;
+    boolean decode = false;
+    int ch = read();
+    while (ch != -1)
+    {
+      if (ch == '\'')
+      {
+        int ch2 = read();
+        if (ch2 != '\'')
+        {
+          unread(ch2);
+          break;
+        }
+        text.append('\'');
+      }
+      else if (ch < 0x80)
+      {
+        if (ch == '\\') decode = true;
+        text.append((char)ch);
+      }
+      else
+      {
+        text.appendCodePoint(readUTF8(ch));
+      }
+      ch = read();
+    }
+    if (decode) decodeText();
+  }
+
+  @Override
+  protected void readNumber(int ch) throws IOException
+  {
+    StringBuilder text = token.text;
+    boolean negative = ch == '-';
+    long mantissa = 0;
+    int digits = 0; // significant digits in mantissa
+    int exponent = 0;
+    boolean overflow = false;
+    text.append((char)ch);
+    if (!negative)
+    {
+      mantissa = ch - '0';
+      digits = 1;
+    }
+    ch = read();
+    while (isDigit(ch)) // read integer part
+    {
+      text.append((char)ch);
+      if (mantissa > Long.MAX_VALUE / 10 - 1) overflow = true;
+      mantissa = 10 * mantissa + (ch - '0');
+      digits++;
+      ch = read();
+    }
+    if (digits == 0)
+    {
+      unread(ch);
+      token.type = INVALID;
+      return;
+    }
+    boolean decimal = false;
+    if (ch == '.') // read decimal part
+    {
+      decimal = true;
+      text.append('.');
+      ch = read();
+      while (isDigit(ch))
+      {
+        text.append((char)ch);
+        if (mantissa > Long.MAX_VALUE / 10 - 1) overflow = true;
+        mantissa = 10 * mantissa + (ch - '0');
+        exponent--;
+        ch = read();
+      }
+    }
+    if (ch == 'E') // read exponent part
+    {
+      decimal = true;
+      text.append('E');
+      ch = read();
+      boolean negativeExponent = false;
+      if (ch == '-' || ch == '+')
+      {
+        negativeExponent = ch == '-';
+        text.append((char)ch);
+        ch = read();
+      }
+      int value = 0;
+      while (isDigit(ch))
+      {
+        text.append((char)ch);
+        if (value < 10000) value = 10 * value + (ch - '0');
+        ch = read();
+      }
+      exponent += negativeExponent ? -value : value;
+    }
+    unread(ch);
+
+    if (!overflow)
+    {
+      if (!decimal)
+      {
+        token.setNumber(negative ? -mantissa : mantissa);
+        return;
+      }
+      double value = toDouble(mantissa, exponent);
+      if (!Double.isNaN(value))
+      {
+        token.setNumber(negative ? -value : value);
+        return;
+      }
+    }
+
+    try
+    {
+      if (decimal)
+      {
+        token.setNumber(Double.parseDouble(text.toString()));
+      }
+      else
+      {
+        token.setNumber(Long.parseLong(text, 0, text.length(), 10));
+      }
+    }
+    catch (NumberFormatException ex)
+    {
+      token.type = INVALID;
+    }
+  }
+
+  @Override
+  protected void readKeywordOrIdentifier(int ch) throws IOException
+  {
+    StringBuilder text = token.text;
+    text.append((char)ch);
+    ch = read();
+    while (isLetterOrDigit(ch) || ch == '_' || ch == '-')
+    {
+      text.append((char)ch);
+      ch = read();
+    }
+    unread(ch);
+    findKeyword();
+  }
+
+  @Override
+  protected void readConstant() throws IOException
+  {
+    StringBuilder text = token.text;
+    int ch = read();
+    while (isLetterOrDigit(ch) || ch == '_')
+    {
+      text.append((char)ch);
+      ch = read();
+    }
+    if (ch != '.')
+    {
+      unread(ch);
+      token.type = INVALID;
+    }
+  }
+
+  @Override
+  protected void readReference() throws IOException
+  {
+    StringBuilder text = token.text;
+    text.append('#');
+    long number = 0;
+    int ch = read();
+    while (isDigit(ch))
+    {
+      text.append((char)ch);
+      if (number <= Integer.MAX_VALUE) number = 10 * number + (ch - '0');
+      ch = read();
+    }
+    unread(ch);
+    token.tagNumber = text.length() > 1 && number <= Integer.MAX_VALUE ?
+      (int)number : -1;
+  }
+
+  @Override
+  protected int read() throws IOException
+  {
+    if (!window.hasRemaining() && !nextWindow()) return -1;
+
+    return window.get() & 0xff;
+  }
+
+  /**
+   * Unreads the last character read. The windows always keep the last byte
+   * of the previous window, so the position can always be moved back.
+   *
+   * @param ch the last character read
+   */
+  @Override
+  protected void unread(int ch)
+  {
+    if (ch != -1)
+    {
+      window.position(window.position() - 1);
+    }
+  }
+
+  /**
+   * Decodes an UTF-8 multibyte sequence.
+   *
+   * @param ch the first byte of the sequence
+   * @return the code point read or U+FFFD if the sequence is malformed.
+   * @throws IOException if an I/O error occurs
+   */
+  private int readUTF8(int ch) throws IOException
+  {
+    int count;
+    int codePoint;
+    if ((ch & 0xe0) == 0xc0)
+    {
+      count = 1;
+      codePoint = ch & 0x1f;
+    }
+    else if ((ch & 0xf0) == 0xe0)
+    {
+      count = 2;
+      codePoint = ch & 0x0f;
+    }
+    else if ((ch & 0xf8) == 0xf0)
+    {
+      count = 3;
+      codePoint = ch & 0x07;
+    }
+    else return 0xfffd;
+
+    while (count > 0)
+    {
+      ch = read();
+      if ((ch & 0xc0) != 0x80)
+      {
+        unread(ch);
+        return 0xfffd;
+      }
+      codePoint = (codePoint << 6) | (ch & 0x3f);
+      count--;
+    }
+    return Character.isValidCodePoint(codePoint) ? codePoint : 0xfffd;
+  }
+
+  private static boolean isDigit(int ch)
+  {
+    return ch >= '0' && ch <= '9';
+  }
+
+  private static boolean isLetterOrDigit(int ch)
+  {
+    return (ch >= 'A' && ch <= 'Z') || (ch >= 'a' && ch <= 'z') ||
+      (ch >= '0' && ch <= '9');
+  }
+
+  protected boolean nextWindow() throws IOException
+  {
+    if (fileChannel != null)
+    {
+      long position = windowOffset + window.position();
+      long size = fileChannel.size();
+      if (position >= size) return false;
+
+      long start = position == 0 ? 0 : position - 1;
+      long length = Math.min(windowSize, size - start);
+      window = fileChannel.map(FileChannel.MapMode.READ_ONLY, start, length);
+      window.position((int)(position - start));
+      windowOffset = start;
+      return true;
+    }
+    else if (channel != null)
+    {
+      int position = window.position();
+      if (position > 0)
+      {
+        byte last = window.get(position - 1);
+        window.clear();
+        window.put(last);
+        windowOffset += position - 1;
+      }
+      else
+      {
+        window.clear();
+      }
+      int count;
+      do
+      {
+        count = channel.read(window);
+      } while (count == 0);
+
+      window.flip();
+      window.position(position > 0 ? 1 : 0);
+      return count > 0;
+    }
+    return false;
+  }
+}
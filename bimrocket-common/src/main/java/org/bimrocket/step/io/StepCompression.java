@@ -0,0 +1,228 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.step.io;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The compression formats supported for STEP files.
+ * <p>
+ * Compressed input is detected by its magic bytes: 1F 8B for gzip streams
+ * and "PK\3\4" for IFCZIP files (a zip archive that contains one .ifc file).
+ * Compressed output is selected by the file extension (.ifczip, .zip or
+ * .gz). The data always flows through the codec streams, so no
+ * uncompressed copy is ever written to disk.
+ *
+ * @author realor
+ */
+public enum StepCompression
+{
+  NONE, GZIP, ZIP;
+
+  static final int MAGIC_SIZE = 4;
+
+  /**
+   * Detects the compression of the given leading bytes.
+   *
+   * @param magic the first bytes of the stream
+   * @param length the number of valid bytes in magic
+   * @return the compression detected, NONE for plain text.
+   */
+  public static StepCompression detect(byte[] magic, int length)
+  {
+    if (length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b)
+      return GZIP;
+
+    if (length >= 4 && magic[0] == 'P' && magic[1] == 'K' &&
+        magic[2] == 3 && magic[3] == 4)
+      return ZIP;
+
+    return NONE;
+  }
+
+  /**
+   * Detects the compression of a file by its magic bytes.
+   *
+   * @param file the file to inspect
+   * @return the compression detected, NONE for plain text.
+   * @throws IOException if the file can not be read
+   */
+  public static StepCompression detect(File file) throws IOException
+  {
+    try (InputStream input = new FileInputStream(file))
+    {
+      byte[] magic = new byte[MAGIC_SIZE];
+      return detect(magic, input.readNBytes(magic, 0, MAGIC_SIZE));
+    }
+  }
+
+  /**
+   * Detects the compression of a stream by its magic bytes without
+   * consuming them.
+   *
+   * @param input a stream that supports mark and reset
+   * @return the compression detected, NONE for plain text.
+   * @throws IOException if the stream can not be read
+   */
+  public static StepCompression detect(InputStream input) throws IOException
+  {
+    if (!input.markSupported())
+      throw new IOException("mark/reset not supported by stream");
+
+    byte[] magic = new byte[MAGIC_SIZE];
+    input.mark(MAGIC_SIZE);
+    int length = input.readNBytes(magic, 0, MAGIC_SIZE);
+    input.reset();
+    return detect(magic, length);
+  }
+
+  /**
+   * Returns the compression associated with the extension of a file name.
+   *
+   * @param filename the name of the file
+   * @return ZIP for .ifczip and .zip, GZIP for .gz and NONE otherwise.
+   */
+  public static StepCompression fromFileName(String filename)
+  {
+    String name = filename.toLowerCase();
+    if (name.endsWith(".ifczip") || name.endsWith(".zip")) return ZIP;
+    if (name.endsWith(".gz")) return GZIP;
+    return NONE;
+  }
+
+  /**
+   * Returns a stream that reads the uncompressed STEP data of the given
+   * stream, detecting its compression by the magic bytes.
+   *
+   * @param input the stream to read, compressed or not
+   * @return the uncompressed stream
+   * @throws IOException if the zip archive does not contain any STEP file
+   */
+  public static InputStream decompress(InputStream input) throws IOException
+  {
+    if (!input.markSupported())
+    {
+      input = new BufferedInputStream(input);
+    }
+    return detect(input).getInputStream(input);
+  }
+
+  /**
+   * Returns a stream that reads the uncompressed data of a stream in this
+   * format. For zip archives, the stream is positioned at the first entry
+   * with .ifc, .stp or .step extension.
+   *
+   * @param input the compressed stream
+   * @return the uncompressed stream
+   * @throws IOException if the zip archive does not contain any STEP file
+   */
+  public InputStream getInputStream(InputStream input) throws IOException
+  {
+    switch (this)
+    {
+      case GZIP:
+        return new GZIPInputStream(input, 64 * 1024);
+      case ZIP:
+        ZipInputStream zipInput = new ZipInputStream(input);
+        ZipEntry entry = zipInput.getNextEntry();
+        while (entry != null && (entry.isDirectory() || !isStepFile(entry)))
+        {
+          entry = zipInput.getNextEntry();
+        }
+        if (entry == null)
+        {
+          zipInput.close();
+          throw new IOException("No STEP file found in zip archive");
+        }
+        return zipInput;
+      default:
+        return input;
+    }
+  }
+
+  /**
+   * Returns a stream that compresses the data written into the given
+   * stream in this format.
+   *
+   * @param output the stream that receives the compressed data
+   * @param entryName the name of the zip entry that contains the STEP data,
+   * only used for ZIP.
+   * @return the compressing stream. Closing it finishes the compressed data
+   * and closes the given stream.
+   * @throws IOException if an I/O error occurs
+   */
+  public OutputStream getOutputStream(OutputStream output, String entryName)
+    throws IOException
+  {
+    switch (this)
+    {
+      case GZIP:
+        return new GZIPOutputStream(output, 64 * 1024);
+      case ZIP:
+        ZipOutputStream zipOutput = new ZipOutputStream(output);
+        zipOutput.putNextEntry(new ZipEntry(entryName));
+        return zipOutput;
+      default:
+        return output;
+    }
+  }
+
+  /**
+   * Returns the name of the STEP file stored inside an IFCZIP file.
+   *
+   * @param filename the name of the compressed file
+   * @return the name without the compression extension and ending in .ifc
+   */
+  public static String getEntryName(String filename)
+  {
+    int index = filename.lastIndexOf('.');
+    String baseName = index == -1 ? filename : filename.substring(0, index);
+    return baseName.toLowerCase().endsWith(".ifc") ? baseName :
+      baseName + ".ifc";
+  }
+
+  private static boolean isStepFile(ZipEntry entry)
+  {
+    String name = entry.getName().toLowerCase();
+    return name.endsWith(".ifc") || name.endsWith(".stp") ||
+      name.endsWith(".step");
+  }
+}
@@ -35,13 +35,19 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.io.Writer;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import org.bimrocket.express.ExpressAttribute;
 import org.bimrocket.express.ExpressCollection;
 import org.bimrocket.express.ExpressConstant;
@@ -56,6 +62,7 @@ import static org.bimrocket.express.data.ExpressCursor.CONTAINER;
 import org.bimrocket.express.data.ExpressData;
 import org.bimrocket.step.header.StepFileHeaderData;
 import org.bimrocket.step.header.StepFileSchema;
+import org.bimrocket.util.ObjectIntHashMap;
 
 
 /**
@@ -64,16 +71,26 @@ import org.bimrocket.step.header.StepFileSchema;
  * @author realor
  */
 
-public class StepExporter
+public class StepExporter implements Cloneable
 {
+  public static final int DEFAULT_BATCH_SIZE = 2000;
+
   protected ExpressData data;
   protected StepFileHeaderData headerData = new StepFileHeaderData();
   protected ExpressSchema schema;
-  protected Map<String, Integer> entityTags = new HashMap<>();
-  protected List<ExpressCursor> entityList = new LinkedList<>();
+  protected ObjectIntHashMap<String> entityTags = new ObjectIntHashMap<>();
+  protected List<ExpressCursor> entityList = new ArrayList<>();
   protected int tagCount;
   protected PrintWriter printer;
   protected boolean backwardReferences;
+  protected boolean streaming;
+  protected int threads = 1;
+  protected int batchSize = DEFAULT_BATCH_SIZE;
+
+  // entityTags values: tag > 0 when the entity was visited, -tag when the
+  // tag was reserved before visiting the entity.
+  static final int NO_TAG = 0;
+  static final int IN_PROGRESS = Integer.MIN_VALUE;
 
   public StepExporter(ExpressData data)
   {
@@ -81,6 +98,17 @@ public class StepExporter
     this.schema = data.getSchema();
   }
 
+  /**
+   * Creates an exporter that does not read an ExpressData. Subclasses that
+   * use this constructor must override {@link #exportData()}.
+   *
+   * @param schema the schema of the exported file
+   */
+  protected StepExporter(ExpressSchema schema)
+  {
+    this.schema = schema;
+  }
+
   public ExpressData getData()
   {
     return data;
@@ -106,44 +134,151 @@ public class StepExporter
     this.backwardReferences = backwardReferences;
   }
 
+  public boolean isStreaming()
+  {
+    return streaming;
+  }
+
+  /**
+   * Sets the streaming mode. In streaming mode each entity is written as
+   * soon as the tags of the entities it references are known, instead of
+   * collecting all the entities before writing them. Only the entity tags
+   * are kept in memory.
+   *
+   * @param streaming true to enable the streaming mode
+   */
+  public void setStreaming(boolean streaming)
+  {
+    this.streaming = streaming;
+  }
+
+  public int getThreads()
+  {
+    return threads;
+  }
+
+  /**
+   * Sets the number of threads used to format the entities when not in
+   * streaming mode. The ExpressData must support concurrent reads to use
+   * more than one thread.
+   *
+   * @param threads the number of threads
+   */
+  public void setThreads(int threads)
+  {
+    this.threads = Math.max(1, threads);
+  }
+
+  public int getBatchSize()
+  {
+    return batchSize;
+  }
+
+  /**
+   * Sets the number of consecutive entities formatted by each task in
+   * parallel mode.
+   *
+   * @param batchSize the number of entities of each task
+   */
+  public void setBatchSize(int batchSize)
+  {
+    this.batchSize = Math.max(1, batchSize);
+  }
+
   public void export(String filename) throws IOException
   {
     export(new File(filename));
   }
 
+  /**
+   * Exports the data to a file. The file is compressed according to its
+   * extension: .ifczip (or .zip) files are written as zip archives
+   * containing a single .ifc entry and .gz files are gzip compressed.
+   *
+   * @param file the file to write
+   * @throws IOException if an I/O error occurs
+   */
   public void export(File file) throws IOException
   {
-    try (BufferedWriter writer =
-          new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file))))
+    String filename = file.getName();
+    StepCompression compression = StepCompression.fromFileName(filename);
+    export(new FileOutputStream(file), compression,
+      StepCompression.getEntryName(filename));
+  }
+
+  /**
+   * Exports the data to a stream, compressing it in the given format.
+   *
+   * @param output the stream to write. It is closed after exporting.
+   * @param compression the compression format
+   * @param entryName the name of the .ifc entry for ZIP compression
+   * @throws IOException if an I/O error occurs
+   */
+  public void export(OutputStream output, StepCompression compression,
+    String entryName) throws IOException
+  {
+    try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
+          compression.getOutputStream(output, entryName))))
     {
       export(writer);
     }
   }
 
   public void export(Writer writer)
+  {
+    printer = new PrintWriter(writer);
+    try
+    {
+      exportData();
+    }
+    finally
+    {
+      printer.close();
+    }
+  }
+
+  /**
+   * Assigns the entity tags and writes the header, the entities and the
+   * footer through the print methods.
+   */
+  protected void exportData()
   {
     tagCount = 0;
     entityTags.clear();
     entityList.clear();
 
-    StepFileSchema fileSchema = headerData.getFileSchema();
-    if (!fileSchema.getSchemas().contains(schema.getName()))
-    {
-      fileSchema.getSchemas().add(schema.getName());
-    }
-
-    registerEntities(data.getRoot());
+    updateFileSchema();
 
-    printer = new PrintWriter(writer);
     try
     {
-      printHeader();
-      printData();
+      if (streaming)
+      {
+        printHeader();
+        registerEntities(data.getRoot());
+      }
+      else
+      {
+        registerEntities(data.getRoot());
+        printHeader();
+        printData();
+      }
       printFooter();
     }
     finally
     {
-      printer.close();
+      entityList.clear();
+    }
+  }
+
+  /**
+   * Adds the schema of this exporter to the FILE_SCHEMA of the header.
+   */
+  protected void updateFileSchema()
+  {
+    StepFileSchema fileSchema = headerData.getFileSchema();
+    if (!fileSchema.getSchemas().contains(schema.getName()))
+    {
+      fileSchema.getSchemas().add(schema.getName());
     }
   }
 
@@ -171,14 +306,109 @@ public class StepExporter
 
   protected void printData()
   {
-    int tag = 1;
+    if (threads > 1 && entityList.size() > batchSize)
+    {
+      printDataInParallel();
+      return;
+    }
+
     for (ExpressCursor entityCursor : entityList)
     {
-      printer.print("#" + tag + "= ");
-      exportEntity(entityCursor);
-      printer.println(";");
-      tag++;
+      printEntity(entityCursor, getTag(entityCursor.getId()));
+    }
+  }
+
+  /**
+   * Formats consecutive ranges of the entity list on a thread pool and
+   * writes the results in order.
+   */
+  protected void printDataInParallel()
+  {
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try
+    {
+      Deque<Future<CharSequence>> pending = new ArrayDeque<>();
+      int size = entityList.size();
+      for (int start = 0; start < size; start += batchSize)
+      {
+        final int from = start;
+        final int to = Math.min(start + batchSize, size);
+        pending.add(pool.submit(() -> formatEntities(from, to)));
+        if (pending.size() >= 2 * threads)
+        {
+          printer.append(pending.poll().get());
+        }
+      }
+      while (!pending.isEmpty())
+      {
+        printer.append(pending.poll().get());
+      }
     }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(ex);
+    }
+    catch (ExecutionException ex)
+    {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException runtimeException)
+        throw runtimeException;
+      throw new RuntimeException(cause);
+    }
+    finally
+    {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Formats the entities of the given range of the entity list. This
+   * method is called from the worker threads.
+   *
+   * @param from the index of the first entity (inclusive)
+   * @param to the index of the last entity (exclusive)
+   * @return the formatted entities
+   */
+  protected CharSequence formatEntities(int from, int to)
+  {
+    StringWriter buffer = new StringWriter(128 * (to - from));
+    StepExporter worker = createWorker(new PrintWriter(buffer));
+    for (int i = from; i < to; i++)
+    {
+      ExpressCursor entityCursor = entityList.get(i);
+      worker.printEntity(entityCursor, getTag(entityCursor.getId()));
+    }
+    worker.printer.flush();
+    return buffer.getBuffer();
+  }
+
+  /**
+   * Creates a copy of this exporter that prints to the given printer. The
+   * copy shares the entity tags and the entity list with this exporter.
+   *
+   * @param printer the printer of the worker
+   * @return the worker exporter
+   */
+  protected StepExporter createWorker(PrintWriter printer)
+  {
+    try
+    {
+      StepExporter worker = (StepExporter)clone();
+      worker.printer = printer;
+      return worker;
+    }
+    catch (CloneNotSupportedException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  protected void printEntity(ExpressCursor cursor, int tag)
+  {
+    printer.print("#" + tag + "= ");
+    exportEntity(cursor);
+    printer.println(";");
   }
 
   protected void printFooter()
@@ -187,49 +417,182 @@ public class StepExporter
     printer.println("END-ISO-10303-21;");
   }
 
+  /**
+   * Assigns tags to the entities reachable from the given cursor. The
+   * graph is traversed depth first with an explicit stack, so deep
+   * reference chains do not overflow the thread stack.
+   * <p>
+   * Without backward references the tags are assigned in pre-order (an
+   * entity gets its tag before the entities it references), otherwise in
+   * post-order. When a reference cycle is found in post-order, the tag of
+   * the entity in progress is reserved in advance.
+   *
+   * @param cursor the cursor positioned on the container to traverse
+   */
   protected void registerEntities(ExpressCursor cursor)
   {
-    String id = null;
+    int[] indexStack = new int[32];
+    int depth = 0;
 
-    ExpressType type = cursor.getType();
-    if (type instanceof ExpressEntity)
+    if (cursor.getType() instanceof ExpressEntity)
     {
-      id = cursor.getId();
-      if (id == null) throw new RuntimeException("Entity id is null");
-
-      if (entityTags.containsKey(id)) return; // already visited
+      if (!enterEntity(cursor)) return;
+    }
 
-      if (backwardReferences)
+    while (true)
+    {
+      int index = indexStack[depth];
+      if (index < cursor.size())
       {
-        // provisional value
-        entityTags.put(id, 0);
+        indexStack[depth] = index + 1;
+        if (CONTAINER.equals(cursor.get(index)))
+        {
+          String id = cursor.getReference(index);
+          if (id != null && entityTags.get(id, NO_TAG) > 0)
+            continue; // already visited, no need to enter it
+
+          cursor.enter(index);
+          if (cursor.getType() instanceof ExpressEntity &&
+              !enterEntity(cursor))
+          {
+            cursor.exit(); // already visited
+          }
+          else
+          {
+            if (++depth == indexStack.length)
+            {
+              indexStack = Arrays.copyOf(indexStack, 2 * depth);
+            }
+            indexStack[depth] = 0;
+          }
+        }
       }
       else
       {
-        // final value
-        entityTags.put(id, ++tagCount);
-        entityList.add(cursor.copy());
+        if (cursor.getType() instanceof ExpressEntity)
+        {
+          exitEntity(cursor);
+        }
+        if (depth == 0) break;
+        cursor.exit();
+        depth--;
       }
     }
+  }
+
+  /**
+   * Called when the traversal enters an entity.
+   *
+   * @param cursor the cursor positioned on the entity
+   * @return true if the entity must be traversed, false if it was already
+   * visited.
+   */
+  protected boolean enterEntity(ExpressCursor cursor)
+  {
+    String id = getEntityId(cursor);
+    int tag = entityTags.get(id, NO_TAG);
+
+    if (tag > 0) return false; // already visited
+
+    if (tag == IN_PROGRESS) // reference cycle
+    {
+      entityTags.put(id, -(++tagCount)); // reserve tag
+      return false;
+    }
+
+    if (backwardReferences)
+    {
+      if (tag != NO_TAG) return false; // in progress with reserved tag
+      entityTags.put(id, IN_PROGRESS);
+    }
+    else
+    {
+      tag = tag == NO_TAG ? ++tagCount : -tag;
+      entityTags.put(id, tag);
+      if (streaming) reserveReferences(cursor);
+      entityRegistered(cursor, tag);
+    }
+    return true;
+  }
+
+  /**
+   * Called when the traversal exits an entity, after all the entities it
+   * references were visited.
+   *
+   * @param cursor the cursor positioned on the entity
+   */
+  protected void exitEntity(ExpressCursor cursor)
+  {
+    if (backwardReferences)
+    {
+      String id = getEntityId(cursor);
+      int tag = entityTags.get(id, NO_TAG);
+      tag = tag == IN_PROGRESS ? ++tagCount : -tag;
+      entityTags.put(id, tag);
+      entityRegistered(cursor, tag);
+    }
+  }
+
+  /**
+   * Called when the tag of an entity is assigned and it can be written.
+   *
+   * @param cursor the cursor positioned on the entity
+   * @param tag the tag of the entity
+   */
+  protected void entityRegistered(ExpressCursor cursor, int tag)
+  {
+    if (streaming)
+    {
+      printEntity(cursor, tag);
+    }
+    else
+    {
+      entityList.add(cursor.copy());
+    }
+  }
 
+  /**
+   * Reserves tags for the entities referenced by the given container that
+   * have no tag yet, so the container can be written before visiting them.
+   *
+   * @param cursor the cursor positioned on the container
+   */
+  protected void reserveReferences(ExpressCursor cursor)
+  {
     int size = cursor.size();
     for (int index = 0; index < size; index++)
     {
-      Object value = cursor.get(index);
-      if (CONTAINER.equals(value))
+      if (CONTAINER.equals(cursor.get(index)))
       {
-        cursor.enter(index);
-        registerEntities(cursor);
-        cursor.exit();
+        String id = cursor.getReference(index);
+        if (id != null)
+        {
+          if (!entityTags.containsKey(id))
+          {
+            entityTags.put(id, -(++tagCount));
+          }
+        }
+        else
+        {
+          cursor.enter(index);
+          reserveReferences(cursor);
+          cursor.exit();
+        }
       }
     }
+  }
 
-    if (backwardReferences && id != null)
-    {
-      // final value
-      entityTags.put(id, ++tagCount);
-      entityList.add(cursor.copy());
-    }
+  protected String getEntityId(ExpressCursor cursor)
+  {
+    String id = cursor.getId();
+    if (id == null) throw new RuntimeException("Entity id is null");
+    return id;
+  }
+
+  protected int getTag(String id)
+  {
+    int tag = entityTags.get(id, NO_TAG);
+    return tag == IN_PROGRESS ? 0 : Math.abs(tag);
   }
 
   protected void exportEntity(ExpressCursor cursor)
@@ -291,16 +654,15 @@ public class StepExporter
 
     if (CONTAINER.equals(value))
     {
-      cursor.enter(index);
-      ExpressType type = cursor.getType();
-
-      if (type instanceof ExpressEntity)
+      String id = cursor.getReference(index);
+      if (id != null) // entity reference, written without entering it
       {
-        String id = cursor.getId();
-        Integer tag = entityTags.get(id);
-        printer.print("#" + tag);
+        printer.print("#" + getTag(id));
+        return;
       }
-      else if (type instanceof ExpressDefinedType)
+
+      cursor.enter(index);
+      if (cursor.getType() instanceof ExpressDefinedType)
       {
         exportDefinedType(cursor);
       }
@@ -358,6 +720,10 @@ public class StepExporter
       {
         buffer.append("''");
       }
+      else if (ch == '\\')
+      {
+        buffer.append("\\\\");
+      }
       else if (ch < 32)
       {
         buffer.append("\\X\\").append(String.format("%02X", (int)ch));
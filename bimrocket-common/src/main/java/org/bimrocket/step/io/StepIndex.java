@@ -0,0 +1,616 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.step.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bimrocket.util.IntIntHashMap;
+import static org.bimrocket.express.ExpressCollection.LIST;
+
+/**
+ * A random access index of the records of a STEP file.
+ * <p>
+ * The index maps the tag of each record to its byte range in the file and
+ * each entity type to the tags of its records. It is built scanning the
+ * file once with a StepByteLexer (the records are tokenized but not
+ * parsed) and it can be saved next to the file, so later lookups only
+ * parse the requested records.
+ * <p>
+ * Example:
+ * <pre>
+ * try (StepIndex index = StepIndex.open(file))
+ * {
+ *   int[] projects = index.getTags("IFCPROJECT");
+ *   List&lt;StepRecord&gt; records = index.getClosure(projects);
+ * }
+ * </pre>
+ *
+ * @author realor
+ */
+public class StepIndex implements Closeable
+{
+  public static final String INDEX_EXTENSION = ".stepidx";
+
+  static final int MAGIC = 0x42525349; // BRSI
+  static final int VERSION = 1;
+
+  private final File file;
+  private long fileLength;
+  private long fileLastModified;
+  private List<String> schemaNames = new ArrayList<>();
+  private int[] tags = new int[1024]; // sorted
+  private long[] offsets = new long[1024];
+  private int[] lengths = new int[1024];
+  private int size;
+  private final Map<String, TagList> typeTags = new HashMap<>();
+  private FileChannel channel;
+  private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+  private StepIndex(File file)
+  {
+    this.file = file;
+  }
+
+  /**
+   * Opens the index of the given STEP file. The index is read from the
+   * index file next to it when it is up to date and valid, otherwise it is
+   * built and saved.
+   *
+   * @param file the STEP file
+   * @return the index, ready for lookups
+   * @throws IOException if an I/O error occurs or the file is malformed
+   */
+  public static StepIndex open(File file) throws IOException
+  {
+    File indexFile = getIndexFile(file);
+    StepIndex index = null;
+    if (indexFile.exists())
+    {
+      try
+      {
+        index = read(file, indexFile);
+      }
+      catch (IOException ex)
+      {
+        // corrupted or truncated index, rebuild it
+      }
+    }
+    if (index == null)
+    {
+      index = build(file);
+      index.save(indexFile);
+    }
+    return index;
+  }
+
+  /**
+   * Builds the index of the given STEP file scanning all its records.
+   *
+   * @param file the STEP file
+   * @return the index, ready for lookups
+   * @throws IOException if an I/O error occurs or the file is malformed
+   */
+  public static StepIndex build(File file) throws IOException
+  {
+    StepIndex index = new StepIndex(file);
+    index.fileLength = file.length();
+    index.fileLastModified = file.lastModified();
+
+    try (FileChannel channel =
+          FileChannel.open(file.toPath(), StandardOpenOption.READ))
+    {
+      StepByteLexer lexer = new StepByteLexer(channel);
+      StepParser parser = new StepParser(lexer);
+      StepLoader headerLoader = new StepLoader();
+
+      String section = parser.readSection();
+      while (section != null)
+      {
+        if (section.equals(StepParser.HEADER))
+        {
+          headerLoader.loadHeader(parser);
+        }
+        else
+        {
+          index.scanData(lexer, parser);
+        }
+        section = parser.readSection();
+      }
+      index.schemaNames =
+        headerLoader.getHeaderData().getFileSchema().getSchemas();
+    }
+    index.sort();
+    return index;
+  }
+
+  /**
+   * Reads the index of a STEP file from an index file.
+   *
+   * @param file the STEP file
+   * @param indexFile the index file
+   * @return the index or null if it does not match the current STEP file.
+   * @throws IOException if an I/O error occurs or the index is corrupted
+   */
+  public static StepIndex read(File file, File indexFile) throws IOException
+  {
+    try (DataInputStream input = new DataInputStream(
+         new BufferedInputStream(new FileInputStream(indexFile), 64 * 1024)))
+    {
+      if (input.readInt() != MAGIC || input.readByte() != VERSION)
+        throw new IOException("Invalid index file: " + indexFile);
+
+      StepIndex index = new StepIndex(file);
+      index.fileLength = input.readLong();
+      index.fileLastModified = input.readLong();
+      if (index.fileLength != file.length() ||
+          index.fileLastModified != file.lastModified())
+        return null; // outdated
+
+      int schemaCount = input.readInt();
+      for (int i = 0; i < schemaCount; i++)
+      {
+        index.schemaNames.add(input.readUTF());
+      }
+
+      index.size = input.readInt();
+      if (index.size < 0 || 16L * index.size > indexFile.length())
+        throw new IOException("Invalid index file: " + indexFile);
+      index.tags = new int[index.size];
+      index.offsets = new long[index.size];
+      index.lengths = new int[index.size];
+      for (int i = 0; i < index.size; i++)
+      {
+        index.tags[i] = input.readInt();
+        index.offsets[i] = input.readLong();
+        index.lengths[i] = input.readInt();
+      }
+
+      int typeCount = input.readInt();
+      for (int i = 0; i < typeCount; i++)
+      {
+        String typeName = input.readUTF();
+        int tagCount = input.readInt();
+        if (tagCount < 0 || 4L * tagCount > indexFile.length())
+          throw new IOException("Invalid index file: " + indexFile);
+        TagList tagList = new TagList(tagCount);
+        for (int j = 0; j < tagList.tags.length; j++)
+        {
+          tagList.add(input.readInt());
+        }
+        index.typeTags.put(typeName, tagList);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * Saves this index to a file. The index is written to a temporary file
+   * that replaces the index file when complete, so an interrupted save
+   * never leaves a partial index file.
+   *
+   * @param indexFile the index file
+   * @throws IOException if an I/O error occurs
+   */
+  public void save(File indexFile) throws IOException
+  {
+    File tempFile = new File(indexFile.getPath() + ".tmp");
+    try
+    {
+      write(tempFile);
+      try
+      {
+        Files.move(tempFile.toPath(), indexFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      }
+      catch (AtomicMoveNotSupportedException ex)
+      {
+        Files.move(tempFile.toPath(), indexFile.toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+      }
+    }
+    finally
+    {
+      Files.deleteIfExists(tempFile.toPath());
+    }
+  }
+
+  private void write(File indexFile) throws IOException
+  {
+    try (DataOutputStream output = new DataOutputStream(
+         new BufferedOutputStream(new FileOutputStream(indexFile), 64 * 1024)))
+    {
+      output.writeInt(MAGIC);
+      output.writeByte(VERSION);
+      output.writeLong(fileLength);
+      output.writeLong(fileLastModified);
+
+      output.writeInt(schemaNames.size());
+      for (String schemaName : schemaNames)
+      {
+        output.writeUTF(schemaName);
+      }
+
+      output.writeInt(size);
+      for (int i = 0; i < size; i++)
+      {
+        output.writeInt(tags[i]);
+        output.writeLong(offsets[i]);
+        output.writeInt(lengths[i]);
+      }
+
+      output.writeInt(typeTags.size());
+      for (Map.Entry<String, TagList> entry : typeTags.entrySet())
+      {
+        TagList tagList = entry.getValue();
+        output.writeUTF(entry.getKey());
+        output.writeInt(tagList.size);
+        for (int i = 0; i < tagList.size; i++)
+        {
+          output.writeInt(tagList.tags[i]);
+        }
+      }
+    }
+  }
+
+  public static File getIndexFile(File file)
+  {
+    return new File(file.getPath() + INDEX_EXTENSION);
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  public List<String> getSchemaNames()
+  {
+    return Collections.unmodifiableList(schemaNames);
+  }
+
+  /**
+   * Returns the number of records of the file.
+   *
+   * @return the number of indexed records
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Returns the byte offset of a record in the file.
+   *
+   * @param tag the tag number of the record
+   * @return the offset of the record or -1 if the tag is not found.
+   */
+  public long getOffset(int tag)
+  {
+    int i = Arrays.binarySearch(tags, 0, size, tag);
+    return i < 0 ? -1 : offsets[i];
+  }
+
+  /**
+   * Returns the names of the types of the records of the file.
+   *
+   * @return the type names in uppercase
+   */
+  public Set<String> getTypeNames()
+  {
+    return Collections.unmodifiableSet(typeTags.keySet());
+  }
+
+  /**
+   * Returns the tags of the records of the given type.
+   *
+   * @param typeName the type name (like IFCWALL)
+   * @return the tag numbers in file order, an empty array if there are no
+   * records of that type.
+   */
+  public int[] getTags(String typeName)
+  {
+    TagList tagList = typeTags.get(typeName.toUpperCase());
+    return tagList == null ? new int[0] :
+      Arrays.copyOf(tagList.tags, tagList.size);
+  }
+
+  /**
+   * Reads a single record of the file.
+   *
+   * @param tag the tag number of the record
+   * @return the record or null if the tag is not found.
+   * @throws IOException if an I/O error occurs or the record is malformed
+   */
+  public StepRecord getRecord(int tag) throws IOException
+  {
+    int i = Arrays.binarySearch(tags, 0, size, tag);
+    if (i < 0) return null;
+
+    if (channel == null)
+    {
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    // read only the bytes of the record, mapping the file for each lookup
+    // would exhaust the process mappings
+    int length = lengths[i];
+    if (buffer.capacity() < length)
+    {
+      buffer = ByteBuffer.allocate(Math.max(length, 2 * buffer.capacity()));
+    }
+    buffer.clear().limit(length);
+    long position = offsets[i];
+    while (buffer.hasRemaining())
+    {
+      if (channel.read(buffer, position + buffer.position()) == -1)
+        throw new IOException("Index out of date: " + file);
+    }
+    buffer.flip();
+    return new StepParser(new StepByteLexer(buffer)).readRecord();
+  }
+
+  /**
+   * Reads the records of the given type.
+   *
+   * @param typeName the type name (like IFCWALL)
+   * @return the records in file order
+   * @throws IOException if an I/O error occurs or a record is malformed
+   */
+  public List<StepRecord> getRecords(String typeName) throws IOException
+  {
+    int[] typeRecordTags = getTags(typeName);
+    List<StepRecord> records = new ArrayList<>(typeRecordTags.length);
+    for (int tag : typeRecordTags)
+    {
+      records.add(getRecord(tag));
+    }
+    return records;
+  }
+
+  /**
+   * Reads the given records and all the records they reference directly
+   * or indirectly.
+   *
+   * @param rootTags the tags of the initial records
+   * @return the records of the closure sorted by tag. Missing tags are
+   * ignored.
+   * @throws IOException if an I/O error occurs or a record is malformed
+   */
+  public List<StepRecord> getClosure(int... rootTags) throws IOException
+  {
+    IntIntHashMap visited = new IntIntHashMap();
+    List<StepRecord> records = new ArrayList<>();
+    int[] pending = Arrays.copyOf(rootTags, Math.max(16, rootTags.length));
+    int pendingCount = rootTags.length;
+
+    while (pendingCount > 0)
+    {
+      int tag = pending[--pendingCount];
+      if (visited.containsKey(tag)) continue;
+      visited.put(tag, 1);
+
+      StepRecord record = getRecord(tag);
+      if (record == null) continue;
+      records.add(record);
+
+      for (int refTag : record.getReferenceNumbers())
+      {
+        if (visited.containsKey(refTag)) continue;
+        if (pendingCount == pending.length)
+        {
+          pending = Arrays.copyOf(pending, 2 * pendingCount);
+        }
+        pending[pendingCount++] = refTag;
+      }
+    }
+    records.sort((a, b) -> Integer.compare(a.tag, b.tag));
+    return records;
+  }
+
+  /**
+   * Loads the closure of the given records into the ExpressData of a
+   * StepLoader.
+   *
+   * @param loader the loader that receives the records
+   * @param rootTags the tags of the initial records
+   * @throws IOException if an I/O error occurs or a record is malformed
+   * @see #getClosure(int...)
+   */
+  public void load(StepLoader loader, int... rootTags) throws IOException
+  {
+    List<String> fileSchemas =
+      loader.getHeaderData().getFileSchema().getSchemas();
+    fileSchemas.clear();
+    fileSchemas.addAll(schemaNames);
+
+    loader.startData();
+    for (StepRecord record : getClosure(rootTags))
+    {
+      loader.loadRecord(record);
+    }
+    loader.endData();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    if (channel != null)
+    {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  /**
+   * Records the position and the type of the records of a DATA section
+   * without parsing their values.
+   */
+  private void scanData(StepByteLexer lexer, StepParser parser)
+    throws IOException
+  {
+    while (true)
+    {
+      long offset = lexer.getPosition();
+      StepTokenCursor token = parser.nextToken();
+      if (token.isEOF()) return;
+
+      if (token.isKeyword("ENDSEC"))
+      {
+        parser.skipRecord();
+        return;
+      }
+
+      if (token.isReference())
+      {
+        int tag = parser.getTagNumber(token);
+        token = parser.nextToken();
+        if (!token.isEqual())
+          throw new IOException("Expected '=' after #" + tag);
+        token = parser.nextToken();
+        String typeName;
+        if (token.isOpenParenthesis()) // complex entity instance
+        {
+          typeName = LIST;
+        }
+        else if (token.isIdentifier())
+        {
+          typeName = token.text().toString().toUpperCase();
+        }
+        else throw new IOException("Unexpected token " + token +
+          " in #" + tag);
+
+        parser.skipRecord();
+        add(tag, offset, (int)(lexer.getPosition() - offset), typeName);
+      }
+      else
+      {
+        parser.skipRecord();
+      }
+    }
+  }
+
+  private void add(int tag, long offset, int length, String typeName)
+  {
+    if (size == tags.length)
+    {
+      tags = Arrays.copyOf(tags, 2 * size);
+      offsets = Arrays.copyOf(offsets, 2 * size);
+      lengths = Arrays.copyOf(lengths, 2 * size);
+    }
+    tags[size] = tag;
+    offsets[size] = offset;
+    lengths[size] = length;
+    size++;
+
+    TagList tagList = typeTags.get(typeName);
+    if (tagList == null)
+    {
+      tagList = new TagList(16);
+      typeTags.put(typeName, tagList);
+    }
+    tagList.add(tag);
+  }
+
+  /**
+   * Sorts the records by tag. Tags are usually written in ascending order,
+   * so this is rarely needed.
+   */
+  private void sort()
+  {
+    boolean sorted = true;
+    for (int i = 1; i < size && sorted; i++)
+    {
+      sorted = tags[i - 1] < tags[i];
+    }
+    if (sorted) return;
+
+    long[] keys = new long[size]; // tag and record position
+    for (int i = 0; i < size; i++)
+    {
+      keys[i] = (long)tags[i] << 32 | i;
+    }
+    Arrays.sort(keys);
+
+    int[] sortedTags = new int[size];
+    long[] sortedOffsets = new long[size];
+    int[] sortedLengths = new int[size];
+    for (int i = 0; i < size; i++)
+    {
+      int position = (int)keys[i];
+      sortedTags[i] = tags[position];
+      sortedOffsets[i] = offsets[position];
+      sortedLengths[i] = lengths[position];
+    }
+    tags = sortedTags;
+    offsets = sortedOffsets;
+    lengths = sortedLengths;
+  }
+
+  static class TagList
+  {
+    int[] tags;
+    int size;
+
+    TagList(int capacity)
+    {
+      tags = new int[capacity];
+    }
+
+    void add(int tag)
+    {
+      if (size == tags.length)
+      {
+        tags = Arrays.copyOf(tags, Math.max(16, 2 * size));
+      }
+      tags[size++] = tag;
+    }
+  }
+}
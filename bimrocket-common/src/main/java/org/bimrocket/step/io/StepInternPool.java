@@ -0,0 +1,213 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.step.io;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.bimrocket.express.ExpressConstant;
+
+/**
+ * A pool of the strings and constants read by a StepLoader, so that
+ * repeated values share the same instance.
+ * <p>
+ * Each kind of value (texts, identifiers and constants) is kept in a
+ * direct mapped table indexed by the hash of its characters: a value
+ * replaces the previous value of its slot, so the pool never grows and
+ * unique values (like GlobalIds) only evict other values. Frequent values
+ * stay in the pool because they are looked up again before being evicted.
+ * <p>
+ * Values are looked up from the text of the token, so no string is
+ * created when the value is found. The pool can be used from several
+ * threads: slots only hold immutable objects, so concurrent updates may
+ * only cause misses.
+ *
+ * @author realor
+ */
+public class StepInternPool
+{
+  public static final int DEFAULT_CAPACITY = 1 << 16;
+  public static final int DEFAULT_MAX_TEXT_LENGTH = 64;
+
+  public enum Kind { TEXT, IDENTIFIER, CONSTANT }
+
+  private final String[] texts;
+  private final String[] identifiers;
+  private final ExpressConstant[] constants;
+  private final int maxTextLength;
+  private final LongAdder[] lookups = new LongAdder[Kind.values().length];
+  private final LongAdder[] hits = new LongAdder[Kind.values().length];
+
+  public StepInternPool()
+  {
+    this(DEFAULT_CAPACITY, DEFAULT_MAX_TEXT_LENGTH);
+  }
+
+  /**
+   * Creates a pool.
+   *
+   * @param capacity the number of slots of the table of texts. It is
+   * rounded up to a power of 2.
+   * @param maxTextLength the maximum length of the texts to intern.
+   * Longer texts are rarely repeated.
+   */
+  public StepInternPool(int capacity, int maxTextLength)
+  {
+    int size = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+    this.texts = new String[size];
+    this.identifiers = new String[4096];
+    this.constants = new ExpressConstant[1024];
+    this.maxTextLength = maxTextLength;
+    for (int i = 0; i < lookups.length; i++)
+    {
+      lookups[i] = new LongAdder();
+      hits[i] = new LongAdder();
+    }
+    putConstant(ExpressConstant.TRUE);
+    putConstant(ExpressConstant.FALSE);
+    putConstant(ExpressConstant.UNKNOWN);
+  }
+
+  public int getMaxTextLength()
+  {
+    return maxTextLength;
+  }
+
+  /**
+   * Returns the pooled string of a text value.
+   *
+   * @param text the characters of the text
+   * @return a string equal to text
+   */
+  public String internText(CharSequence text)
+  {
+    if (text.length() > maxTextLength) return text.toString();
+
+    return intern(texts, text, Kind.TEXT);
+  }
+
+  /**
+   * Returns the pooled string of an identifier (a type name).
+   *
+   * @param text the characters of the identifier
+   * @return a string equal to text
+   */
+  public String internIdentifier(CharSequence text)
+  {
+    return intern(identifiers, text, Kind.IDENTIFIER);
+  }
+
+  /**
+   * Returns the pooled constant of an enumeration or logical value.
+   *
+   * @param text the characters of the constant, without the dots
+   * @return a constant whose value is text
+   */
+  public ExpressConstant internConstant(CharSequence text)
+  {
+    int slot = hash(text) & (constants.length - 1);
+    lookups[Kind.CONSTANT.ordinal()].increment();
+    ExpressConstant constant = constants[slot];
+    if (constant != null && constant.toString().contentEquals(text))
+    {
+      hits[Kind.CONSTANT.ordinal()].increment();
+      return constant;
+    }
+    constant = new ExpressConstant(text.toString());
+    constants[slot] = constant;
+    return constant;
+  }
+
+  public long getLookups(Kind kind)
+  {
+    return lookups[kind.ordinal()].sum();
+  }
+
+  public long getHits(Kind kind)
+  {
+    return hits[kind.ordinal()].sum();
+  }
+
+  /**
+   * Returns the fraction of the lookups of the given kind that found the
+   * value in the pool.
+   *
+   * @param kind the kind of values
+   * @return the hit rate, between 0 and 1
+   */
+  public double getHitRate(Kind kind)
+  {
+    long count = getLookups(kind);
+    return count == 0 ? 0.0 : (double)getHits(kind) / count;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder buffer = new StringBuilder();
+    for (Kind kind : Kind.values())
+    {
+      if (buffer.length() > 0) buffer.append(", ");
+      buffer.append(kind.name().toLowerCase()).append(": ")
+        .append(getHits(kind)).append('/').append(getLookups(kind))
+        .append(String.format(" (%.1f%%)", 100 * getHitRate(kind)));
+    }
+    return buffer.toString();
+  }
+
+  private String intern(String[] table, CharSequence text, Kind kind)
+  {
+    int slot = hash(text) & (table.length - 1);
+    lookups[kind.ordinal()].increment();
+    String value = table[slot];
+    if (value != null && value.contentEquals(text))
+    {
+      hits[kind.ordinal()].increment();
+      return value;
+    }
+    value = text.toString();
+    table[slot] = value;
+    return value;
+  }
+
+  private void putConstant(ExpressConstant constant)
+  {
+    constants[hash(constant.toString()) & (constants.length - 1)] = constant;
+  }
+
+  private static int hash(CharSequence text)
+  {
+    int hash = 0;
+    for (int i = 0; i < text.length(); i++)
+    {
+      hash = 31 * hash + text.charAt(i);
+    }
+    return hash ^ (hash >>> 16);
+  }
+}
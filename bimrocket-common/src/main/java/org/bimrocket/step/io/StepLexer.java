@@ -36,11 +36,11 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
-import java.util.HashMap;
-import java.util.Stack;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import org.bimrocket.express.ExpressConstant;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import static org.bimrocket.step.io.StepToken.*;
 
 /**
@@ -50,21 +50,36 @@ import static org.bimrocket.step.io.StepToken.*;
 public class StepLexer
 {
   private final Reader reader;
-  private final Stack<StepToken> tokenStack = new Stack<>();
-  private final Stack<Integer> charStack = new Stack<>();
-  private final StringBuilder buffer = new StringBuilder();
+  private final Deque<StepToken> tokenStack = new ArrayDeque<>();
+  private int[] charStack = new int[4];
+  private int charCount;
+  protected final StringBuilder buffer = new StringBuilder();
+  protected final StepTokenCursor token = new StepTokenCursor();
 
-  private static final LookupTable KEYWORDS = new LookupTable();
-  private static final Pattern TEXT_PATTERN =
-    Pattern.compile("\\\\X2\\\\[\\dA-F]{4}\\\\X0\\\\|\\\\X\\\\[\\dA-F]{2}");
+  static final String[] KEYWORDS = {
+    "ISO-10303-21", "HEADER", "DATA", "ENDSEC", "END-ISO-10303-21" };
+
+  // characters 128-255 of the ISO 8859 pages A (ISO-8859-1) to I
+  private static final char[][] CODE_PAGES = new char[9][];
+
+  static final double[] POWERS_OF_TEN = new double[23];
 
   static
   {
-    KEYWORDS.add("ISO-10303-21");
-    KEYWORDS.add("HEADER");
-    KEYWORDS.add("DATA");
-    KEYWORDS.add("ENDSEC");
-    KEYWORDS.add("END-ISO-10303-21");
+    byte[] bytes = new byte[128];
+    for (int i = 0; i < 128; i++) bytes[i] = (byte)(128 + i);
+    for (int page = 0; page < CODE_PAGES.length; page++)
+    {
+      Charset charset = Charset.forName("ISO-8859-" + (page + 1));
+      CODE_PAGES[page] = charset.decode(ByteBuffer.wrap(bytes)).array();
+    }
+
+    double power = 1;
+    for (int i = 0; i < POWERS_OF_TEN.length; i++)
+    {
+      POWERS_OF_TEN[i] = power;
+      power *= 10;
+    }
   }
 
   public StepLexer(Reader reader)
@@ -72,77 +87,107 @@ public class StepLexer
     this.reader = reader;
   }
 
+  protected StepLexer()
+  {
+    this.reader = null;
+  }
+
+  /**
+   * Reads the next token.
+   *
+   * @return a new StepToken
+   * @throws IOException if an I/O error occurs
+   */
   public StepToken readToken() throws IOException
   {
-    StepToken token;
-    buffer.setLength(0);
+    if (!tokenStack.isEmpty()) return tokenStack.pop();
 
-    if (tokenStack.isEmpty())
+    return nextToken().toToken();
+  }
+
+  /**
+   * Reads the next token into the token cursor of this lexer.
+   * <p>
+   * The returned cursor is always the same object, it is overwritten by
+   * the next call to this method.
+   *
+   * @return the token cursor of this lexer
+   * @throws IOException if an I/O error occurs
+   */
+  public StepTokenCursor nextToken() throws IOException
+  {
+    if (!tokenStack.isEmpty())
     {
-      int ch = read();
-      while (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n')
-      {
-        ch = read();
-      }
+      token.set(tokenStack.pop());
+      return token;
+    }
 
-      switch (ch)
-      {
-        case -1:
-          token = EOF_TOKEN;
-          break;
-        case '=':
-          token = EQUAL_TOKEN;
-          break;
-        case ',':
-          token = COMMA_TOKEN;
-          break;
-        case ';':
-          token = COLON_TOKEN;
-          break;
-        case '(':
-          token = OPEN_PARENTHESIS_TOKEN;
-          break;
-        case ')':
-          token = CLOSE_PARENTHESIS_TOKEN;
-          break;
-        case '*':
-          token = ASTERISC_TOKEN;
-          break;
-        case '$':
-          token = DOLLAR_TOKEN;
-          break;
-        case '\'':
-          token = readText();
-          break;
-        case '/':
-          token = readComment();
-          break;
-        case '#':
-          token = readReference();
-          break;
-        default:
-          if (Character.isDigit(ch) || ch == '-')
-          {
-            token = readNumber(ch);
-          }
-          else if (Character.isLetter(ch) || ch == '_')
-          {
-            token = readKeywordOrIdentifier(ch);
-          }
-          else if (ch == '.')
-          {
-            token = readConstant();
-          }
-          else
-          {
-            token = new StepToken(INVALID, String.valueOf((char)ch));
-          }
-          break;
-      }
+    int ch = read();
+    while (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n')
+    {
+      ch = read();
     }
-    else
+
+    switch (ch)
     {
-      token = tokenStack.pop();
+      case -1:
+        token.setType(EOF);
+        break;
+      case '=':
+        token.setType(EQUAL);
+        break;
+      case ',':
+        token.setType(COMMA);
+        break;
+      case ';':
+        token.setType(COLON);
+        break;
+      case '(':
+        token.setType(OPEN_PARENTHESIS);
+        break;
+      case ')':
+        token.setType(CLOSE_PARENTHESIS);
+        break;
+      case '*':
+        token.setType(ASTERISC);
+        break;
+      case '$':
+        token.setType(DOLLAR);
+        break;
+      case '\'':
+        token.setType(TEXT);
+        readText();
+        break;
+      case '/':
+        token.setType(COMMENT);
+        readComment();
+        break;
+      case '#':
+        token.setType(REFERENCE);
+        readReference();
+        break;
+      default:
+        if ((ch >= '0' && ch <= '9') || ch == '-')
+        {
+          token.setType(NUMBER);
+          readNumber(ch);
+        }
+        else if (Character.isLetter(ch) || ch == '_')
+        {
+          token.setType(IDENTIFIER);
+          readKeywordOrIdentifier(ch);
+        }
+        else if (ch == '.')
+        {
+          token.setType(CONSTANT);
+          readConstant();
+        }
+        else
+        {
+          token.setType(INVALID);
+          token.text.append((char)ch);
+        }
+        break;
     }
     return token;
   }
@@ -152,8 +197,9 @@ public class StepLexer
     tokenStack.push(token);
   }
 
-  protected StepToken readText() throws IOException
+  protected void readText() throws IOException
   {
+    StringBuilder text = token.text;
     boolean decode = false;
     int ch = read();
     while (ch != -1)
@@ -161,211 +207,336 @@ public class StepLexer
       if (ch == '\'')
       {
         int ch2 = read();
-        if (ch2 == '\'')
-        {
-          buffer.append('\'');
-        }
-        else
+        if (ch2 != '\'')
         {
           unread(ch2);
           break;
         }
       }
-      else
+      else if (ch == '\\')
       {
-        buffer.append((char)ch);
-        if ((char)ch == '\\') decode = true;
+        decode = true;
       }
+      text.append((char)ch);
       ch = read();
     }
+    if (decode) decodeText();
+  }
 
-    if (!decode) return new StepToken(TEXT, buffer.toString());
+  /**
+   * Decodes the escape sequences of the text of the current token.
+   */
+  protected void decodeText()
+  {
+    buffer.setLength(0);
+    buffer.append(token.text);
+    token.text.setLength(0);
+    decodeText(buffer, token.text);
+  }
 
-    Matcher matcher = TEXT_PATTERN.matcher(buffer.toString());
-    StringBuffer sb = new StringBuffer();
-    while (matcher.find())
+  /**
+   * Decodes the escape sequences of a STEP string: \\, \S\, \P?\, \X\,
+   * \X2\ and \X4\. Malformed sequences are copied as they are.
+   *
+   * @param text the encoded string
+   * @param output the builder where the decoded string is appended
+   */
+  public static void decodeText(CharSequence text, StringBuilder output)
+  {
+    char[] codePage = CODE_PAGES[0];
+    int length = text.length();
+    int i = 0;
+    while (i < length)
     {
-      String group = matcher.group();
-      String code = (group.length() == 12) ?
-        group.substring(4, 8) : group.substring(3, 5);
-      matcher.appendReplacement(sb,
-        String.valueOf((char)Integer.parseInt(code, 16)));
-    }
-    matcher.appendTail(sb);
+      char ch = text.charAt(i);
+      if (ch != '\\' || i + 1 == length)
+      {
+        output.append(ch);
+        i++;
+        continue;
+      }
 
-    return new StepToken(TEXT, sb.toString());
+      char ch1 = text.charAt(i + 1);
+      if (ch1 == '\\') // \\
+      {
+        output.append('\\');
+        i += 2;
+        continue;
+      }
+      else if (ch1 == 'S' && i + 3 < length && text.charAt(i + 2) == '\\')
+      {
+        // \S\c
+        int code = text.charAt(i + 3);
+        if (code >= 32 && code < 128)
+        {
+          output.append(codePage[code]);
+          i += 4;
+          continue;
+        }
+      }
+      else if (ch1 == 'P' && i + 3 < length && text.charAt(i + 3) == '\\')
+      {
+        // \P?\
+        int page = text.charAt(i + 2) - 'A';
+        if (page >= 0 && page < CODE_PAGES.length)
+        {
+          codePage = CODE_PAGES[page];
+          i += 4;
+          continue;
+        }
+      }
+      else if (ch1 == 'X' && i + 4 < length)
+      {
+        char ch2 = text.charAt(i + 2);
+        if (ch2 == '\\') // \X\hh
+        {
+          int code = parseHex(text, i + 3, 2);
+          if (code != -1)
+          {
+            output.append((char)code);
+            i += 5;
+            continue;
+          }
+        }
+        else if ((ch2 == '2' || ch2 == '4') && text.charAt(i + 3) == '\\')
+        {
+          // \X2\hhhh...\X0\ or \X4\hhhhhhhh...\X0\
+          int digits = ch2 == '2' ? 4 : 8;
+          int start = output.length();
+          int j = i + 4;
+          int code;
+          while (j + digits <= length &&
+            (code = parseHex(text, j, digits)) != -1 &&
+            Character.isValidCodePoint(code))
+          {
+            output.appendCodePoint(code);
+            j += digits;
+          }
+          if (j + 4 <= length && text.charAt(j) == '\\' &&
+              text.charAt(j + 1) == 'X' && text.charAt(j + 2) == '0' &&
+              text.charAt(j + 3) == '\\')
+          {
+            i = j + 4;
+            continue;
+          }
+          output.setLength(start);
+        }
+      }
+      output.append(ch);
+      i++;
+    }
   }
 
-  protected StepToken readNumber(int ch) throws IOException
+  protected void readNumber(int ch) throws IOException
   {
-    buffer.append((char)ch);
+    StringBuilder text = token.text;
+    text.append((char)ch);
     ch = read();
-    while (Character.isDigit(ch)) // read integer part
+    while (ch >= '0' && ch <= '9') // read integer part
     {
-      buffer.append((char)ch);
+      text.append((char)ch);
       ch = read();
     }
     boolean decimal = false;
     if (ch == '.') // read decimal part
     {
       decimal = true;
-      buffer.append('.');
+      text.append('.');
       ch = read();
-      while (Character.isDigit(ch))
+      while (ch >= '0' && ch <= '9')
       {
-        buffer.append((char)ch);
+        text.append((char)ch);
         ch = read();
       }
     }
     if (ch == 'E') // read exponent part
     {
       decimal = true;
-      buffer.append('E');
+      text.append('E');
       ch = read();
-      if (ch == '-')
+      if (ch == '-' || ch == '+')
       {
-        buffer.append('-');
+        text.append((char)ch);
         ch = read();
       }
-      while (Character.isDigit(ch))
+      while (ch >= '0' && ch <= '9')
       {
-        buffer.append((char)ch);
+        text.append((char)ch);
         ch = read();
       }
     }
     unread(ch);
-    String value = buffer.toString();
-    StepToken token;
     try
     {
       if (decimal)
       {
-        double number = Double.parseDouble(value);
-        token = new StepToken(NUMBER, number);
+        token.setNumber(Double.parseDouble(text.toString()));
       }
       else
       {
-        long number = Long.parseLong(value);
-        token = new StepToken(NUMBER, number);
+        token.setNumber(Long.parseLong(text, 0, text.length(), 10));
       }
     }
     catch (NumberFormatException ex)
     {
-      token = new StepToken(INVALID, value);
+      token.type = INVALID;
     }
-    return token;
   }
 
-  protected StepToken readKeywordOrIdentifier(int ch) throws IOException
+  protected void readKeywordOrIdentifier(int ch) throws IOException
   {
-    buffer.append((char)ch);
+    StringBuilder text = token.text;
+    text.append((char)ch);
     ch = read();
     while (Character.isLetterOrDigit(ch) || ch == '_' || ch == '-')
     {
-      buffer.append((char)ch);
+      text.append((char)ch);
       ch = read();
     }
     unread(ch);
-    String value = buffer.toString();
-    String keyword = KEYWORDS.get(value);
-    if (keyword == null)
-    {
-      return new StepToken(IDENTIFIER, value);
-    }
-    else
+    findKeyword();
+  }
+
+  /**
+   * Changes the type of the current token to KEYWORD if its text is a
+   * keyword.
+   */
+  protected void findKeyword()
+  {
+    StringBuilder text = token.text;
+    char first = text.charAt(0);
+    if (first != 'I' && first != 'H' && first != 'D' && first != 'E') return;
+
+    for (String keyword : KEYWORDS)
     {
-      return new StepToken(KEYWORD, keyword);
+      if (keyword.length() == text.length() && keyword.contentEquals(text))
+      {
+        token.setKeyword(keyword);
+        return;
+      }
     }
   }
 
-  protected StepToken readConstant() throws IOException
+  protected void readConstant() throws IOException
   {
+    StringBuilder text = token.text;
     int ch = read();
     while (Character.isLetterOrDigit(ch) || ch == '_')
     {
-      buffer.append((char)ch);
+      text.append((char)ch);
       ch = read();
     }
-    StepToken token;
-    if (ch == '.')
-    {
-      String value = buffer.toString();
-      token = new StepToken(CONSTANT, new ExpressConstant(value));
-    }
-    else
+    if (ch != '.')
     {
       unread(ch);
-      String value = buffer.toString();
-      token = new StepToken(INVALID, value);
+      token.type = INVALID;
     }
-    return token;
   }
 
-  protected StepToken readReference() throws IOException
+  protected void readReference() throws IOException
   {
-    buffer.append("#");
+    StringBuilder text = token.text;
+    text.append('#');
     int ch = read();
-    while (Character.isDigit(ch))
+    while (ch >= '0' && ch <= '9')
     {
-      buffer.append((char)ch);
+      text.append((char)ch);
       ch = read();
     }
     unread(ch);
-    return new StepToken(REFERENCE, buffer.toString());
+    token.tagNumber = parseTagNumber(text);
   }
 
-  protected StepToken readComment() throws IOException
+  protected void readComment() throws IOException
   {
-    StepToken token;
     int ch2 = read();
     if (ch2 == '*')
     {
       // inside comment /* ...
+      StringBuilder text = token.text;
       int ch = read();
       ch2 = read();
       while ((ch != '*' || ch2 != '/') && ch2 != -1)
       {
-        buffer.append((char)ch);
+        text.append((char)ch);
         ch = ch2;
         ch2 = read();
       }
-      token = new StepToken(COMMENT, buffer.toString());
     }
     else
     {
       unread(ch2);
-      token = new StepToken(INVALID, "/");
+      token.setType(INVALID);
+      token.text.append('/');
     }
-    return token;
   }
 
   protected int read() throws IOException
   {
-    int ch;
-    if (charStack.isEmpty())
+    if (charCount > 0) return charStack[--charCount];
+
+    return reader.read();
+  }
+
+  protected void unread(int ch)
+  {
+    if (charCount == charStack.length)
     {
-      ch = reader.read();
+      charStack = Arrays.copyOf(charStack, 2 * charCount);
     }
-    else
+    charStack[charCount++] = ch;
+  }
+
+  /**
+   * Parses the number of a tag like #12.
+   *
+   * @param tag the tag including the # character
+   * @return the tag number or -1 if it is not a valid int number.
+   */
+  static int parseTagNumber(CharSequence tag)
+  {
+    int length = tag.length();
+    if (length < 2 || length > 11) return -1;
+    long number = 0;
+    for (int i = 1; i < length; i++)
     {
-      ch = charStack.pop();
+      char ch = tag.charAt(i);
+      if (ch < '0' || ch > '9') return -1;
+      number = 10 * number + (ch - '0');
     }
-    return ch;
+    return number > Integer.MAX_VALUE ? -1 : (int)number;
   }
 
-  protected void unread(int ch)
+  /**
+   * Converts mantissa * 10^exponent to a double when it can be done
+   * exactly with a single floating point operation.
+   *
+   * @param mantissa the decimal digits of the number
+   * @param exponent the power of ten to apply
+   * @return the double value or NaN if it can not be computed exactly,
+   * in that case Double.parseDouble must be used.
+   */
+  static double toDouble(long mantissa, int exponent)
   {
-    charStack.push(ch);
+    if (mantissa < 0 || mantissa > (1L << 53)) return Double.NaN;
+    if (exponent == 0) return mantissa;
+    if (exponent > 0 && exponent < POWERS_OF_TEN.length)
+      return mantissa * POWERS_OF_TEN[exponent];
+    if (exponent < 0 && -exponent < POWERS_OF_TEN.length)
+      return mantissa / POWERS_OF_TEN[-exponent];
+    return Double.NaN;
   }
 
-  static class LookupTable extends HashMap<String, String>
+  static int parseHex(CharSequence text, int start, int digits)
   {
-    private static final long serialVersionUID = 1L;
-
-    public void add(String value)
+    int code = 0;
+    for (int i = start; i < start + digits; i++)
     {
-      put(value, value);
+      int digit = Character.digit(text.charAt(i), 16);
+      if (digit == -1) return -1;
+      code = (code << 4) | digit;
     }
+    return code;
   }
 
   public static void main(String[] args) throws IOException
@@ -31,25 +31,29 @@
 
 package org.bimrocket.step.io;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.io.Reader;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Stack;
 import org.bimrocket.express.data.ExpressCursor;
 import static org.bimrocket.express.ExpressCollection.LIST;
 import org.bimrocket.express.ExpressConstant;
 import org.bimrocket.express.ExpressSchema;
+import org.bimrocket.express.data.AbstractData;
 import org.bimrocket.express.data.ExpressData;
 import org.bimrocket.express.data.GenericData;
-import org.bimrocket.express.io.ExpressLoader;
+import org.bimrocket.express.data.InverseIndex;
+import org.bimrocket.express.data.TypedData;
+import org.bimrocket.express.data.TypedEntityFactory;
+import org.bimrocket.express.io.ExpressSchemaRegistry;
 import org.bimrocket.step.header.StepFileHeaderData;
+import org.bimrocket.util.IntIntHashMap;
 
 /**
  * Loads objects into a ExpressData from a STEP file.
@@ -62,6 +66,15 @@ public class StepLoader
   protected ExpressData data;
   protected StepFileHeaderData headerData = new StepFileHeaderData();
   protected ExpressData currentData;
+  protected ExpressCursor rootCursor;
+  protected ExpressCursor recordCursor;
+  protected TagIndex tagIndex = new TagIndex();
+  protected ForwardReferences forwardReferences = new ForwardReferences();
+  protected int containerCount;
+  protected boolean inverseIndexEnabled;
+  protected boolean typedDataEnabled;
+  protected StepInternPool internPool = new StepInternPool();
+  protected InverseIndex.Builder inverseIndexBuilder;
 
   public StepLoader()
   {
@@ -82,152 +95,316 @@ public class StepLoader
     return headerData;
   }
 
+  public boolean isInverseIndexEnabled()
+  {
+    return inverseIndexEnabled;
+  }
+
+  /**
+   * Enables or disables the construction of the inverse index of the data
+   * while loading. The index is only built when the data is an empty
+   * AbstractData. It is disabled by default, since the data builds the
+   * index on demand when it is needed.
+   *
+   * @param inverseIndexEnabled true to build the inverse index
+   */
+  public void setInverseIndexEnabled(boolean inverseIndexEnabled)
+  {
+    this.inverseIndexEnabled = inverseIndexEnabled;
+  }
+
+  public boolean isTypedDataEnabled()
+  {
+    return typedDataEnabled;
+  }
+
+  /**
+   * Enables or disables the creation of a TypedData when the loader has no
+   * data. The TypedData is only created when a TypedEntityFactory for the
+   * file schema is registered, otherwise a GenericData is used.
+   *
+   * @param typedDataEnabled true to load the entities into generated classes
+   */
+  public void setTypedDataEnabled(boolean typedDataEnabled)
+  {
+    this.typedDataEnabled = typedDataEnabled;
+  }
+
+  public StepInternPool getInternPool()
+  {
+    return internPool;
+  }
+
+  /**
+   * Sets the pool that shares the repeated texts, type names and constants
+   * of the loaded files. The pool keeps the hit rate metrics of the loads.
+   *
+   * @param internPool the pool to use, or null to disable interning
+   */
+  public void setInternPool(StepInternPool internPool)
+  {
+    this.internPool = internPool;
+  }
+
   public void load(String filename) throws IOException
   {
     load(new File(filename));
   }
 
+  /**
+   * Loads a STEP file. Files compressed with gzip or IFCZIP (detected by
+   * their magic bytes) are decompressed while they are read.
+   *
+   * @param file the file to load
+   * @throws IOException if an I/O error occurs or the file is malformed
+   */
   public void load(File file) throws IOException
   {
-    try (BufferedReader reader =
-          new BufferedReader(new InputStreamReader(new FileInputStream(file))))
+    if (StepCompression.detect(file) != StepCompression.NONE)
+    {
+      load(new FileInputStream(file));
+      return;
+    }
+
+    try (FileChannel channel =
+          FileChannel.open(file.toPath(), StandardOpenOption.READ))
+    {
+      load(new StepByteLexer(channel));
+    }
+  }
+
+  /**
+   * Loads a STEP stream, that may be compressed with gzip or IFCZIP.
+   *
+   * @param input the stream to load. It is closed after loading.
+   * @throws IOException if an I/O error occurs or the data is malformed
+   */
+  public void load(InputStream input) throws IOException
+  {
+    try (InputStream stream = StepCompression.decompress(input))
     {
-      load(reader);
+      load(new StepByteLexer(Channels.newChannel(stream)));
     }
   }
 
   public void load(Reader reader) throws IOException
   {
-    StepLexer lexer = new StepLexer(reader);
-    String typeName = null;
-    ExpressCursor rootCursor = data.getRoot();
-    ExpressCursor cursor = null;
-    String currentTag = null;
-    Map<String, Integer> backwardRefMap = new HashMap<>();
-    Map<String, ArrayList<Reference>> forwardRefMap = new HashMap<>();
-    Stack<Integer> indexStack = new Stack<>();
+    try (reader)
+    {
+      load(new StepLexer(reader));
+    }
+  }
+
+  public void load(StepLexer lexer) throws IOException
+  {
+    StepParser parser = new StepParser(lexer, internPool);
+    String section = parser.readSection();
+    while (section != null)
+    {
+      if (section.equals(StepParser.HEADER))
+      {
+        loadHeader(parser);
+      }
+      else
+      {
+        startData();
+        loadData(parser);
+        endData();
+      }
+      section = parser.readSection();
+    }
+  }
+
+  protected void loadHeader(StepParser parser) throws IOException
+  {
+    ExpressCursor headerCursor = headerData.getRoot();
     int index = 0;
+    StepRecord record = parser.readRecord();
+    while (record != null)
+    {
+      headerCursor.create(index++, record.typeName);
+      loadValues(headerCursor, record.values);
+      headerCursor.exit();
+      record = parser.readRecord();
+    }
+  }
 
-    try (reader)
+  protected void loadData(StepParser parser) throws IOException
+  {
+    StepRecord record = parser.readRecord();
+    while (record != null)
+    {
+      loadRecord(record);
+      record = parser.readRecord();
+    }
+  }
+
+  /**
+   * Prepares the loader to receive the records of the DATA section.
+   *
+   * @throws IOException if the file schema is not supported.
+   */
+  protected void startData() throws IOException
+  {
+    processFileSchema();
+    rootCursor = data.getRoot();
+    recordCursor = data.getRoot();
+    tagIndex = new TagIndex();
+    forwardReferences = new ForwardReferences();
+    inverseIndexBuilder = inverseIndexEnabled &&
+      data instanceof AbstractData && rootCursor.size() == 0 ?
+      new InverseIndex.Builder() : null;
+  }
+
+  /**
+   * Completes the loading of the DATA section, resolving the forward
+   * references of the inverse index.
+   */
+  protected void endData()
+  {
+    InverseIndex.Builder builder = inverseIndexBuilder;
+    if (builder == null) return;
+
+    inverseIndexBuilder = null;
+    for (int entry = 0; entry < builder.size(); entry++)
     {
-      StepToken token = lexer.readToken();
-      while (!token.isEOF())
+      int target = builder.getTarget(entry);
+      if (target < 0) // forward reference: ~tag
       {
-        if (token.isKeyword("HEADER"))
-        {
-          cursor = headerData.getRoot();
-          index = 0;
-        }
-        else if (token.isKeyword("DATA"))
-        {
-          processFileSchema();
-          cursor = data.getRoot();
-          index = 0;
-        }
-        else if (token.isKeyword("ENDSEC"))
-        {
-          cursor = null;
-        }
-        else if (token.isIdentifier())
-        {
-          typeName = (String)token.getValue();
-        }
-        else if (token.isOpenParenthesis())
-        {
-          if (cursor == null)
-            throw new IOException("Unexcepted open parethesis");
-
-          indexStack.push(index);
-
-          if (typeName != null)
-          {
-            cursor.create(index, typeName);
-          }
-          else
-          {
-            cursor.create(index, LIST);
-          }
-          index = 0;
-          typeName = null;
-        }
-        else if (token.isCloseParenthesis())
-        {
-          if (cursor == null)
-            throw new IOException("Unexcepted close parenthesis");
+        builder.setTarget(entry, tagIndex.get(~target));
+      }
+    }
+    ((AbstractData<?, ?>)data).setInverseIndex(
+      builder.build(rootCursor.size()));
+  }
 
-          cursor.exit();
-          index = indexStack.pop();
-          index++;
-        }
-        else if (token.isReference())
-        {
-          String tag = (String)token.getValue();
-          if (indexStack.isEmpty()) // start line
-          {
-            currentTag = tag;
-          }
-          else if (cursor != null)
-          {
-            Integer tagIndex = backwardRefMap.get(tag);
-            if (tagIndex == null) // forward reference
-            {
-              ArrayList<Reference> references = forwardRefMap.get(tag);
-              if (references == null)
-              {
-                references = new ArrayList<>();
-                forwardRefMap.put(tag, references);
-              }
-              references.add(new Reference(cursor, index));
-              cursor.set(index++, (String)null);
-            }
-            else // backward reference
-            {
-              rootCursor.enter(tagIndex);
-              cursor.set(index++, rootCursor);
-              rootCursor.exit();
-            }
-          }
-          else throw new IOException("Unexcepted tag");
-        }
-        else if (token.isColon()) // end of line
-        {
-          if (indexStack.isEmpty() && currentTag != null)
-          {
-            backwardRefMap.put(currentTag, rootCursor.size() - 1);
-            ArrayList<Reference> references = forwardRefMap.remove(currentTag);
-            if (references != null)
-            {
-              rootCursor.enter(rootCursor.size() - 1);
-              for (Reference reference : references)
-              {
-                reference.dereference(rootCursor);
-              }
-              rootCursor.exit();
-            }
-          }
-        }
-        else if (cursor != null)
-        {
-          if (token.isNumber())
-          {
-            cursor.set(index++, (Number)token.getValue());
-          }
-          else if (token.isText())
-          {
-            cursor.set(index++, (String)token.getValue());
-          }
-          else if (token.isConstant())
-          {
-            cursor.set(index++, (ExpressConstant)token.getValue());
-          }
-          else if (token.isAsterisc() || token.isDollar())
-          {
-            cursor.set(index++, (String)null);
-          }
-        }
-        token = lexer.readToken();
+  /**
+   * Adds a record of the DATA section to the root list and resolves the
+   * references to and from it.
+   *
+   * @param record the record to load
+   */
+  protected void loadRecord(StepRecord record)
+  {
+    recordCursor.create(recordCursor.size(), record.typeName);
+    loadValues(recordCursor, record.values);
+    recordCursor.exit();
+
+    int index = rootCursor.size() - 1;
+    if (inverseIndexBuilder != null)
+    {
+      List<Object> values = record.values;
+      for (int attribute = 0; attribute < values.size(); attribute++)
+      {
+        addReferences(index, attribute, values.get(attribute));
       }
     }
+
+    int tag = record.tag;
+    if (tag != StepRecord.NO_TAG)
+    {
+      tagIndex.put(tag, index);
+      if (forwardReferences.contains(tag))
+      {
+        rootCursor.enter(index);
+        forwardReferences.resolve(tag, rootCursor);
+        rootCursor.exit();
+      }
+    }
+  }
+
+  /**
+   * Adds the references of an attribute value to the inverse index.
+   *
+   * @param source the position of the record in the root list
+   * @param attribute the attribute index
+   * @param value the attribute value
+   */
+  protected void addReferences(int source, int attribute, Object value)
+  {
+    if (value instanceof StepRecord.Reference reference)
+    {
+      int target = tagIndex.get(reference.tag);
+      inverseIndexBuilder.add(target == -1 ? ~reference.tag : target,
+        source, attribute);
+    }
+    else if (value instanceof List<?> list)
+    {
+      for (Object item : list)
+      {
+        addReferences(source, attribute, item);
+      }
+    }
+  }
+
+  protected void loadValues(ExpressCursor cursor, List<Object> values)
+  {
+    int container = ++containerCount;
+    for (int index = 0; index < values.size(); index++)
+    {
+      loadValue(cursor, container, index, values.get(index));
+    }
+  }
+
+  /**
+   * Sets a value of the current container of the cursor.
+   *
+   * @param cursor the cursor positioned on the container
+   * @param container a number that identifies the container. The forward
+   * references of the same container share a cursor copy.
+   * @param index the position of the value in the container
+   * @param value the value to set
+   */
+  protected void loadValue(ExpressCursor cursor, int container, int index,
+    Object value)
+  {
+    if (value instanceof Number number)
+    {
+      cursor.set(index, number);
+    }
+    else if (value instanceof String text)
+    {
+      cursor.set(index, text);
+    }
+    else if (value instanceof ExpressConstant constant)
+    {
+      cursor.set(index, constant);
+    }
+    else if (value instanceof StepRecord.Reference reference)
+    {
+      int refIndex = tagIndex.get(reference.tag);
+      if (refIndex == -1) // forward reference
+      {
+        forwardReferences.add(reference.tag, cursor, container, index);
+        cursor.set(index, (String)null);
+      }
+      else // backward reference
+      {
+        rootCursor.enter(refIndex);
+        cursor.set(index, rootCursor);
+        rootCursor.exit();
+      }
+    }
+    else if (value instanceof List<?> list)
+    {
+      cursor.create(index, LIST);
+      int listContainer = ++containerCount;
+      for (int i = 0; i < list.size(); i++)
+      {
+        loadValue(cursor, listContainer, i, list.get(i));
+      }
+      cursor.exit();
+    }
+    else if (value instanceof StepRecord typedValue)
+    {
+      cursor.create(index, typedValue.typeName);
+      loadValues(cursor, typedValue.values);
+      cursor.exit();
+    }
+    else
+    {
+      cursor.set(index, (String)null);
+    }
   }
 
   protected void processFileSchema() throws IOException
@@ -239,8 +416,7 @@ public class StepLoader
     String schemaName = schemaNames.get(0);
     if (data == null)
     {
-      ExpressLoader loader = new ExpressLoader();
-      ExpressSchema schema = loader.load("schema:" + schemaName);
+      ExpressSchema schema = ExpressSchemaRegistry.getSchema(schemaName);
       data = createData(schema);
     }
     else
@@ -255,23 +431,124 @@ public class StepLoader
 
   protected ExpressData createData(ExpressSchema schema)
   {
+    if (typedDataEnabled)
+    {
+      TypedEntityFactory factory =
+        TypedEntityFactory.getFactory(schema.getName());
+      if (factory != null) return new TypedData(schema, factory);
+    }
     return new GenericData(schema);
   }
 
-  static class Reference
+  /**
+   * Maps tag numbers to positions in the root list. Tags are usually
+   * consecutive numbers, so they are stored in a dense array while they
+   * remain compact, falling back to a hash table for sparse tags.
+   */
+  static class TagIndex
   {
-    ExpressCursor cursor;
-    int index;
+    static final int MIN_DENSE_SIZE = 1024;
 
-    Reference(ExpressCursor cursor, int index)
+    int[] dense = new int[MIN_DENSE_SIZE]; // index + 1, 0 if not found
+    int count;
+    IntIntHashMap sparse;
+
+    void put(int tag, int index)
     {
-      this.cursor = cursor.copy();
-      this.index = index;
+      count++;
+      if (tag >= dense.length && tag < 2 * count + MIN_DENSE_SIZE)
+      {
+        int newLength = dense.length;
+        while (newLength <= tag) newLength *= 2;
+        dense = Arrays.copyOf(dense, newLength);
+      }
+
+      if (tag < dense.length)
+      {
+        dense[tag] = index + 1;
+      }
+      else
+      {
+        if (sparse == null) sparse = new IntIntHashMap();
+        sparse.put(tag, index);
+      }
     }
 
-    void dereference(ExpressCursor refCursor)
+    int get(int tag)
     {
-      cursor.set(index, refCursor);
+      if (tag < dense.length)
+      {
+        int index = dense[tag] - 1;
+        if (index != -1 || sparse == null) return index;
+      }
+      return sparse == null ? -1 : sparse.get(tag, -1);
+    }
+  }
+
+  /**
+   * The references to tags that were not loaded yet.
+   * <p>
+   * The references to the same tag are linked lists of entries stored in
+   * int arrays. Each entry keeps the position of the reference in its
+   * container and the cursor of that container, that is shared by all the
+   * references of the container.
+   */
+  static class ForwardReferences
+  {
+    final IntIntHashMap lastEntries = new IntIntHashMap(); // tag -> entry
+    int[] previousEntries = new int[256];
+    int[] indices = new int[256];
+    int[] cursorIndices = new int[256];
+    int entryCount;
+    ExpressCursor[] cursors = new ExpressCursor[64];
+    int cursorCount;
+    int lastContainer;
+
+    boolean contains(int tag)
+    {
+      return !lastEntries.isEmpty() && lastEntries.containsKey(tag);
+    }
+
+    void add(int tag, ExpressCursor cursor, int container, int index)
+    {
+      if (container != lastContainer || cursorCount == 0)
+      {
+        if (cursorCount == cursors.length)
+        {
+          cursors = Arrays.copyOf(cursors, 2 * cursorCount);
+        }
+        cursors[cursorCount++] = cursor.copy();
+        lastContainer = container;
+      }
+
+      if (entryCount == indices.length)
+      {
+        int newLength = 2 * entryCount;
+        previousEntries = Arrays.copyOf(previousEntries, newLength);
+        indices = Arrays.copyOf(indices, newLength);
+        cursorIndices = Arrays.copyOf(cursorIndices, newLength);
+      }
+      previousEntries[entryCount] = lastEntries.get(tag, -1);
+      indices[entryCount] = index;
+      cursorIndices[entryCount] = cursorCount - 1;
+      lastEntries.put(tag, entryCount++);
+    }
+
+    void resolve(int tag, ExpressCursor refCursor)
+    {
+      int entry = lastEntries.remove(tag, -1);
+      while (entry != -1)
+      {
+        cursors[cursorIndices[entry]].set(indices[entry], refCursor);
+        entry = previousEntries[entry];
+      }
+
+      if (lastEntries.isEmpty()) // all resolved, reuse the arrays
+      {
+        Arrays.fill(cursors, 0, cursorCount, null);
+        cursorCount = 0;
+        entryCount = 0;
+      }
     }
   }
 }
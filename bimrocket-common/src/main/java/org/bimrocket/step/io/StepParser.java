@@ -0,0 +1,239 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.step.io;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.bimrocket.express.ExpressConstant;
+import static org.bimrocket.express.ExpressCollection.LIST;
+
+/**
+ * Reads the records of a STEP file from a StepLexer.
+ *
+ * @author realor
+ */
+class StepParser
+{
+  public static final String HEADER = "HEADER";
+  public static final String DATA = "DATA";
+
+  private final StepLexer lexer;
+  private final StepInternPool internPool;
+
+  StepParser(StepLexer lexer)
+  {
+    this(lexer, null);
+  }
+
+  /**
+   * Creates a parser.
+   *
+   * @param lexer the lexer to read the tokens from
+   * @param internPool the pool of the texts, identifiers and constants
+   * read, or null to create a new instance for every value.
+   */
+  StepParser(StepLexer lexer, StepInternPool internPool)
+  {
+    this.lexer = lexer;
+    this.internPool = internPool;
+  }
+
+  /**
+   * Skips tokens until the start of the next section.
+   *
+   * @return the name of the section (HEADER or DATA) or null at end of file.
+   * @throws IOException if an I/O error occurs.
+   */
+  String readSection() throws IOException
+  {
+    StepTokenCursor token = nextToken();
+    while (!token.isEOF())
+    {
+      if (token.isKeyword(HEADER) || token.isKeyword(DATA))
+      {
+        String section = token.keyword;
+        skipRecord();
+        return section;
+      }
+      token = nextToken();
+    }
+    return null;
+  }
+
+  /**
+   * Reads the next record of the current section.
+   * <p>
+   * A complex entity instance, like {@code #1=(IFCA()IFCB());}, is read as
+   * a record of type LIST whose values are its partial entities, as typed
+   * values.
+   *
+   * @return the record read or null at the end of the section.
+   * @throws IOException if the record is malformed.
+   */
+  StepRecord readRecord() throws IOException
+  {
+    StepTokenCursor token = nextToken();
+    if (token.isEOF()) return null;
+
+    if (token.isKeyword("ENDSEC"))
+    {
+      skipRecord();
+      return null;
+    }
+
+    int tag = StepRecord.NO_TAG;
+    if (token.isReference())
+    {
+      tag = getTagNumber(token);
+      token = nextToken();
+      if (!token.isEqual())
+        throw new IOException("Expected '=' after #" + tag);
+      token = nextToken();
+    }
+
+    String typeName;
+    if (token.isOpenParenthesis()) // complex entity instance
+    {
+      typeName = LIST;
+    }
+    else if (token.isIdentifier())
+    {
+      typeName = identifier(token);
+      token = nextToken();
+      if (!token.isOpenParenthesis())
+        throw new IOException("Expected '(' after " + typeName);
+    }
+    else throw new IOException("Unexpected token " + token +
+      (tag == StepRecord.NO_TAG ? "" : " in #" + tag));
+
+    List<Object> values = readList();
+
+    token = nextToken();
+    if (!token.isColon())
+      throw new IOException("Expected ';' after " +
+        (tag == StepRecord.NO_TAG ? typeName : "#" + tag));
+
+    return new StepRecord(tag, typeName, values);
+  }
+
+  protected List<Object> readList() throws IOException
+  {
+    List<Object> values = new ArrayList<>();
+    StepTokenCursor token = nextToken();
+    while (!token.isCloseParenthesis())
+    {
+      if (token.isEOF())
+        throw new IOException("Unexpected end of file");
+
+      if (!token.isComma())
+      {
+        values.add(readValue(token));
+      }
+      token = nextToken();
+    }
+    return values;
+  }
+
+  protected Object readValue(StepTokenCursor token) throws IOException
+  {
+    if (token.isNumber())
+    {
+      return token.isDecimal() ?
+        Double.valueOf(token.doubleValue()) : Long.valueOf(token.longValue());
+    }
+    else if (token.isText())
+    {
+      return internPool == null ?
+        token.text().toString() : internPool.internText(token.text());
+    }
+    else if (token.isConstant())
+    {
+      return internPool == null ?
+        new ExpressConstant(token.text().toString()) :
+        internPool.internConstant(token.text());
+    }
+    else if (token.isReference())
+    {
+      return new StepRecord.Reference(getTagNumber(token));
+    }
+    else if (token.isDollar() || token.isAsterisc())
+    {
+      return null;
+    }
+    else if (token.isOpenParenthesis())
+    {
+      return readList();
+    }
+    else if (token.isIdentifier())
+    {
+      String typeName = identifier(token);
+      token = nextToken();
+      if (!token.isOpenParenthesis())
+        throw new IOException("Expected '(' after " + typeName);
+
+      return new StepRecord(StepRecord.NO_TAG, typeName, readList());
+    }
+    throw new IOException("Unexpected token " + token);
+  }
+
+  protected String identifier(StepTokenCursor token)
+  {
+    return internPool == null ?
+      token.text().toString() : internPool.internIdentifier(token.text());
+  }
+
+  protected int getTagNumber(StepTokenCursor token) throws IOException
+  {
+    int tag = token.tagNumber();
+    if (tag < 0) throw new IOException("Invalid tag: " + token.text());
+    return tag;
+  }
+
+  protected void skipRecord() throws IOException
+  {
+    StepTokenCursor token = nextToken();
+    while (!token.isColon() && !token.isEOF())
+    {
+      token = nextToken();
+    }
+  }
+
+  protected StepTokenCursor nextToken() throws IOException
+  {
+    StepTokenCursor token = lexer.nextToken();
+    while (token.isComment() || token.isInvalid())
+    {
+      token = lexer.nextToken();
+    }
+    return token;
+  }
+}
@@ -0,0 +1,167 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.step.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import org.bimrocket.step.header.StepFileHeaderData;
+
+/**
+ * Reads the records of a STEP file one at a time without building an
+ * ExpressData.
+ * <p>
+ * Records can be pulled with {@link #next()} or pushed to a
+ * {@link StepRecordHandler} with {@link #read(StepRecordHandler)}. Only the
+ * current record is kept in memory, so files of any size can be counted,
+ * filtered, indexed or forwarded in constant memory.
+ * <p>
+ * Example:
+ * <pre>
+ * try (StepReader reader = new StepReader(file))
+ * {
+ *   reader.read(record -&gt;
+ *   {
+ *     System.out.println(record.getTag() + " " + record.getTypeName());
+ *     return true;
+ *   });
+ * }
+ * </pre>
+ *
+ * @author realor
+ */
+public class StepReader implements Closeable
+{
+  private final Closeable source;
+  private final StepParser parser;
+  private StepFileHeaderData headerData;
+  private boolean inData;
+
+  public StepReader(File file) throws IOException
+  {
+    FileChannel channel =
+      FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    this.source = channel;
+    this.parser = new StepParser(new StepByteLexer(channel));
+  }
+
+  public StepReader(InputStream input)
+  {
+    this.source = input;
+    this.parser = new StepParser(
+      new StepByteLexer(Channels.newChannel(input)));
+  }
+
+  public StepReader(StepLexer lexer)
+  {
+    this.source = null;
+    this.parser = new StepParser(lexer);
+  }
+
+  /**
+   * Returns the header of the file. The header is read the first time this
+   * method or {@link #next()} are called.
+   *
+   * @return the header data of the file
+   * @throws IOException if an I/O error occurs
+   */
+  public StepFileHeaderData getHeaderData() throws IOException
+  {
+    if (headerData == null)
+    {
+      StepLoader headerLoader = new StepLoader();
+      String section = parser.readSection();
+      while (section != null && !section.equals(StepParser.DATA))
+      {
+        headerLoader.loadHeader(parser);
+        section = parser.readSection();
+      }
+      headerData = headerLoader.getHeaderData();
+      inData = section != null;
+    }
+    return headerData;
+  }
+
+  /**
+   * Reads the next record of the DATA sections.
+   *
+   * @return the next record or null if there are no more records.
+   * @throws IOException if an I/O error occurs or the file is malformed.
+   */
+  public StepRecord next() throws IOException
+  {
+    getHeaderData();
+
+    while (inData)
+    {
+      StepRecord record = parser.readRecord();
+      if (record != null) return record;
+
+      String section = parser.readSection();
+      while (section != null && !section.equals(StepParser.DATA))
+      {
+        section = parser.readSection();
+      }
+      inData = section != null;
+    }
+    return null;
+  }
+
+  /**
+   * Reads the remaining records passing them to the given handler.
+   *
+   * @param handler the handler that receives the records
+   * @return the number of records read
+   * @throws IOException if an I/O error occurs or the file is malformed.
+   */
+  public long read(StepRecordHandler handler) throws IOException
+  {
+    long count = 0;
+    StepRecord record = next();
+    while (record != null)
+    {
+      count++;
+      if (!handler.record(record)) break;
+      record = next();
+    }
+    return count;
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    if (source != null) source.close();
+  }
+}
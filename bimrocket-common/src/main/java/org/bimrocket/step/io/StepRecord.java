@@ -0,0 +1,264 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.step.io;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.bimrocket.express.ExpressConstant;
+
+/**
+ * A parsed STEP record like {@code #12= IFCCARTESIANPOINT((0.,0.,0.));}.
+ * <p>
+ * The values of the record are instances of {@code Number}, {@code String},
+ * {@code ExpressConstant}, {@code StepRecord.Reference}, {@code List} (for
+ * aggregates) or {@code StepRecord} (for typed values like IFCLABEL('A')).
+ * Unset values ($ and *) are {@code null}.
+ * <p>
+ * Records are not bound to any schema, so the values are accessed by
+ * position.
+ *
+ * @author realor
+ */
+public class StepRecord
+{
+  public static final int NO_TAG = -1;
+
+  final int tag;
+  final String typeName;
+  final List<Object> values;
+
+  public StepRecord(int tag, String typeName, List<Object> values)
+  {
+    this.tag = tag;
+    this.typeName = typeName;
+    this.values = values;
+  }
+
+  /**
+   * Returns the tag of this record.
+   *
+   * @return the tag (like "#12") or null for typed values.
+   */
+  public String getTag()
+  {
+    return tag == NO_TAG ? null : "#" + tag;
+  }
+
+  /**
+   * Returns the tag number of this record.
+   *
+   * @return the tag number (12 for #12) or NO_TAG for typed values.
+   */
+  public int getTagNumber()
+  {
+    return tag;
+  }
+
+  public String getTypeName()
+  {
+    return typeName;
+  }
+
+  public List<Object> getValues()
+  {
+    return values;
+  }
+
+  public int size()
+  {
+    return values.size();
+  }
+
+  public Object get(int index)
+  {
+    return index < values.size() ? values.get(index) : null;
+  }
+
+  public boolean isNull(int index)
+  {
+    return get(index) == null;
+  }
+
+  public String getString(int index)
+  {
+    Object value = get(index);
+    if (value instanceof StepRecord typedValue) value = typedValue.get(0);
+    return value instanceof String text ? text : null;
+  }
+
+  public double getDouble(int index)
+  {
+    Object value = get(index);
+    if (value instanceof StepRecord typedValue) value = typedValue.get(0);
+    return value instanceof Number number ? number.doubleValue() : 0.0;
+  }
+
+  public long getLong(int index)
+  {
+    Object value = get(index);
+    if (value instanceof StepRecord typedValue) value = typedValue.get(0);
+    return value instanceof Number number ? number.longValue() : 0L;
+  }
+
+  public ExpressConstant getConstant(int index)
+  {
+    Object value = get(index);
+    if (value instanceof StepRecord typedValue) value = typedValue.get(0);
+    return value instanceof ExpressConstant constant ? constant : null;
+  }
+
+  /**
+   * Returns the tag referenced by the value at the given position.
+   *
+   * @param index the position of the value
+   * @return the referenced tag (like "#12") or null if the value is not a
+   * reference.
+   */
+  public String getReference(int index)
+  {
+    return get(index) instanceof Reference reference ?
+      reference.getTag() : null;
+  }
+
+  /**
+   * Returns the tag number referenced by the value at the given position.
+   *
+   * @param index the position of the value
+   * @return the referenced tag number or NO_TAG if the value is not a
+   * reference.
+   */
+  public int getReferenceNumber(int index)
+  {
+    return get(index) instanceof Reference reference ? reference.tag : NO_TAG;
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<Object> getList(int index)
+  {
+    return get(index) instanceof List<?> list ? (List<Object>)list : null;
+  }
+
+  public StepRecord getTypedValue(int index)
+  {
+    return get(index) instanceof StepRecord typedValue ? typedValue : null;
+  }
+
+  /**
+   * Returns all the tags referenced by this record, including the ones
+   * contained in lists and typed values.
+   *
+   * @return the list of referenced tags in order of appearance.
+   */
+  public List<String> getReferences()
+  {
+    List<Reference> references = new ArrayList<>();
+    addReferences(values, references);
+    List<String> tags = new ArrayList<>(references.size());
+    for (Reference reference : references)
+    {
+      tags.add(reference.getTag());
+    }
+    return tags;
+  }
+
+  /**
+   * Returns the tag numbers referenced by this record, including the ones
+   * contained in lists and typed values.
+   *
+   * @return the referenced tag numbers in order of appearance.
+   */
+  public int[] getReferenceNumbers()
+  {
+    List<Reference> references = new ArrayList<>();
+    addReferences(values, references);
+    int[] numbers = new int[references.size()];
+    for (int i = 0; i < numbers.length; i++)
+    {
+      numbers[i] = references.get(i).tag;
+    }
+    return numbers;
+  }
+
+  @Override
+  public String toString()
+  {
+    return (tag == NO_TAG ? "" : "#" + tag + "= ") + typeName + values;
+  }
+
+  private static void addReferences(List<?> values,
+    List<Reference> references)
+  {
+    for (Object value : values)
+    {
+      if (value instanceof Reference reference)
+      {
+        references.add(reference);
+      }
+      else if (value instanceof List<?> list)
+      {
+        addReferences(list, references);
+      }
+      else if (value instanceof StepRecord typedValue)
+      {
+        addReferences(typedValue.values, references);
+      }
+    }
+  }
+
+  /**
+   * A reference to another record like {@code #12}.
+   */
+  public static class Reference
+  {
+    final int tag;
+
+    public Reference(int tag)
+    {
+      this.tag = tag;
+    }
+
+    public String getTag()
+    {
+      return "#" + tag;
+    }
+
+    public int getTagNumber()
+    {
+      return tag;
+    }
+
+    @Override
+    public String toString()
+    {
+      return getTag();
+    }
+  }
+}
@@ -0,0 +1,317 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.step.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.bimrocket.express.ExpressConstant;
+import org.bimrocket.express.data.ExpressCursor;
+import org.bimrocket.express.data.ExpressData;
+import org.bimrocket.step.header.StepFileHeaderData;
+import static org.bimrocket.step.io.StepSnapshotWriter.*;
+
+/**
+ * Loads an ExpressData from a snapshot written by a StepSnapshotWriter.
+ * <p>
+ * The records are decoded without any text parsing and passed to a
+ * StepLoader, like StepIndex does with the records it reads, so the reader
+ * can build GenericData or any store specific ExpressData and forward
+ * references are resolved as in a STEP load.
+ *
+ * @author realor
+ */
+public class StepSnapshotReader
+{
+  protected final StepLoader loader;
+  protected InputStream input;
+  protected byte[] buffer = new byte[64 * 1024];
+  protected int position;
+  protected int limit;
+  protected final List<String> typeNames = new ArrayList<>();
+  protected final List<ExpressConstant> constants = new ArrayList<>();
+  protected int currentTag;
+
+  public StepSnapshotReader()
+  {
+    this(new StepLoader());
+  }
+
+  public StepSnapshotReader(ExpressData data)
+  {
+    this(new StepLoader(data));
+  }
+
+  /**
+   * Creates a reader that passes the records read to the given loader.
+   *
+   * @param loader the loader that receives the header and the records
+   */
+  public StepSnapshotReader(StepLoader loader)
+  {
+    this.loader = loader;
+  }
+
+  public StepLoader getLoader()
+  {
+    return loader;
+  }
+
+  public ExpressData getData()
+  {
+    return loader.getData();
+  }
+
+  public StepFileHeaderData getHeaderData()
+  {
+    return loader.getHeaderData();
+  }
+
+  public void load(File file) throws IOException
+  {
+    load(new FileInputStream(file));
+  }
+
+  /**
+   * Loads a snapshot, that may be compressed with gzip or zip.
+   *
+   * @param input the stream to read. It is closed after loading.
+   * @throws IOException if an I/O error occurs or the data is not a valid
+   * snapshot
+   */
+  public void load(InputStream input) throws IOException
+  {
+    typeNames.clear();
+    constants.clear();
+
+    try (InputStream stream = StepCompression.decompress(input))
+    {
+      this.input = stream;
+      position = 0;
+      limit = 0;
+      readSnapshot();
+    }
+    finally
+    {
+      this.input = null;
+    }
+  }
+
+  protected void readSnapshot() throws IOException
+  {
+    if (readInt() != MAGIC)
+      throw new IOException("Not a snapshot file");
+
+    int version = readByte();
+    if (version != VERSION)
+      throw new IOException("Unsupported snapshot version: " + version);
+
+    String schemaName = readString();
+
+    currentTag = 0;
+    StepFileHeaderData headerData = loader.getHeaderData();
+    ExpressCursor headerCursor = headerData.getRoot();
+    int headerCount = readVarInt();
+    for (int index = 0; index < headerCount; index++)
+    {
+      headerCursor.create(index, readTypeName());
+      loader.loadValues(headerCursor, readValues());
+      headerCursor.exit();
+    }
+
+    List<String> schemaNames = headerData.getFileSchema().getSchemas();
+    if (!schemaNames.contains(schemaName))
+    {
+      schemaNames.add(0, schemaName);
+    }
+
+    loader.startData();
+    int tag = readVarInt();
+    while (tag != 0)
+    {
+      currentTag = tag;
+      String typeName = readTypeName();
+      loader.loadRecord(new StepRecord(tag, typeName, readValues()));
+      tag = readVarInt();
+    }
+    loader.endData();
+  }
+
+  protected List<Object> readValues() throws IOException
+  {
+    int size = readVarInt();
+    List<Object> values = new ArrayList<>(size);
+    for (int i = 0; i < size; i++)
+    {
+      values.add(readValue());
+    }
+    return values;
+  }
+
+  protected Object readValue() throws IOException
+  {
+    int kind = readByte();
+    switch (kind)
+    {
+      case NULL:
+        return null;
+      case LONG:
+        return readVarLong();
+      case DOUBLE:
+        return Double.longBitsToDouble(
+          (long)readInt() << 32 | (readInt() & 0xffffffffL));
+      case STRING:
+        return readString();
+      case CONSTANT:
+        return readConstant();
+      case REFERENCE:
+        return new StepRecord.Reference((int)(currentTag + readVarLong()));
+      case LIST:
+        return readValues();
+      case TYPED:
+        String typeName = readTypeName();
+        return new StepRecord(StepRecord.NO_TAG, typeName,
+          Collections.singletonList(readValue()));
+      default:
+        throw new IOException("Invalid value kind: " + kind);
+    }
+  }
+
+  protected String readTypeName() throws IOException
+  {
+    int id = readVarInt();
+    if (id == typeNames.size())
+    {
+      typeNames.add(readString());
+    }
+    else if (id > typeNames.size())
+      throw new IOException("Invalid type id: " + id);
+
+    return typeNames.get(id);
+  }
+
+  protected ExpressConstant readConstant() throws IOException
+  {
+    int id = readVarInt();
+    if (id == constants.size())
+    {
+      constants.add(new ExpressConstant(readString()));
+    }
+    else if (id > constants.size())
+      throw new IOException("Invalid constant id: " + id);
+
+    return constants.get(id);
+  }
+
+  protected String readString() throws IOException
+  {
+    int length = readVarInt();
+    if (limit - position < length)
+    {
+      if (length > buffer.length)
+      {
+        buffer = Arrays.copyOf(buffer, Math.max(length, 2 * buffer.length));
+      }
+      fill(length);
+    }
+    String text = new String(buffer, position, length, StandardCharsets.UTF_8);
+    position += length;
+    return text;
+  }
+
+  protected int readInt() throws IOException
+  {
+    return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+  }
+
+  protected int readByte() throws IOException
+  {
+    if (position == limit) fill(1);
+    return buffer[position++] & 0xff;
+  }
+
+  /**
+   * Reads more bytes into the buffer.
+   *
+   * @param required the number of bytes that must be available
+   * @throws IOException if the end of the stream is reached before
+   */
+  protected void fill(int required) throws IOException
+  {
+    int remaining = limit - position;
+    System.arraycopy(buffer, position, buffer, 0, remaining);
+    position = 0;
+    limit = remaining;
+    while (limit < required)
+    {
+      int count = input.read(buffer, limit, buffer.length - limit);
+      if (count == -1) throw new EOFException();
+      limit += count;
+    }
+  }
+
+  protected int readVarInt() throws IOException
+  {
+    int value = 0;
+    int shift = 0;
+    int b;
+    do
+    {
+      if (shift > 28) throw new IOException("Invalid varint");
+      b = readByte();
+      value |= (b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return value;
+  }
+
+  protected long readVarLong() throws IOException
+  {
+    long zigzag = 0;
+    int shift = 0;
+    int b;
+    do
+    {
+      if (shift > 63) throw new IOException("Invalid varlong");
+      b = readByte();
+      zigzag |= (long)(b & 0x7f) << shift;
+      shift += 7;
+    } while ((b & 0x80) != 0);
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+}
@@ -0,0 +1,372 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.step.io;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import org.bimrocket.express.ExpressConstant;
+import org.bimrocket.express.ExpressDefinedType;
+import org.bimrocket.express.ExpressEntity;
+import org.bimrocket.express.ExpressType;
+import org.bimrocket.express.data.ExpressCursor;
+import static org.bimrocket.express.data.ExpressCursor.CONTAINER;
+import org.bimrocket.express.data.ExpressData;
+
+/**
+ * Writes an ExpressData in a compact binary format that can be loaded
+ * with a StepSnapshotReader much faster than parsing the STEP text.
+ * <p>
+ * The snapshot keeps the same records than a STEP file: the schema name,
+ * the header records and the tagged entities of the data section.
+ * Numbers are stored in binary form, type names and enumeration constants
+ * are stored once and then referenced by id, and references are stored as
+ * tag deltas.
+ * <pre>
+ * snapshot := MAGIC VERSION schemaName headerCount record* dataRecord* 0
+ * dataRecord := tag record
+ * record := typeId valueCount value*
+ * value := NULL | LONG zigzag | DOUBLE float64 | STRING length utf8 |
+ *          CONSTANT constantId | REFERENCE zigzag(tag - recordTag) |
+ *          LIST valueCount value* | TYPED typeId value
+ * </pre>
+ * Counts, tags and ids are unsigned variable length integers. A type or
+ * constant id equal to the number of ids already defined is followed by
+ * its name.
+ *
+ * @author realor
+ */
+public class StepSnapshotWriter extends StepExporter
+{
+  static final int MAGIC = 0x42525353; // BRSS
+  static final int VERSION = 1;
+
+  static final int NULL = 0;
+  static final int LONG = 1;
+  static final int DOUBLE = 2;
+  static final int STRING = 3;
+  static final int CONSTANT = 4;
+  static final int REFERENCE = 5;
+  static final int LIST = 6;
+  static final int TYPED = 7;
+
+  protected OutputStream output;
+  protected byte[] buffer = new byte[64 * 1024];
+  protected int position;
+  protected final Map<String, Integer> typeIds = new HashMap<>();
+  protected final Map<String, Integer> constantIds = new HashMap<>();
+  protected int currentTag;
+
+  public StepSnapshotWriter(ExpressData data)
+  {
+    super(data);
+  }
+
+  @Override
+  public void export(File file) throws IOException
+  {
+    String filename = file.getName();
+    export(new FileOutputStream(file),
+      StepCompression.fromFileName(filename),
+      StepCompression.getEntryName(filename));
+  }
+
+  @Override
+  public void export(OutputStream output, StepCompression compression,
+    String entryName) throws IOException
+  {
+    typeIds.clear();
+    constantIds.clear();
+
+    try (OutputStream stream =
+         compression.getOutputStream(output, entryName))
+    {
+      this.output = stream;
+      position = 0;
+      exportData();
+      flush();
+    }
+    catch (UncheckedIOException ex)
+    {
+      throw ex.getCause();
+    }
+    finally
+    {
+      this.output = null;
+    }
+  }
+
+  @Override
+  public void export(Writer writer)
+  {
+    throw new UnsupportedOperationException(
+      "Snapshots can only be written to a binary stream");
+  }
+
+  @Override
+  protected void printHeader()
+  {
+    try
+    {
+      writeInt(MAGIC);
+      writeByte(VERSION);
+      writeString(schema.getName());
+
+      ExpressCursor cursor = headerData.getRoot();
+      writeVarInt(cursor.size());
+      currentTag = 0;
+      for (int i = 0; i < cursor.size(); i++)
+      {
+        cursor.enter(i);
+        writeRecord(cursor);
+        cursor.exit();
+      }
+    }
+    catch (IOException ex)
+    {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /**
+   * Writes the entities sequentially. The encoding is cheap, so it is not
+   * worth formatting the entities in parallel.
+   */
+  @Override
+  protected void printData()
+  {
+    for (ExpressCursor entityCursor : entityList)
+    {
+      printEntity(entityCursor, getTag(entityCursor.getId()));
+    }
+  }
+
+  @Override
+  protected void printEntity(ExpressCursor cursor, int tag)
+  {
+    try
+    {
+      writeVarInt(tag);
+      currentTag = tag;
+      writeRecord(cursor);
+    }
+    catch (IOException ex)
+    {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  @Override
+  protected void printFooter()
+  {
+    try
+    {
+      writeVarInt(0);
+    }
+    catch (IOException ex)
+    {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  protected void writeRecord(ExpressCursor cursor) throws IOException
+  {
+    ExpressType type = cursor.getType();
+    if (!(type instanceof ExpressEntity))
+      throw new RuntimeException("Not an entity type");
+
+    writeType(type);
+    writeValues(cursor);
+  }
+
+  protected void writeValues(ExpressCursor cursor) throws IOException
+  {
+    int size = cursor.size();
+    writeVarInt(size);
+    for (int index = 0; index < size; index++)
+    {
+      writeValue(cursor, index);
+    }
+  }
+
+  protected void writeValue(ExpressCursor cursor, int index)
+    throws IOException
+  {
+    Object value = cursor.get(index);
+
+    if (CONTAINER.equals(value))
+    {
+      cursor.enter(index);
+      ExpressType type = cursor.getType();
+
+      if (type instanceof ExpressEntity)
+      {
+        writeByte(REFERENCE);
+        writeVarLong(getTag(cursor.getId()) - currentTag);
+      }
+      else if (type instanceof ExpressDefinedType)
+      {
+        writeByte(TYPED);
+        writeType(type);
+        writeValue(cursor, 0);
+      }
+      else // Collection
+      {
+        writeByte(LIST);
+        writeValues(cursor);
+      }
+      cursor.exit();
+    }
+    else if (value instanceof String text)
+    {
+      writeByte(STRING);
+      writeString(text);
+    }
+    else if (value instanceof Double || value instanceof Float)
+    {
+      writeByte(DOUBLE);
+      long bits = Double.doubleToRawLongBits(((Number)value).doubleValue());
+      writeInt((int)(bits >>> 32));
+      writeInt((int)bits);
+    }
+    else if (value instanceof Number number)
+    {
+      writeByte(LONG);
+      writeVarLong(number.longValue());
+    }
+    else if (value instanceof ExpressConstant constant)
+    {
+      writeByte(CONSTANT);
+      writeId(constantIds, constant.toString());
+    }
+    else if (value instanceof Boolean booleanValue)
+    {
+      writeByte(CONSTANT);
+      writeId(constantIds, booleanValue ? "T" : "F");
+    }
+    else
+    {
+      writeByte(NULL);
+    }
+  }
+
+  protected void writeType(ExpressType type) throws IOException
+  {
+    writeId(typeIds, type.getTypeName().toUpperCase());
+  }
+
+  protected void writeId(Map<String, Integer> ids, String name)
+    throws IOException
+  {
+    Integer id = ids.get(name);
+    if (id == null)
+    {
+      id = ids.size();
+      ids.put(name, id);
+      writeVarInt(id);
+      writeString(name);
+    }
+    else
+    {
+      writeVarInt(id);
+    }
+  }
+
+  protected void writeString(String text) throws IOException
+  {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    writeVarInt(bytes.length);
+    if (buffer.length - position < bytes.length) flush();
+    if (bytes.length > buffer.length)
+    {
+      output.write(bytes);
+    }
+    else
+    {
+      System.arraycopy(bytes, 0, buffer, position, bytes.length);
+      position += bytes.length;
+    }
+  }
+
+  protected void writeInt(int value) throws IOException
+  {
+    writeByte(value >>> 24);
+    writeByte(value >>> 16);
+    writeByte(value >>> 8);
+    writeByte(value);
+  }
+
+  protected void writeByte(int value) throws IOException
+  {
+    if (position == buffer.length) flush();
+    buffer[position++] = (byte)value;
+  }
+
+  protected void flush() throws IOException
+  {
+    output.write(buffer, 0, position);
+    position = 0;
+  }
+
+  protected void writeVarInt(int value) throws IOException
+  {
+    while ((value & ~0x7f) != 0)
+    {
+      writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    writeByte(value);
+  }
+
+  /**
+   * Writes a signed long in zigzag encoding, so small negative numbers
+   * also take few bytes.
+   *
+   * @param value the value to write
+   * @throws IOException if an I/O error occurs
+   */
+  protected void writeVarLong(long value) throws IOException
+  {
+    long zigzag = (value << 1) ^ (value >> 63);
+    while ((zigzag & ~0x7fL) != 0)
+    {
+      writeByte((int)(zigzag & 0x7f) | 0x80);
+      zigzag >>>= 7;
+    }
+    writeByte((int)zigzag);
+  }
+}
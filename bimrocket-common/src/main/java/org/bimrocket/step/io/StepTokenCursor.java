@@ -0,0 +1,312 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.step.io;
+
+import org.bimrocket.express.ExpressConstant;
+import static org.bimrocket.step.io.StepToken.*;
+
+/**
+ * A mutable token returned by {@link StepLexer#nextToken()}.
+ * <p>
+ * The lexer reuses the same instance for all the tokens it reads, so no
+ * objects are allocated per token. The values of the token are only valid
+ * until the next call to nextToken(). Use {@link #toToken()} to get an
+ * immutable copy.
+ *
+ * @author realor
+ */
+public class StepTokenCursor
+{
+  private static final String[] TYPES = { KEYWORD, IDENTIFIER, TEXT, NUMBER,
+    CONSTANT, REFERENCE, COMMENT, INVALID, EOF, OPEN_PARENTHESIS,
+    CLOSE_PARENTHESIS, COMMA, COLON, DOLLAR, ASTERISC, EQUAL };
+
+  String type = EOF;
+  String keyword;
+  boolean decimal;
+  long longValue;
+  double doubleValue;
+  int tagNumber;
+  final StringBuilder text = new StringBuilder();
+
+  public String getType()
+  {
+    return type;
+  }
+
+  /**
+   * Returns the value of a NUMBER token as a long.
+   *
+   * @return the value of the number, truncated if it is decimal.
+   */
+  public long longValue()
+  {
+    return decimal ? (long)doubleValue : longValue;
+  }
+
+  /**
+   * Returns the value of a NUMBER token as a double.
+   *
+   * @return the value of the number
+   */
+  public double doubleValue()
+  {
+    return decimal ? doubleValue : longValue;
+  }
+
+  /**
+   * Tells if this NUMBER token has decimal part or exponent.
+   *
+   * @return true if the number is decimal, false if it is an integer
+   */
+  public boolean isDecimal()
+  {
+    return decimal;
+  }
+
+  /**
+   * Returns the tag number of a REFERENCE token.
+   *
+   * @return the tag number (12 for #12) or -1 if it is out of range.
+   */
+  public int tagNumber()
+  {
+    return tagNumber;
+  }
+
+  /**
+   * Returns the text of this token: the decoded string for TEXT tokens,
+   * the name for IDENTIFIER, KEYWORD and CONSTANT tokens (without dots),
+   * the tag for REFERENCE tokens and the raw characters for NUMBER,
+   * COMMENT and INVALID tokens.
+   *
+   * @return the text of this token
+   */
+  public CharSequence text()
+  {
+    return text;
+  }
+
+  /**
+   * Compares the text of this token with the given string without
+   * allocating a new String.
+   *
+   * @param value the string to compare with
+   * @return true if the text of this token is equal to value
+   */
+  public boolean textEquals(String value)
+  {
+    return value.contentEquals(text);
+  }
+
+  public boolean isIdentifier()
+  {
+    return type == IDENTIFIER;
+  }
+
+  public boolean isNumber()
+  {
+    return type == NUMBER;
+  }
+
+  public boolean isText()
+  {
+    return type == TEXT;
+  }
+
+  public boolean isKeyword()
+  {
+    return type == KEYWORD;
+  }
+
+  public boolean isKeyword(String keyword)
+  {
+    return type == KEYWORD && this.keyword.equals(keyword);
+  }
+
+  public boolean isOpenParenthesis()
+  {
+    return type == OPEN_PARENTHESIS;
+  }
+
+  public boolean isCloseParenthesis()
+  {
+    return type == CLOSE_PARENTHESIS;
+  }
+
+  public boolean isReference()
+  {
+    return type == REFERENCE;
+  }
+
+  public boolean isComma()
+  {
+    return type == COMMA;
+  }
+
+  public boolean isColon()
+  {
+    return type == COLON;
+  }
+
+  public boolean isConstant()
+  {
+    return type == CONSTANT;
+  }
+
+  public boolean isDollar()
+  {
+    return type == DOLLAR;
+  }
+
+  public boolean isAsterisc()
+  {
+    return type == ASTERISC;
+  }
+
+  public boolean isEqual()
+  {
+    return type == EQUAL;
+  }
+
+  public boolean isComment()
+  {
+    return type == COMMENT;
+  }
+
+  public boolean isInvalid()
+  {
+    return type == INVALID;
+  }
+
+  public boolean isEOF()
+  {
+    return type == EOF;
+  }
+
+  /**
+   * Returns an immutable StepToken with the contents of this cursor.
+   *
+   * @return a StepToken equivalent to this cursor
+   */
+  public StepToken toToken()
+  {
+    return switch (type)
+    {
+      case KEYWORD -> new StepToken(KEYWORD, keyword);
+      case NUMBER -> decimal ?
+        new StepToken(NUMBER, doubleValue) : new StepToken(NUMBER, longValue);
+      case CONSTANT ->
+        new StepToken(CONSTANT, new ExpressConstant(text.toString()));
+      case IDENTIFIER, TEXT, REFERENCE, COMMENT, INVALID ->
+        new StepToken(type, text.toString());
+      case OPEN_PARENTHESIS -> OPEN_PARENTHESIS_TOKEN;
+      case CLOSE_PARENTHESIS -> CLOSE_PARENTHESIS_TOKEN;
+      case COMMA -> COMMA_TOKEN;
+      case COLON -> COLON_TOKEN;
+      case DOLLAR -> DOLLAR_TOKEN;
+      case ASTERISC -> ASTERISC_TOKEN;
+      case EQUAL -> EQUAL_TOKEN;
+      default -> EOF_TOKEN;
+    };
+  }
+
+  @Override
+  public String toString()
+  {
+    return toToken().toString();
+  }
+
+  void setType(String type)
+  {
+    this.type = type;
+    text.setLength(0);
+  }
+
+  void setNumber(long value)
+  {
+    type = NUMBER;
+    decimal = false;
+    longValue = value;
+  }
+
+  void setNumber(double value)
+  {
+    type = NUMBER;
+    decimal = true;
+    doubleValue = value;
+  }
+
+  void setKeyword(String keyword)
+  {
+    type = KEYWORD;
+    this.keyword = keyword;
+  }
+
+  void set(StepToken token)
+  {
+    setType(typeOf(token.getType()));
+    Object value = token.getValue();
+    if (value instanceof Double number)
+    {
+      setNumber(number);
+    }
+    else if (value instanceof Number number)
+    {
+      setNumber(number.longValue());
+    }
+    else if (value instanceof ExpressConstant constant)
+    {
+      text.append(constant.toString());
+    }
+    else if (value != null)
+    {
+      text.append(value);
+      if (type == KEYWORD)
+      {
+        keyword = value.toString();
+      }
+      else if (type == REFERENCE)
+      {
+        tagNumber = StepLexer.parseTagNumber(text);
+      }
+    }
+  }
+
+  private static String typeOf(String type)
+  {
+    for (String constant : TYPES)
+    {
+      if (constant.equals(type)) return constant;
+    }
+    return INVALID;
+  }
+}
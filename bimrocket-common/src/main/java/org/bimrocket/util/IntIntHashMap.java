@@ -0,0 +1,226 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.util;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map of int keys to int values.
+ * Keys and values are stored in primitive arrays, so no objects are
+ * allocated per entry.
+ *
+ * @author realor
+ */
+public class IntIntHashMap
+{
+  static final int FREE = Integer.MIN_VALUE;
+
+  private int[] keys;
+  private int[] values;
+  private int size;
+  private int mask;
+  private int threshold;
+
+  public IntIntHashMap()
+  {
+    this(16);
+  }
+
+  public IntIntHashMap(int capacity)
+  {
+    allocate(Math.max(16, Integer.highestOneBit(Math.max(1, capacity)) << 1));
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public boolean isEmpty()
+  {
+    return size == 0;
+  }
+
+  /**
+   * Returns the value associated to the given key.
+   *
+   * @param key the key, any int value except Integer.MIN_VALUE
+   * @param missingValue the value to return if the key is not found
+   * @return the value of the key or missingValue if not found
+   */
+  public int get(int key, int missingValue)
+  {
+    int slot = hash(key) & mask;
+    int current = keys[slot];
+    while (current != FREE)
+    {
+      if (current == key) return values[slot];
+      slot = (slot + 1) & mask;
+      current = keys[slot];
+    }
+    return missingValue;
+  }
+
+  public boolean containsKey(int key)
+  {
+    int slot = hash(key) & mask;
+    int current = keys[slot];
+    while (current != FREE)
+    {
+      if (current == key) return true;
+      slot = (slot + 1) & mask;
+      current = keys[slot];
+    }
+    return false;
+  }
+
+  /**
+   * Associates a value to the given key.
+   *
+   * @param key the key, any int value except Integer.MIN_VALUE
+   * @param value the value to put
+   */
+  public void put(int key, int value)
+  {
+    if (key == FREE)
+      throw new IllegalArgumentException("Invalid key: " + key);
+
+    int slot = hash(key) & mask;
+    int current = keys[slot];
+    while (current != FREE)
+    {
+      if (current == key)
+      {
+        values[slot] = value;
+        return;
+      }
+      slot = (slot + 1) & mask;
+      current = keys[slot];
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size >= threshold) rehash();
+  }
+
+  /**
+   * Removes the given key from this map.
+   *
+   * @param key the key to remove
+   * @param missingValue the value to return if the key is not found
+   * @return the value of the removed key or missingValue if not found
+   */
+  public int remove(int key, int missingValue)
+  {
+    int slot = hash(key) & mask;
+    int current = keys[slot];
+    while (current != FREE)
+    {
+      if (current == key)
+      {
+        int value = values[slot];
+        size--;
+        shiftKeys(slot);
+        return value;
+      }
+      slot = (slot + 1) & mask;
+      current = keys[slot];
+    }
+    return missingValue;
+  }
+
+  public void clear()
+  {
+    Arrays.fill(keys, FREE);
+    size = 0;
+  }
+
+  private void shiftKeys(int slot)
+  {
+    // backward shift deletion, keeps the probe sequences without tombstones
+    while (true)
+    {
+      int last = slot;
+      slot = (slot + 1) & mask;
+      int current;
+      while (true)
+      {
+        current = keys[slot];
+        if (current == FREE)
+        {
+          keys[last] = FREE;
+          return;
+        }
+        int ideal = hash(current) & mask;
+        if (last <= slot ? last >= ideal || ideal > slot :
+            last >= ideal && ideal > slot) break;
+        slot = (slot + 1) & mask;
+      }
+      keys[last] = current;
+      values[last] = values[slot];
+    }
+  }
+
+  private void rehash()
+  {
+    int[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(keys.length << 1);
+    for (int i = 0; i < oldKeys.length; i++)
+    {
+      int key = oldKeys[i];
+      if (key != FREE)
+      {
+        int slot = hash(key) & mask;
+        while (keys[slot] != FREE)
+        {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private void allocate(int capacity)
+  {
+    keys = new int[capacity];
+    values = new int[capacity];
+    Arrays.fill(keys, FREE);
+    mask = capacity - 1;
+    threshold = (int)(capacity * 0.75f);
+  }
+
+  private static int hash(int key)
+  {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
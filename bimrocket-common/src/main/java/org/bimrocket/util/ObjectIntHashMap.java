@@ -0,0 +1,171 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.util;
+
+import java.util.Arrays;
+
+/**
+ * An open addressing hash map of object keys to int values.
+ * Values are stored in a primitive array and no entry objects are
+ * allocated.
+ *
+ * @author realor
+ * @param <K> the type of the keys
+ */
+public class ObjectIntHashMap<K>
+{
+  private Object[] keys;
+  private int[] values;
+  private int size;
+  private int mask;
+  private int threshold;
+
+  public ObjectIntHashMap()
+  {
+    this(16);
+  }
+
+  public ObjectIntHashMap(int capacity)
+  {
+    allocate(Math.max(16, Integer.highestOneBit(Math.max(1, capacity)) << 1));
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public boolean isEmpty()
+  {
+    return size == 0;
+  }
+
+  /**
+   * Returns the value associated to the given key.
+   *
+   * @param key the key, not null
+   * @param missingValue the value to return if the key is not found
+   * @return the value of the key or missingValue if not found
+   */
+  public int get(K key, int missingValue)
+  {
+    int slot = hash(key) & mask;
+    Object current = keys[slot];
+    while (current != null)
+    {
+      if (current.equals(key)) return values[slot];
+      slot = (slot + 1) & mask;
+      current = keys[slot];
+    }
+    return missingValue;
+  }
+
+  public boolean containsKey(K key)
+  {
+    int slot = hash(key) & mask;
+    Object current = keys[slot];
+    while (current != null)
+    {
+      if (current.equals(key)) return true;
+      slot = (slot + 1) & mask;
+      current = keys[slot];
+    }
+    return false;
+  }
+
+  /**
+   * Associates a value to the given key.
+   *
+   * @param key the key, not null
+   * @param value the value to put
+   */
+  public void put(K key, int value)
+  {
+    if (key == null) throw new IllegalArgumentException("Null key");
+
+    int slot = hash(key) & mask;
+    Object current = keys[slot];
+    while (current != null)
+    {
+      if (current.equals(key))
+      {
+        values[slot] = value;
+        return;
+      }
+      slot = (slot + 1) & mask;
+      current = keys[slot];
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size >= threshold) rehash();
+  }
+
+  public void clear()
+  {
+    Arrays.fill(keys, null);
+    size = 0;
+  }
+
+  private void rehash()
+  {
+    Object[] oldKeys = keys;
+    int[] oldValues = values;
+    allocate(keys.length << 1);
+    for (int i = 0; i < oldKeys.length; i++)
+    {
+      Object key = oldKeys[i];
+      if (key != null)
+      {
+        int slot = hash(key) & mask;
+        while (keys[slot] != null)
+        {
+          slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+
+  private void allocate(int capacity)
+  {
+    keys = new Object[capacity];
+    values = new int[capacity];
+    mask = capacity - 1;
+    threshold = (int)(capacity * 0.75f);
+  }
+
+  private static int hash(Object key)
+  {
+    int h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
@@ -31,11 +31,21 @@
 package org.bimrocket.express.data;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 import static org.bimrocket.express.ExpressCollection.LIST;
 import static org.bimrocket.express.ExpressConstant.C;
 import org.bimrocket.express.ExpressSchema;
-import org.bimrocket.express.io.ExpressLoader;
+import org.bimrocket.express.ExpressDefinedType;
+import org.bimrocket.express.ExpressEntity;
+import org.bimrocket.express.io.ExpressSchemaRegistry;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
 
 /**
@@ -46,8 +56,7 @@ public class GenericDataTest
 {
   public GenericData createGenericData() throws IOException
   {
-    ExpressLoader schemaLoader = new ExpressLoader();
-    ExpressSchema schema = schemaLoader.load("schema:IFC4");
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
 
     GenericData data = new GenericData(schema);
     ExpressCursor cursor = data.getRoot();
@@ -99,6 +108,138 @@ public class GenericDataTest
     assertDoesNotThrow(() -> createGenericData());
   }
 
+  @Test
+  public void sharedSchema() throws IOException
+  {
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
+    assertSame(schema, ExpressSchemaRegistry.getSchema("ifc4"));
+    assertTrue(schema.isFrozen());
+    assertThrows(IllegalStateException.class,
+      () -> schema.addNamedType(new ExpressDefinedType("IfcTest")));
+    assertThrows(IOException.class,
+      () -> ExpressSchemaRegistry.getSchema("IFC_UNKNOWN"));
+  }
+
+  @Test
+  public void visitEntities() throws IOException
+  {
+    GenericData data = createGenericData();
+    data.getRoot()
+      .create("IfcCartesianPoint")
+        .create("Coordinates", LIST)
+          .add(1.5)
+          .add(-2.0)
+          .add(3.25)
+        .exit()
+      .exit();
+
+    int[] walls = new int[1];
+    double[] sum = new double[1];
+    String[] ownerHistoryId = new String[1];
+    int count = data.visitEntities(cursor ->
+    {
+      String typeName = cursor.getType().getTypeName();
+      if (typeName.equals("IfcWall"))
+      {
+        walls[0]++;
+        String id = cursor.getReference("OwnerHistory");
+        if (id != null) ownerHistoryId[0] = id;
+        assertNull(cursor.getReference("Name"));
+      }
+      else if (typeName.equals("IfcTriangulatedFaceSet"))
+      {
+        cursor.enter("CoordIndex").enter(0);
+        assertEquals(43L, cursor.getLong(2));
+        cursor.exit().exit();
+      }
+      else if (typeName.equals("IfcCartesianPoint"))
+      {
+        cursor.enter("Coordinates");
+        for (int i = 0; i < cursor.size(); i++)
+        {
+          sum[0] += cursor.getDouble(i);
+        }
+        cursor.exit();
+      }
+      return true;
+    });
+
+    assertEquals(data.getElements().stream()
+      .filter(element -> data.getElementType(element)
+        instanceof ExpressEntity).count(), count);
+    assertEquals(2, walls[0]);
+    assertEquals(2.75, sum[0]);
+    assertNotNull(ownerHistoryId[0]);
+
+    ExpressCursor wall = data.getRoot().enter(3);
+    assertEquals(ownerHistoryId[0], wall.enter("OwnerHistory").getId());
+    assertEquals(1, data.visitEntities(cursor -> false));
+  }
+
+  @Test
+  public void entitiesOf() throws IOException
+  {
+    GenericData data = createGenericData();
+    ExpressSchema schema = data.getSchema();
+
+    ExpressEntity element = (ExpressEntity)schema.getNamedType("IfcElement");
+    ExpressEntity wall = (ExpressEntity)schema.getNamedType("IfcWall");
+    assertTrue(wall.isSubtypeOf(element));
+    List<ExpressEntity> entities = schema.getEntities();
+    assertSame(element, entities.get(element.getHierarchyIndex()));
+    assertTrue(element.getHierarchyIndex() < wall.getHierarchyIndex() &&
+      wall.getHierarchyEnd() <= element.getHierarchyEnd());
+
+    assertEquals(2, data.entitiesOf("IfcWall", false).size());
+    assertEquals(0, data.entitiesOf("IfcElement", false).size());
+
+    ExpressCursor cursor = data.entitiesOf("IfcElement", true);
+    assertEquals(3, cursor.size());
+    assertEquals("IfcWall", cursor.enter(0).getType().getTypeName());
+    assertEquals("IfcWindow", cursor.exit().enter(1).getType().getTypeName());
+    assertEquals("Paret", cursor.exit().enter(2).get("Name"));
+
+    data.getRoot().create("IfcWallStandardCase").exit();
+    assertEquals(3, data.entitiesOf("IfcWall", true).size());
+    assertEquals(2, data.entitiesOf("IfcWall", false).size());
+    assertThrows(RuntimeException.class,
+      () -> data.entitiesOf("IfcLabel", true));
+  }
+
+  @Test
+  public void packedCollections() throws IOException
+  {
+    GenericData data = createGenericData();
+    ExpressCursor cursor = data.entitiesOf("IfcTriangulatedFaceSet", false)
+      .enter(0).enter("CoordIndex").enter(0);
+    LongList indices = (LongList)getContainer(cursor);
+    assertTrue(indices.isPacked());
+    assertEquals(List.of(1L, 2L, 43L), indices);
+    assertEquals(43L, indices.getLong(2));
+
+    ExpressCursor point = data.getRoot()
+      .create("IfcCartesianPoint")
+        .create("Coordinates", LIST)
+          .add(1.5)
+          .set(2, 3.25);
+    DoubleList coordinates = (DoubleList)getContainer(point);
+    assertEquals(3, point.size());
+    assertNull(point.get(1));
+    assertEquals(3.25, point.getDouble(2));
+    assertTrue(coordinates.isPacked());
+
+    point.set(1, 2L); // integer value in a REAL list, keeps its class
+    assertTrue(!coordinates.isPacked());
+    assertEquals(Arrays.asList(1.5, 2L, 3.25), coordinates);
+    coordinates.remove(0);
+    assertEquals(List.of(2L, 3.25), coordinates);
+  }
+
+  Object getContainer(ExpressCursor cursor)
+  {
+    return ((AbstractData<?, ?>.Cursor)cursor).container;
+  }
+
   public static void main(String[] args)
   {
     try
@@ -33,17 +33,41 @@ package org.bimrocket.step.io;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
 import org.bimrocket.express.ExpressSchema;
+import org.bimrocket.express.data.CompactData;
+import org.bimrocket.express.data.ExpressCursor;
+import org.bimrocket.express.data.ExpressData;
 import org.bimrocket.express.data.GenericData;
-import org.bimrocket.express.io.ExpressLoader;
+import org.bimrocket.express.data.InverseIndex;
+import org.bimrocket.express.data.MappedData;
+import org.bimrocket.express.data.TypedData;
+import org.bimrocket.express.data.TypedEntityFactory;
+import org.bimrocket.express.io.ExpressSchemaRegistry;
+import org.bimrocket.generators.TypedJavaClassesGenerator;
+import org.bimrocket.step.io.StepInternPool.Kind;
 import org.bimrocket.util.Chronometer;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 /**
  *
@@ -53,8 +77,13 @@ public class StepIOTest
 {
   public GenericData load(String resource) throws Exception
   {
-    ExpressLoader schemaLoader = new ExpressLoader();
-    ExpressSchema schema = schemaLoader.load("schema:IFC4");
+    return load(resource, false);
+  }
+
+  public GenericData load(String resource, boolean inverseIndexEnabled)
+    throws Exception
+  {
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
     GenericData data = new GenericData(schema);
 
     URL url = getClass().getResource(resource);
@@ -62,6 +91,7 @@ public class StepIOTest
       throw new RuntimeException("Resource not found: " + resource);
 
     var loader = new StepLoader(data);
+    loader.setInverseIndexEnabled(inverseIndexEnabled);
     try (Reader reader = Files.newBufferedReader(Paths.get(url.toURI()),
          StandardCharsets.UTF_8))
     {
@@ -89,6 +119,487 @@ public class StepIOTest
     });
   }
 
+  @Test
+  void parallelLoadMatchesSequentialLoad() throws Exception
+  {
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
+    File file = new File(getClass().getResource(
+      "/org/bimrocket/ifc/models/Sample.ifc").toURI());
+
+    GenericData data = new GenericData(schema);
+    new StepLoader(data).load(file);
+
+    GenericData parallelData = new GenericData(schema);
+    var loader = new ParallelStepLoader(parallelData);
+    loader.setThreads(4);
+    loader.setChunkSize(64); // many small chunks
+    loader.load(file);
+
+    assertEquals(toString(data), toString(parallelData));
+  }
+
+  @Test
+  void readRecords() throws Exception
+  {
+    File file = new File(getClass().getResource(
+      "/org/bimrocket/ifc/models/Sample.ifc").toURI());
+
+    try (StepReader reader = new StepReader(file))
+    {
+      assertEquals(List.of("IFC4"),
+        reader.getHeaderData().getFileSchema().getSchemas());
+
+      StepRecord project = reader.next();
+      assertEquals("#1", project.getTag());
+      assertEquals("IFCPROJECT", project.getTypeName());
+      assertEquals("Basic", project.getString(2));
+      assertEquals("#7", project.getReference(8));
+
+      int[] counts = new int[2];
+      long count = reader.read(record ->
+      {
+        if (record.getTypeName().equals("IFCPROPERTYSINGLEVALUE"))
+        {
+          counts[0]++;
+          counts[1] += record.getReferences().size();
+        }
+        return true;
+      });
+      assertEquals(60, count);
+      assertEquals(5, counts[0]);
+      assertEquals(0, counts[1]);
+      assertNull(reader.next());
+    }
+  }
+
+  @Test
+  void forwardAndSparseReferences() throws Exception
+  {
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
+    String sample;
+    try (var input = getClass().getResourceAsStream(
+      "/org/bimrocket/ifc/models/Sample.ifc"))
+    {
+      sample = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+    }
+    int dataStart = sample.indexOf("DATA;") + 5;
+    int dataEnd = sample.indexOf("ENDSEC;", dataStart);
+    String header = sample.substring(0, dataStart);
+    String footer = sample.substring(dataEnd);
+    List<String> records = new ArrayList<>();
+    for (String line : sample.substring(dataStart, dataEnd).split("\n"))
+    {
+      if (line.startsWith("#")) records.add(line);
+    }
+    Collections.reverse(records); // all references are forward references
+
+    String reversed = header + "\n" + String.join("\n", records) + "\n" +
+      footer;
+    // sparse tags
+    String sparse = reversed.replaceAll("#(\\d+)", "#$1000000");
+
+    GenericData reversedData = new GenericData(schema);
+    new StepLoader(reversedData).load(new StringReader(reversed));
+
+    GenericData sparseData = new GenericData(schema);
+    new StepLoader(sparseData).load(new StringReader(sparse));
+
+    String expected = toString(reversedData);
+    assertEquals(expected, toString(sparseData));
+    assertEquals(expected.chars().filter(ch -> ch == '#').count(),
+      reversed.chars().filter(ch -> ch == '#').count());
+  }
+
+  @Test
+  void compressedFiles(@TempDir File dir) throws Exception
+  {
+    var data = load("/org/bimrocket/ifc/models/Sample.ifc");
+    String expected = dataSection(toString(data));
+
+    for (String filename : List.of("Sample.ifczip", "Sample.ifc.gz"))
+    {
+      File file = new File(dir, filename);
+      new StepExporter(data).export(file);
+      assertEquals(StepCompression.fromFileName(filename),
+        StepCompression.detect(file));
+
+      GenericData reloaded = new GenericData(data.getSchema());
+      new StepLoader(reloaded).load(file);
+      assertEquals(expected, dataSection(toString(reloaded)));
+
+      GenericData parallelData = new GenericData(data.getSchema());
+      new ParallelStepLoader(parallelData).load(file);
+      assertEquals(expected, dataSection(toString(parallelData)));
+    }
+  }
+
+  @Test
+  void snapshotRoundTrip(@TempDir File dir) throws Exception
+  {
+    var data = load("/org/bimrocket/ifc/models/Sample.ifc");
+    String expected = dataSection(toString(data));
+
+    for (String filename : List.of("Sample.snapshot", "Sample.snapshot.gz"))
+    {
+      File file = new File(dir, filename);
+      new StepSnapshotWriter(data).export(file);
+
+      var reader = new StepSnapshotReader();
+      reader.load(file);
+      assertEquals(List.of("IFC4"),
+        reader.getHeaderData().getFileSchema().getSchemas());
+      assertEquals(expected,
+        dataSection(toString(reader.getData())));
+    }
+  }
+
+  @Test
+  void complexEntities(@TempDir File dir) throws Exception
+  {
+    File file = new File(dir, "Complex.ifc");
+    Files.writeString(file.toPath(), """
+      ISO-10303-21;
+      HEADER;
+      FILE_SCHEMA(('IFC4'));
+      ENDSEC;
+      DATA;
+      #1= IFCDIMENSIONALEXPONENTS(0,0,0,0,0,0,0);
+      #2=(IFCCONVERSIONBASEDUNIT(#1,.PLANEANGLEUNIT.,'DEGREE',#3)\
+      IFCNAMEDUNIT(#1,.PLANEANGLEUNIT.));
+      #3= IFCMEASUREWITHUNIT(IFCPLANEANGLEMEASURE(0.0174533),#4);
+      #4= IFCSIUNIT(*,.PLANEANGLEUNIT.,$,.RADIAN.);
+      #5= IFCUNITASSIGNMENT((#4));
+      ENDSEC;
+      END-ISO-10303-21;
+      """);
+
+    // read as a LIST of partial entities
+    try (StepReader reader = new StepReader(file))
+    {
+      reader.next();
+      StepRecord complex = reader.next();
+      assertEquals("#2", complex.getTag());
+      assertEquals("LIST", complex.getTypeName());
+      assertEquals(2, complex.size());
+      assertEquals("IFCCONVERSIONBASEDUNIT",
+        complex.getTypedValue(0).getTypeName());
+      assertEquals("IFCNAMEDUNIT", complex.getTypedValue(1).getTypeName());
+      assertEquals(3, reader.read(record -> true));
+    }
+
+    // loaded as in previous versions, the references to them are not
+    // supported by the data model
+    GenericData data = new GenericData(
+      ExpressSchemaRegistry.getSchema("IFC4"));
+    new StepLoader(data).load(file);
+    assertEquals(5, data.getRoot().size());
+
+    GenericData parallelData = new GenericData(data.getSchema());
+    var loader = new ParallelStepLoader(parallelData);
+    loader.setChunkSize(64);
+    loader.load(file);
+    assertEquals(toString(data), toString(parallelData));
+
+    try (StepIndex index = StepIndex.open(file))
+    {
+      assertArrayEquals(new int[]{ 2 }, index.getTags("LIST"));
+      assertEquals("LIST", index.getRecord(2).getTypeName());
+    }
+  }
+
+  @Test
+  void stepIndex(@TempDir File dir) throws Exception
+  {
+    File file = new File(dir, "Sample.ifc");
+    try (var input = getClass().getResourceAsStream(
+      "/org/bimrocket/ifc/models/Sample.ifc"))
+    {
+      Files.copy(input, file.toPath());
+    }
+
+    List<String> records = new ArrayList<>();
+    try (StepReader reader = new StepReader(file))
+    {
+      reader.read(record -> records.add(record.toString()));
+    }
+
+    try (StepIndex index = StepIndex.open(file))
+    {
+      assertEquals(records.size(), index.size());
+      assertEquals(List.of("IFC4"), index.getSchemaNames());
+      for (int tag = 1; tag <= records.size(); tag++)
+      {
+        assertEquals(records.get(tag - 1), index.getRecord(tag).toString());
+      }
+      assertNull(index.getRecord(1000));
+    }
+    assertTrue(StepIndex.getIndexFile(file).exists());
+
+    try (StepIndex index = StepIndex.open(file)) // read from index file
+    {
+      assertArrayEquals(new int[]{ 1 }, index.getTags("IfcProject"));
+      assertEquals(5, index.getRecords("IFCPROPERTYSINGLEVALUE").size());
+
+      List<StepRecord> closure = index.getClosure(index.getTags("IFCPROJECT"));
+      assertEquals("#1", closure.get(0).getTag());
+      for (StepRecord record : closure)
+      {
+        for (int tag : record.getReferenceNumbers())
+        {
+          assertTrue(closure.stream().anyMatch(r -> r.getTagNumber() == tag));
+        }
+      }
+
+      GenericData data = new GenericData(
+        ExpressSchemaRegistry.getSchema("IFC4"));
+      index.load(new StepLoader(data), 1);
+      assertEquals(closure.size(), data.getRoot().size());
+    }
+
+    // a truncated index file is rebuilt
+    File indexFile = StepIndex.getIndexFile(file);
+    long indexLength = indexFile.length();
+    try (var channel = FileChannel.open(indexFile.toPath(),
+         StandardOpenOption.WRITE))
+    {
+      channel.truncate(indexLength / 2);
+    }
+    try (StepIndex index = StepIndex.open(file))
+    {
+      assertEquals(records.size(), index.size());
+    }
+    assertEquals(indexLength, indexFile.length());
+  }
+
+  @Test
+  void compactDataRoundTrip() throws Exception
+  {
+    var data = load("/org/bimrocket/ifc/models/Sample.ifc");
+    File file = new File(getClass().getResource(
+      "/org/bimrocket/ifc/models/Sample.ifc").toURI());
+
+    CompactData compactData = new CompactData(data.getSchema());
+    new StepLoader(compactData).load(file);
+
+    assertEquals(dataSection(toString(data)),
+      dataSection(toString(compactData)));
+    assertEquals(normalize(toString(data, true, true)),
+      normalize(toString(compactData, true, true)));
+
+    ExpressCursor cursor = compactData.getRoot();
+    cursor.enter(0);
+    assertEquals("Basic", cursor.get("Name"));
+    cursor.set("Name", "Compact");
+    assertEquals("Compact", cursor.get(2));
+  }
+
+  @Test
+  void streamingExport() throws Exception
+  {
+    var data = load("/org/bimrocket/ifc/models/Sample.ifc");
+
+    // post-order: same output as the non streaming mode
+    assertEquals(toString(data, true, false), toString(data, true, true));
+
+    // pre-order: different order, same records
+    String expected = toString(data, false, false);
+    String streamed = toString(data, false, true);
+    assertEquals(normalize(expected), normalize(streamed));
+
+    GenericData reloaded = new GenericData(data.getSchema());
+    new StepLoader(reloaded).load(new StringReader(streamed));
+    assertEquals(normalize(expected), normalize(toString(reloaded)));
+  }
+
+  @Test
+  void parallelExport() throws Exception
+  {
+    var data = load("/org/bimrocket/ifc/models/Sample.ifc");
+
+    var exporter = new StepExporter(data);
+    exporter.getHeaderData().getFileName().setTimestamp("");
+    exporter.setThreads(4);
+    exporter.setBatchSize(5);
+    StringWriter writer = new StringWriter();
+    exporter.export(writer);
+
+    assertEquals(toString(data), writer.toString());
+  }
+
+  @Test
+  void inverseIndex() throws Exception
+  {
+    var data = load("/org/bimrocket/ifc/models/Sample.ifc", true);
+    InverseIndex loadedIndex = data.getInverseIndex();
+    data.setInverseIndex(null);
+    InverseIndex scannedIndex = data.getInverseIndex();
+    assertTrue(loadedIndex.getReferenceCount() > 0);
+    assertEquals(scannedIndex.getReferenceCount(),
+      loadedIndex.getReferenceCount());
+    for (int i = 0; i < data.getElements().size(); i++)
+    {
+      assertEquals(scannedIndex.getEnd(i) - scannedIndex.getStart(i),
+        loadedIndex.getEnd(i) - loadedIndex.getStart(i));
+    }
+
+    ExpressCursor cursor = data.getRoot();
+    cursor.enter(26);
+    assertEquals("IfcBuildingElementProxy", cursor.getType().getTypeName());
+
+    cursor.enterInverse("IsDefinedBy");
+    assertEquals(1, cursor.size());
+    cursor.enter(0).enter("RelatingPropertyDefinition");
+    assertEquals("Demo_Pset_Name", cursor.get("Name"));
+    cursor.exit().exit().exit();
+
+    cursor.enterInverse("ContainedInStructure");
+    assertEquals(1, cursor.size());
+    cursor.enter(0).enter("RelatingStructure");
+    assertEquals("IfcBuildingStorey", cursor.getType().getTypeName());
+    cursor.exit().exit().exit();
+
+    cursor.enterInverse("HasAssociations");
+    assertEquals(0, cursor.size());
+    cursor.exit();
+  }
+
+  @Test
+  void typedDataRoundTrip(@TempDir File dir) throws Exception
+  {
+    var data = load("/org/bimrocket/ifc/models/Sample.ifc");
+    ExpressSchema schema = data.getSchema();
+
+    File sourceDir = new File(dir, "src");
+    File classDir = new File(dir, "classes");
+    TypedJavaClassesGenerator generator = new TypedJavaClassesGenerator();
+    generator.setPackageName("test.ifc4");
+    generator.generateClasses(schema, sourceDir, classDir);
+
+    List<String> arguments = new ArrayList<>(List.of("-nowarn",
+      "-classpath", System.getProperty("java.class.path"),
+      "-d", classDir.getPath()));
+    try (var files = Files.walk(sourceDir.toPath()))
+    {
+      files.filter(path -> path.toString().endsWith(".java"))
+        .forEach(path -> arguments.add(path.toString()));
+    }
+    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+    assertEquals(0, compiler.run(null, null, null,
+      arguments.toArray(String[]::new)));
+
+    try (URLClassLoader classLoader = new URLClassLoader(
+         new URL[]{ classDir.toURI().toURL() }, getClass().getClassLoader()))
+    {
+      TypedEntityFactory factory = (TypedEntityFactory)classLoader
+        .loadClass("test.ifc4.IfcEntityFactory")
+        .getConstructor().newInstance();
+
+      TypedData typedData = new TypedData(schema, factory);
+      File file = new File(getClass().getResource(
+        "/org/bimrocket/ifc/models/Sample.ifc").toURI());
+      new StepLoader(typedData).load(file);
+
+      assertEquals(dataSection(toString(data)),
+        dataSection(toString(typedData)));
+
+      ExpressCursor cursor = typedData.getRoot();
+      cursor.enter(0);
+      assertEquals("Basic", cursor.get("Name"));
+      cursor.set("Name", "Typed");
+      assertEquals("Typed", cursor.get(2));
+    }
+  }
+
+  @Test
+  void mappedDataRoundTrip(@TempDir File dir) throws Exception
+  {
+    var data = load("/org/bimrocket/ifc/models/Sample.ifc");
+    File file = new File(getClass().getResource(
+      "/org/bimrocket/ifc/models/Sample.ifc").toURI());
+
+    // small segments, so that records span several segments
+    try (MappedData mappedData = new MappedData(data.getSchema(), dir, 4096))
+    {
+      new StepLoader(mappedData).load(file);
+      assertTrue(mappedData.getStoreSize() > 4096);
+
+      assertEquals(dataSection(toString(data)),
+        dataSection(toString(mappedData)));
+
+      ExpressCursor cursor = mappedData.getRoot();
+      cursor.enter(26);
+      assertEquals("IfcBuildingElementProxy", cursor.getType().getTypeName());
+      cursor.enterInverse("ContainedInStructure");
+      assertEquals(1, cursor.size());
+      cursor.exit();
+      cursor.set("Name", "Mapped \u00e0");
+      assertEquals("Mapped \u00e0", cursor.get(2));
+    }
+    assertEquals(0, dir.list().length);
+  }
+
+  @Test
+  void internPool() throws Exception
+  {
+    File file = new File(getClass().getResource(
+      "/org/bimrocket/ifc/models/Sample.ifc").toURI());
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
+    GenericData data = new GenericData(schema);
+    var loader = new StepLoader(data);
+    StepInternPool pool = loader.getInternPool();
+    loader.load(file);
+
+    assertTrue(pool.getHits(Kind.IDENTIFIER) > 0);
+    assertTrue(pool.getHits(Kind.CONSTANT) > 0);
+    assertTrue(pool.getHitRate(Kind.TEXT) > 0);
+
+    Object site = data.entitiesOf("IfcSite", false)
+      .enter(0).get("CompositionType");
+    Object building = data.entitiesOf("IfcBuilding", false)
+      .enter(0).get("CompositionType");
+    assertEquals("ELEMENT", site.toString());
+    assertSame(site, building);
+
+    GenericData reloaded = new GenericData(schema);
+    loader = new StepLoader(reloaded);
+    loader.setInternPool(null);
+    loader.load(file);
+    assertEquals(toString(data), toString(reloaded));
+  }
+
+  String dataSection(String step)
+  {
+    return step.substring(step.indexOf("DATA;")); // skip timestamp
+  }
+
+  List<String> normalize(String step)
+  {
+    List<String> lines = new ArrayList<>();
+    for (String line : step.split("\n"))
+    {
+      lines.add(line.replaceAll("#\\d+", "#"));
+    }
+    Collections.sort(lines);
+    return lines;
+  }
+
+  String toString(ExpressData data)
+  {
+    return toString(data, false, false);
+  }
+
+  String toString(ExpressData data, boolean backwardReferences,
+    boolean streaming)
+  {
+    var exporter = new StepExporter(data);
+    exporter.setBackwardReferences(backwardReferences);
+    exporter.setStreaming(streaming);
+    exporter.getHeaderData().getFileName().setTimestamp("");
+    StringWriter writer = new StringWriter();
+    exporter.export(new PrintWriter(writer));
+    return writer.toString();
+  }
+
   public static void main(String[] args)
   {
     try
@@ -101,8 +612,7 @@ public class StepIOTest
         "AC20-FZK-Haus",
         "Basic");
 
-      ExpressLoader schemaLoader = new ExpressLoader();
-      ExpressSchema schema = schemaLoader.load("schema:IFC4");
+      ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
       System.out.println("SCHEMA:" + schema.getName());
 
       var chrono = new Chronometer();
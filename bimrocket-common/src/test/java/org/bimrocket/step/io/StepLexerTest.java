@@ -0,0 +1,207 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.step.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.bimrocket.util.Chronometer;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author realor
+ */
+public class StepLexerTest
+{
+  static final String SAMPLE = "/org/bimrocket/ifc/models/Sample.ifc";
+
+  byte[] getSampleBytes() throws IOException
+  {
+    try (var input = getClass().getResourceAsStream(SAMPLE))
+    {
+      return input.readAllBytes();
+    }
+  }
+
+  List<String> readTokens(StepLexer lexer) throws IOException
+  {
+    List<String> tokens = new ArrayList<>();
+    StepToken token = lexer.readToken();
+    while (!token.isEOF())
+    {
+      tokens.add(token.toString());
+      token = lexer.readToken();
+    }
+    return tokens;
+  }
+
+  static int countTokens(StepLexer lexer) throws IOException
+  {
+    int count = 0;
+    while (!lexer.readToken().isEOF()) count++;
+    return count;
+  }
+
+  static int countTokenCursors(StepLexer lexer) throws IOException
+  {
+    int count = 0;
+    while (!lexer.nextToken().isEOF()) count++;
+    return count;
+  }
+
+  @Test
+  public void byteLexerMatchesReaderLexer() throws IOException
+  {
+    byte[] bytes = getSampleBytes();
+
+    List<String> expected = readTokens(new StepLexer(new InputStreamReader(
+      new ByteArrayInputStream(bytes), UTF_8)));
+
+    assertEquals(expected, readTokens(new StepByteLexer(bytes)));
+
+    // small buffers to force many window changes
+    assertEquals(expected, readTokens(new StepByteLexer(
+      Channels.newChannel(new ByteArrayInputStream(bytes)), 7)));
+
+    File file = File.createTempFile("sample", ".ifc");
+    try
+    {
+      Files.write(file.toPath(), bytes);
+      try (FileChannel channel =
+           FileChannel.open(file.toPath(), StandardOpenOption.READ))
+      {
+        assertEquals(expected, readTokens(new StepByteLexer(channel, 13)));
+      }
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void textDecoding() throws IOException
+  {
+    String text = "'Gesch\\X2\\00FC\\X0\\tzt','It''s','café'";
+    List<String> tokens = readTokens(new StepByteLexer(text.getBytes(UTF_8)));
+
+    assertEquals(List.of("{TEXT Geschützt}", "{COMMA}", "{TEXT It's}",
+      "{COMMA}", "{TEXT café}"), tokens);
+
+    assertEquals("a\\b", decode("a\\\\b"));
+    assertEquals("\u00e9t\u00e9", decode("\\S\\it\\S\\i"));
+    assertEquals("\u0105", decode("\\PB\\\\S\\1"));
+    assertEquals("\n", decode("\\X\\0A"));
+    assertEquals("\u00fc\u00e4", decode("\\X2\\00FC00E4\\X0\\"));
+    assertEquals("\ud83d\ude00", decode("\\X4\\0001F600\\X0\\"));
+    assertEquals("\\X2\\00F", decode("\\X2\\00F")); // malformed
+    assertEquals("C:\\temp", decode("C:\\temp"));
+  }
+
+  @Test
+  public void tokenCursor() throws IOException
+  {
+    String text = "#12= IFCCARTESIANPOINT((1.5,-2,3.E-2));";
+    StepTokenCursor token = new StepByteLexer(text.getBytes(UTF_8)).nextToken();
+    assertEquals(12, token.tagNumber());
+
+    StepLexer lexer = new StepByteLexer(text.getBytes(UTF_8));
+    lexer.nextToken(); // #12
+    lexer.nextToken(); // =
+    assertTrue(lexer.nextToken().textEquals("IFCCARTESIANPOINT"));
+    lexer.nextToken(); // (
+    lexer.nextToken(); // (
+    assertEquals(1.5, lexer.nextToken().doubleValue());
+    lexer.nextToken(); // ,
+    token = lexer.nextToken();
+    assertFalse(token.isDecimal());
+    assertEquals(-2L, token.longValue());
+    lexer.nextToken(); // ,
+    assertEquals(0.03, lexer.nextToken().doubleValue());
+  }
+
+  String decode(String text)
+  {
+    StringBuilder output = new StringBuilder();
+    StepLexer.decodeText(text, output);
+    return output.toString();
+  }
+
+  public static void main(String[] args)
+  {
+    try
+    {
+      File file = new File(args[0]);
+      var chrono = new Chronometer();
+
+      try (var reader = Files.newBufferedReader(file.toPath(), UTF_8))
+      {
+        int count = countTokens(new StepLexer(reader));
+        System.out.println("Reader lexer: " + count + " tokens in " +
+          chrono.seconds() + " sec.");
+      }
+
+      chrono.mark();
+      try (FileChannel channel =
+           FileChannel.open(file.toPath(), StandardOpenOption.READ))
+      {
+        int count = countTokens(new StepByteLexer(channel));
+        System.out.println("Byte lexer: " + count + " tokens in " +
+          chrono.seconds() + " sec.");
+      }
+
+      chrono.mark();
+      try (FileChannel channel =
+           FileChannel.open(file.toPath(), StandardOpenOption.READ))
+      {
+        int count = countTokenCursors(new StepByteLexer(channel));
+        System.out.println("Byte lexer cursor: " + count + " tokens in " +
+          chrono.seconds() + " sec.");
+      }
+    }
+    catch (Exception ex)
+    {
+      ex.printStackTrace();
+    }
+  }
+}
@@ -37,24 +37,32 @@ import jakarta.inject.Inject;
 import jakarta.ws.rs.Consumes;
 import jakarta.ws.rs.DELETE;
 import jakarta.ws.rs.GET;
+import jakarta.ws.rs.HeaderParam;
 import jakarta.ws.rs.POST;
 import jakarta.ws.rs.PUT;
 import jakarta.ws.rs.Path;
 import jakarta.ws.rs.PathParam;
 import jakarta.ws.rs.Produces;
 import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
+import jakarta.ws.rs.core.Request;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.Response.ResponseBuilder;
 import jakarta.ws.rs.core.StreamingOutput;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Date;
 import java.util.List;
 import org.apache.commons.io.IOUtils;
+import org.bimrocket.service.ifcdb.IfcdbDownload;
 import org.bimrocket.service.ifcdb.IfcdbService;
+import org.bimrocket.step.io.StepCompression;
 import static jakarta.ws.rs.core.MediaType.APPLICATION_JSON;
 import static jakarta.ws.rs.core.MediaType.TEXT_PLAIN;
 import org.bimrocket.api.ApiResult;
@@ -123,15 +131,29 @@ public class IfcDatabaseEndpoint
   @Produces({ APPLICATION_JSON, TEXT_PLAIN })
   @Operation(summary = "Download IFC model")
   public Response downloadModel(@PathParam("schema") String schemaName,
-    @PathParam("modelId") String modelId, @QueryParam("version") int version)
+    @PathParam("modelId") String modelId, @QueryParam("version") int version,
+    @QueryParam("compression") String compression,
+    @HeaderParam("Accept-Encoding") String acceptEncoding,
+    @Context Request request)
   {
     try
     {
-      File ifcFile = File.createTempFile("file", ".ifc");
-
-      ifcDatabaseService.downloadModel(schemaName, modelId, version, ifcFile);
+      IfcdbDownload download = ifcDatabaseService.downloadModel(schemaName,
+        modelId, version, getStepCompression(compression, acceptEncoding));
 
-      return sendFile(ifcFile, "application/x-step");
+      String entityTag = download.getEntityTag();
+      if (entityTag != null)
+      {
+        // 304 Not Modified when If-None-Match contains the tag
+        ResponseBuilder builder =
+          request.evaluatePreconditions(new EntityTag(entityTag));
+        if (builder != null)
+        {
+          download.close();
+          return builder.header("Vary", "Accept-Encoding").build();
+        }
+      }
+      return sendDownload(download);
     }
     catch (Exception ex)
     {
@@ -148,13 +170,28 @@ public class IfcDatabaseEndpoint
   {
     try
     {
-      File ifcFile = File.createTempFile("file", ".ifc");
-      try (FileOutputStream output = new FileOutputStream(ifcFile))
+      // compressed models are stored as received and the loader
+      // decompresses them while reading
+      input = new BufferedInputStream(input);
+      String suffix = switch (StepCompression.detect(input))
       {
-        IOUtils.copy(input, output);
+        case GZIP -> ".ifc.gz";
+        case ZIP -> ".ifczip";
+        default -> ".ifc";
+      };
+      File ifcFile = File.createTempFile("file", suffix);
+      try
+      {
+        try (FileOutputStream output = new FileOutputStream(ifcFile))
+        {
+          IOUtils.copy(input, output);
+        }
+        return ifcDatabaseService.uploadModel(schemaName, ifcFile);
+      }
+      finally
+      {
+        ifcFile.delete();
       }
-
-      return ifcDatabaseService.uploadModel(schemaName, ifcFile);
     }
     catch (Exception ex)
     {
@@ -199,7 +236,8 @@ public class IfcDatabaseEndpoint
   @RolesAllowed("ADMIN")
   @Operation(summary = "Execute command")
   public Response execute(@PathParam("schema") String schemaName,
-    IfcdbCommand command)
+    IfcdbCommand command,
+    @HeaderParam("Accept-Encoding") String acceptEncoding)
   {
     try
     {
@@ -213,11 +251,11 @@ public class IfcDatabaseEndpoint
       }
       else
       {
-        File file = File.createTempFile("file", ".ifc");
+        File file = createStepFile(null, acceptEncoding);
 
         ifcDatabaseService.execute(schemaName, command, file);
 
-        return sendFile(file, "application/x-step");
+        return sendStepFile(file);
       }
     }
     catch (Exception ex)
@@ -228,6 +266,147 @@ public class IfcDatabaseEndpoint
 
   // internal methods
 
+  /**
+   * Creates a temporary file for a STEP export. The extension of the file
+   * selects the compression applied by the exporter.
+   *
+   * @param compression the compression requested by the client: "ifczip",
+   * "gzip" or "none". If null, gzip is used when accepted by the client.
+   * @param acceptEncoding the Accept-Encoding header
+   * @return the temporary file
+   */
+  private File createStepFile(String compression, String acceptEncoding)
+    throws IOException
+  {
+    String suffix = switch (getStepCompression(compression, acceptEncoding))
+    {
+      case ZIP -> ".ifczip";
+      case GZIP -> ".ifc.gz";
+      default -> ".ifc";
+    };
+    return File.createTempFile("file", suffix);
+  }
+
+  /**
+   * Returns the compression of a STEP download.
+   *
+   * @param compression the compression requested by the client: "ifczip",
+   * "gzip" or "none". If null, gzip is used when accepted by the client.
+   * @param acceptEncoding the Accept-Encoding header
+   * @return the compression to apply
+   */
+  private StepCompression getStepCompression(String compression,
+    String acceptEncoding)
+  {
+    if (compression == null)
+    {
+      compression = isGzipAccepted(acceptEncoding) ? "gzip" : "none";
+    }
+
+    return switch (compression.toLowerCase())
+    {
+      case "ifczip", "zip" -> StepCompression.ZIP;
+      case "gzip", "gz" -> StepCompression.GZIP;
+      default -> StepCompression.NONE;
+    };
+  }
+
+  /**
+   * Tells whether an Accept-Encoding header accepts gzip: gzip or * are
+   * listed with a non zero quality, and gzip is not refused explicitly.
+   *
+   * @param acceptEncoding the Accept-Encoding header, may be null
+   * @return true if gzip is accepted
+   */
+  private boolean isGzipAccepted(String acceptEncoding)
+  {
+    if (acceptEncoding == null) return false;
+
+    Double gzipQuality = null;
+    Double anyQuality = null;
+    for (String coding : acceptEncoding.split(","))
+    {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim().toLowerCase();
+      double quality = 1.0;
+      for (int i = 1; i < parts.length; i++)
+      {
+        String param = parts[i].trim().toLowerCase();
+        if (param.startsWith("q="))
+        {
+          try
+          {
+            quality = Double.parseDouble(param.substring(2).trim());
+          }
+          catch (NumberFormatException ex)
+          {
+            quality = 0.0;
+          }
+        }
+      }
+      if (name.equals("gzip") || name.equals("x-gzip")) gzipQuality = quality;
+      else if (name.equals("*")) anyQuality = quality;
+    }
+    if (gzipQuality != null) return gzipQuality > 0;
+    return anyQuality != null && anyQuality > 0;
+  }
+
+  private Response sendStepFile(File file)
+  {
+    switch (StepCompression.fromFileName(file.getName()))
+    {
+      case ZIP:
+        return sendFile(file, "application/zip");
+      case GZIP:
+        return Response.fromResponse(sendFile(file, "application/x-step"))
+          .header("Content-Encoding", "gzip")
+          .header("Vary", "Accept-Encoding")
+          .build();
+      default:
+        return sendFile(file, "application/x-step");
+    }
+  }
+
+  /**
+   * Sends a model download. Cached downloads have an entity tag that
+   * clients can revalidate, the others are sent chunked.
+   *
+   * @param download the download
+   * @return the response
+   */
+  private Response sendDownload(IfcdbDownload download)
+  {
+    StreamingOutput stream = download::write;
+    // the compression depends on Accept-Encoding when it is not requested
+    ResponseBuilder builder = Response.ok(stream)
+      .lastModified(new Date(download.getLastModified()))
+      .header("Cache-Control", "no-cache")
+      .header("Vary", "Accept-Encoding");
+
+    switch (download.getCompression())
+    {
+      case ZIP:
+        builder.header("Content-Type", "application/zip");
+        break;
+      case GZIP:
+        builder.header("Content-Type", "application/x-step")
+          .header("Content-Encoding", "gzip");
+        break;
+      default:
+        builder.header("Content-Type", "application/x-step");
+    }
+
+    if (download.getEntityTag() != null)
+    {
+      builder.tag(new EntityTag(download.getEntityTag()));
+    }
+    if (download.getLength() >= 0)
+    {
+      builder.header("Content-Length", download.getLength());
+    }
+    return builder.build();
+  }
+
   private Response sendFile(File file, String contentType)
   {
     StreamingOutput stream = (OutputStream output) ->
@@ -0,0 +1,164 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.bimrocket.step.io.StepCompression;
+
+/**
+ * A STEP file of a model version ready to be sent.
+ * <p>
+ * Downloads served from the export cache have a strong entity tag and a
+ * known length. The others are exported while they are written and have
+ * none.
+ *
+ * @author realor
+ */
+public class IfcdbDownload implements Closeable
+{
+  private final String fileName;
+  private final int version;
+  private final StepCompression compression;
+  private final String entityTag;
+  private final long length;
+  private final long lastModified;
+  private final DownloadWriter writer;
+  private final Closeable resource;
+
+  public IfcdbDownload(String fileName, int version,
+    StepCompression compression, String entityTag, long length,
+    long lastModified, DownloadWriter writer)
+  {
+    this(fileName, version, compression, entityTag, length, lastModified,
+      writer, null);
+  }
+
+  /**
+   * Creates a download that reads from an already opened resource.
+   *
+   * @param fileName the name of the file
+   * @param version the model version
+   * @param compression the compression of the file
+   * @param entityTag the entity tag or null if the file is not cached
+   * @param length the length of the file or -1 if it is unknown
+   * @param lastModified the last modification time of the file
+   * @param writer the writer of the file
+   * @param resource the resource read by the writer, closed after writing
+   * or by {@link #close()}, or null
+   */
+  public IfcdbDownload(String fileName, int version,
+    StepCompression compression, String entityTag, long length,
+    long lastModified, DownloadWriter writer, Closeable resource)
+  {
+    this.fileName = fileName;
+    this.version = version;
+    this.compression = compression;
+    this.entityTag = entityTag;
+    this.length = length;
+    this.lastModified = lastModified;
+    this.writer = writer;
+    this.resource = resource;
+  }
+
+  public String getFileName()
+  {
+    return fileName;
+  }
+
+  public int getVersion()
+  {
+    return version;
+  }
+
+  public StepCompression getCompression()
+  {
+    return compression;
+  }
+
+  /**
+   * Returns the entity tag of the file.
+   *
+   * @return the value of the strong entity tag, without quotes, or null if
+   * the file is not cached.
+   */
+  public String getEntityTag()
+  {
+    return entityTag;
+  }
+
+  /**
+   * Returns the length of the file.
+   *
+   * @return the length in bytes or -1 if it is unknown
+   */
+  public long getLength()
+  {
+    return length;
+  }
+
+  public long getLastModified()
+  {
+    return lastModified;
+  }
+
+  /**
+   * Writes the file.
+   *
+   * @param output the stream to write. It is closed after writing.
+   * @throws IOException if an I/O error occurs
+   */
+  public void write(OutputStream output) throws IOException
+  {
+    try (this)
+    {
+      writer.write(output);
+    }
+  }
+
+  /**
+   * Releases the resource of the download when it is not written.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  public void close() throws IOException
+  {
+    if (resource != null) resource.close();
+  }
+
+  @FunctionalInterface
+  public interface DownloadWriter
+  {
+    void write(OutputStream output) throws IOException;
+  }
+}
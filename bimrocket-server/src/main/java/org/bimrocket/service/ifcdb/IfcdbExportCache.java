@@ -0,0 +1,490 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import static org.bimrocket.service.ifcdb.IfcdbService.LOGGER;
+import org.bimrocket.step.io.StepCompression;
+
+/**
+ * A disk cache of the STEP files exported from the model versions.
+ * <p>
+ * Model versions do not change once saved, so the exported file of a
+ * version can be sent again until the version is deleted or the model
+ * metadata written in the header changes. The files are stored in the
+ * given compression under {@code <schema>/<modelId in hex>/} with the name
+ * {@code v<version>-<hash>.<extension>}, where hash is the SHA-256 of the
+ * stored file. The hash is a strong validator of the file contents and
+ * survives server restarts.
+ * <p>
+ * When the total size of the files exceeds maxSize, the least recently
+ * used entries are removed.
+ *
+ * @author realor
+ */
+public class IfcdbExportCache
+{
+  static final Pattern ENTRY_PATTERN =
+    Pattern.compile("v(\\d+)-([0-9a-f]+)\\.(ifc|ifc\\.gz)");
+  static final int HASH_LENGTH = 32; // hex chars
+
+  private final File baseDir;
+  private final long maxSize;
+  private final StepCompression compression;
+  private final LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<>(16, 0.75f, true);
+  private final Set<String> pendingKeys = new HashSet<>();
+  private final Set<String> staleKeys = new HashSet<>();
+  private long totalSize;
+
+  /**
+   * Creates a cache in the given directory, registering the files it
+   * already contains.
+   *
+   * @param baseDir the directory of the cache
+   * @param maxSize the maximum size of the files in bytes
+   * @param compression the compression of the stored files, NONE or GZIP
+   */
+  public IfcdbExportCache(File baseDir, long maxSize,
+    StepCompression compression)
+  {
+    if (compression == StepCompression.ZIP)
+      throw new IllegalArgumentException("Unsupported compression: ZIP");
+
+    this.baseDir = baseDir;
+    this.maxSize = maxSize;
+    this.compression = compression;
+    baseDir.mkdirs();
+    scan();
+  }
+
+  public File getBaseDir()
+  {
+    return baseDir;
+  }
+
+  public long getMaxSize()
+  {
+    return maxSize;
+  }
+
+  public StepCompression getCompression()
+  {
+    return compression;
+  }
+
+  public synchronized long getTotalSize()
+  {
+    return totalSize;
+  }
+
+  /**
+   * Returns the cached export of a model version.
+   *
+   * @param schemaName the schema of the model
+   * @param modelId the model id
+   * @param version the version number
+   * @return the entry or null if the version is not cached
+   */
+  public synchronized Entry get(String schemaName, String modelId,
+    int version)
+  {
+    String key = getKey(schemaName, modelId, version);
+    Entry entry = entries.get(key);
+    if (entry != null && !entry.file.exists())
+    {
+      remove(key);
+      entry = null;
+    }
+    return entry;
+  }
+
+  /**
+   * Starts writing the export of a model version.
+   *
+   * @param schemaName the schema of the model
+   * @param modelId the model id
+   * @param version the version number
+   * @return the writer of the entry, or null if the entry is already cached
+   * or being written.
+   * @throws IOException if the entry file can not be created
+   */
+  public EntryWriter put(String schemaName, String modelId, int version)
+    throws IOException
+  {
+    String key = getKey(schemaName, modelId, version);
+    synchronized (this)
+    {
+      if (entries.containsKey(key) || !pendingKeys.add(key)) return null;
+    }
+    try
+    {
+      File modelDir = getModelDir(schemaName, modelId);
+      modelDir.mkdirs();
+      File tempFile = File.createTempFile("v" + version + "-", ".tmp",
+        modelDir);
+      return new EntryWriter(key, schemaName, modelId, version, tempFile);
+    }
+    catch (IOException | RuntimeException ex)
+    {
+      synchronized (this)
+      {
+        pendingKeys.remove(key);
+      }
+      throw ex;
+    }
+  }
+
+  /**
+   * Removes the cached exports of a model. The entries that are being
+   * written are discarded when committed.
+   *
+   * @param schemaName the schema of the model
+   * @param modelId the model id
+   * @param version the version to remove, or 0 to remove all the versions
+   */
+  public synchronized void invalidate(String schemaName, String modelId,
+    int version)
+  {
+    String prefix = schemaName + "/" + modelId + "/";
+    String versionKey = getKey(schemaName, modelId, version);
+
+    for (String key : pendingKeys)
+    {
+      if (version == 0 ? key.startsWith(prefix) : key.equals(versionKey))
+      {
+        staleKeys.add(key);
+      }
+    }
+
+    List<String> keys = new ArrayList<>();
+    for (String key : entries.keySet())
+    {
+      if (version == 0 ? key.startsWith(prefix) : key.equals(versionKey))
+      {
+        keys.add(key);
+      }
+    }
+    keys.forEach(this::remove);
+  }
+
+  private synchronized void add(Entry entry)
+  {
+    String key = getKey(entry.schemaName, entry.modelId, entry.version);
+    pendingKeys.remove(key);
+    if (staleKeys.remove(key)) // invalidated while it was written
+    {
+      entry.file.delete();
+      return;
+    }
+    Entry previous = entries.put(key, entry);
+    if (previous != null)
+    {
+      totalSize -= previous.length;
+      if (!previous.file.equals(entry.file)) previous.file.delete();
+    }
+    totalSize += entry.length;
+
+    Iterator<Entry> iter = entries.values().iterator();
+    while (totalSize > maxSize && iter.hasNext())
+    {
+      Entry eldest = iter.next();
+      iter.remove();
+      totalSize -= eldest.length;
+      eldest.file.delete();
+      LOGGER.log(Level.FINE, "Export cache entry evicted: {0}", eldest.file);
+    }
+  }
+
+  private synchronized void abort(String key)
+  {
+    pendingKeys.remove(key);
+    staleKeys.remove(key);
+  }
+
+  private void remove(String key)
+  {
+    Entry entry = entries.remove(key);
+    if (entry != null)
+    {
+      totalSize -= entry.length;
+      entry.file.delete();
+    }
+  }
+
+  /**
+   * Registers the entries found in the cache directory, from the least to
+   * the most recently modified, and deletes the incomplete files.
+   */
+  private void scan()
+  {
+    List<Entry> found = new ArrayList<>();
+    File[] schemaDirs = baseDir.listFiles(File::isDirectory);
+    if (schemaDirs == null) return;
+
+    for (File schemaDir : schemaDirs)
+    {
+      File[] modelDirs = schemaDir.listFiles(File::isDirectory);
+      if (modelDirs == null) continue;
+
+      for (File modelDir : modelDirs)
+      {
+        String modelId;
+        try
+        {
+          modelId = new String(HexFormat.of().parseHex(modelDir.getName()),
+            StandardCharsets.UTF_8);
+        }
+        catch (IllegalArgumentException ex)
+        {
+          continue; // not a model directory
+        }
+        File[] files = modelDir.listFiles(File::isFile);
+        if (files == null) continue;
+
+        for (File file : files)
+        {
+          Matcher matcher = ENTRY_PATTERN.matcher(file.getName());
+          if (matcher.matches() &&
+              matcher.group(3).equals(getExtension(compression)))
+          {
+            found.add(new Entry(schemaDir.getName(), modelId,
+              Integer.parseInt(matcher.group(1)), matcher.group(2), file));
+          }
+          else
+          {
+            file.delete();
+          }
+        }
+      }
+    }
+    found.sort((a, b) -> Long.compare(a.lastModified, b.lastModified));
+    found.forEach(this::add);
+
+    LOGGER.log(Level.INFO, "Export cache: {0} entries, {1} bytes",
+      new Object[]{ entries.size(), totalSize });
+  }
+
+  private File getModelDir(String schemaName, String modelId)
+  {
+    String modelDirName =
+      HexFormat.of().formatHex(modelId.getBytes(StandardCharsets.UTF_8));
+    return new File(new File(baseDir, schemaName), modelDirName);
+  }
+
+  private static String getKey(String schemaName, String modelId,
+    int version)
+  {
+    return schemaName + "/" + modelId + "/" + version;
+  }
+
+  private static String getExtension(StepCompression compression)
+  {
+    return compression == StepCompression.GZIP ? "ifc.gz" : "ifc";
+  }
+
+  /**
+   * A cached export of a model version.
+   */
+  public class Entry
+  {
+    final String schemaName;
+    final String modelId;
+    final int version;
+    final String hash;
+    final File file;
+    final long length;
+    final long lastModified;
+
+    Entry(String schemaName, String modelId, int version, String hash,
+      File file)
+    {
+      this.schemaName = schemaName;
+      this.modelId = modelId;
+      this.version = version;
+      this.hash = hash;
+      this.file = file;
+      this.length = file.length();
+      this.lastModified = file.lastModified();
+    }
+
+    public int getVersion()
+    {
+      return version;
+    }
+
+    /**
+     * Returns the hash of the stored file.
+     *
+     * @return the hexadecimal SHA-256 hash prefix of the file
+     */
+    public String getHash()
+    {
+      return hash;
+    }
+
+    public File getFile()
+    {
+      return file;
+    }
+
+    public long getLength()
+    {
+      return length;
+    }
+
+    public long getLastModified()
+    {
+      return lastModified;
+    }
+
+    public StepCompression getCompression()
+    {
+      return compression;
+    }
+  }
+
+  /**
+   * Writes a new entry. The uncompressed STEP data written to the output
+   * stream is compressed and hashed into a temporary file that becomes the
+   * entry file on {@link #commit()}.
+   */
+  public class EntryWriter
+  {
+    final String key;
+    final String schemaName;
+    final String modelId;
+    final int version;
+    final File tempFile;
+    final MessageDigest digest;
+    final OutputStream output;
+    boolean finished;
+
+    EntryWriter(String key, String schemaName, String modelId, int version,
+      File tempFile) throws IOException
+    {
+      this.key = key;
+      this.schemaName = schemaName;
+      this.modelId = modelId;
+      this.version = version;
+      this.tempFile = tempFile;
+      try
+      {
+        digest = MessageDigest.getInstance("SHA-256");
+      }
+      catch (NoSuchAlgorithmException ex)
+      {
+        throw new IOException(ex);
+      }
+      output = compression.getOutputStream(new DigestOutputStream(
+        new BufferedOutputStream(new FileOutputStream(tempFile)), digest),
+        null);
+    }
+
+    /**
+     * Returns the stream that receives the uncompressed STEP data.
+     * Closing it does not commit the entry.
+     *
+     * @return the output stream of the entry
+     */
+    public OutputStream getOutputStream()
+    {
+      return output;
+    }
+
+    /**
+     * Completes the entry and adds it to the cache.
+     *
+     * @return the new entry
+     * @throws IOException if the entry file can not be written
+     */
+    public Entry commit() throws IOException
+    {
+      try
+      {
+        output.close();
+        String hash = HexFormat.of().formatHex(digest.digest())
+          .substring(0, HASH_LENGTH);
+        File file = new File(tempFile.getParentFile(),
+          "v" + version + "-" + hash + "." + getExtension(compression));
+        Files.move(tempFile.toPath(), file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Entry entry = new Entry(schemaName, modelId, version, hash, file);
+        finished = true;
+        add(entry);
+        return entry;
+      }
+      finally
+      {
+        if (!finished) abort();
+      }
+    }
+
+    /**
+     * Discards the entry.
+     */
+    public void abort()
+    {
+      if (finished) return;
+      finished = true;
+      try
+      {
+        output.close();
+      }
+      catch (IOException ex)
+      {
+        // ignore, the file is deleted
+      }
+      tempFile.delete();
+      IfcdbExportCache.this.abort(key);
+    }
+  }
+}
@@ -31,18 +31,29 @@
 package org.bimrocket.service.ifcdb;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import jakarta.enterprise.context.ApplicationScoped;
 import jakarta.enterprise.inject.spi.CDI;
 import jakarta.inject.Inject;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.commons.io.output.TeeOutputStream;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import org.bimrocket.api.ifcdb.IfcdbCommand;
 import org.bimrocket.api.ifcdb.IfcdbModel;
@@ -51,17 +62,24 @@ import org.bimrocket.dao.expression.Expression;
 import org.bimrocket.dao.expression.OrderByExpression;
 import org.bimrocket.dao.expression.io.log.LogExpressionPrinter;
 import org.bimrocket.exception.InvalidRequestException;
+import org.bimrocket.exception.NotFoundException;
+import org.bimrocket.express.ExpressEntity;
 import org.bimrocket.express.ExpressSchema;
 import org.bimrocket.express.data.ExpressCursor;
-import org.bimrocket.express.io.ExpressLoader;
+import org.bimrocket.express.io.ExpressSchemaRegistry;
 import org.bimrocket.service.ifcdb.store.IfcData;
 import org.bimrocket.service.ifcdb.store.IfcdbConnection;
+import org.bimrocket.service.ifcdb.store.IfcdbUploadSettings;
 import org.bimrocket.service.ifcdb.store.empty.EmptyIfcStore;
 import org.bimrocket.service.security.SecurityService;
 import org.bimrocket.util.EntityDefinition;
 import org.eclipse.microprofile.config.Config;
+import org.bimrocket.step.header.StepFileHeaderData;
 import org.bimrocket.step.io.StepExporter;
-import org.bimrocket.step.io.StepLoader;
+import org.bimrocket.step.io.ParallelStepLoader;
+import org.bimrocket.step.io.StepCompression;
+import org.bimrocket.step.io.StepReader;
+import org.bimrocket.step.io.StepRecord;
 import org.bimrocket.service.ifcdb.store.IfcdbStore;
 import org.bimrocket.util.Chronometer;
 import static org.bimrocket.util.TextUtils.getISODate;
@@ -108,6 +126,12 @@ public class IfcdbService
   @Inject
   SecurityService securityService;
 
+  IfcdbExportCache exportCache;
+
+  boolean exportCacheWarmup;
+
+  ExecutorService warmupExecutor;
+
   @PostConstruct
   public void init()
   {
@@ -133,6 +157,8 @@ public class IfcdbService
     }
     LOGGER.log(Level.INFO, "IfcStore: {0}", store.getClass());
 
+    initExportCache();
+
     List<String> schemaNames =
       config.getOptionalValues(BASE + "schemas", String.class)
         .orElse(List.of("IFC4"));
@@ -141,8 +167,7 @@ public class IfcdbService
     {
       try
       {
-        ExpressLoader expressParser = new ExpressLoader();
-        ExpressSchema schema = expressParser.load("schema:" + schemaName);
+        ExpressSchema schema = ExpressSchemaRegistry.getSchema(schemaName);
         LOGGER.log(Level.INFO, "{0} schema loaded: {1} named types",
           new Object[]{ schema.getName(), schema.getNamedTypes().size()});
 
@@ -192,8 +217,21 @@ public class IfcdbService
     }
   }
 
-  public void downloadModel(String schemaName, String modelId, int version,
-    File ifcFile) throws IOException
+  /**
+   * Prepares the download of a model version in STEP format. The version
+   * is served from the export cache when it is there. Otherwise the
+   * elements are exported while they are sent and the file is added to
+   * the cache.
+   *
+   * @param schemaName the schema of the model
+   * @param modelId the model id
+   * @param version the model version, 0 for the last one
+   * @param compression the compression of the sent data
+   * @return the download
+   * @throws IOException if an I/O error occurs
+   */
+  public IfcdbDownload downloadModel(String schemaName, String modelId,
+    int version, StepCompression compression) throws IOException
   {
     LOGGER.log(Level.FINE, "schema: {0}, modelId: {1}",
       new Object[] { schemaName, modelId });
@@ -203,46 +241,42 @@ public class IfcdbService
 
     try (var conn = store.getConnection(schema))
     {
-      var chrono = new Chronometer();
-
       IfcdbModel ifcdbModel = conn.getModel(modelId);
+      if (ifcdbModel == null) throw new NotFoundException(MODEL_NOT_FOUND);
+
       if (version == 0)
       {
         version = ifcdbModel.getLastVersion();
       }
+      final int modelVersion = version;
+      String fileName = getFileName(ifcdbModel, version);
 
-      IfcData data = conn.loadData(modelId, version);
-
-      LOGGER.log(Level.INFO,
-        "IFC objects loaded in {0} seconds.", chrono.seconds());
-      chrono.mark();
-
-      var exporter = new StepExporter(data);
-
-      var headerData = exporter.getHeaderData();
-
-      String fileName = ifcdbModel.getName();
-      if (fileName != null && fileName.trim().length() > 0)
-      {
-        fileName = fileName.trim().replace(" ", "_");
-        if (version > 0) fileName += "-v" + version;
-        fileName += ".ifc";
-        headerData.getFileName().setName(fileName);
-      }
-
-      String description = ifcdbModel.getDescription();
-      if (description != null)
+      IfcdbExportCache.Entry entry = exportCache == null ? null :
+        exportCache.get(schemaName, modelId, version);
+      if (entry != null)
       {
-        headerData.getFileDescription().setDescription(List.of(description));
+        LOGGER.log(Level.FINE, "Export cache hit: {0}", entry.getFile());
+        try
+        {
+          return createDownload(entry, fileName, compression);
+        }
+        catch (FileNotFoundException ex)
+        {
+          // evicted after get, export it again
+        }
       }
 
-      exporter.export(ifcFile);
+      IfcdbVersion ifcdbVersion = conn.getModelVersions(modelId).stream()
+        .filter(v -> v.getVersion() == modelVersion).findFirst()
+        .orElseThrow(() -> new NotFoundException(MODEL_NOT_FOUND));
 
-      LOGGER.log(Level.INFO,
-        "IFC file created in {0} seconds.", chrono.seconds());
+      // a version that is still being uploaded is exported but not cached
+      boolean cacheable = isUploadCompleted(ifcdbVersion);
 
-      LOGGER.log(Level.INFO,
-        "Total time: {0} seconds.", chrono.totalSeconds());
+      return new IfcdbDownload(fileName, version, compression, null, -1,
+        System.currentTimeMillis(), output ->
+          exportModel(schema, modelId, modelVersion, output, compression,
+            cacheable));
     }
   }
 
@@ -267,56 +301,51 @@ public class IfcdbService
 
     try (var conn = store.getConnection(schema))
     {
+      if (conn.isStreamingUploadSupported())
+      {
+        return uploadModelStreaming(conn, ifcFile);
+      }
+
       var chrono = new Chronometer();
 
       IfcData data = conn.createData();
 
-      var loader = new StepLoader(data);
+      int loadThreads = config.getOptionalValue(BASE + "loadThreads",
+        Integer.class).orElse(Runtime.getRuntime().availableProcessors());
 
+      var loader = new ParallelStepLoader(data);
+      loader.setThreads(loadThreads);
       loader.load(ifcFile);
 
       LOGGER.log(Level.INFO,
         "IFC file loaded in {0} seconds.", chrono.seconds());
+      LOGGER.log(Level.FINE,
+        "Intern pool hits: {0}", loader.getInternPool());
       chrono.mark();
 
       ExpressCursor project = data.getIfcProject();
       if (project == null) throw new IOException(INVALID_IFC);
 
-      String modelId = project.get("GlobalId");
-      if (modelId == null) throw new IOException(INVALID_IFC);
+      IfcdbModel projectModel = new IfcdbModel();
+      projectModel.setId(project.get("GlobalId"));
+      projectModel.setName(project.get("Name"));
+      projectModel.setDescription(project.get("Description"));
 
-      int version;
-      IfcdbModel ifcdbModel = conn.getModel(modelId);
-      if (ifcdbModel == null)
-      {
-        String modelName = project.get("Name");
-        if (modelName == null || modelName.trim().length() == 0)
-        {
-          modelName = "New model";
-        }
-        ifcdbModel = new IfcdbModel();
-        ifcdbModel.setId(modelId);
-        ifcdbModel.setName(modelName);
-        ifcdbModel.setDescription(project.get("Description"));
-        ifcdbModel.setReadRoleIds(Set.of(getCurrentUserId()));
-        ifcdbModel.setUploadRoleIds(Set.of(getCurrentUserId()));
-        ifcdbModel = conn.createModel(ifcdbModel);
-      }
-      IfcdbVersion ifcdbVersion = new IfcdbVersion();
-      ifcdbVersion.setCreationDate(getISODate());
-      ifcdbVersion.setCreationAuthor(getCurrentUserId());
-      ifcdbVersion = conn.createModelVersion(modelId, ifcdbVersion);
-      version = ifcdbVersion.getVersion();
+      IfcdbModel ifcdbModel = getOrCreateModel(conn, projectModel);
+      int version = createModelVersion(conn, ifcdbModel.getId());
 
       LOGGER.log(Level.INFO,
         "Version created in {0} seconds.", chrono.seconds());
       chrono.mark();
 
-      conn.saveData(modelId, version, data);
+      conn.saveData(ifcdbModel.getId(), version, data);
 
       LOGGER.log(Level.INFO,
         "IFC objects saved in {0} seconds.", chrono.seconds());
 
+      invalidateExportCache(schema, ifcdbModel.getId(), version);
+      warmupExportCache(schema, ifcdbModel.getId(), version);
+
       LOGGER.log(Level.INFO,
         "Total time: {0} seconds.", chrono.totalSeconds());
 
@@ -340,7 +369,14 @@ public class IfcdbService
 
     try (var conn = store.getConnection(schema))
     {
-      return conn.updateModel(model);
+      IfcdbModel updatedModel = conn.updateModel(model);
+
+      // the name and description of the model are in the file header
+      if (exportCache != null)
+      {
+        exportCache.invalidate(schemaName, model.getId(), 0);
+      }
+      return updatedModel;
     }
   }
 
@@ -358,6 +394,11 @@ public class IfcdbService
 
       boolean deleted = conn.deleteModel(modelId, version);
 
+      if (exportCache != null)
+      {
+        exportCache.invalidate(schemaName, modelId, version);
+      }
+
       LOGGER.log(Level.INFO,
         "Total time: {0} seconds.", chrono.totalSeconds());
 
@@ -393,7 +434,7 @@ public class IfcdbService
           "IFC objects loaded in {0} seconds.", chrono.seconds());
         chrono.mark();
 
-        var exporter = new StepExporter(data);
+        var exporter = createExporter(data);
 
         var headerData = exporter.getHeaderData();
         headerData.getFileName().setName("query.ifc");
@@ -408,6 +449,453 @@ public class IfcdbService
     }
   }
 
+  /**
+   * Uploads a model reading the file in a pipeline of parse, convert and
+   * write stages, so the whole model is never held in memory.
+   * The IfcProject is found by a first scan of the file that stops as soon
+   * as the project record is read.
+   *
+   * @param conn the connection that supports streaming uploads
+   * @param ifcFile the file to upload
+   * @return the uploaded model
+   * @throws IOException if the file can not be read or is not valid
+   */
+  private IfcdbModel uploadModelStreaming(IfcdbConnection conn, File ifcFile)
+    throws IOException
+  {
+    var chrono = new Chronometer();
+
+    IfcdbModel projectModel = readProject(conn.getSchema(), ifcFile);
+
+    LOGGER.log(Level.INFO,
+      "IfcProject found in {0} seconds.", chrono.seconds());
+    chrono.mark();
+
+    boolean newModel = projectModel.getId() != null &&
+      conn.getModel(projectModel.getId()) == null;
+    IfcdbModel ifcdbModel = getOrCreateModel(conn, projectModel);
+    int version = createModelVersion(conn, ifcdbModel.getId());
+
+    LOGGER.log(Level.INFO,
+      "Version created in {0} seconds.", chrono.seconds());
+    chrono.mark();
+
+    IfcdbUploadSettings settings = new IfcdbUploadSettings();
+    config.getOptionalValue(BASE + "upload.batchSize", Integer.class)
+      .ifPresent(settings::setBatchSize);
+    config.getOptionalValue(BASE + "upload.queueSize", Integer.class)
+      .ifPresent(settings::setQueueSize);
+
+    int elementCount;
+    try
+    {
+      elementCount =
+        conn.saveData(ifcdbModel.getId(), version, ifcFile, settings);
+    }
+    catch (Throwable ex)
+    {
+      // the file is only parsed while it is saved
+      deleteFailedVersion(conn, ifcdbModel.getId(), version, newModel);
+      throw ex;
+    }
+
+    LOGGER.log(Level.INFO,
+      "{0} IFC objects saved in {1} seconds.",
+      new Object[]{ elementCount, chrono.seconds() });
+
+    invalidateExportCache(conn.getSchema(), ifcdbModel.getId(), version);
+    warmupExportCache(conn.getSchema(), ifcdbModel.getId(), version);
+
+    LOGGER.log(Level.INFO,
+      "Total time: {0} seconds.", chrono.totalSeconds());
+
+    return ifcdbModel;
+  }
+
+  /**
+   * Reads the GlobalId, Name and Description of the IfcProject of a file.
+   *
+   * @param schema the schema of the file
+   * @param ifcFile the file to read
+   * @return a model with the id, name and description of the project
+   * @throws IOException if the file has no IfcProject
+   */
+  private IfcdbModel readProject(ExpressSchema schema, File ifcFile)
+    throws IOException
+  {
+    if (!(schema.getNamedType("IfcProject") instanceof
+          ExpressEntity projectEntity))
+      throw new IOException(INVALID_IFC);
+
+    try (StepReader reader = new StepReader(
+      StepCompression.decompress(new FileInputStream(ifcFile))))
+    {
+      StepRecord record = reader.next();
+      while (record != null)
+      {
+        if (record.getTypeName().equalsIgnoreCase("IfcProject"))
+        {
+          IfcdbModel projectModel = new IfcdbModel();
+          projectModel.setId(getString(record, projectEntity, "GlobalId"));
+          projectModel.setName(getString(record, projectEntity, "Name"));
+          projectModel.setDescription(
+            getString(record, projectEntity, "Description"));
+          return projectModel;
+        }
+        record = reader.next();
+      }
+    }
+    throw new IOException(INVALID_IFC);
+  }
+
+  private String getString(StepRecord record, ExpressEntity entity,
+    String attributeName)
+  {
+    int index = entity.getAttributeIndex(attributeName);
+    if (index == -1 || index >= record.size()) return null;
+    return record.getString(index);
+  }
+
+  private IfcdbModel getOrCreateModel(IfcdbConnection conn,
+    IfcdbModel projectModel) throws IOException
+  {
+    String modelId = projectModel.getId();
+    if (modelId == null) throw new IOException(INVALID_IFC);
+
+    IfcdbModel ifcdbModel = conn.getModel(modelId);
+    if (ifcdbModel == null)
+    {
+      String modelName = projectModel.getName();
+      if (modelName == null || modelName.trim().length() == 0)
+      {
+        modelName = "New model";
+      }
+      ifcdbModel = new IfcdbModel();
+      ifcdbModel.setId(modelId);
+      ifcdbModel.setName(modelName);
+      ifcdbModel.setDescription(projectModel.getDescription());
+      ifcdbModel.setReadRoleIds(Set.of(getCurrentUserId()));
+      ifcdbModel.setUploadRoleIds(Set.of(getCurrentUserId()));
+      ifcdbModel = conn.createModel(ifcdbModel);
+    }
+    return ifcdbModel;
+  }
+
+  /**
+   * Deletes the version of an upload that could not be saved, and its
+   * model if it was created by that upload, so no partial version is
+   * left as the last version of the model. saveData does not throw until
+   * its writes have ended, so no element is written after the delete.
+   */
+  private void deleteFailedVersion(IfcdbConnection conn, String modelId,
+    int version, boolean newModel)
+  {
+    try
+    {
+      conn.deleteModel(modelId, version);
+      if (newModel && conn.getModel(modelId) != null)
+      {
+        conn.deleteModel(modelId, 0);
+      }
+      LOGGER.log(Level.INFO, "Failed upload deleted: {0} v{1}",
+        new Object[]{ modelId, version });
+    }
+    catch (Exception ex)
+    {
+      LOGGER.log(Level.SEVERE, "Can not delete failed upload {0} v{1}: {2}",
+        new Object[]{ modelId, version, ex.toString() });
+    }
+  }
+
+  private int createModelVersion(IfcdbConnection conn, String modelId)
+  {
+    IfcdbVersion ifcdbVersion = new IfcdbVersion();
+    ifcdbVersion.setCreationDate(getISODate());
+    ifcdbVersion.setCreationAuthor(getCurrentUserId());
+    ifcdbVersion = conn.createModelVersion(modelId, ifcdbVersion);
+    return ifcdbVersion.getVersion();
+  }
+
+  @PreDestroy
+  public void destroy()
+  {
+    synchronized (this)
+    {
+      if (warmupExecutor != null) warmupExecutor.shutdownNow();
+    }
+  }
+
+  private void initExportCache()
+  {
+    long maxSizeMb = config.getOptionalValue(BASE + "exportCache.maxSizeMb",
+      Long.class).orElse(0L);
+    if (maxSizeMb <= 0) return;
+
+    String directory = config.getOptionalValue(
+      BASE + "exportCache.directory", String.class).orElse("ifcdbcache");
+
+    StepCompression compression = "none".equalsIgnoreCase(
+      config.getOptionalValue(BASE + "exportCache.compression", String.class)
+        .orElse("gzip")) ? StepCompression.NONE : StepCompression.GZIP;
+
+    exportCacheWarmup = config.getOptionalValue(
+      BASE + "exportCache.warmupOnUpload", Boolean.class).orElse(true);
+
+    try
+    {
+      exportCache = new IfcdbExportCache(new File(directory),
+        maxSizeMb * 1048576L, compression);
+      LOGGER.log(Level.INFO, "Export cache dir: {0}", directory);
+    }
+    catch (Exception ex)
+    {
+      LOGGER.log(Level.SEVERE, "Error initializing export cache: {0}",
+        ex.toString());
+    }
+  }
+
+  /**
+   * Exports a model version in STEP format. The data is written to the
+   * output, if any, and to a new export cache entry, if enabled.
+   *
+   * @param schema the schema of the model
+   * @param modelId the model id
+   * @param version the version number
+   * @param output the stream to write or null to write only the cache entry.
+   * It is closed after exporting.
+   * @param compression the compression of the data written to output
+   * @param cacheable true to add the export to the cache. Only versions
+   * whose upload has completed can be cached.
+   * @throws IOException if an I/O error occurs
+   */
+  private void exportModel(ExpressSchema schema, String modelId, int version,
+    OutputStream output, StepCompression compression, boolean cacheable)
+    throws IOException
+  {
+    try (var conn = store.getConnection(schema))
+    {
+      var chrono = new Chronometer();
+
+      IfcdbModel ifcdbModel = conn.getModel(modelId);
+      if (ifcdbModel == null) throw new NotFoundException(MODEL_NOT_FOUND);
+
+      String fileName = getFileName(ifcdbModel, version);
+
+      IfcdbExportCache.EntryWriter entryWriter =
+        exportCache == null || !cacheable ? null :
+        exportCache.put(schema.getName(), modelId, version);
+
+      if (output == null && entryWriter == null) return;
+
+      OutputStream stepOutput;
+      if (entryWriter == null)
+      {
+        stepOutput = compression.getOutputStream(output, fileName);
+      }
+      else if (output == null)
+      {
+        stepOutput = entryWriter.getOutputStream();
+      }
+      else
+      {
+        stepOutput = new TeeOutputStream(
+          compression.getOutputStream(output, fileName),
+          entryWriter.getOutputStream());
+      }
+
+      try (Writer writer =
+        new BufferedWriter(new OutputStreamWriter(stepOutput)))
+      {
+        writeModel(conn, ifcdbModel, version, writer, chrono);
+      }
+      catch (IOException | RuntimeException ex)
+      {
+        if (entryWriter != null) entryWriter.abort();
+        throw ex;
+      }
+
+      if (entryWriter != null)
+      {
+        IfcdbExportCache.Entry entry = entryWriter.commit();
+        LOGGER.log(Level.INFO, "Export cache entry created: {0}",
+          entry.getFile());
+      }
+
+      LOGGER.log(Level.INFO,
+        "IFC file created in {0} seconds.", chrono.seconds());
+
+      LOGGER.log(Level.INFO,
+        "Total time: {0} seconds.", chrono.totalSeconds());
+    }
+  }
+
+  /**
+   * Writes a model version in STEP format. When the store supports it, the
+   * elements are written as they are read from the database, so the first
+   * bytes are sent before the whole model is read.
+   */
+  private void writeModel(IfcdbConnection conn, IfcdbModel ifcdbModel,
+    int version, Writer writer, Chronometer chrono) throws IOException
+  {
+    String modelId = ifcdbModel.getId();
+
+    var headerData = new StepFileHeaderData();
+    if (!isBlank(ifcdbModel.getName()))
+    {
+      headerData.getFileName().setName(getFileName(ifcdbModel, version));
+    }
+
+    String description = ifcdbModel.getDescription();
+    if (description != null)
+    {
+      headerData.getFileDescription().setDescription(List.of(description));
+    }
+
+    if (conn.isStreamingExportSupported())
+    {
+      conn.exportData(modelId, version, headerData, writer);
+    }
+    else
+    {
+      IfcData data = conn.loadData(modelId, version);
+
+      LOGGER.log(Level.INFO,
+        "IFC objects loaded in {0} seconds.", chrono.seconds());
+      chrono.mark();
+
+      var exporter = createExporter(data);
+      exporter.setHeaderData(headerData);
+      exporter.export(writer);
+    }
+  }
+
+  /**
+   * Creates the download of a cached export. The cached file is sent as
+   * is when it has the requested compression, otherwise it is recompressed
+   * while it is sent.
+   */
+  private IfcdbDownload createDownload(IfcdbExportCache.Entry entry,
+    String fileName, StepCompression compression) throws IOException
+  {
+    // opened now, so the file can be read even if it is evicted before
+    // the response is written
+    InputStream input = new FileInputStream(entry.getFile());
+
+    if (compression == entry.getCompression())
+    {
+      String entityTag = entry.getHash() +
+        (compression == StepCompression.GZIP ? "-gzip" : "");
+
+      return new IfcdbDownload(fileName, entry.getVersion(), compression,
+        entityTag, entry.getLength(), entry.getLastModified(), output ->
+        {
+          try (output)
+          {
+            input.transferTo(output);
+          }
+        }, input);
+    }
+
+    // zip entries have a timestamp, so only the gzip and uncompressed
+    // transcodings are byte identical on every request
+    String entityTag = compression == StepCompression.ZIP ? null :
+      entry.getHash() + (compression == StepCompression.GZIP ? "-gzip" : "");
+
+    return new IfcdbDownload(fileName, entry.getVersion(), compression,
+      entityTag, -1, entry.getLastModified(), output ->
+      {
+        try (InputStream stepInput = StepCompression.decompress(input);
+             OutputStream stepOutput =
+               compression.getOutputStream(output, fileName))
+        {
+          stepInput.transferTo(stepOutput);
+        }
+      }, input);
+  }
+
+  /**
+   * Adds a new model version to the export cache in background.
+   */
+  private void warmupExportCache(ExpressSchema schema, String modelId,
+    int version)
+  {
+    if (exportCache == null || !exportCacheWarmup) return;
+
+    synchronized (this)
+    {
+      if (warmupExecutor == null)
+      {
+        warmupExecutor = Executors.newSingleThreadExecutor();
+      }
+      warmupExecutor.submit(() ->
+      {
+        try
+        {
+          exportModel(schema, modelId, version, null, null, true);
+        }
+        catch (Exception ex)
+        {
+          LOGGER.log(Level.WARNING, "Export cache warmup failed: {0}",
+            ex.toString());
+        }
+      });
+    }
+  }
+
+  /**
+   * Discards the exports of a version cached while it was being uploaded.
+   */
+  private void invalidateExportCache(ExpressSchema schema, String modelId,
+    int version)
+  {
+    if (exportCache == null) return;
+
+    exportCache.invalidate(schema.getName(), modelId, version);
+  }
+
+  /**
+   * Tells whether the elements of a version have been completely saved.
+   * The stores set the element count when the upload completes.
+   */
+  private boolean isUploadCompleted(IfcdbVersion ifcdbVersion)
+  {
+    return ifcdbVersion.getElementCount() > 0;
+  }
+
+  private String getFileName(IfcdbModel ifcdbModel, int version)
+  {
+    String fileName = ifcdbModel.getName();
+    if (isBlank(fileName)) return "model.ifc";
+
+    fileName = fileName.trim().replace(" ", "_");
+    if (version > 0) fileName += "-v" + version;
+    return fileName + ".ifc";
+  }
+
+  /**
+   * Creates a StepExporter that formats the entities in parallel when the
+   * data supports concurrent reads, or streams them otherwise.
+   *
+   * @param data the data to export
+   * @return the exporter
+   */
+  private StepExporter createExporter(IfcData data)
+  {
+    int exportThreads = config.getOptionalValue(BASE + "exportThreads",
+      Integer.class).orElse(Runtime.getRuntime().availableProcessors());
+
+    var exporter = new StepExporter(data);
+    if (exportThreads > 1 && data.isConcurrentReadSupported())
+    {
+      exporter.setThreads(exportThreads);
+    }
+    else
+    {
+      exporter.setStreaming(true);
+    }
+    return exporter;
+  }
+
   private String getCurrentUserId()
   {
     return securityService.getCurrentUserId();
@@ -40,4 +40,15 @@ import org.bimrocket.express.data.ExpressData;
 public interface IfcData extends ExpressData
 {
   public abstract ExpressCursor getIfcProject();
+
+  /**
+   * Tells if this data can be read from several threads at the same time
+   * once loaded.
+   *
+   * @return true if concurrent reads are supported
+   */
+  default boolean isConcurrentReadSupported()
+  {
+    return false;
+  }
 }
@@ -32,6 +32,7 @@ package org.bimrocket.service.ifcdb.store;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.List;
 import java.util.Set;
 import org.bimrocket.api.ifcdb.IfcdbModel;
@@ -40,6 +41,7 @@ import org.bimrocket.dao.DaoConnection;
 import org.bimrocket.dao.expression.Expression;
 import org.bimrocket.dao.expression.OrderByExpression;
 import org.bimrocket.express.ExpressSchema;
+import org.bimrocket.step.header.StepFileHeaderData;
 
 /**
  *
@@ -73,6 +75,65 @@ public interface IfcdbConnection extends DaoConnection
 
   void saveData(String modelId, int version, IfcData data);
 
+  /**
+   * Tells whether this connection can save a model version directly from
+   * a STEP file with {@link #saveData(String, int, File, IfcdbUploadSettings)}.
+   *
+   * @return true if streaming uploads are supported
+   */
+  default boolean isStreamingUploadSupported()
+  {
+    return false;
+  }
+
+  /**
+   * Saves the elements of a STEP file as the given model version without
+   * loading the whole file in memory. The file is read, converted and
+   * written in batches by concurrent stages. When it fails, it returns
+   * after all its writes have ended, so the partial version can be deleted.
+   *
+   * @param modelId the model id
+   * @param version the model version
+   * @param ifcFile the STEP file, plain or compressed
+   * @param settings the batch and queue sizes of the upload
+   * @return the number of elements saved
+   * @throws IOException if the file can not be read or is not valid
+   */
+  default int saveData(String modelId, int version, File ifcFile,
+    IfcdbUploadSettings settings) throws IOException
+  {
+    throw new UnsupportedOperationException("Streaming upload not supported");
+  }
+
+  /**
+   * Tells whether this connection can export a model version directly from
+   * the database with {@link #exportData(String, int, StepFileHeaderData,
+   * Writer)}.
+   *
+   * @return true if streaming exports are supported
+   */
+  default boolean isStreamingExportSupported()
+  {
+    return false;
+  }
+
+  /**
+   * Writes the elements of a model version in STEP format as they are
+   * read from the database, without loading them in an IfcData.
+   *
+   * @param modelId the model id
+   * @param version the model version
+   * @param headerData the header of the STEP file
+   * @param writer the writer that receives the STEP file
+   * @return the number of elements written
+   * @throws IOException if an I/O error occurs
+   */
+  default long exportData(String modelId, int version,
+    StepFileHeaderData headerData, Writer writer) throws IOException
+  {
+    throw new UnsupportedOperationException("Streaming export not supported");
+  }
+
   IfcData queryData(String query, String language);
 
   void execute(String query, String language,
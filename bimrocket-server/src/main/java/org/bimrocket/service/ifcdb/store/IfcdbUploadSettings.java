@@ -0,0 +1,75 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb.store;
+
+/**
+ * The settings of a streaming upload.
+ * <p>
+ * The records of the file are read, converted and written in batches of
+ * {@code batchSize} elements. Consecutive stages exchange the batches
+ * through queues of {@code queueSize} batches, so a fast stage blocks
+ * when the next one falls behind and the memory used is bounded by
+ * about {@code (2 * queueSize + 3) * batchSize} elements.
+ *
+ * @author realor
+ */
+public class IfcdbUploadSettings
+{
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+  public static final int DEFAULT_QUEUE_SIZE = 4;
+
+  private int batchSize = DEFAULT_BATCH_SIZE;
+  private int queueSize = DEFAULT_QUEUE_SIZE;
+
+  public int getBatchSize()
+  {
+    return batchSize;
+  }
+
+  public void setBatchSize(int batchSize)
+  {
+    if (batchSize < 1)
+      throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+    this.batchSize = batchSize;
+  }
+
+  public int getQueueSize()
+  {
+    return queueSize;
+  }
+
+  public void setQueueSize(int queueSize)
+  {
+    if (queueSize < 1)
+      throw new IllegalArgumentException("Invalid queue size: " + queueSize);
+    this.queueSize = queueSize;
+  }
+}
@@ -51,4 +51,10 @@ public class GenericIfcData extends GenericData implements IfcData
   {
     return null;
   }
+
+  @Override
+  public boolean isConcurrentReadSupported()
+  {
+    return true;
+  }
 }
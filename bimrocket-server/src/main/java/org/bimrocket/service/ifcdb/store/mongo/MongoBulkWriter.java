@@ -0,0 +1,277 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb.store.mongo;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertOneModel;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import static org.bimrocket.service.ifcdb.store.mongo.MongoIfcStore.LOGGER;
+import org.bson.Document;
+
+/**
+ * Inserts documents into a mongo collection with unordered bulk writes
+ * executed concurrently by a pool of writer threads.
+ * <p>
+ * The documents submitted are split in batches of {@code batchSize}
+ * documents. At most two batches per thread are pending at any time, so
+ * {@link #submit(List)} blocks when the database can not keep up.
+ * <p>
+ * A failed batch is retried up to {@code maxRetries} times with an
+ * exponential delay. Only the documents that were not written are sent
+ * again. The documents have fixed ids, so a duplicate key error in a
+ * retry means that the document was written by a previous attempt whose
+ * acknowledgement was lost.
+ *
+ * @author realor
+ */
+public class MongoBulkWriter implements Closeable
+{
+  public static final int DEFAULT_THREADS = 4;
+  public static final int DEFAULT_BATCH_SIZE = 1000;
+  public static final int DEFAULT_MAX_RETRIES = 3;
+  static final long RETRY_DELAY_MILLIS = 100;
+  static final long CLOSE_WAIT_SECONDS = 30;
+
+  protected final MongoCollection<Document> collection;
+  protected final int maxRetries;
+  private final int threads;
+  private final int batchSize;
+  private final ExecutorService executor;
+  private final Deque<Future<Integer>> pending = new ArrayDeque<>();
+  private final LongAdder retries = new LongAdder();
+  private final long startTime = System.nanoTime();
+  private long documentCount;
+  private int batchCount;
+
+  public MongoBulkWriter(MongoCollection<Document> collection, int threads,
+    int batchSize, int maxRetries)
+  {
+    this.collection = collection;
+    this.threads = Math.max(1, threads);
+    this.batchSize = Math.max(1, batchSize);
+    this.maxRetries = Math.max(0, maxRetries);
+    this.executor = Executors.newFixedThreadPool(this.threads);
+  }
+
+  /**
+   * Queues the given documents for writing. The caller must not modify
+   * the list after this call.
+   *
+   * @param documents the documents to write
+   * @throws IOException if a previous batch could not be written
+   */
+  public void submit(List<Document> documents) throws IOException
+  {
+    for (int start = 0; start < documents.size(); start += batchSize)
+    {
+      List<Document> batch = documents.subList(start,
+        Math.min(start + batchSize, documents.size()));
+      pending.add(executor.submit(() -> writeBatch(batch)));
+      batchCount++;
+      if (pending.size() >= 2 * threads)
+      {
+        documentCount += waitFor(pending.poll());
+      }
+    }
+  }
+
+  /**
+   * Waits until all the submitted documents are written.
+   *
+   * @return the number of documents written by this writer
+   * @throws IOException if a batch could not be written
+   */
+  public long finish() throws IOException
+  {
+    while (!pending.isEmpty())
+    {
+      documentCount += waitFor(pending.poll());
+    }
+    double seconds = (System.nanoTime() - startTime) / 1e9;
+    LOGGER.log(Level.INFO,
+      "Bulk write: {0} documents in {1} batches, {2} threads, {3} retries, " +
+      "{4} seconds, {5} documents/s", new Object[]{ documentCount,
+      batchCount, threads, retries.sum(), seconds,
+      Math.round(documentCount / Math.max(seconds, 0.001)) });
+
+    return documentCount;
+  }
+
+  /**
+   * Writes the given documents and waits until all of them are written.
+   *
+   * @param documents the documents to write
+   * @return the number of documents written by this writer
+   * @throws IOException if a batch could not be written
+   */
+  public long write(List<Document> documents) throws IOException
+  {
+    submit(documents);
+    return finish();
+  }
+
+  /**
+   * Cancels the batches not started and waits until the running ones end.
+   * The driver does not abort a bulk write when its thread is interrupted,
+   * so the collection is not modified by this writer after this call.
+   */
+  @Override
+  public void close()
+  {
+    for (Future<Integer> future : pending)
+    {
+      future.cancel(false);
+    }
+    pending.clear();
+    executor.shutdownNow(); // interrupts the retry delays
+
+    boolean interrupted = false;
+    while (true)
+    {
+      try
+      {
+        if (executor.awaitTermination(CLOSE_WAIT_SECONDS, TimeUnit.SECONDS))
+          break;
+        LOGGER.log(Level.WARNING, "Waiting for the running bulk writes.");
+      }
+      catch (InterruptedException ex)
+      {
+        interrupted = true;
+      }
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  protected int writeBatch(List<Document> batch) throws InterruptedException
+  {
+    List<Document> remaining = batch;
+    int attempt = 0;
+    while (true)
+    {
+      try
+      {
+        List<InsertOneModel<Document>> models =
+          new ArrayList<>(remaining.size());
+        for (Document document : remaining)
+        {
+          models.add(new InsertOneModel<>(document));
+        }
+        collection.bulkWrite(models, new BulkWriteOptions().ordered(false));
+        return batch.size();
+      }
+      catch (MongoBulkWriteException ex)
+      {
+        if (attempt >= maxRetries) throw ex;
+
+        if (ex.getWriteConcernError() == null)
+        {
+          remaining = getUnwritten(remaining, ex, attempt);
+          if (remaining.isEmpty()) return batch.size();
+        }
+        // else, resend all: the written documents will be duplicate keys
+      }
+      catch (MongoException ex)
+      {
+        if (attempt >= maxRetries) throw ex;
+      }
+      attempt++;
+      waitRetry(attempt);
+    }
+  }
+
+  /**
+   * Waits before retrying a batch.
+   *
+   * @param attempt the number of the retry, starting at 1
+   * @throws InterruptedException if the writer is closed while waiting
+   */
+  protected void waitRetry(int attempt) throws InterruptedException
+  {
+    retries.increment();
+    Thread.sleep(RETRY_DELAY_MILLIS << (attempt - 1));
+  }
+
+  private List<Document> getUnwritten(List<Document> documents,
+    MongoBulkWriteException ex, int attempt)
+  {
+    List<Document> unwritten = new ArrayList<>();
+    for (BulkWriteError error : ex.getWriteErrors())
+    {
+      if (ErrorCategory.fromErrorCode(error.getCode()) ==
+          ErrorCategory.DUPLICATE_KEY)
+      {
+        if (attempt == 0) throw ex; // not written by this writer
+      }
+      else
+      {
+        unwritten.add(documents.get(error.getIndex()));
+      }
+    }
+    return unwritten;
+  }
+
+  private int waitFor(Future<Integer> future) throws IOException
+  {
+    try
+    {
+      return future.get();
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      throw new IOException(ex);
+    }
+    catch (ExecutionException ex)
+    {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException runtimeException)
+        throw runtimeException;
+      throw new IOException(cause);
+    }
+  }
+}
@@ -0,0 +1,409 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb.store.mongo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+import org.bimrocket.express.ExpressConstant;
+import org.bimrocket.step.io.StepCompression;
+import org.bimrocket.step.io.StepReader;
+import org.bimrocket.step.io.StepRecord;
+import org.bimrocket.util.IntIntHashMap;
+import org.bimrocket.util.ObjectIntHashMap;
+import org.bson.types.ObjectId;
+
+/**
+ * Computes a content id for each element of a STEP file, so equal
+ * elements of different versions of a model are stored only once.
+ * <p>
+ * The id of an element is a Merkle hash: the SHA-256 of the model id, its
+ * type and values, where each reference is replaced by the id of the
+ * referenced element. Two elements of different versions of a model get
+ * the same id when they have the same values and reference elements with
+ * the same ids, whatever their tags are. Equal elements of the same file
+ * are numbered in the order they are hashed, and the copies after the
+ * first one get the hash of its id and their number, so every element of
+ * the file is stored. The ids are not shared between models, so the members
+ * of a common element like an IfcSIUnit grow with the versions of one
+ * model, not with all the versions in the database. The
+ * first 12 bytes of the hash are used as an ObjectId, so the references
+ * are stored and exported as in any other upload.
+ * <p>
+ * The ids are computed in a first pass over the file that only keeps, per
+ * element, the digest of its values and the tags it references. The
+ * referenced elements are hashed first in a depth-first traversal. An
+ * element that references one of its ancestors (a reference cycle) can
+ * not have a content id and gets the upload id given by the converter,
+ * as do the undefined elements. The ids of the elements that reference
+ * them are unique to this upload too.
+ *
+ * @author realor
+ */
+public class MongoContentHasher
+{
+  static final int ID_SIZE = 12;
+  static final byte NEW = 0;
+  static final byte IN_PROGRESS = 1;
+  static final byte DONE = 2;
+
+  private final String modelId;
+  private final IntFunction<ObjectId> uploadIds;
+  private final IntIntHashMap tagIndices = new IntIntHashMap();
+  private final MessageDigest digest;
+  private final ByteBuffer buffer = ByteBuffer.allocate(64);
+  private int[] tags = new int[1024];
+  private int[] refStarts = new int[1024];
+  private int[] refs = new int[4096];
+  private long[] high = new long[1024];
+  private long[] low = new long[1024];
+  private int count;
+  private int refCount;
+  private int uploadIdCount;
+  private boolean computed;
+
+  /**
+   * Creates a hasher.
+   *
+   * @param modelId the id of the model, that is part of the content ids
+   * @param uploadIds the function that returns the id of an element that
+   * can not have a content id, given its tag
+   */
+  public MongoContentHasher(String modelId, IntFunction<ObjectId> uploadIds)
+  {
+    this.modelId = modelId;
+    this.uploadIds = uploadIds;
+    try
+    {
+      this.digest = MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Reads the records of a STEP file and computes the ids of its elements.
+   *
+   * @param ifcFile the STEP file, plain or compressed
+   * @throws IOException if the file can not be read or is not valid
+   */
+  public void read(File ifcFile) throws IOException
+  {
+    try (StepReader reader = new StepReader(
+      StepCompression.decompress(new FileInputStream(ifcFile))))
+    {
+      StepRecord record = reader.next();
+      while (record != null)
+      {
+        add(record);
+        record = reader.next();
+      }
+    }
+    computeIds();
+  }
+
+  /**
+   * Adds an element record. The records without tag are ignored.
+   *
+   * @param record the record of the element
+   * @throws IOException if the tag of the record was already added
+   */
+  public void add(StepRecord record) throws IOException
+  {
+    int tag = record.getTagNumber();
+    if (tag == StepRecord.NO_TAG) return;
+
+    if (tagIndices.containsKey(tag))
+      throw new IOException("Duplicated element #" + tag);
+
+    if (count == tags.length)
+    {
+      int capacity = 2 * count;
+      tags = Arrays.copyOf(tags, capacity);
+      refStarts = Arrays.copyOf(refStarts, capacity);
+      high = Arrays.copyOf(high, capacity);
+      low = Arrays.copyOf(low, capacity);
+    }
+    tagIndices.put(tag, count);
+    tags[count] = tag;
+    refStarts[count] = refCount;
+
+    digest.reset();
+    updateText(modelId);
+    updateText(record.getTypeName());
+    updateValues(record.getValues());
+    byte[] hash = digest.digest();
+    ByteBuffer hashBuffer = ByteBuffer.wrap(hash);
+    high[count] = hashBuffer.getLong();
+    low[count] = hashBuffer.getLong();
+    count++;
+    computed = false;
+  }
+
+  /**
+   * Computes the ids of the elements added. It must be called after
+   * adding the last record.
+   */
+  public void computeIds()
+  {
+    byte[] states = new byte[count];
+    ObjectIntHashMap<ObjectId> copies = new ObjectIntHashMap<>();
+    int[] positions = new int[count];
+    int[] stack = new int[Math.max(1, count)];
+
+    for (int root = 0; root < count; root++)
+    {
+      if (states[root] != NEW) continue;
+
+      int top = 0;
+      stack[0] = root;
+      states[root] = IN_PROGRESS;
+      positions[root] = refStarts[root];
+      while (top >= 0)
+      {
+        int index = stack[top];
+        if (positions[index] < getRefEnd(index))
+        {
+          int refIndex = tagIndices.get(refs[positions[index]++], -1);
+          if (refIndex != -1 && states[refIndex] == NEW)
+          {
+            states[refIndex] = IN_PROGRESS;
+            positions[refIndex] = refStarts[refIndex];
+            stack[++top] = refIndex;
+          }
+        }
+        else
+        {
+          computeId(index, states, copies);
+          states[index] = DONE;
+          top--;
+        }
+      }
+    }
+    computed = true;
+  }
+
+  /**
+   * Returns the id of the element with the given tag.
+   *
+   * @param tag the tag of the element
+   * @return the content id of the element, or its upload id if it has no
+   * content id or it was not added
+   */
+  public ObjectId getObjectId(int tag)
+  {
+    if (!computed) throw new IllegalStateException("Ids not computed");
+
+    int index = tagIndices.get(tag, -1);
+    if (index == -1) return uploadIds.apply(tag);
+
+    ByteBuffer idBuffer = ByteBuffer.allocate(ID_SIZE);
+    idBuffer.putLong(high[index]);
+    idBuffer.putInt((int)low[index]);
+    return new ObjectId(idBuffer.array());
+  }
+
+  /**
+   * Returns the number of elements added.
+   *
+   * @return the element count
+   */
+  public int getElementCount()
+  {
+    return count;
+  }
+
+  /**
+   * Returns the number of elements that got an upload id because they
+   * are part of a reference cycle.
+   *
+   * @return the number of elements without content id
+   */
+  public int getUploadIdCount()
+  {
+    return uploadIdCount;
+  }
+
+  /**
+   * Replaces the digest of the values of an element by its id. All the
+   * elements it references are DONE, except its ancestors.
+   *
+   * @param copies the number of elements hashed for each content id
+   */
+  private void computeId(int index, byte[] states,
+    ObjectIntHashMap<ObjectId> copies)
+  {
+    boolean cyclic = false;
+    digest.reset();
+    buffer.clear();
+    buffer.putLong(high[index]);
+    buffer.putLong(low[index]);
+    digest.update(buffer.array(), 0, buffer.position());
+
+    int end = getRefEnd(index);
+    for (int i = refStarts[index]; i < end && !cyclic; i++)
+    {
+      int refIndex = tagIndices.get(refs[i], -1);
+      if (refIndex == -1)
+      {
+        digest.update(uploadIds.apply(refs[i]).toByteArray());
+      }
+      else if (states[refIndex] == IN_PROGRESS)
+      {
+        cyclic = true;
+      }
+      else
+      {
+        buffer.clear();
+        buffer.putLong(high[refIndex]);
+        buffer.putInt((int)low[refIndex]);
+        digest.update(buffer.array(), 0, buffer.position());
+      }
+    }
+
+    ByteBuffer idBuffer;
+    if (cyclic)
+    {
+      idBuffer = ByteBuffer.wrap(uploadIds.apply(tags[index]).toByteArray());
+      uploadIdCount++;
+    }
+    else
+    {
+      byte[] hash = digest.digest();
+      ObjectId contentId = new ObjectId(Arrays.copyOf(hash, ID_SIZE));
+      int copyCount = copies.get(contentId, 0);
+      copies.put(contentId, copyCount + 1);
+      if (copyCount > 0) // an equal element of this file has the id
+      {
+        digest.reset();
+        digest.update(hash);
+        updateInt(copyCount);
+        hash = digest.digest();
+      }
+      idBuffer = ByteBuffer.wrap(hash);
+    }
+    high[index] = idBuffer.getLong();
+    low[index] = idBuffer.getInt();
+  }
+
+  private int getRefEnd(int index)
+  {
+    return index + 1 < count ? refStarts[index + 1] : refCount;
+  }
+
+  private void updateValues(List<Object> values) throws IOException
+  {
+    updateInt(values.size());
+    for (Object value : values)
+    {
+      updateValue(value);
+    }
+  }
+
+  private void updateValue(Object value) throws IOException
+  {
+    if (value == null)
+    {
+      digest.update((byte)'$');
+    }
+    else if (value instanceof Long number)
+    {
+      buffer.clear();
+      buffer.put((byte)'L').putLong(number);
+      digest.update(buffer.array(), 0, buffer.position());
+    }
+    else if (value instanceof Double number)
+    {
+      buffer.clear();
+      buffer.put((byte)'D').putLong(Double.doubleToLongBits(number));
+      digest.update(buffer.array(), 0, buffer.position());
+    }
+    else if (value instanceof String text)
+    {
+      digest.update((byte)'S');
+      updateText(text);
+    }
+    else if (value instanceof ExpressConstant constant)
+    {
+      digest.update((byte)'C');
+      updateText(constant.toString());
+    }
+    else if (value instanceof StepRecord.Reference reference)
+    {
+      // the id of the referenced element is added by computeId
+      digest.update((byte)'#');
+      if (refCount == refs.length)
+      {
+        refs = Arrays.copyOf(refs, 2 * refCount);
+      }
+      refs[refCount++] = reference.getTagNumber();
+    }
+    else if (value instanceof List<?> list)
+    {
+      digest.update((byte)'(');
+      updateInt(list.size());
+      for (Object item : list)
+      {
+        updateValue(item);
+      }
+    }
+    else if (value instanceof StepRecord typedValue)
+    {
+      digest.update((byte)'T');
+      updateText(typedValue.getTypeName());
+      updateValues(typedValue.getValues());
+    }
+    else throw new IOException("Unsupported value: " + value);
+  }
+
+  private void updateText(String text)
+  {
+    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+    updateInt(bytes.length);
+    digest.update(bytes);
+  }
+
+  private void updateInt(int value)
+  {
+    buffer.clear();
+    buffer.putInt(value);
+    digest.update(buffer.array(), 0, buffer.position());
+  }
+}
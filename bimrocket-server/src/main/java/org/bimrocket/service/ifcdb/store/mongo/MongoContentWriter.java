@@ -0,0 +1,133 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb.store.mongo;
+
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import static com.mongodb.client.model.Filters.in;
+import com.mongodb.client.model.InsertOneModel;
+import static com.mongodb.client.model.Projections.include;
+import com.mongodb.client.model.UpdateManyModel;
+import static com.mongodb.client.model.Updates.addToSet;
+import com.mongodb.client.model.WriteModel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.bson.Document;
+
+/**
+ * A MongoBulkWriter for documents with content ids, that may already be
+ * stored by other versions.
+ * <p>
+ * Each batch first looks up which of its ids exist. The new documents are
+ * inserted and the existing ones only get the member key of the version
+ * added to their {@code _members} array by a single update, so the
+ * unchanged elements of a revision are neither sent nor rewritten.
+ * <p>
+ * Both operations are idempotent, so a failed batch is retried as a whole.
+ * A duplicate key error means that another writer inserted the same
+ * element after the lookup, and the retry updates it instead. When the
+ * update matches fewer documents than were found, a concurrent delete
+ * removed them after the lookup, and the batch is retried with the
+ * documents that were updated or deleted. This retry counts as a failed
+ * attempt too.
+ *
+ * @author realor
+ */
+public class MongoContentWriter extends MongoBulkWriter
+{
+  private final String memberKey;
+
+  public MongoContentWriter(MongoCollection<Document> collection,
+    String memberKey, int threads, int batchSize, int maxRetries)
+  {
+    super(collection, threads, batchSize, maxRetries);
+    this.memberKey = memberKey;
+  }
+
+  @Override
+  protected int writeBatch(List<Document> batch) throws InterruptedException
+  {
+    Map<Object, Document> documents = new LinkedHashMap<>();
+    for (Document document : batch)
+    {
+      documents.put(document.get("_id"), document);
+    }
+
+    int attempt = 0;
+    while (true)
+    {
+      try
+      {
+        Set<Object> existingIds = new HashSet<>();
+        collection.find(in("_id", documents.keySet()))
+          .projection(include("_id"))
+          .forEach(document -> existingIds.add(document.get("_id")));
+
+        List<WriteModel<Document>> models = new ArrayList<>();
+        for (Document document : documents.values())
+        {
+          if (!existingIds.contains(document.get("_id")))
+          {
+            models.add(new InsertOneModel<>(document));
+          }
+        }
+        if (!existingIds.isEmpty())
+        {
+          models.add(new UpdateManyModel<>(in("_id", existingIds),
+            addToSet("_members", memberKey)));
+        }
+        BulkWriteResult result =
+          collection.bulkWrite(models, new BulkWriteOptions().ordered(false));
+
+        if (result.getMatchedCount() == existingIds.size())
+          return batch.size();
+
+        // some existing documents were deleted with the last version they
+        // belonged to after the lookup, the next lookup inserts them again
+        documents.keySet().retainAll(existingIds);
+        if (attempt >= maxRetries)
+          throw new MongoException("Documents deleted while updated");
+      }
+      catch (MongoException ex)
+      {
+        if (attempt >= maxRetries) throw ex;
+      }
+      attempt++;
+      waitRetry(attempt);
+    }
+  }
+}
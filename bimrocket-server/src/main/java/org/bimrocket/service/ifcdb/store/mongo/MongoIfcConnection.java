@@ -37,15 +37,18 @@ import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import static com.mongodb.client.model.Filters.and;
 import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.or;
 import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.Indexes;
 import com.mongodb.client.model.Sorts;
+import static com.mongodb.client.model.Updates.pull;
 import com.mongodb.client.result.DeleteResult;
 import static com.mongodb.connection.ClusterType.REPLICA_SET;
 import jakarta.enterprise.inject.spi.CDI;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -61,9 +64,11 @@ import org.bimrocket.express.ExpressSchema;
 import static org.bimrocket.service.ifcdb.IfcdbService.MODEL_NOT_FOUND;
 import org.bimrocket.service.ifcdb.store.IfcData;
 import org.bimrocket.service.ifcdb.store.IfcdbConnection;
+import org.bimrocket.service.ifcdb.store.IfcdbUploadSettings;
 import static org.bimrocket.service.ifcdb.store.mongo.MongoIfcStore.LOGGER;
 import static org.bimrocket.service.security.SecurityConstants.ADMIN_ROLE;
 import org.bimrocket.service.security.SecurityService;
+import org.bimrocket.step.header.StepFileHeaderData;
 import org.bimrocket.util.Chronometer;
 import org.bson.BsonArray;
 import org.bson.Document;
@@ -78,11 +83,16 @@ public class MongoIfcConnection implements IfcdbConnection
   static final String MODEL_COL = "IfcdbModel";
   static final String VERSION_COL = "IfcdbVersion";
   static final String OBJECT_COL = "IfcdbObject";
+  static final int EXPORT_BATCH_SIZE = 1000;
 
   protected final ClientSession session;
   protected final boolean transactionEnabled;
   protected final MongoDatabase db;
   protected final ExpressSchema schema;
+  protected int writerThreads = MongoBulkWriter.DEFAULT_THREADS;
+  protected int writeBatchSize = MongoBulkWriter.DEFAULT_BATCH_SIZE;
+  protected int maxRetries = MongoBulkWriter.DEFAULT_MAX_RETRIES;
+  protected boolean deduplicate;
 
   public MongoIfcConnection(MongoClient mongoClient, MongoDatabase db,
     ExpressSchema schema)
@@ -94,6 +104,60 @@ public class MongoIfcConnection implements IfcdbConnection
     this.schema = schema;
   }
 
+  public int getWriterThreads()
+  {
+    return writerThreads;
+  }
+
+  public void setWriterThreads(int writerThreads)
+  {
+    this.writerThreads = writerThreads;
+  }
+
+  public int getWriteBatchSize()
+  {
+    return writeBatchSize;
+  }
+
+  public void setWriteBatchSize(int writeBatchSize)
+  {
+    this.writeBatchSize = writeBatchSize;
+  }
+
+  public int getMaxRetries()
+  {
+    return maxRetries;
+  }
+
+  public void setMaxRetries(int maxRetries)
+  {
+    this.maxRetries = maxRetries;
+  }
+
+  public boolean isDeduplicate()
+  {
+    return deduplicate;
+  }
+
+  /**
+   * Enables the storage of the uploaded elements by content id. An
+   * element equal to an element of a previous version of the same model
+   * is not stored again, the new version is only added to its members.
+   * The versions uploaded before remain readable.
+   * <p>
+   * The elements stored by content id have a {@code _modelId} but no
+   * {@code _version} field: their versions are the {@code modelId/version}
+   * keys of their {@code _members} array. The user queries of
+   * {@link #queryData} and {@link #execute} that select a version must
+   * filter on {@code _members} to find them.
+   *
+   * @param deduplicate true to store the uploaded elements by content id
+   */
+  public void setDeduplicate(boolean deduplicate)
+  {
+    this.deduplicate = deduplicate;
+  }
+
   @Override
   public ExpressSchema getSchema()
   {
@@ -106,7 +170,9 @@ public class MongoIfcConnection implements IfcdbConnection
     IndexOptions options = new IndexOptions().unique(false);
 
     db.getCollection(OBJECT_COL)
-      .createIndex(Indexes.ascending("_modelId", "_version"), options);
+      .createIndex(Indexes.ascending("_modelId", "_version", "_id"), options);
+    db.getCollection(OBJECT_COL)
+      .createIndex(Indexes.ascending("_members", "_id"), options);
     db.getCollection(OBJECT_COL)
       .createIndex(Indexes.ascending("_class"), options);
     db.getCollection(OBJECT_COL)
@@ -260,12 +326,17 @@ public class MongoIfcConnection implements IfcdbConnection
 
     if (version == 0) // remove all versions
     {
+      for (IfcdbVersion ifcdbVersion : getModelVersions(modelId))
+      {
+        deleteMembers(objectCol, modelId, ifcdbVersion.getVersion());
+      }
       objectCol.deleteMany(eq("_modelId", modelId));
       versionCol.deleteMany(eq("modelId", modelId));
       deleteResult = modelCol.deleteOne(eq("_id", modelId));
     }
     else // remove specific version
     {
+      deleteMembers(objectCol, modelId, version);
       objectCol.deleteMany(and(eq("_modelId", modelId), eq("_version", version)));
 
       deleteResult =
@@ -307,7 +378,7 @@ public class MongoIfcConnection implements IfcdbConnection
     MongoIfcData data = new MongoIfcData(schema, objectCol);
 
     MongoCursor<Document> cursor = objectCol.find(
-      and(eq("_modelId", modelId), eq("_version", version))).cursor();
+      getVersionFilter(modelId, version)).cursor();
 
     cursor.forEachRemaining(object -> data.getElements().add(object));
 
@@ -332,19 +403,97 @@ public class MongoIfcConnection implements IfcdbConnection
       element.put("_version", version);
     }
 
-    MongoCollection<Document> ifcObjects = db.getCollection(OBJECT_COL);
-    ifcObjects.insertMany(mongoData.getElements());
+    try (MongoBulkWriter writer = createBulkWriter())
+    {
+      writer.write(mongoData.getElements());
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
 
-    MongoCollection<Document> versionCol = db.getCollection(VERSION_COL);
-    Bson filter = and(eq("modelId", modelId), eq("version", version));
-    Document ifcdbVersion = versionCol.find(filter).first();
-    if (ifcdbVersion == null) throw new NotFoundException("Invalid version");
-    ifcdbVersion.put("elementCount", mongoData.getElements().size());
-    versionCol.replaceOne(filter, ifcdbVersion);
+    updateElementCount(modelId, version, mongoData.getElements().size());
 
     LOGGER.log(Level.INFO, "Model loaded in {0} seconds", chrono.totalSeconds());
   }
 
+  @Override
+  public boolean isStreamingUploadSupported()
+  {
+    return true;
+  }
+
+  @Override
+  public int saveData(String modelId, int version, File ifcFile,
+    IfcdbUploadSettings settings) throws IOException
+  {
+    var chrono = new Chronometer();
+
+    var converter = new MongoRecordConverter(schema, modelId, version);
+    if (deduplicate)
+    {
+      var hasher = new MongoContentHasher(modelId,
+        converter::getUploadId);
+      hasher.read(ifcFile);
+      converter.setContentHasher(hasher);
+
+      LOGGER.log(Level.INFO, "{0} content ids ({1} upload ids) " +
+        "computed in {2} seconds", new Object[]{ hasher.getElementCount(),
+        hasher.getUploadIdCount(), chrono.seconds() });
+      chrono.mark();
+    }
+
+    int elementCount;
+    // closing the writer waits for its running batches if the upload fails
+    try (MongoBulkWriter writer = deduplicate ?
+      createContentWriter(modelId, version) : createBulkWriter())
+    {
+      MongoUploadPipeline pipeline = new MongoUploadPipeline(schema,
+        writer, converter, ifcFile, settings);
+
+      elementCount = pipeline.run();
+    }
+
+    updateElementCount(modelId, version, elementCount);
+
+    LOGGER.log(Level.INFO, "Model loaded in {0} seconds", chrono.totalSeconds());
+
+    return elementCount;
+  }
+
+  @Override
+  public boolean isStreamingExportSupported()
+  {
+    return true;
+  }
+
+  @Override
+  public long exportData(String modelId, int version,
+    StepFileHeaderData headerData, Writer writer) throws IOException
+  {
+    var chrono = new Chronometer();
+
+    MongoCollection<Document> objectCol = db.getCollection(OBJECT_COL);
+
+    // sorted by _id, the order in which the elements were created when
+    // they have upload ids. Content ids are exported in hash order.
+    try (MongoCursor<Document> cursor = objectCol
+      .find(getVersionFilter(modelId, version))
+      .sort(Sorts.ascending("_id"))
+      .batchSize(EXPORT_BATCH_SIZE)
+      .cursor())
+    {
+      MongoStepExporter exporter = new MongoStepExporter(schema, cursor);
+      exporter.setHeaderData(headerData);
+      exporter.export(writer);
+
+      LOGGER.log(Level.INFO, "{0} elements exported in {1} seconds",
+        new Object[]{ exporter.getDocumentCount(), chrono.totalSeconds() });
+
+      return exporter.getDocumentCount();
+    }
+  }
+
   @Override
   public IfcData queryData(String query, String language)
   {
@@ -429,6 +578,66 @@ public class MongoIfcConnection implements IfcdbConnection
     session.close();
   }
 
+  private MongoBulkWriter createBulkWriter()
+  {
+    return new MongoBulkWriter(db.getCollection(OBJECT_COL),
+      writerThreads, writeBatchSize, maxRetries);
+  }
+
+  private MongoBulkWriter createContentWriter(String modelId, int version)
+  {
+    return new MongoContentWriter(db.getCollection(OBJECT_COL),
+      getMemberKey(modelId, version), writerThreads, writeBatchSize,
+      maxRetries);
+  }
+
+  /**
+   * Returns the key that identifies a model version in the
+   * {@code _members} array of the elements stored by content id.
+   *
+   * @param modelId the model id
+   * @param version the model version
+   * @return the member key
+   */
+  static String getMemberKey(String modelId, int version)
+  {
+    return modelId + "/" + version;
+  }
+
+  /**
+   * Returns the filter of the elements of a model version, whether they
+   * were stored by content id or not.
+   */
+  private Bson getVersionFilter(String modelId, int version)
+  {
+    return or(and(eq("_modelId", modelId), eq("_version", version)),
+      eq("_members", getMemberKey(modelId, version)));
+  }
+
+  /**
+   * Removes a version from the elements stored by content id, and deletes
+   * the elements that do not belong to any other version.
+   */
+  private void deleteMembers(MongoCollection<Document> objectCol,
+    String modelId, int version)
+  {
+    String memberKey = getMemberKey(modelId, version);
+    objectCol.deleteMany(eq("_members", List.of(memberKey)));
+    objectCol.updateMany(eq("_members", memberKey),
+      pull("_members", memberKey));
+  }
+
+  private void updateElementCount(String modelId, int version,
+    int elementCount)
+  {
+    MongoCollection<Document> versionCol = db.getCollection(VERSION_COL);
+    Bson filter = and(eq("modelId", modelId), eq("version", version));
+    Document ifcdbVersion = versionCol.find(filter).first();
+    if (ifcdbVersion == null) throw new NotFoundException("Invalid version");
+    ifcdbVersion.put("elementCount", elementCount);
+    versionCol.replaceOne(filter, ifcdbVersion);
+  }
+
   private Set<String> getCurrentUserRoleIds()
   {
     SecurityService securityService =
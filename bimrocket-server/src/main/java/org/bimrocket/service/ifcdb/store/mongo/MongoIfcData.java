@@ -64,6 +64,7 @@ public class MongoIfcData extends AbstractListData<Document> implements IfcData
     super(schema);
     this.collection = collection;
     definedTypeValueName = "_value";
+    packedCollections = false; // values are converted for the database
   }
 
   @Override
@@ -72,6 +73,14 @@ public class MongoIfcData extends AbstractListData<Document> implements IfcData
     return new Cursor(ifcProject){};
   }
 
+  @Override
+  public boolean isConcurrentReadSupported()
+  {
+    // documents are in memory and the cache is complete once exported
+    // entities have been registered
+    return true;
+  }
+
   public void updateCache()
   {
     cache.clear();
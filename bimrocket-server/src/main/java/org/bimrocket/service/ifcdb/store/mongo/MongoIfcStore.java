@@ -73,7 +73,18 @@ public class MongoIfcStore implements IfcdbStore
     MongoClient mongoClient = getMongoClient(dbAlias);
     MongoDatabase db = mongoClient.getDatabase(dbAlias);
 
-    return new MongoIfcConnection(mongoClient, db, schema);
+    MongoIfcConnection conn = new MongoIfcConnection(mongoClient, db, schema);
+    config.getOptionalValue(BASE + dbAlias + ".writerThreads", Integer.class)
+      .ifPresent(conn::setWriterThreads);
+    config.getOptionalValue(BASE + dbAlias + ".writeBatchSize", Integer.class)
+      .ifPresent(conn::setWriteBatchSize);
+    config.getOptionalValue(BASE + dbAlias + ".maxRetries", Integer.class)
+      .ifPresent(conn::setMaxRetries);
+    // elements stored by content id, see MongoIfcConnection.setDeduplicate
+    config.getOptionalValue(BASE + dbAlias + ".deduplicate", Boolean.class)
+      .ifPresent(conn::setDeduplicate);
+
+    return conn;
   }
 
   @Override
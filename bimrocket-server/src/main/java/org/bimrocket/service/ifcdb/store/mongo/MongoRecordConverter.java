@@ -0,0 +1,272 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb.store.mongo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import org.bimrocket.express.ExpressCollection;
+import org.bimrocket.express.ExpressConstant;
+import org.bimrocket.express.ExpressDefinedType;
+import org.bimrocket.express.ExpressEntity;
+import org.bimrocket.express.ExpressNamedType;
+import org.bimrocket.express.ExpressSchema;
+import org.bimrocket.express.ExpressType;
+import org.bimrocket.step.io.StepRecord;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * Converts the records read by a StepReader into the documents stored by
+ * MongoIfcData.
+ * <p>
+ * The documents have the same layout that MongoIfcData builds through its
+ * cursors: the attributes in schema order (with explicit nulls), booleans
+ * for the logical constants, strings for the enumerations, embedded
+ * {@code {_class, _value}} documents for the defined types and ObjectIds
+ * for the references.
+ * <p>
+ * The ObjectId of an element is derived from its tag, so references can be
+ * converted before the referenced element is read. The ids of an upload
+ * share the same timestamp and a random prefix, and the tag fills the
+ * counter bytes.
+ * <p>
+ * When a MongoContentHasher is set, the elements get their content ids
+ * instead, and the version is recorded in the {@code _members} array of
+ * the document, since the same document may belong to many versions of
+ * its model. The {@code _modelId} is kept, as content ids are not shared
+ * between models.
+ *
+ * @author realor
+ */
+public class MongoRecordConverter
+{
+  private final ExpressSchema schema;
+  private final String modelId;
+  private final int version;
+  private final int timestamp;
+  private final int prefix;
+  private final String memberKey;
+  private MongoContentHasher contentHasher;
+  private final BitSet definedTags = new BitSet();
+  private final BitSet referencedTags = new BitSet();
+
+  public MongoRecordConverter(ExpressSchema schema, String modelId,
+    int version)
+  {
+    this.schema = schema;
+    this.modelId = modelId;
+    this.version = version;
+    this.timestamp = (int)(System.currentTimeMillis() / 1000);
+    this.prefix = ThreadLocalRandom.current().nextInt();
+    this.memberKey = MongoIfcConnection.getMemberKey(modelId, version);
+  }
+
+  public MongoContentHasher getContentHasher()
+  {
+    return contentHasher;
+  }
+
+  /**
+   * Sets the hasher that gives the ids of the elements. The hasher must
+   * have computed the ids of all the records to convert.
+   *
+   * @param contentHasher the hasher, or null to use upload ids
+   */
+  public void setContentHasher(MongoContentHasher contentHasher)
+  {
+    this.contentHasher = contentHasher;
+  }
+
+  /**
+   * Converts an entity record into a document.
+   *
+   * @param record the record to convert
+   * @return the document of the element
+   * @throws IOException if the record is not a valid entity instance
+   */
+  public Document convert(StepRecord record) throws IOException
+  {
+    ExpressNamedType type = schema.getNamedType(record.getTypeName());
+    if (!(type instanceof ExpressEntity entity))
+      throw new IOException("Not an entity type: " + record.getTypeName() +
+        " in #" + record.getTagNumber());
+
+    int tag = record.getTagNumber();
+    List<Object> values = record.getValues();
+    var attributes = entity.getAllAttributes();
+    if (values.size() > attributes.size())
+      throw new IOException("Too many values in #" + tag);
+
+    Document document = new Document();
+    if (tag == StepRecord.NO_TAG)
+    {
+      document.put("_id", new ObjectId());
+    }
+    else
+    {
+      definedTags.set(tag);
+      document.put("_id", getObjectId(tag));
+    }
+    document.put("_class", entity.getTypeName());
+    document.put("_modelId", modelId);
+    if (contentHasher == null)
+    {
+      document.put("_version", version);
+    }
+    else
+    {
+      document.put("_members", List.of(memberKey));
+    }
+
+    for (int i = 0; i < values.size(); i++)
+    {
+      var attribute = attributes.get(i);
+      document.put(attribute.getName(),
+        convertValue(values.get(i), attribute.getType()));
+    }
+    return document;
+  }
+
+  /**
+   * Returns the number of tags that were referenced but not defined by
+   * the records converted.
+   *
+   * @return the number of dangling references
+   */
+  public int getDanglingReferenceCount()
+  {
+    BitSet dangling = (BitSet)referencedTags.clone();
+    dangling.andNot(definedTags);
+    return dangling.cardinality();
+  }
+
+  /**
+   * Returns the ObjectId of the element with the given tag.
+   *
+   * @param tag the tag number of the element
+   * @return the content id of the element if a content hasher is set, or
+   * its upload id otherwise
+   */
+  public ObjectId getObjectId(int tag)
+  {
+    return contentHasher == null ?
+      getUploadId(tag) : contentHasher.getObjectId(tag);
+  }
+
+  /**
+   * Returns the id of the element with the given tag in this upload.
+   *
+   * @param tag the tag number of the element
+   * @return the ObjectId of the element in this upload
+   */
+  public ObjectId getUploadId(int tag)
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(12);
+    buffer.putInt(timestamp);
+    buffer.putInt(prefix);
+    buffer.putInt(tag);
+    return new ObjectId(buffer.array());
+  }
+
+  protected Object convertValue(Object value, ExpressType expectedType)
+    throws IOException
+  {
+    if (value == null || value instanceof Number || value instanceof String)
+    {
+      return value;
+    }
+    else if (value instanceof ExpressConstant constant)
+    {
+      if (ExpressConstant.TRUE.equals(constant)) return true;
+      if (ExpressConstant.FALSE.equals(constant)) return false;
+      if (ExpressConstant.UNKNOWN.equals(constant)) return null;
+      return constant.toString();
+    }
+    else if (value instanceof StepRecord.Reference reference)
+    {
+      int tag = reference.getTagNumber();
+      referencedTags.set(tag);
+      return getObjectId(tag);
+    }
+    else if (value instanceof List<?> list)
+    {
+      ExpressType itemType;
+      if (expectedType instanceof ExpressCollection colType)
+      {
+        itemType = colType.getItemType();
+      }
+      else if (expectedType instanceof ExpressDefinedType definedType &&
+               definedType.getRootType() instanceof ExpressCollection colType)
+      {
+        itemType = colType.getItemType();
+      }
+      else itemType = null;
+
+      List<Object> items = new ArrayList<>(list.size());
+      for (Object item : list)
+      {
+        items.add(convertValue(item, itemType));
+      }
+      return items;
+    }
+    else if (value instanceof StepRecord typedValue)
+    {
+      return convertTypedValue(typedValue, expectedType);
+    }
+    throw new IOException("Unsupported value: " + value);
+  }
+
+  protected Object convertTypedValue(StepRecord typedValue,
+    ExpressType expectedType) throws IOException
+  {
+    ExpressNamedType type = schema.getNamedType(typedValue.getTypeName());
+    if (!(type instanceof ExpressDefinedType definedType))
+      throw new IOException("Unsupported typed value: " + typedValue);
+
+    Object value = typedValue.size() == 0 ? null : typedValue.get(0);
+
+    if (expectedType instanceof ExpressDefinedType expectedDefinedType &&
+        expectedDefinedType.getPrimitive() != null)
+    {
+      // the defined type is implicit in the attribute type
+      return convertValue(value, expectedType);
+    }
+
+    Document document = new Document();
+    document.put("_class", definedType.getTypeName());
+    document.put("_value", convertValue(value, definedType.getRootType()));
+    return document;
+  }
+}
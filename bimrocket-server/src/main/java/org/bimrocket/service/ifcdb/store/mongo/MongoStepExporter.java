@@ -30,80 +30,153 @@
  */
 package org.bimrocket.service.ifcdb.store.mongo;
 
+import java.util.Iterator;
+import java.util.List;
+import org.bimrocket.express.ExpressCollection;
+import org.bimrocket.express.ExpressConstant;
+import org.bimrocket.express.ExpressDefinedType;
+import org.bimrocket.express.ExpressEntity;
+import org.bimrocket.express.ExpressEnumeration;
+import static org.bimrocket.express.ExpressPrimitive.LOGICAL_TYPE;
+import org.bimrocket.express.ExpressSchema;
+import org.bimrocket.express.ExpressType;
+import org.bimrocket.step.io.StepExporter;
+import org.bimrocket.util.ObjectIntHashMap;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
 /**
+ * Exports the documents read from a mongo cursor to STEP format.
+ * <p>
+ * Each document is written as soon as it is read, in cursor order, so
+ * neither the documents nor an IfcData are kept in memory. The tags are
+ * assigned on the fly: an element gets its tag the first time it is read
+ * or referenced, so forward references are written with the tag that the
+ * referenced element will have. Only the tags of the ObjectIds are kept
+ * in memory.
  *
  * @author realor
  */
-
-/*
-public class MongoStepExporter extends StepExporter<Document, ObjectId>
+public class MongoStepExporter extends StepExporter
 {
-  protected MongoCollection<Document> collection;
-  protected Map<ObjectId, Document> cache = new HashMap<>();
+  static final int NO_TAG = 0;
+
+  protected final Iterator<Document> documents;
+  protected final ObjectIntHashMap<ObjectId> documentTags =
+    new ObjectIntHashMap<>();
+  protected long documentCount;
 
-  public MongoStepExporter(ExpressSchema schema, MongoCollection<Document> col)
+  public MongoStepExporter(ExpressSchema schema, Iterator<Document> documents)
   {
     super(schema);
-    this.collection = col;
+    this.documents = documents;
   }
 
-  public void cacheDocuments(List<Document> documents)
+  public long getDocumentCount()
   {
-    for (Document document : documents)
-    {
-      ObjectId id = document.getObjectId("_id");
-      cache.put(id, document);
-    }
+    return documentCount;
   }
 
   @Override
-  protected String getTypeName(Document element)
+  protected void exportData()
   {
-    return element.getString("_class");
-  }
+    tagCount = 0;
+    documentTags.clear();
+    documentCount = 0;
 
-  @Override
-  protected Object getPropertyValue(Document element,
-    ExpressAttribute attribute, int index)
-  {
-    return element.get(attribute.getName());
+    updateFileSchema();
+    printHeader();
+    while (documents.hasNext())
+    {
+      printDocument(documents.next());
+      documentCount++;
+    }
+    printFooter();
   }
 
-  @Override
-  protected Object getValue(Document element)
+  protected void printDocument(Document document)
   {
-    return element.get("_value");
+    String className = document.getString("_class");
+    if (!(schema.getNamedType(className) instanceof ExpressEntity entity))
+      throw new RuntimeException("Not an entity type: " + className);
+
+    printer.print("#" + getTag(document.getObjectId("_id")) + "= ");
+    printer.print(entity.getTypeName().toUpperCase());
+    printer.print("(");
+    var attributes = entity.getAllAttributes();
+    for (int index = 0; index < attributes.size(); index++)
+    {
+      if (index > 0) printer.print(",");
+      var attribute = attributes.get(index);
+      exportValue(document.get(attribute.getName()), attribute.getType());
+    }
+    printer.println(");");
   }
 
-  @Override
-  protected Document dereference(Object value)
+  protected void exportValue(Object value, ExpressType expectedType)
   {
-    if (value instanceof ObjectId id)
+    ExpressType rootType =
+      expectedType instanceof ExpressDefinedType definedType ?
+      definedType.getRootType() : expectedType;
+
+    if (value instanceof ObjectId objectId)
     {
-      return lookupObject(id);
+      printer.print("#" + getTag(objectId));
     }
-    else if (value instanceof Document element)
+    else if (value instanceof List<?> list)
     {
-      return element;
+      ExpressType itemType = rootType instanceof ExpressCollection colType ?
+        colType.getItemType() : null;
+      printer.print("(");
+      for (int index = 0; index < list.size(); index++)
+      {
+        if (index > 0) printer.print(",");
+        exportValue(list.get(index), itemType);
+      }
+      printer.print(")");
     }
-    return null;
-  }
+    else if (value instanceof Document document)
+    {
+      String className = document.getString("_class");
+      if (!(schema.getNamedType(className) instanceof
+            ExpressDefinedType definedType))
+        throw new RuntimeException("Not a defined type: " + className);
 
-  @Override
-  protected ObjectId getIdentifier(Document entity)
-  {
-    return entity.getObjectId("_id");
+      printer.print(definedType.getTypeName().toUpperCase());
+      printer.print("(");
+      exportValue(document.get("_value"), definedType.getRootType());
+      printer.print(")");
+    }
+    else if (value == null && LOGICAL_TYPE.equals(rootType))
+    {
+      exportBasicType(ExpressConstant.UNKNOWN, expectedType);
+    }
+    else if (value instanceof String text &&
+             rootType instanceof ExpressEnumeration enumeration)
+    {
+      exportBasicType(enumeration.getValue(text), expectedType);
+    }
+    else
+    {
+      exportBasicType(value, expectedType);
+    }
   }
 
-  protected Document lookupObject(ObjectId id)
+  /**
+   * Returns the tag of the element with the given id, assigning the next
+   * tag if it had none.
+   *
+   * @param objectId the id of the element
+   * @return the tag of the element
+   */
+  protected int getTag(ObjectId objectId)
   {
-    Document element = cache.get(id);
-    if (element == null) // not found in cache
+    int tag = documentTags.get(objectId, NO_TAG);
+    if (tag == NO_TAG)
     {
-      element = collection.find(new Document("_id", id)).first();
-      cache.put(id, element);
+      tag = ++tagCount;
+      documentTags.put(objectId, tag);
     }
-    return element;
+    return tag;
   }
 }
-*/
\ No newline at end of file
@@ -0,0 +1,312 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb.store.mongo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import org.bimrocket.express.ExpressSchema;
+import static org.bimrocket.service.ifcdb.store.mongo.MongoIfcStore.LOGGER;
+import org.bimrocket.service.ifcdb.store.IfcdbUploadSettings;
+import org.bimrocket.step.io.StepCompression;
+import org.bimrocket.step.io.StepReader;
+import org.bimrocket.step.io.StepRecord;
+import org.bson.Document;
+
+/**
+ * Saves the elements of a STEP file into a mongo collection in three
+ * concurrent stages:
+ * <ol>
+ * <li>parse: reads the records of the file in batches.</li>
+ * <li>convert: converts the record batches into document batches.</li>
+ * <li>write: passes the document batches to a MongoBulkWriter.</li>
+ * </ol>
+ * <p>
+ * The stages are connected by bounded queues, so parsing overlaps with the
+ * database writes and the memory used does not depend on the file size.
+ * The parse and convert stages run in their own threads and the write
+ * stage runs in the calling thread, which blocks while the bulk writer
+ * has too many pending batches. The first error of any stage aborts
+ * the other stages and is thrown by {@link #run()}.
+ *
+ * @author realor
+ */
+public class MongoUploadPipeline
+{
+  static final long POLL_MILLIS = 100;
+
+  private final ExpressSchema schema;
+  private final MongoBulkWriter writer;
+  private final MongoRecordConverter converter;
+  private final IfcdbUploadSettings settings;
+  private final File ifcFile;
+
+  private final BlockingQueue<List<StepRecord>> recordQueue;
+  private final BlockingQueue<List<Document>> documentQueue;
+  private volatile boolean aborted;
+  private Throwable failure;
+
+  private final Stage parseStage = new Stage("parse");
+  private final Stage convertStage = new Stage("convert");
+  private final Stage writeStage = new Stage("write");
+
+  public MongoUploadPipeline(ExpressSchema schema,
+    MongoBulkWriter writer, MongoRecordConverter converter,
+    File ifcFile, IfcdbUploadSettings settings)
+  {
+    this.schema = schema;
+    this.writer = writer;
+    this.converter = converter;
+    this.settings = settings;
+    this.ifcFile = ifcFile;
+    this.recordQueue = new ArrayBlockingQueue<>(settings.getQueueSize());
+    this.documentQueue = new ArrayBlockingQueue<>(settings.getQueueSize());
+  }
+
+  /**
+   * Runs the pipeline until all the elements of the file are written.
+   * When it fails, the batches already submitted may still be running,
+   * and closing the writer waits for them.
+   *
+   * @return the number of elements written
+   * @throws IOException if the file can not be read or is not valid
+   */
+  public int run() throws IOException
+  {
+    Thread parseThread = new Thread(() -> runStage(this::parse),
+      "ifcdb-upload-parse");
+    Thread convertThread = new Thread(() -> runStage(this::convert),
+      "ifcdb-upload-convert");
+    parseThread.start();
+    convertThread.start();
+    try
+    {
+      runStage(this::write);
+      parseThread.join();
+      convertThread.join();
+    }
+    catch (InterruptedException ex)
+    {
+      abort(ex);
+      Thread.currentThread().interrupt();
+    }
+
+    LOGGER.log(Level.INFO, "Upload stages: {0}, {1}, {2}",
+      new Object[]{ parseStage, convertStage, writeStage });
+
+    Throwable error = getFailure();
+    if (error instanceof IOException ioException) throw ioException;
+    if (error instanceof RuntimeException runtimeException)
+      throw runtimeException;
+    if (error instanceof Error fatalError) throw fatalError;
+    if (error != null) throw new IOException(error);
+
+    int danglingCount = converter.getDanglingReferenceCount();
+    if (danglingCount > 0)
+    {
+      LOGGER.log(Level.WARNING, "{0} references to undefined elements",
+        danglingCount);
+    }
+
+    return (int)writeStage.items;
+  }
+
+  protected void parse() throws Exception
+  {
+    try (StepReader reader = new StepReader(
+      StepCompression.decompress(new FileInputStream(ifcFile))))
+    {
+      List<String> schemaNames =
+        reader.getHeaderData().getFileSchema().getSchemas();
+      if (schemaNames.isEmpty())
+        throw new IOException("Undefined schema.");
+
+      String schemaName = schemaNames.get(0);
+      if (!schema.getName().equalsIgnoreCase(schemaName))
+        throw new IOException("The file schema is " + schemaName +
+          " but " + schema.getName() + " was expected.");
+
+      int batchSize = settings.getBatchSize();
+      List<StepRecord> batch = new ArrayList<>(batchSize);
+      long start = System.nanoTime();
+      StepRecord record = reader.next();
+      while (record != null)
+      {
+        batch.add(record);
+        if (batch.size() == batchSize)
+        {
+          parseStage.busy(start, batch.size());
+          put(recordQueue, batch, parseStage);
+          batch = new ArrayList<>(batchSize);
+          start = System.nanoTime();
+        }
+        record = reader.next();
+      }
+      parseStage.busy(start, batch.size());
+      if (!batch.isEmpty()) put(recordQueue, batch, parseStage);
+      put(recordQueue, List.of(), parseStage); // end of records
+    }
+  }
+
+  protected void convert() throws Exception
+  {
+    List<StepRecord> records = take(recordQueue, convertStage);
+    while (!records.isEmpty())
+    {
+      long start = System.nanoTime();
+      List<Document> documents = new ArrayList<>(records.size());
+      for (StepRecord record : records)
+      {
+        documents.add(converter.convert(record));
+      }
+      convertStage.busy(start, documents.size());
+      put(documentQueue, documents, convertStage);
+      records = take(recordQueue, convertStage);
+    }
+    put(documentQueue, List.of(), convertStage); // end of documents
+  }
+
+  protected void write() throws Exception
+  {
+    List<Document> documents = take(documentQueue, writeStage);
+    while (!documents.isEmpty())
+    {
+      long start = System.nanoTime();
+      writer.submit(documents);
+      writeStage.busy(start, documents.size());
+      documents = take(documentQueue, writeStage);
+    }
+    long start = System.nanoTime();
+    writer.finish();
+    writeStage.busy(start, 0);
+  }
+
+  private <T> void put(BlockingQueue<List<T>> queue, List<T> batch,
+    Stage stage) throws InterruptedException
+  {
+    long start = System.nanoTime();
+    while (!queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS))
+    {
+      checkAborted();
+    }
+    stage.waitTime += System.nanoTime() - start;
+  }
+
+  private <T> List<T> take(BlockingQueue<List<T>> queue, Stage stage)
+    throws InterruptedException
+  {
+    long start = System.nanoTime();
+    List<T> batch = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+    while (batch == null)
+    {
+      checkAborted();
+      batch = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    stage.waitTime += System.nanoTime() - start;
+    return batch;
+  }
+
+  private void checkAborted()
+  {
+    if (aborted) throw new AbortedException();
+  }
+
+  private void runStage(StageTask task)
+  {
+    try
+    {
+      task.run();
+    }
+    catch (AbortedException ex)
+    {
+      // another stage failed
+    }
+    catch (Throwable ex)
+    {
+      // errors too, or the other stages would wait forever
+      abort(ex);
+    }
+  }
+
+  private synchronized void abort(Throwable error)
+  {
+    if (failure == null) failure = error;
+    aborted = true;
+  }
+
+  private synchronized Throwable getFailure()
+  {
+    return failure;
+  }
+
+  @FunctionalInterface
+  interface StageTask
+  {
+    void run() throws Exception;
+  }
+
+  static class AbortedException extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+  }
+
+  static class Stage
+  {
+    final String name;
+    long busyTime;
+    long waitTime;
+    long items;
+
+    Stage(String name)
+    {
+      this.name = name;
+    }
+
+    void busy(long start, int count)
+    {
+      busyTime += System.nanoTime() - start;
+      items += count;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format("%s: %d items, %.3f s busy, %.3f s waiting",
+        name, items, busyTime / 1e9, waitTime / 1e9);
+    }
+  }
+}
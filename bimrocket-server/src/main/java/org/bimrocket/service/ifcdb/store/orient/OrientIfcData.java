@@ -66,6 +66,7 @@ public class OrientIfcData extends AbstractListData<OElement> implements IfcData
     super(schema);
     this.orientSetup = orientSetup;
     this.forcedRootClasses = forcedRootClasses;
+    packedCollections = false; // values are converted for the database
   }
 
   public Set<OElement> getRootElements()
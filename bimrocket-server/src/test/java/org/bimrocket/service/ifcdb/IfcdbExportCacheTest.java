@@ -0,0 +1,200 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import org.bimrocket.service.ifcdb.IfcdbExportCache.Entry;
+import org.bimrocket.service.ifcdb.IfcdbExportCache.EntryWriter;
+import org.bimrocket.step.io.StepCompression;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author realor
+ */
+public class IfcdbExportCacheTest
+{
+  static final String SCHEMA = "IFC4";
+
+  @TempDir
+  File baseDir;
+
+  static Entry write(IfcdbExportCache cache, String modelId, int version,
+    int size) throws IOException
+  {
+    EntryWriter writer = cache.put(SCHEMA, modelId, version);
+    assertNotNull(writer);
+    byte[] data = new byte[size];
+    Arrays.fill(data, (byte)('0' + version));
+    try (OutputStream output = writer.getOutputStream())
+    {
+      output.write(data);
+    }
+    return writer.commit();
+  }
+
+  @Test
+  public void putAndGet() throws Exception
+  {
+    var cache = new IfcdbExportCache(baseDir, 1000, StepCompression.NONE);
+    Entry entry = write(cache, "model", 1, 100);
+
+    assertEquals(100, entry.getLength());
+    assertEquals(IfcdbExportCache.HASH_LENGTH, entry.getHash().length());
+    assertTrue(entry.getFile().getName().endsWith(".ifc"));
+    assertEquals(100, cache.getTotalSize());
+    assertEquals(entry, cache.get(SCHEMA, "model", 1));
+    assertNull(cache.get(SCHEMA, "model", 2));
+    assertNull(cache.put(SCHEMA, "model", 1));
+
+    // a deleted file is not returned
+    assertTrue(entry.getFile().delete());
+    assertNull(cache.get(SCHEMA, "model", 1));
+    assertEquals(0, cache.getTotalSize());
+  }
+
+  @Test
+  public void evictLeastRecentlyUsed() throws Exception
+  {
+    var cache = new IfcdbExportCache(baseDir, 250, StepCompression.NONE);
+    Entry first = write(cache, "model", 1, 100);
+    Entry second = write(cache, "model", 2, 100);
+    assertNotNull(cache.get(SCHEMA, "model", 1));
+
+    Entry third = write(cache, "model", 3, 100);
+    assertEquals(200, cache.getTotalSize());
+    assertNull(cache.get(SCHEMA, "model", 2));
+    assertFalse(second.getFile().exists());
+    assertTrue(first.getFile().exists());
+    assertTrue(third.getFile().exists());
+
+    // an entry larger than the cache is not kept
+    write(cache, "model", 4, 300);
+    assertEquals(0, cache.getTotalSize());
+    assertNull(cache.get(SCHEMA, "model", 4));
+  }
+
+  @Test
+  public void invalidateWhileWriting() throws Exception
+  {
+    var cache = new IfcdbExportCache(baseDir, 1000, StepCompression.NONE);
+    write(cache, "model", 1, 100);
+    write(cache, "other", 1, 100);
+
+    EntryWriter writer = cache.put(SCHEMA, "model", 2);
+    assertNull(cache.put(SCHEMA, "model", 2));
+    writer.getOutputStream().write(new byte[100]);
+
+    cache.invalidate(SCHEMA, "model", 0);
+    assertNull(cache.get(SCHEMA, "model", 1));
+
+    Entry entry = writer.commit();
+    assertNull(cache.get(SCHEMA, "model", 2));
+    assertFalse(entry.getFile().exists());
+    assertNotNull(cache.get(SCHEMA, "other", 1));
+    assertEquals(100, cache.getTotalSize());
+
+    // the version can be written again
+    write(cache, "model", 2, 100);
+    assertNotNull(cache.get(SCHEMA, "model", 2));
+  }
+
+  @Test
+  public void abort() throws Exception
+  {
+    var cache = new IfcdbExportCache(baseDir, 1000, StepCompression.GZIP);
+    EntryWriter writer = cache.put(SCHEMA, "model", 1);
+    writer.getOutputStream().write(new byte[100]);
+    writer.abort();
+
+    assertNull(cache.get(SCHEMA, "model", 1));
+    assertEquals(0, countFiles(baseDir));
+
+    Entry entry = write(cache, "model", 1, 100);
+    assertTrue(entry.getFile().getName().endsWith(".ifc.gz"));
+    assertEquals(StepCompression.GZIP, entry.getCompression());
+  }
+
+  @Test
+  public void rescan() throws Exception
+  {
+    var cache = new IfcdbExportCache(baseDir, 1000, StepCompression.NONE);
+    Entry first = write(cache, "model/1", 1, 100);
+    Entry second = write(cache, "model/1", 2, 100);
+    assertTrue(first.getFile().setLastModified(1000000));
+    assertTrue(second.getFile().setLastModified(2000000));
+
+    // incomplete and unknown files are deleted on restart
+    EntryWriter writer = cache.put(SCHEMA, "model/1", 3);
+    writer.getOutputStream().write(new byte[100]);
+    writer.getOutputStream().close();
+    File gzipFile = new File(first.getFile().getParentFile(),
+      "v4-" + first.getHash() + ".ifc.gz");
+    Files.write(gzipFile.toPath(), new byte[100]);
+
+    cache = new IfcdbExportCache(baseDir, 1000, StepCompression.NONE);
+    assertEquals(200, cache.getTotalSize());
+    assertEquals(2, countFiles(baseDir));
+    Entry entry = cache.get(SCHEMA, "model/1", 1);
+    assertEquals(first.getHash(), entry.getHash());
+    assertEquals(first.getFile(), entry.getFile());
+    assertNotNull(cache.get(SCHEMA, "model/1", 2));
+
+    // the least recently modified files are evicted first
+    cache = new IfcdbExportCache(baseDir, 150, StepCompression.NONE);
+    assertNull(cache.get(SCHEMA, "model/1", 1));
+    assertNotNull(cache.get(SCHEMA, "model/1", 2));
+  }
+
+  static int countFiles(File dir)
+  {
+    int count = 0;
+    File[] files = dir.listFiles();
+    if (files != null)
+    {
+      for (File file : files)
+      {
+        count += file.isDirectory() ? countFiles(file) : 1;
+      }
+    }
+    return count;
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb.store.mongo;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.WriteConcernError;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import static org.bimrocket.service.ifcdb.store.mongo.StubMongoCollection.DUPLICATE_KEY;
+import static org.bimrocket.service.ifcdb.store.mongo.StubMongoCollection.NETWORK_TIMEOUT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author realor
+ */
+public class MongoBulkWriterTest
+{
+  static List<Document> createDocuments(int count)
+  {
+    List<Document> documents = new ArrayList<>(count);
+    for (int id = 0; id < count; id++)
+    {
+      documents.add(new Document("_id", id).append("value", "v" + id));
+    }
+    return documents;
+  }
+
+  @Test
+  public void write() throws Exception
+  {
+    var stub = new StubMongoCollection();
+    try (var writer = new MongoBulkWriter(stub.getCollection(), 4, 100, 3))
+    {
+      assertEquals(2000, writer.write(createDocuments(2000)));
+    }
+    assertEquals(2000, stub.documents.size());
+    assertEquals(20, stub.bulkWriteCount.get());
+    for (int id = 0; id < 2000; id++)
+    {
+      assertEquals(1, stub.getSendCount(id));
+    }
+  }
+
+  @Test
+  public void resendUnwritten() throws Exception
+  {
+    var stub = new StubMongoCollection()
+    {
+      @Override
+      protected int getErrorCode(Document document)
+      {
+        int id = document.getInteger("_id");
+        return id % 10 == 0 && getSendCount(id) == 1 ? NETWORK_TIMEOUT : 0;
+      }
+    };
+    try (var writer = new MongoBulkWriter(stub.getCollection(), 4, 100, 3))
+    {
+      assertEquals(1000, writer.write(createDocuments(1000)));
+    }
+    assertEquals(1000, stub.documents.size());
+    for (int id = 0; id < 1000; id++)
+    {
+      // only the documents that failed are sent again
+      assertEquals(id % 10 == 0 ? 2 : 1, stub.getSendCount(id));
+    }
+  }
+
+  @Test
+  public void duplicateKeyOnRetry() throws Exception
+  {
+    // the documents are written but the acknowledgement is lost
+    var stub = new StubMongoCollection()
+    {
+      @Override
+      protected void afterWrite(int call)
+      {
+        if (call == 1)
+          throw new MongoSocketReadException("Lost", new ServerAddress());
+      }
+    };
+    try (var writer = new MongoBulkWriter(stub.getCollection(), 1, 100, 3))
+    {
+      assertEquals(100, writer.write(createDocuments(100)));
+    }
+    assertEquals(100, stub.documents.size());
+    assertEquals(2, stub.bulkWriteCount.get());
+    assertEquals(2, stub.getSendCount(0));
+  }
+
+  @Test
+  public void writeConcernError() throws Exception
+  {
+    // the documents are written but not acknowledged by the replicas
+    var stub = new StubMongoCollection()
+    {
+      @Override
+      protected void afterWrite(int call)
+      {
+        if (call == 1)
+          throw new MongoBulkWriteException(BulkWriteResult.unacknowledged(),
+            List.of(), new WriteConcernError(64, "WriteConcernFailed",
+            "waiting for replication timed out", new BsonDocument()),
+            new ServerAddress(), Set.of());
+      }
+    };
+    try (var writer = new MongoBulkWriter(stub.getCollection(), 1, 100, 3))
+    {
+      assertEquals(100, writer.write(createDocuments(100)));
+    }
+    assertEquals(100, stub.documents.size());
+    assertEquals(2, stub.getSendCount(99));
+  }
+
+  @Test
+  public void duplicateKeyOnFirstAttempt() throws Exception
+  {
+    // a document not written by this writer
+    var stub = new StubMongoCollection();
+    stub.documents.put(5, new Document("_id", 5));
+
+    try (var writer = new MongoBulkWriter(stub.getCollection(), 1, 100, 3))
+    {
+      var ex = assertThrows(MongoBulkWriteException.class,
+        () -> writer.write(createDocuments(100)));
+      assertEquals(DUPLICATE_KEY, ex.getWriteErrors().get(0).getCode());
+    }
+    assertEquals(1, stub.bulkWriteCount.get());
+  }
+
+  @Test
+  public void maxRetries() throws Exception
+  {
+    var stub = new StubMongoCollection()
+    {
+      @Override
+      protected int getErrorCode(Document document)
+      {
+        return document.getInteger("_id") == 7 ? NETWORK_TIMEOUT : 0;
+      }
+    };
+    try (var writer = new MongoBulkWriter(stub.getCollection(), 1, 100, 2))
+    {
+      assertThrows(MongoBulkWriteException.class,
+        () -> writer.write(createDocuments(100)));
+    }
+    assertEquals(3, stub.getSendCount(7));
+    assertEquals(1, stub.getSendCount(8));
+    assertEquals(99, stub.documents.size());
+  }
+
+  @Test
+  public void closeWaitsForRunningWrites() throws Exception
+  {
+    var stub = new StubMongoCollection()
+    {
+      @Override
+      protected void beforeWrite(int call)
+      {
+        sleepUninterruptibly(200);
+      }
+    };
+    var writer = new MongoBulkWriter(stub.getCollection(), 2, 100, 3);
+    writer.submit(createDocuments(400));
+    writer.close();
+
+    assertEquals(0, stub.runningWrites.get());
+    int writeCount = stub.bulkWriteCount.get();
+    int documentCount = stub.documents.size();
+    assertTrue(writeCount >= 1 && writeCount <= 4);
+
+    // the batches not started were cancelled
+    Thread.sleep(300);
+    assertEquals(writeCount, stub.bulkWriteCount.get());
+    assertEquals(documentCount, stub.documents.size());
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb.store.mongo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.function.IntFunction;
+import org.bimrocket.step.io.StepRecord;
+import org.bson.types.ObjectId;
+import static org.bimrocket.service.ifcdb.store.mongo.MongoRecordConverterTest.read;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author realor
+ */
+public class MongoContentHasherTest
+{
+  static final String PLACEMENTS = """
+    #1= IFCCARTESIANPOINT((0.,0.,0.));
+    #2= IFCDIRECTION((0.,0.,1.));
+    #3= IFCAXIS2PLACEMENT3D(#1,#2,$);
+    #4= IFCLOCALPLACEMENT($,#3);
+    #5= IFCCARTESIANPOINT((0.,0.,0.));
+    #6= IFCCARTESIANPOINT((1.,0.,0.));
+    """;
+
+  @TempDir
+  File tempDir;
+
+  static MongoContentHasher hash(String modelId, String data,
+    IntFunction<ObjectId> uploadIds) throws IOException
+  {
+    var hasher = new MongoContentHasher(modelId, uploadIds);
+    for (StepRecord record : read(data))
+    {
+      hasher.add(record);
+    }
+    hasher.computeIds();
+    return hasher;
+  }
+
+  static MongoContentHasher hash(String modelId, String data)
+    throws IOException
+  {
+    return hash(modelId, data, uploadIds(1));
+  }
+
+  static IntFunction<ObjectId> uploadIds(int upload)
+  {
+    return tag -> new ObjectId(upload, tag);
+  }
+
+  @Test
+  public void equalContent() throws Exception
+  {
+    MongoContentHasher hasher = hash("model", PLACEMENTS);
+
+    assertEquals(6, hasher.getElementCount());
+    assertEquals(0, hasher.getUploadIdCount());
+    assertNotEquals(hasher.getObjectId(1), hasher.getObjectId(6));
+    assertNotEquals(hasher.getObjectId(3), hasher.getObjectId(4));
+
+    // the ids do not depend on the upload
+    MongoContentHasher other = hash("model", PLACEMENTS, uploadIds(2));
+    for (int tag = 1; tag <= 6; tag++)
+    {
+      assertEquals(hasher.getObjectId(tag), other.getObjectId(tag));
+    }
+  }
+
+  @Test
+  public void copies() throws Exception
+  {
+    // equal elements of a file are stored as distinct elements
+    MongoContentHasher hasher = hash("model", PLACEMENTS);
+    assertNotEquals(hasher.getObjectId(1), hasher.getObjectId(5));
+
+    MongoContentHasher copies = hash("model", """
+      #1= IFCCARTESIANPOINT((0.,0.,0.));
+      #2= IFCCARTESIANPOINT((0.,0.,0.));
+      #3= IFCCARTESIANPOINT((0.,0.,0.));
+      #4= IFCPOLYLINE((#1,#2));
+      #5= IFCPOLYLINE((#1,#3));
+      """);
+    assertEquals(3, Set.of(copies.getObjectId(1), copies.getObjectId(2),
+      copies.getObjectId(3)).size());
+    assertNotEquals(copies.getObjectId(4), copies.getObjectId(5));
+
+    // the copies of another version get the same ids
+    MongoContentHasher renumbered = hash("model", """
+      #10= IFCCARTESIANPOINT((0.,0.,0.));
+      #20= IFCCARTESIANPOINT((0.,0.,0.));
+      #30= IFCCARTESIANPOINT((0.,0.,0.));
+      """);
+    assertEquals(Set.of(copies.getObjectId(1), copies.getObjectId(2),
+      copies.getObjectId(3)), Set.of(renumbered.getObjectId(10),
+      renumbered.getObjectId(20), renumbered.getObjectId(30)));
+  }
+
+  @Test
+  public void renumbering() throws Exception
+  {
+    MongoContentHasher hasher = hash("model", PLACEMENTS);
+
+    // the same elements with other tags, in other order
+    MongoContentHasher renumbered = hash("model", """
+      #40= IFCLOCALPLACEMENT($,#30);
+      #30= IFCAXIS2PLACEMENT3D(#10,#20,$);
+      #20= IFCDIRECTION((0.,0.,1.));
+      #10= IFCCARTESIANPOINT((0.,0.,0.));
+      """, uploadIds(2));
+
+    assertEquals(hasher.getObjectId(1), renumbered.getObjectId(10));
+    assertEquals(hasher.getObjectId(3), renumbered.getObjectId(30));
+    assertEquals(hasher.getObjectId(4), renumbered.getObjectId(40));
+
+    // a change is propagated to the elements that reference it
+    MongoContentHasher changed = hash("model", """
+      #40= IFCLOCALPLACEMENT($,#30);
+      #30= IFCAXIS2PLACEMENT3D(#10,#20,$);
+      #20= IFCDIRECTION((0.,1.,0.));
+      #10= IFCCARTESIANPOINT((0.,0.,0.));
+      """);
+
+    assertEquals(hasher.getObjectId(1), changed.getObjectId(10));
+    assertNotEquals(hasher.getObjectId(2), changed.getObjectId(20));
+    assertNotEquals(hasher.getObjectId(3), changed.getObjectId(30));
+    assertNotEquals(hasher.getObjectId(4), changed.getObjectId(40));
+  }
+
+  @Test
+  public void modelScope() throws Exception
+  {
+    MongoContentHasher hasher = hash("model", PLACEMENTS);
+    MongoContentHasher other = hash("other", PLACEMENTS);
+
+    assertNotEquals(hasher.getObjectId(1), other.getObjectId(1));
+  }
+
+  @Test
+  public void cycles() throws Exception
+  {
+    String data = """
+      #1= IFCLOCALPLACEMENT(#2,#3);
+      #2= IFCLOCALPLACEMENT(#1,#3);
+      #3= IFCAXIS2PLACEMENT3D(#4,$,$);
+      #4= IFCCARTESIANPOINT((0.,0.,0.));
+      #5= IFCLOCALPLACEMENT(#1,#3);
+      """;
+    MongoContentHasher hasher = hash("model", data, uploadIds(1));
+    MongoContentHasher other = hash("model", data, uploadIds(2));
+
+    // #2 closes the cycle and gets its upload id
+    assertEquals(1, hasher.getUploadIdCount());
+    assertEquals(new ObjectId(1, 2), hasher.getObjectId(2));
+
+    // the elements that reference it are unique to the upload
+    assertNotEquals(hasher.getObjectId(1), other.getObjectId(1));
+    assertNotEquals(hasher.getObjectId(5), other.getObjectId(5));
+
+    // the elements out of the cycle keep their content id
+    assertEquals(hasher.getObjectId(3), other.getObjectId(3));
+    assertEquals(hasher.getObjectId(4), other.getObjectId(4));
+  }
+
+  @Test
+  public void danglingReferences() throws Exception
+  {
+    String data = """
+      #1= IFCAXIS2PLACEMENT3D(#9,$,$);
+      #2= IFCLOCALPLACEMENT($,#1);
+      #3= IFCCARTESIANPOINT((0.,0.,0.));
+      """;
+    MongoContentHasher hasher = hash("model", data, uploadIds(1));
+    MongoContentHasher other = hash("model", data, uploadIds(2));
+
+    assertEquals(0, hasher.getUploadIdCount());
+    assertEquals(new ObjectId(1, 9), hasher.getObjectId(9));
+    assertNotEquals(hasher.getObjectId(1), other.getObjectId(1));
+    assertNotEquals(hasher.getObjectId(2), other.getObjectId(2));
+    assertEquals(hasher.getObjectId(3), other.getObjectId(3));
+  }
+
+  @Test
+  public void readFile() throws Exception
+  {
+    File ifcFile = new File(tempDir, "model.ifc");
+    Files.writeString(ifcFile.toPath(), "ISO-10303-21;\nHEADER;\n" +
+      "FILE_SCHEMA(('IFC4'));\nENDSEC;\nDATA;\n" + PLACEMENTS +
+      "ENDSEC;\nEND-ISO-10303-21;\n", StandardCharsets.UTF_8);
+
+    var hasher = new MongoContentHasher("model", uploadIds(1));
+    hasher.read(ifcFile);
+
+    MongoContentHasher expected = hash("model", PLACEMENTS);
+    for (int tag = 1; tag <= 6; tag++)
+    {
+      assertEquals(expected.getObjectId(tag), hasher.getObjectId(tag));
+    }
+  }
+
+  @Test
+  public void invalidUse() throws Exception
+  {
+    var hasher = new MongoContentHasher("model", uploadIds(1));
+    StepRecord record = read(PLACEMENTS).get(0);
+    hasher.add(record);
+
+    assertThrows(IllegalStateException.class, () -> hasher.getObjectId(1));
+    assertThrows(IOException.class, () -> hasher.add(record));
+  }
+}
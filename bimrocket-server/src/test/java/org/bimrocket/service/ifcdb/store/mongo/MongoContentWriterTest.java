@@ -0,0 +1,188 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb.store.mongo;
+
+import com.mongodb.MongoException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.bson.Document;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author realor
+ */
+public class MongoContentWriterTest
+{
+  static final String MEMBER_KEY = "model/2";
+
+  static List<Document> createDocuments(int count, String memberKey)
+  {
+    List<Document> documents = new ArrayList<>(count);
+    for (int id = 0; id < count; id++)
+    {
+      documents.add(new Document("_id", id)
+        .append("_members", List.of(memberKey)));
+    }
+    return documents;
+  }
+
+  static void assertMembers(StubMongoCollection stub, Object id,
+    String... memberKeys)
+  {
+    assertEquals(List.of(memberKeys),
+      stub.documents.get(id).getList("_members", String.class));
+  }
+
+  @Test
+  public void existingDocuments() throws Exception
+  {
+    var stub = new StubMongoCollection();
+    for (Document document : createDocuments(50, "model/1"))
+    {
+      stub.documents.put(document.get("_id"), document);
+    }
+
+    try (var writer = new MongoContentWriter(stub.getCollection(),
+      MEMBER_KEY, 2, 20, 3))
+    {
+      assertEquals(100, writer.write(createDocuments(100, MEMBER_KEY)));
+    }
+    assertEquals(100, stub.documents.size());
+    assertEquals(0, stub.getSendCount(0));
+    assertEquals(1, stub.getSendCount(50));
+    assertMembers(stub, 0, "model/1", MEMBER_KEY);
+    assertMembers(stub, 50, MEMBER_KEY);
+  }
+
+  @Test
+  public void insertedAfterLookup() throws Exception
+  {
+    // another upload inserts the same document after the lookup
+    var stub = new StubMongoCollection()
+    {
+      @Override
+      protected void afterFind(List<Document> found)
+      {
+        if (found.isEmpty())
+        {
+          documents.putIfAbsent(5, new Document("_id", 5)
+            .append("_members", List.of("model/1")));
+        }
+      }
+    };
+    try (var writer = new MongoContentWriter(stub.getCollection(),
+      MEMBER_KEY, 1, 10, 3))
+    {
+      assertEquals(10, writer.write(createDocuments(10, MEMBER_KEY)));
+    }
+    assertEquals(10, stub.documents.size());
+    assertMembers(stub, 5, "model/1", MEMBER_KEY);
+    assertMembers(stub, 6, MEMBER_KEY);
+  }
+
+  @Test
+  public void deletedAfterLookup() throws Exception
+  {
+    // the last version of the documents is deleted after the lookup
+    var stub = new StubMongoCollection()
+    {
+      @Override
+      protected void afterFind(List<Document> found)
+      {
+        if (bulkWriteCount.get() == 0)
+        {
+          found.forEach(document -> documents.remove(document.get("_id")));
+        }
+      }
+    };
+    for (Document document : createDocuments(5, "model/1"))
+    {
+      stub.documents.put(document.get("_id"), document);
+    }
+
+    try (var writer = new MongoContentWriter(stub.getCollection(),
+      MEMBER_KEY, 1, 10, 3))
+    {
+      assertEquals(10, writer.write(createDocuments(10, MEMBER_KEY)));
+    }
+    assertEquals(10, stub.documents.size());
+    assertMembers(stub, 0, MEMBER_KEY);
+    assertEquals(1, stub.getSendCount(0));
+  }
+
+  @Test
+  public void alwaysDeletedAfterLookup() throws Exception
+  {
+    AtomicInteger findCount = new AtomicInteger();
+    var stub = new StubMongoCollection()
+    {
+      final List<Document> deleted = new ArrayList<>();
+
+      @Override
+      protected void afterFind(List<Document> found)
+      {
+        findCount.incrementAndGet();
+        for (Document document : found)
+        {
+          documents.remove(document.get("_id"));
+          deleted.add(document);
+        }
+      }
+
+      @Override
+      protected void afterWrite(int call)
+      {
+        // inserted again by another upload before the next lookup
+        for (Document document : deleted)
+        {
+          documents.put(document.get("_id"), document);
+        }
+        deleted.clear();
+      }
+    };
+    for (Document document : createDocuments(5, "model/1"))
+    {
+      stub.documents.put(document.get("_id"), document);
+    }
+
+    try (var writer = new MongoContentWriter(stub.getCollection(),
+      MEMBER_KEY, 1, 10, 2))
+    {
+      assertThrows(MongoException.class,
+        () -> writer.write(createDocuments(10, MEMBER_KEY)));
+    }
+    assertEquals(3, findCount.get());
+  }
+}
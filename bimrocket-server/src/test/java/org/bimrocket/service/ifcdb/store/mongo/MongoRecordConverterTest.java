@@ -0,0 +1,195 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb.store.mongo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.bimrocket.express.ExpressSchema;
+import org.bimrocket.express.io.ExpressSchemaRegistry;
+import org.bimrocket.step.io.StepReader;
+import org.bimrocket.step.io.StepRecord;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author realor
+ */
+public class MongoRecordConverterTest
+{
+  static List<StepRecord> read(String data) throws IOException
+  {
+    String content = "ISO-10303-21;\nHEADER;\nFILE_SCHEMA(('IFC4'));\n" +
+      "ENDSEC;\nDATA;\n" + data + "ENDSEC;\nEND-ISO-10303-21;\n";
+
+    List<StepRecord> records = new ArrayList<>();
+    try (StepReader reader = new StepReader(new ByteArrayInputStream(
+      content.getBytes(StandardCharsets.UTF_8))))
+    {
+      reader.read(records::add);
+    }
+    return records;
+  }
+
+  static List<Document> convert(MongoRecordConverter converter,
+    List<StepRecord> records) throws IOException
+  {
+    List<Document> documents = new ArrayList<>();
+    for (StepRecord record : records)
+    {
+      documents.add(converter.convert(record));
+    }
+    return documents;
+  }
+
+  @Test
+  public void references() throws Exception
+  {
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
+    var converter = new MongoRecordConverter(schema, "model", 3);
+    List<Document> documents = convert(converter, read("""
+      #3= IFCAXIS2PLACEMENT3D(#1,#2,#9);
+      #1= IFCCARTESIANPOINT((0.,1.,2.));
+      #2= IFCDIRECTION((0.,0.,1.));
+      """));
+
+    Document placement = documents.get(0);
+    assertEquals(converter.getObjectId(3), placement.getObjectId("_id"));
+    assertEquals("IfcAxis2Placement3D", placement.getString("_class"));
+    assertEquals("model", placement.getString("_modelId"));
+    assertEquals(3, placement.getInteger("_version"));
+    assertFalse(placement.containsKey("_members"));
+
+    // forward references get the id of the element defined later
+    assertEquals(documents.get(1).getObjectId("_id"),
+      placement.get("Location"));
+    assertEquals(documents.get(2).getObjectId("_id"),
+      placement.get("Axis"));
+    assertEquals(converter.getObjectId(9), placement.get("RefDirection"));
+    assertEquals(1, converter.getDanglingReferenceCount());
+
+    assertEquals(List.of(0.0, 1.0, 2.0),
+      documents.get(1).getList("Coordinates", Double.class));
+
+    var otherConverter = new MongoRecordConverter(schema, "model", 3);
+    assertNotEquals(converter.getObjectId(3), otherConverter.getObjectId(3));
+  }
+
+  @Test
+  public void values() throws Exception
+  {
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
+    var converter = new MongoRecordConverter(schema, "model", 1);
+    List<Document> documents = convert(converter, read("""
+      #1= IFCPROPERTYSINGLEVALUE('Power',$,IFCREAL(230.6),$);
+      #2= IFCPROPERTYSINGLEVALUE('Logical',$,IFCLOGICAL(.U.),$);
+      #3= IFCSURFACESTYLE('Red',.BOTH.,(#4));
+      #4= IFCCOLOURRGB($,0.8,0.2,0.2);
+      #5= IFCPROPERTYSINGLEVALUE('Checked',$,IFCBOOLEAN(.F.),$);
+      """));
+
+    Document power = documents.get(0);
+    assertEquals("Power", power.getString("Name"));
+    assertTrue(power.containsKey("Description"));
+    assertNull(power.get("Description"));
+    Document nominalValue = power.get("NominalValue", Document.class);
+    assertEquals("IfcReal", nominalValue.getString("_class"));
+    assertEquals(230.6, nominalValue.getDouble("_value"));
+
+    Document logical = documents.get(1).get("NominalValue", Document.class);
+    assertEquals("IfcLogical", logical.getString("_class"));
+    assertTrue(logical.containsKey("_value"));
+    assertNull(logical.get("_value"));
+
+    Document style = documents.get(2);
+    assertEquals("BOTH", style.getString("Side"));
+    assertEquals(List.of(documents.get(3).getObjectId("_id")),
+      style.getList("Styles", ObjectId.class));
+
+    // the defined type of the attribute is not stored
+    assertEquals(0.8, documents.get(3).getDouble("Red"));
+
+    Document checked = documents.get(4).get("NominalValue", Document.class);
+    assertEquals(false, checked.getBoolean("_value"));
+
+    assertEquals(0, converter.getDanglingReferenceCount());
+  }
+
+  @Test
+  public void contentIds() throws Exception
+  {
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
+    var converter = new MongoRecordConverter(schema, "model", 2);
+    List<StepRecord> records = read("""
+      #1= IFCCARTESIANPOINT((0.,0.,0.));
+      #2= IFCCARTESIANPOINT((0.,0.,0.));
+      """);
+    var hasher = new MongoContentHasher("model", converter::getUploadId);
+    for (StepRecord record : records)
+    {
+      hasher.add(record);
+    }
+    hasher.computeIds();
+    converter.setContentHasher(hasher);
+
+    List<Document> documents = convert(converter, records);
+    Document point = documents.get(0);
+    assertEquals(hasher.getObjectId(1), point.getObjectId("_id"));
+    assertNotEquals(point.getObjectId("_id"),
+      documents.get(1).getObjectId("_id"));
+    assertEquals(List.of(MongoIfcConnection.getMemberKey("model", 2)),
+      point.getList("_members", String.class));
+    assertEquals("model", point.getString("_modelId"));
+    assertFalse(point.containsKey("_version"));
+  }
+
+  @Test
+  public void invalidRecords() throws Exception
+  {
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
+    var converter = new MongoRecordConverter(schema, "model", 1);
+
+    assertThrows(IOException.class, () -> convert(converter,
+      read("#1= IFCLABEL('text');\n")));
+    assertThrows(IOException.class, () -> convert(converter,
+      read("#1= IFCDIRECTION((0.,0.,1.),$);\n")));
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb.store.mongo;
+
+import java.io.StringWriter;
+import java.util.List;
+import org.bimrocket.express.ExpressSchema;
+import org.bimrocket.express.io.ExpressSchemaRegistry;
+import org.bson.Document;
+import static org.bimrocket.service.ifcdb.store.mongo.MongoRecordConverterTest.convert;
+import static org.bimrocket.service.ifcdb.store.mongo.MongoRecordConverterTest.read;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author realor
+ */
+public class MongoStepExporterTest
+{
+  static String export(ExpressSchema schema, List<Document> documents)
+  {
+    StringWriter writer = new StringWriter();
+    var exporter = new MongoStepExporter(schema, documents.iterator());
+    exporter.export(writer);
+    assertEquals(documents.size(), exporter.getDocumentCount());
+
+    String output = writer.toString();
+    int start = output.indexOf("DATA;\n") + 6;
+    int end = output.indexOf("ENDSEC;", start);
+    return output.substring(start, end);
+  }
+
+  @Test
+  public void forwardReferences() throws Exception
+  {
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
+    var converter = new MongoRecordConverter(schema, "model", 1);
+    List<Document> documents = convert(converter, read("""
+      #30= IFCSURFACESTYLE('Red',.BOTH.,(#20));
+      #20= IFCCOLOURRGB($,0.8,0.2,0.2);
+      #10= IFCAXIS2PLACEMENT3D(#40,#50,$);
+      #50= IFCDIRECTION((0.,0.,1.));
+      #40= IFCCARTESIANPOINT((0.,1.5,2.));
+      """));
+
+    // the tags are assigned in order of appearance, references included
+    assertEquals("""
+      #1= IFCSURFACESTYLE('Red',.BOTH.,(#2));
+      #2= IFCCOLOURRGB($,0.8,0.2,0.2);
+      #3= IFCAXIS2PLACEMENT3D(#4,#5,$);
+      #5= IFCDIRECTION((0.0,0.0,1.0));
+      #4= IFCCARTESIANPOINT((0.0,1.5,2.0));
+      """, export(schema, documents));
+  }
+
+  @Test
+  public void typedValues() throws Exception
+  {
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
+    var converter = new MongoRecordConverter(schema, "model", 1);
+    String data = """
+      #1= IFCPROPERTYSINGLEVALUE('Power',$,IFCREAL(230.6),$);
+      #2= IFCPROPERTYSINGLEVALUE('Checked',$,IFCBOOLEAN(.F.),$);
+      #3= IFCPROPERTYSINGLEVALUE('Name',$,IFCLABEL('Wall'),$);
+      #4= IFCPROPERTYSINGLEVALUE('Count',$,IFCINTEGER(12),$);
+      """;
+    assertEquals(data, export(schema, convert(converter, read(data))));
+  }
+
+  @Test
+  public void unknownValues() throws Exception
+  {
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
+    var converter = new MongoRecordConverter(schema, "model", 1);
+    String data = """
+      #1= IFCCARTESIANPOINT((0.0,0.0,0.0));
+      #2= IFCBSPLINECURVEWITHKNOTS(3,(#1,#1,#1,#1),.UNSPECIFIED.,.U.,.F.,(4,4),(0.0,1.0),.UNSPECIFIED.);
+      #3= IFCPROPERTYSINGLEVALUE('Logical',$,IFCLOGICAL(.U.),$);
+      """;
+    // UNKNOWN is stored as null, and exported as .U. for logical types
+    List<Document> documents = convert(converter, read(data));
+    assertEquals(null, documents.get(1).get("ClosedCurve"));
+    assertEquals(data, export(schema, documents));
+  }
+
+  @Test
+  public void roundTrip() throws Exception
+  {
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
+    String data = export(schema,
+      convert(new MongoRecordConverter(schema, "model", 1), read("""
+      #7= IFCLOCALPLACEMENT(#8,#6);
+      #6= IFCAXIS2PLACEMENT3D(#5,$,$);
+      #5= IFCCARTESIANPOINT((0.,0.,0.));
+      #8= IFCLOCALPLACEMENT($,#6);
+      """)));
+
+    assertEquals(data, export(schema,
+      convert(new MongoRecordConverter(schema, "model", 2), read(data))));
+  }
+
+  @Test
+  public void invalidDocuments() throws Exception
+  {
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
+    assertThrows(RuntimeException.class, () -> export(schema,
+      List.of(new Document("_class", "IfcLabel"))));
+  }
+}
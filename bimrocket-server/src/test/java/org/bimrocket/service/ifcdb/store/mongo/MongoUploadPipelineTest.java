@@ -0,0 +1,161 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb.store.mongo;
+
+import com.mongodb.MongoBulkWriteException;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import org.bimrocket.express.ExpressSchema;
+import org.bimrocket.express.io.ExpressSchemaRegistry;
+import org.bimrocket.service.ifcdb.store.IfcdbUploadSettings;
+import org.bson.Document;
+import static org.bimrocket.service.ifcdb.store.mongo.StubMongoCollection.NETWORK_TIMEOUT;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author realor
+ */
+public class MongoUploadPipelineTest
+{
+  static final int ELEMENT_COUNT = 5000;
+  static final long WRITE_MILLIS = 300; // longer than the stage polls
+
+  @TempDir
+  File tempDir;
+
+  File createFile(String invalidRecord) throws IOException
+  {
+    File ifcFile = new File(tempDir, "model.ifc");
+    try (PrintWriter writer = new PrintWriter(ifcFile, StandardCharsets.UTF_8))
+    {
+      writer.println("ISO-10303-21;");
+      writer.println("HEADER;");
+      writer.println("FILE_SCHEMA(('IFC4'));");
+      writer.println("ENDSEC;");
+      writer.println("DATA;");
+      for (int tag = 1; tag <= ELEMENT_COUNT; tag++)
+      {
+        writer.println("#" + tag + "= IFCCARTESIANPOINT((" + tag +
+          ".,0.,0.));");
+        if (tag == ELEMENT_COUNT / 2 && invalidRecord != null)
+        {
+          writer.println(invalidRecord);
+        }
+      }
+      writer.println("ENDSEC;");
+      writer.println("END-ISO-10303-21;");
+    }
+    return ifcFile;
+  }
+
+  int upload(StubMongoCollection stub, File ifcFile) throws IOException
+  {
+    ExpressSchema schema = ExpressSchemaRegistry.getSchema("IFC4");
+    var settings = new IfcdbUploadSettings();
+    settings.setBatchSize(100);
+    var converter = new MongoRecordConverter(schema, "model", 1);
+
+    try (var writer = new MongoBulkWriter(stub.getCollection(), 4, 100, 0))
+    {
+      return new MongoUploadPipeline(schema, writer, converter, ifcFile,
+        settings).run();
+    }
+  }
+
+  /**
+   * Checks that the collection is not modified after a failed upload.
+   */
+  void assertStopped(StubMongoCollection stub) throws InterruptedException
+  {
+    assertEquals(0, stub.runningWrites.get());
+    int writeCount = stub.bulkWriteCount.get();
+    int documentCount = stub.documents.size();
+    assertTrue(documentCount < ELEMENT_COUNT);
+
+    Thread.sleep(2 * WRITE_MILLIS);
+    assertEquals(writeCount, stub.bulkWriteCount.get());
+    assertEquals(documentCount, stub.documents.size());
+  }
+
+  @Test
+  public void upload() throws Exception
+  {
+    var stub = new StubMongoCollection();
+    assertEquals(ELEMENT_COUNT, upload(stub, createFile(null)));
+    assertEquals(ELEMENT_COUNT, stub.documents.size());
+  }
+
+  @Test
+  public void writeFailure() throws Exception
+  {
+    var stub = new StubMongoCollection()
+    {
+      @Override
+      protected void beforeWrite(int call)
+      {
+        sleepUninterruptibly(WRITE_MILLIS);
+      }
+
+      @Override
+      protected int getErrorCode(Document document)
+      {
+        double x = document.getList("Coordinates", Double.class).get(0);
+        return x == ELEMENT_COUNT / 2 ? NETWORK_TIMEOUT : 0;
+      }
+    };
+    File ifcFile = createFile(null);
+    assertThrows(MongoBulkWriteException.class, () -> upload(stub, ifcFile));
+    assertStopped(stub);
+  }
+
+  @Test
+  public void parseFailure() throws Exception
+  {
+    var stub = new StubMongoCollection()
+    {
+      @Override
+      protected void beforeWrite(int call)
+      {
+        sleepUninterruptibly(WRITE_MILLIS);
+      }
+    };
+    File ifcFile = createFile("#0= IFCCARTESIANPOINT(");
+    assertThrows(IOException.class, () -> upload(stub, ifcFile));
+    assertStopped(stub);
+  }
+}
@@ -0,0 +1,293 @@
+/*
+ * BIMROCKET
+ *
+ * Copyright (C) 2021-2025, Ajuntament de Sant Feliu de Llobregat
+ *
+ * This program is licensed and may be used, modified and redistributed under
+ * the terms of the European Public License (EUPL), either version 1.1 or (at
+ * your option) any later version as soon as they are approved by the European
+ * Commission.
+ *
+ * Alternatively, you may redistribute and/or modify this program under the
+ * terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either  version 3 of the License, or (at your option)
+ * any later version.
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * See the licenses for the specific language governing permissions, limitations
+ * and more details.
+ *
+ * You should have received a copy of the EUPL1.1 and the LGPLv3 licenses along
+ * with this program; if not, you may find them at:
+ *
+ * https://joinup.ec.europa.eu/software/page/eupl/licence-eupl
+ * http://www.gnu.org/licenses/
+ * and
+ * https://www.gnu.org/licenses/lgpl.txt
+ */
+package org.bimrocket.service.ifcdb.store.mongo;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.WriteModel;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+/**
+ * An in memory collection to test the bulk writers without a database.
+ * <p>
+ * Only the operations used by the writers are supported: bulk writes of
+ * inserts and of {@code $addToSet} updates by {@code _id}, and finds by
+ * {@code _id}. The failures of the database are simulated by overriding
+ * the hook methods, that are called concurrently by the writer threads.
+ *
+ * @author realor
+ */
+public class StubMongoCollection implements InvocationHandler
+{
+  static final int DUPLICATE_KEY = 11000;
+  static final int NETWORK_TIMEOUT = 89;
+
+  final Map<Object, Document> documents = new ConcurrentHashMap<>();
+  final Map<Object, Integer> sendCounts = new ConcurrentHashMap<>();
+  final AtomicInteger bulkWriteCount = new AtomicInteger();
+  final AtomicInteger runningWrites = new AtomicInteger();
+
+  @SuppressWarnings("unchecked")
+  public MongoCollection<Document> getCollection()
+  {
+    return (MongoCollection<Document>)Proxy.newProxyInstance(
+      getClass().getClassLoader(), new Class<?>[]{ MongoCollection.class },
+      this);
+  }
+
+  /**
+   * Returns the number of times a document was sent to be inserted.
+   *
+   * @param id the id of the document
+   * @return the number of inserts of the document
+   */
+  public int getSendCount(Object id)
+  {
+    return sendCounts.getOrDefault(id, 0);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public Object invoke(Object proxy, Method method, Object[] args)
+    throws Throwable
+  {
+    return switch (method.getName())
+    {
+      case "bulkWrite" -> bulkWrite((List<WriteModel<Document>>)args[0]);
+      case "find" -> find((Bson)args[0]);
+      case "hashCode" -> System.identityHashCode(proxy);
+      case "equals" -> proxy == args[0];
+      case "toString" -> "StubMongoCollection";
+      default -> throw new UnsupportedOperationException(method.getName());
+    };
+  }
+
+  /**
+   * Called before a bulk write is applied.
+   *
+   * @param call the number of the bulk write, starting at 1
+   */
+  protected void beforeWrite(int call)
+  {
+  }
+
+  /**
+   * Called after a bulk write is applied, before its result is returned.
+   *
+   * @param call the number of the bulk write, starting at 1
+   */
+  protected void afterWrite(int call)
+  {
+  }
+
+  /**
+   * Returns the error code of the insert of a document.
+   *
+   * @param document the document to insert
+   * @return the code of the error, or 0 to insert the document
+   */
+  protected int getErrorCode(Document document)
+  {
+    return 0;
+  }
+
+  /**
+   * Called with the documents found by a find, before they are returned.
+   *
+   * @param found the documents found
+   */
+  protected void afterFind(List<Document> found)
+  {
+  }
+
+  /**
+   * Sleeps ignoring interrupts, as the driver does in socket I/O.
+   *
+   * @param millis the time to sleep
+   */
+  static void sleepUninterruptibly(long millis)
+  {
+    boolean interrupted = false;
+    long end = System.nanoTime() + millis * 1_000_000;
+    long remaining = millis;
+    while (remaining > 0)
+    {
+      try
+      {
+        Thread.sleep(remaining);
+      }
+      catch (InterruptedException ex)
+      {
+        interrupted = true;
+      }
+      remaining = (end - System.nanoTime()) / 1_000_000;
+    }
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+
+  private BulkWriteResult bulkWrite(List<WriteModel<Document>> models)
+  {
+    int call = bulkWriteCount.incrementAndGet();
+    runningWrites.incrementAndGet();
+    try
+    {
+      beforeWrite(call);
+
+      int insertedCount = 0;
+      int matchedCount = 0;
+      int modifiedCount = 0;
+      List<BulkWriteError> errors = new ArrayList<>();
+      for (int index = 0; index < models.size(); index++)
+      {
+        WriteModel<Document> model = models.get(index);
+        if (model instanceof InsertOneModel<Document> insert)
+        {
+          Document document = new Document(insert.getDocument());
+          Object id = document.get("_id");
+          sendCounts.merge(id, 1, Integer::sum);
+          int errorCode = getErrorCode(document);
+          if (errorCode == 0 && documents.putIfAbsent(id, document) != null)
+          {
+            errorCode = DUPLICATE_KEY;
+          }
+          if (errorCode == 0)
+          {
+            insertedCount++;
+          }
+          else
+          {
+            errors.add(new BulkWriteError(errorCode, "error " + errorCode,
+              new BsonDocument(), index));
+          }
+        }
+        else if (model instanceof UpdateManyModel<Document> update)
+        {
+          Document addToSet = toDocument(update.getUpdate())
+            .get("$addToSet", Document.class);
+          for (Object id : getIds(update.getFilter()))
+          {
+            Document document = documents.get(id);
+            if (document == null) continue;
+
+            matchedCount++;
+            for (String key : addToSet.keySet())
+            {
+              synchronized (document)
+              {
+                List<Object> values =
+                  new ArrayList<>(document.getList(key, Object.class));
+                if (!values.contains(addToSet.get(key)))
+                {
+                  values.add(addToSet.get(key));
+                  document.put(key, values);
+                  modifiedCount++;
+                }
+              }
+            }
+          }
+        }
+        else throw new UnsupportedOperationException(model.toString());
+      }
+
+      afterWrite(call);
+
+      BulkWriteResult result = BulkWriteResult.acknowledged(insertedCount,
+        matchedCount, 0, modifiedCount, List.of(), List.of());
+      if (!errors.isEmpty())
+        throw new MongoBulkWriteException(result, errors, null,
+          new ServerAddress(), Set.of());
+
+      return result;
+    }
+    finally
+    {
+      runningWrites.decrementAndGet();
+    }
+  }
+
+  private FindIterable<?> find(Bson filter)
+  {
+    List<Document> found = new ArrayList<>();
+    for (Object id : getIds(filter))
+    {
+      Document document = documents.get(id);
+      if (document != null) found.add(document);
+    }
+    afterFind(found);
+
+    return (FindIterable<?>)Proxy.newProxyInstance(
+      getClass().getClassLoader(), new Class<?>[]{ FindIterable.class },
+      (proxy, method, args) ->
+      {
+        switch (method.getName())
+        {
+          case "projection":
+            return proxy;
+          case "forEach":
+            @SuppressWarnings("unchecked")
+            Consumer<Object> consumer = (Consumer<Object>)args[0];
+            found.forEach(consumer);
+            return null;
+          default:
+            throw new UnsupportedOperationException(method.getName());
+        }
+      });
+  }
+
+  private List<Object> getIds(Bson filter)
+  {
+    Document idFilter = toDocument(filter).get("_id", Document.class);
+    return idFilter.getList("$in", Object.class);
+  }
+
+  private Document toDocument(Bson bson)
+  {
+    return Document.parse(bson.toBsonDocument().toJson());
+  }
+}